@@ -27,7 +27,7 @@ import com.android.internal.telephony.GsmAlphabet.TextEncodingDetails;
 import com.android.internal.telephony.SmsConstants;
 import com.android.internal.telephony.SmsMessageBase;
 import com.android.internal.telephony.SmsMessageBase.SubmitPduBase;
-import com.android.internal.telephony.Sms7BitEncodingTranslator;
+import com.android.internal.telephony.SmsLengthCalculator;
 
 import java.lang.Math;
 import java.util.ArrayList;
@@ -345,10 +345,12 @@ public class SmsMessage {
      * @hide
      */
     public static ArrayList<String> fragmentText(String text) {
-        // This function is for MO SMS
-        TextEncodingDetails ted = (useCdmaFormatForMoSms()) ?
-            com.android.internal.telephony.cdma.SmsMessage.calculateLength(text, false) :
-            com.android.internal.telephony.gsm.SmsMessage.calculateLength(text, false);
+        // This function is for MO SMS. The calling thread's calculator only recounts
+        // what changed since its last text, e.g. the chars typed since the last call.
+        SmsLengthCalculator calculator =
+                SmsLengthCalculator.forCurrentThread(useCdmaFormatForMoSms());
+        calculator.setText(text);
+        TextEncodingDetails ted = calculator.getTextEncodingDetails(false);
 
         // TODO(cleanup): The code here could be rolled into the logic
         // below cleanly if these MAX_* constants were defined more
@@ -391,14 +393,7 @@ public class SmsMessage {
             }
         }
 
-        String newMsgBody = null;
-        Resources r = Resources.getSystem();
-        if (r.getBoolean(com.android.internal.R.bool.config_sms_force_7bit_encoding)) {
-            newMsgBody  = Sms7BitEncodingTranslator.translate(text);
-        }
-        if (TextUtils.isEmpty(newMsgBody)) {
-            newMsgBody = text;
-        }
+        String newMsgBody = calculator.getTranslatedText();
         int pos = 0;  // Index in code units.
         int textLen = newMsgBody.length();
         ArrayList<String> result = new ArrayList<String>(ted.msgCount);
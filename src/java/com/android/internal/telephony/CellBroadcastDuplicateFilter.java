@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.telephony.SmsCbLocation;
+
+/**
+ * Remembers recently dispatched cell broadcasts so that rebroadcasts of the same message,
+ * which the network repeats every few seconds while a warning is in force, are dropped
+ * before they are reassembled or decoded.
+ *
+ * A message is identified by its serial number (geographical scope, message code and update
+ * number), its message identifier and the location the serial number is unique within,
+ * i.e. the PLMN plus the LAC and cell ID as far as the geographical scope includes them.
+ * Whether it is an ETWS primary notification is part of the key too: the secondary
+ * notification that follows a primary one, with the warning text, has the same serial
+ * number and message identifier.
+ * Entries expire {@link #EXPIRY_MS} after the message was last seen, so a warning repeated
+ * continuously is only dispatched once. At most {@link #CAPACITY} entries are kept, in flat
+ * arrays, evicting the least recently seen.
+ *
+ * Not thread safe; used from the cell broadcast handler's thread.
+ */
+public final class CellBroadcastDuplicateFilter {
+
+    /** Number of distinct messages remembered. */
+    static final int CAPACITY = 64;
+
+    /** How long after it was last seen a message is still treated as a duplicate. */
+    static final long EXPIRY_MS = 60 * 60 * 1000;
+
+    // (serial number << 48) | (message identifier << 32) | PLMN code
+    private final long[] mIds = new long[CAPACITY];
+    // (LAC << 32) | cell ID
+    private final long[] mCells = new long[CAPACITY];
+    // whether the message is an ETWS primary notification
+    private final boolean[] mEtwsPrimary = new boolean[CAPACITY];
+    // elapsedRealtime the message was last seen, 0 for a free slot
+    private final long[] mLastSeen = new long[CAPACITY];
+
+    private int mSize;
+    private int mDuplicates;
+    private int mEvicted;
+
+    /**
+     * Returns true if the message was dispatched within the last {@link #EXPIRY_MS}, and
+     * extends its expiry; the caller is expected to drop it.
+     *
+     * @param now the current {@link android.os.SystemClock#elapsedRealtime}
+     */
+    public boolean isDuplicate(int serialNumber, int messageIdentifier,
+            boolean etwsPrimary, SmsCbLocation location, long now) {
+        int index = indexOf(id(serialNumber, messageIdentifier, location), cell(location),
+                etwsPrimary, now);
+        if (index < 0) {
+            return false;
+        }
+        mLastSeen[index] = now;
+        mDuplicates++;
+        return true;
+    }
+
+    /**
+     * Records a message that has been dispatched, replacing the least recently seen entry
+     * if the filter is full.
+     *
+     * @param now the current {@link android.os.SystemClock#elapsedRealtime}
+     */
+    public void add(int serialNumber, int messageIdentifier, boolean etwsPrimary,
+            SmsCbLocation location, long now) {
+        long id = id(serialNumber, messageIdentifier, location);
+        long cell = cell(location);
+        int index = indexOf(id, cell, etwsPrimary, now);
+        if (index < 0) {
+            // take a free or expired slot, otherwise the least recently seen one
+            index = 0;
+            for (int i = 0; i < CAPACITY; i++) {
+                if (isFree(i, now)) {
+                    index = i;
+                    break;
+                }
+                if (mLastSeen[i] < mLastSeen[index]) {
+                    index = i;
+                }
+            }
+            if (isFree(index, now)) {
+                mSize++;
+            } else {
+                mEvicted++;
+            }
+            mIds[index] = id;
+            mCells[index] = cell;
+            mEtwsPrimary[index] = etwsPrimary;
+        }
+        mLastSeen[index] = Math.max(now, 1);
+    }
+
+    /**
+     * Forgets all messages, but not the counters.
+     */
+    public void clear() {
+        for (int i = 0; i < CAPACITY; i++) {
+            mLastSeen[i] = 0;
+        }
+        mSize = 0;
+    }
+
+    /** Returns the number of messages dropped as duplicates. */
+    public int getDuplicateCount() {
+        return mDuplicates;
+    }
+
+    private int indexOf(long id, long cell, boolean etwsPrimary, long now) {
+        for (int i = 0; i < CAPACITY; i++) {
+            if (mIds[i] == id && mCells[i] == cell && mEtwsPrimary[i] == etwsPrimary
+                    && mLastSeen[i] != 0) {
+                if (now - mLastSeen[i] <= EXPIRY_MS) {
+                    return i;
+                }
+                mLastSeen[i] = 0;
+                mSize--;
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isFree(int index, long now) {
+        if (mLastSeen[index] != 0 && now - mLastSeen[index] > EXPIRY_MS) {
+            mLastSeen[index] = 0;
+            mSize--;
+        }
+        return mLastSeen[index] == 0;
+    }
+
+    private static long id(int serialNumber, int messageIdentifier, SmsCbLocation location) {
+        return ((long) (serialNumber & 0xffff) << 48)
+                | ((long) (messageIdentifier & 0xffff) << 32)
+                | (plmnCode(location.getPlmn()) & 0xffffffffL);
+    }
+
+    private static long cell(SmsCbLocation location) {
+        return ((long) location.getLac() << 32) | (location.getCid() & 0xffffffffL);
+    }
+
+    /**
+     * Maps a PLMN to an int, exactly for the numeric MCC+MNC strings that are expected; the
+     * leading 1 keeps "310" + "01" and "310" + "010" apart.
+     */
+    private static int plmnCode(String plmn) {
+        if (plmn == null || plmn.isEmpty()) {
+            return 0;
+        }
+        int code = 1;
+        for (int i = 0, length = plmn.length(); i < length; i++) {
+            char c = plmn.charAt(i);
+            if (c < '0' || c > '9' || length > 8) {
+                return plmn.hashCode();
+            }
+            code = code * 10 + (c - '0');
+        }
+        return code;
+    }
+
+    @Override
+    public String toString() {
+        return "CellBroadcastDuplicateFilter: size=" + mSize + " duplicates=" + mDuplicates
+                + " evicted=" + mEvicted;
+    }
+}
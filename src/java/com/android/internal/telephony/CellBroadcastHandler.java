@@ -22,16 +22,24 @@ import android.app.AppOpsManager;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Message;
+import android.os.SystemClock;
 import android.provider.Telephony;
 import android.telephony.SubscriptionManager;
 import android.telephony.SmsCbMessage;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 /**
  * Dispatch new Cell Broadcasts to receivers. Acquires a private wakelock until the broadcast
  * completes and our result receiver is called.
  */
 public class CellBroadcastHandler extends WakeLockStateMachine {
 
+    /** Recently dispatched messages, to drop rebroadcasts of them. */
+    protected final CellBroadcastDuplicateFilter mDuplicateFilter =
+            new CellBroadcastDuplicateFilter();
+
     private CellBroadcastHandler(Context context, PhoneBase phone) {
         this("CellBroadcastHandler", context, phone);
     }
@@ -61,7 +69,17 @@ public class CellBroadcastHandler extends WakeLockStateMachine {
     @Override
     protected boolean handleSmsMessage(Message message) {
         if (message.obj instanceof SmsCbMessage) {
-            handleBroadcastSms((SmsCbMessage) message.obj);
+            SmsCbMessage cbMessage = (SmsCbMessage) message.obj;
+            long now = SystemClock.elapsedRealtime();
+            // 3GPP2 broadcasts have no ETWS primary notifications
+            if (mDuplicateFilter.isDuplicate(cbMessage.getSerialNumber(),
+                    cbMessage.getServiceCategory(), false, cbMessage.getLocation(), now)) {
+                log("Dropping duplicate SMS CB, serial number " + cbMessage.getSerialNumber());
+                return false;
+            }
+            mDuplicateFilter.add(cbMessage.getSerialNumber(), cbMessage.getServiceCategory(),
+                    false, cbMessage.getLocation(), now);
+            handleBroadcastSms(cbMessage);
             return true;
         } else {
             loge("handleMessage got object of type: " + message.obj.getClass().getName());
@@ -93,4 +111,10 @@ public class CellBroadcastHandler extends WakeLockStateMachine {
         mContext.sendOrderedBroadcast(intent, receiverPermission, appOp, mReceiver,
                 getHandler(), Activity.RESULT_OK, null, null);
     }
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        super.dump(fd, pw, args);
+        pw.println(" " + mDuplicateFilter);
+    }
 }
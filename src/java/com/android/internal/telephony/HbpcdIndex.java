@@ -0,0 +1,456 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.telephony.Rlog;
+
+import com.android.internal.telephony.HbpcdLookup.ArbitraryMccSidMatch;
+import com.android.internal.telephony.HbpcdLookup.MccIdd;
+import com.android.internal.telephony.HbpcdLookup.MccLookup;
+import com.android.internal.telephony.HbpcdLookup.MccSidConflicts;
+import com.android.internal.telephony.HbpcdLookup.MccSidRange;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * In-memory index of the HbpcdLookup tables used on CDMA registration and when
+ * formatting outgoing SMS destination addresses.
+ *
+ * The tables are read from the provider once into primitive-keyed arrays and are
+ * reloaded from a content observer when the provider changes, so lookups never query
+ * the provider on the caller's thread once the index has been built.
+ *
+ * {@hide}
+ */
+public final class HbpcdIndex {
+    private static final String LOG_TAG = "HbpcdIndex";
+    private static final boolean DBG = false;
+
+    private static final int MCC_TABLE_SIZE = 1000;
+
+    private static HbpcdIndex sInstance;
+
+    private final ContentResolver mResolver;
+    private volatile Tables mTables;
+
+    /**
+     * Immutable snapshot of the HbpcdLookup tables.
+     */
+    private static final class Tables {
+        // arbitrary_mcc_sid_match, sorted by SID, provider order within a SID
+        int[] mArbitrarySid;
+        int[] mArbitraryMcc;
+
+        // mcc_sid_conflict, sorted by SID, provider order within a SID
+        int[] mConflictSid;
+        int[] mConflictMcc;
+
+        // mcc_lookup time zone ranges by MCC: {gmtLow, gmtHigh, dstLow, dstHigh} per row
+        int[][] mGmtRangesByMcc = new int[MCC_TABLE_SIZE][];
+
+        // mcc_sid_range sorted by low SID; mRangeMaxHigh[i] is the max high of [0..i]
+        int[] mRangeLow;
+        int[] mRangeHigh;
+        int[] mRangeMaxHigh;
+        int[] mRangeMcc;
+        int[] mRangeOrder;
+
+        // mcc_idd, distinct IDDs per MCC in provider order
+        List<String>[] mIddsByMcc;
+        List<String> mAllIdds;
+
+        // mcc_lookup country codes: rank (provider order) of each code, or -1
+        int[] mCountryCodeRank;
+        int mMaxCountryCodeLength;
+        boolean mHasCountryCodes;
+    }
+
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            if (DBG) Rlog.d(LOG_TAG, "HbpcdLookup changed, reloading");
+            mTables = load();
+            SmsNumberUtils.invalidateFormatCache();
+        }
+    };
+
+    private HbpcdIndex(Context context) {
+        mResolver = context.getContentResolver();
+        mResolver.registerContentObserver(HbpcdLookup.CONTENT_URI, true, mObserver);
+    }
+
+    /**
+     * Returns the process-wide index.
+     */
+    public static synchronized HbpcdIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new HbpcdIndex(context.getApplicationContext() != null
+                    ? context.getApplicationContext() : context);
+        }
+        return sInstance;
+    }
+
+    private Tables getTables() {
+        Tables tables = mTables;
+        if (tables == null) {
+            synchronized (this) {
+                tables = mTables;
+                if (tables == null) {
+                    tables = load();
+                    mTables = tables;
+                }
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Returns the MCC of the single arbitrary_mcc_sid_match row for sid, or -1 if the
+     * SID has no row or more than one.
+     */
+    public int getArbitraryMcc(int sid) {
+        Tables t = getTables();
+        int first = lowerBound(t.mArbitrarySid, sid);
+        if (first < t.mArbitrarySid.length && t.mArbitrarySid[first] == sid
+                && (first + 1 == t.mArbitrarySid.length || t.mArbitrarySid[first + 1] != sid)) {
+            return t.mArbitraryMcc[first];
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the MCC of the first mcc_sid_conflict row for sid whose country's
+     * time zone range contains tz, or -1 if there is none.
+     */
+    public int getConflictMcc(int sid, int tz, int dstFlag) {
+        Tables t = getTables();
+        for (int i = lowerBound(t.mConflictSid, sid);
+                i < t.mConflictSid.length && t.mConflictSid[i] == sid; i++) {
+            int mcc = t.mConflictMcc[i];
+            if (mcc < 0 || mcc >= MCC_TABLE_SIZE) continue;
+            int[] ranges = t.mGmtRangesByMcc[mcc];
+            if (ranges == null) continue;
+            for (int j = 0; j < ranges.length; j += 4) {
+                if ((dstFlag == 0 && ranges[j] <= tz && tz <= ranges[j + 1])
+                        || (dstFlag == 1 && ranges[j + 2] <= tz && tz <= ranges[j + 3])) {
+                    return mcc;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the MCC of the first mcc_sid_range row containing sid, or -1.
+     */
+    public int getRangeMcc(int sid) {
+        Tables t = getTables();
+        int best = -1;
+        // walk back from the last range starting at or below sid while any earlier
+        // range could still reach it
+        for (int i = upperBound(t.mRangeLow, sid) - 1; i >= 0 && t.mRangeMaxHigh[i] >= sid; i--) {
+            if (t.mRangeHigh[i] >= sid && (best < 0 || t.mRangeOrder[i] < t.mRangeOrder[best])) {
+                best = i;
+            }
+        }
+        return best < 0 ? -1 : t.mRangeMcc[best];
+    }
+
+    /**
+     * Returns the distinct IDDs for mcc in provider order; all IDDs if mcc is null.
+     */
+    public List<String> getIdds(String mcc) {
+        Tables t = getTables();
+        if (mcc == null) {
+            return t.mAllIdds;
+        }
+        int value = parseMcc(mcc);
+        if (value < 0 || t.mIddsByMcc[value] == null) {
+            return Collections.<String>emptyList();
+        }
+        return t.mIddsByMcc[value];
+    }
+
+    /**
+     * Returns the first IDD for mcc, or "" if none.
+     */
+    public String getIdd(int mcc) {
+        Tables t = getTables();
+        if (mcc < 0 || mcc >= MCC_TABLE_SIZE || t.mIddsByMcc[mcc] == null) {
+            return "";
+        }
+        return t.mIddsByMcc[mcc].get(0);
+    }
+
+    /**
+     * Returns true once the mcc_lookup table has provided at least one country code.
+     */
+    public boolean hasCountryCodes() {
+        return getTables().mHasCountryCodes;
+    }
+
+    /**
+     * Returns the country code that number starts with, or -1. When several prefixes
+     * of number are country codes the one listed first in mcc_lookup wins.
+     */
+    public int findCountryCode(String number) {
+        Tables t = getTables();
+        if (!t.mHasCountryCodes) return -1;
+        int bestCode = -1;
+        int bestRank = Integer.MAX_VALUE;
+        int prefix = 0;
+        for (int i = 0; i < t.mMaxCountryCodeLength && i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (c < '0' || c > '9') break;
+            prefix = prefix * 10 + (c - '0');
+            int rank = t.mCountryCodeRank[prefix];
+            if (rank >= 0 && rank < bestRank) {
+                bestRank = rank;
+                bestCode = prefix;
+            }
+        }
+        return bestCode;
+    }
+
+    private static int parseMcc(String mcc) {
+        if (mcc.length() != 3) return -1;
+        int value = 0;
+        for (int i = 0; i < 3; i++) {
+            char c = mcc.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /** Returns the first index i with a[i] >= key. */
+    private static int lowerBound(int[] a, int key) {
+        int lo = 0, hi = a.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid] < key) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    /** Returns the first index i with a[i] > key. */
+    private static int upperBound(int[] a, int key) {
+        int lo = 0, hi = a.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid] <= key) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    private Cursor query(android.net.Uri uri, String[] projection) {
+        try {
+            return mResolver.query(uri, projection, null, null, null);
+        } catch (SQLException e) {
+            Rlog.e(LOG_TAG, "Can't access HbpcdLookup database", e);
+            return null;
+        }
+    }
+
+    private Tables load() {
+        long start = System.currentTimeMillis();
+        Tables t = new Tables();
+
+        int[][] pairs = loadSidMccPairs(ArbitraryMccSidMatch.CONTENT_URI,
+                ArbitraryMccSidMatch.SID, ArbitraryMccSidMatch.MCC);
+        t.mArbitrarySid = pairs[0];
+        t.mArbitraryMcc = pairs[1];
+
+        pairs = loadSidMccPairs(MccSidConflicts.CONTENT_URI,
+                MccSidConflicts.SID_CONFLICT, MccSidConflicts.MCC);
+        t.mConflictSid = pairs[0];
+        t.mConflictMcc = pairs[1];
+
+        loadMccLookup(t);
+        loadRanges(t);
+        loadIdds(t);
+
+        Rlog.d(LOG_TAG, "load: indexed " + t.mArbitrarySid.length + " arbitrary, "
+                + t.mConflictSid.length + " conflict, " + t.mRangeLow.length + " range and "
+                + t.mAllIdds.size() + " IDD rows in " + (System.currentTimeMillis() - start)
+                + "ms");
+        return t;
+    }
+
+    /**
+     * Loads (sid, mcc) rows sorted by sid, keeping provider order for equal sids.
+     */
+    private int[][] loadSidMccPairs(android.net.Uri uri, String sidColumn, String mccColumn) {
+        int count = 0;
+        long[] packed = new long[0];
+        int[] mccByRow = new int[0];
+        Cursor c = query(uri, new String[] {sidColumn, mccColumn});
+        if (c != null) {
+            try {
+                packed = new long[c.getCount()];
+                mccByRow = new int[packed.length];
+                while (c.moveToNext() && count < packed.length) {
+                    // sid in the high word, row order in the low word keeps the sort stable
+                    packed[count] = ((long) c.getInt(0) << 32) | count;
+                    mccByRow[count] = c.getInt(1);
+                    count++;
+                }
+            } finally {
+                c.close();
+            }
+        }
+        Arrays.sort(packed, 0, count);
+        int[] sids = new int[count];
+        int[] mccs = new int[count];
+        for (int i = 0; i < count; i++) {
+            sids[i] = (int) (packed[i] >> 32);
+            mccs[i] = mccByRow[(int) packed[i]];
+        }
+        return new int[][] {sids, mccs};
+    }
+
+    private void loadMccLookup(Tables t) {
+        t.mCountryCodeRank = new int[1];
+        t.mCountryCodeRank[0] = -1;
+        Cursor c = query(MccLookup.CONTENT_URI, new String[] {MccLookup.MCC,
+                MccLookup.COUNTRY_CODE, MccLookup.GMT_OFFSET_LOW, MccLookup.GMT_OFFSET_HIGH,
+                MccLookup.GMT_DST_LOW, MccLookup.GMT_DST_HIGH});
+        if (c == null) return;
+        try {
+            int[] codes = new int[c.getCount()];
+            int count = 0;
+            int maxLength = 0;
+            while (c.moveToNext()) {
+                int mcc = c.getInt(0);
+                int countryCode = c.getInt(1);
+                if (count < codes.length) {
+                    codes[count++] = countryCode;
+                    int length = String.valueOf(countryCode).length();
+                    if (length > maxLength) maxLength = length;
+                }
+                if (mcc >= 0 && mcc < MCC_TABLE_SIZE) {
+                    int[] old = t.mGmtRangesByMcc[mcc];
+                    int base = old == null ? 0 : old.length;
+                    int[] ranges = old == null ? new int[4] : Arrays.copyOf(old, base + 4);
+                    ranges[base] = c.getInt(2);
+                    ranges[base + 1] = c.getInt(3);
+                    ranges[base + 2] = c.getInt(4);
+                    ranges[base + 3] = c.getInt(5);
+                    t.mGmtRangesByMcc[mcc] = ranges;
+                }
+            }
+
+            int size = 1;
+            for (int i = 0; i < maxLength; i++) size *= 10;
+            t.mCountryCodeRank = new int[size];
+            Arrays.fill(t.mCountryCodeRank, -1);
+            for (int i = 0; i < count; i++) {
+                int code = codes[i];
+                if (code >= 0 && code < size && t.mCountryCodeRank[code] < 0) {
+                    t.mCountryCodeRank[code] = i;
+                }
+            }
+            t.mMaxCountryCodeLength = maxLength;
+            t.mHasCountryCodes = count > 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    private void loadRanges(Tables t) {
+        Cursor c = query(MccSidRange.CONTENT_URI, new String[] {MccSidRange.RANGE_LOW,
+                MccSidRange.RANGE_HIGH, MccSidRange.MCC});
+        int count = 0;
+        long[] packed = new long[0];
+        int[] high = new int[0];
+        int[] mcc = new int[0];
+        if (c != null) {
+            try {
+                packed = new long[c.getCount()];
+                high = new int[packed.length];
+                mcc = new int[packed.length];
+                while (c.moveToNext() && count < packed.length) {
+                    packed[count] = ((long) c.getInt(0) << 32) | count;
+                    high[count] = c.getInt(1);
+                    mcc[count] = c.getInt(2);
+                    count++;
+                }
+            } finally {
+                c.close();
+            }
+        }
+        Arrays.sort(packed, 0, count);
+        t.mRangeLow = new int[count];
+        t.mRangeHigh = new int[count];
+        t.mRangeMaxHigh = new int[count];
+        t.mRangeMcc = new int[count];
+        t.mRangeOrder = new int[count];
+        int maxHigh = Integer.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            int row = (int) packed[i];
+            t.mRangeLow[i] = (int) (packed[i] >> 32);
+            t.mRangeHigh[i] = high[row];
+            t.mRangeMcc[i] = mcc[row];
+            t.mRangeOrder[i] = row;
+            maxHigh = Math.max(maxHigh, high[row]);
+            t.mRangeMaxHigh[i] = maxHigh;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void loadIdds(Tables t) {
+        t.mIddsByMcc = new List[MCC_TABLE_SIZE];
+        ArrayList<String> all = new ArrayList<String>();
+        Cursor c = query(MccIdd.CONTENT_URI, new String[] {MccIdd.IDD, MccIdd.MCC});
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    String idd = c.getString(0);
+                    int mcc = c.getInt(1);
+                    if (!all.contains(idd)) {
+                        all.add(idd);
+                    }
+                    if (mcc < 0 || mcc >= MCC_TABLE_SIZE) continue;
+                    List<String> idds = t.mIddsByMcc[mcc];
+                    if (idds == null) {
+                        idds = new ArrayList<String>(1);
+                        t.mIddsByMcc[mcc] = idds;
+                    }
+                    if (!idds.contains(idd)) {
+                        idds.add(idd);
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        }
+        for (int i = 0; i < MCC_TABLE_SIZE; i++) {
+            if (t.mIddsByMcc[i] != null) {
+                t.mIddsByMcc[i] = Collections.unmodifiableList(t.mIddsByMcc[i]);
+            }
+        }
+        t.mAllIdds = Collections.unmodifiableList(all);
+    }
+}
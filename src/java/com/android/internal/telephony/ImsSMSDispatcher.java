@@ -26,6 +26,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import android.app.PendingIntent;
 import android.app.PendingIntent.CanceledException;
+import android.content.pm.PackageInfo;
 import android.net.Uri;
 import android.os.AsyncResult;
 import android.os.Message;
@@ -406,6 +407,18 @@ public final class ImsSMSDispatcher extends SMSDispatcher {
         dispatcher.sendSms(tracker);
     }
 
+    @Override
+    protected boolean tracksDeliveryReports() {
+        // status reports arrive at the Gsm/CdmaDispatcher of the message format
+        return false;
+    }
+
+    @Override
+    protected SmsDeliveryTracker getDeliveryTracker(SmsTracker tracker) {
+        return isCdmaFormat(tracker.mFormat) ? mCdmaDispatcher.mDeliveryTracker
+                : mGsmDispatcher.mDeliveryTracker;
+    }
+
     @Override
     protected String getFormat() {
         // this function should be defined in Gsm/CdmaDispatcher.
@@ -429,6 +442,16 @@ public final class ImsSMSDispatcher extends SMSDispatcher {
         Rlog.e(TAG, "Error! Not implemented for IMS.");
     }
 
+    @Override
+    protected SmsTracker getNewSubmitPduTracker(String destinationAddress, String scAddress,
+            String message, SmsHeader smsHeader, int format, PendingIntent sentIntent,
+            PendingIntent deliveryIntent, boolean lastPart, int priority, boolean isExpectMore,
+            int validityPeriod, AtomicInteger unsentPartCount, AtomicBoolean anyPartFailed,
+            Uri messageUri, PackageInfo appInfo, int messageId) {
+        Rlog.e(TAG, "Error! Not implemented for IMS.");
+        return null;
+    }
+
     @Override
     public boolean isIms() {
         return mIms;
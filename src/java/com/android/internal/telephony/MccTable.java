@@ -30,7 +30,6 @@ import android.util.Slog;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 import libcore.icu.TimeZoneNames;
@@ -46,12 +45,22 @@ public final class MccTable
 
     static ArrayList<MccEntry> sTable;
 
-    static class MccEntry implements Comparable<MccEntry>
+    /**
+     * Dense lookup table indexed directly by the 3-digit MCC. Built once from
+     * {@link #sTable} so lookups are O(1) and do not allocate.
+     */
+    private static final int MCC_TABLE_SIZE = 1000;
+    private static final MccEntry[] sTableByMcc = new MccEntry[MCC_TABLE_SIZE];
+
+    static class MccEntry
     {
-        int mMcc;
-        String mIso;
-        int mSmallestDigitsMnc;
-        String mLanguage;
+        final int mMcc;
+        final String mIso;
+        final int mSmallestDigitsMnc;
+        final String mLanguage;
+
+        /** Lazily resolved default time zone; empty if the locale has none. */
+        volatile String mTimeZone;
 
         MccEntry(int mnc, String iso, int smallestDigitsMCC) {
             this(mnc, iso, smallestDigitsMCC, null);
@@ -59,35 +68,19 @@ public final class MccTable
 
         MccEntry(int mnc, String iso, int smallestDigitsMCC, String language) {
             mMcc = mnc;
-            mIso = iso;
+            mIso = (iso == null) ? null : iso.intern();
             mSmallestDigitsMnc = smallestDigitsMCC;
-            mLanguage = language;
-        }
-
-
-        @Override
-        public int compareTo(MccEntry o)
-        {
-            return mMcc - o.mMcc;
+            mLanguage = (language == null) ? null : language.intern();
         }
     }
 
     private static MccEntry
     entryForMcc(int mcc)
     {
-        int index;
-
-        MccEntry m;
-
-        m = new MccEntry(mcc, null, 0);
-
-        index = Collections.binarySearch(sTable, m);
-
-        if (index < 0) {
+        if (mcc < 0 || mcc >= MCC_TABLE_SIZE) {
             return null;
-        } else {
-            return sTable.get(index);
         }
+        return sTableByMcc[mcc];
     }
 
     /**
@@ -101,7 +94,9 @@ public final class MccTable
         entry = entryForMcc(mcc);
         if (entry == null || entry.mIso == null) {
             return null;
-        } else {
+        }
+        String zoneId = entry.mTimeZone;
+        if (zoneId == null) {
             Locale locale;
             if (entry.mLanguage == null) {
                 locale = new Locale(entry.mIso);
@@ -109,9 +104,10 @@ public final class MccTable
                 locale = new Locale(entry.mLanguage, entry.mIso);
             }
             String[] tz = TimeZoneNames.forLocale(locale);
-            if (tz.length == 0) return null;
-            return tz[0];
+            zoneId = (tz.length == 0) ? "" : tz[0];
+            entry.mTimeZone = zoneId;
         }
+        return zoneId.isEmpty() ? null : zoneId;
     }
 
     /**
@@ -656,6 +652,8 @@ public final class MccTable
 		sTable.add(new MccEntry(750,"fk",2));	//Falkland Islands (Malvinas)
         //table.add(new MccEntry(901,"",2));	//"International Mobile, shared code"
 
-        Collections.sort(sTable);
+        for (MccEntry entry : sTable) {
+            sTableByMcc[entry.mMcc] = entry;
+        }
     }
 }
@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Environment;
+import android.telephony.Rlog;
+import android.util.AtomicFile;
+import android.util.Xml;
+
+import com.android.internal.util.XmlUtils;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compiled, read-only operator metadata shared by all phones in the process.
+ *
+ * The partner XML configuration files (spn-conf.xml, selective-spn-conf.xml) are
+ * compiled at runtime, on first use, into a compact binary image under
+ * /data/misc/radio which is then memory-mapped, so
+ * lookups are served straight from the page cache instead of from per-instance
+ * HashMaps that are re-parsed for every phone. The image is rebuilt whenever the
+ * source files change.
+ *
+ * Image layout (big endian):
+ * <pre>
+ *   int    MAGIC
+ *   int    VERSION
+ *   long   source stamp (see {@link #computeSourceStamp})
+ *   int    record count
+ *   int    image length in bytes
+ *   record[count]   { int table, int keyHash, int keyOffset, int valueOffset }
+ *                   sorted by (table, keyHash); valueOffset is -1 for an entry
+ *                   without a value
+ *   string pool     { short length, char[length] } ...
+ * </pre>
+ *
+ * {@hide}
+ */
+public final class OperatorDatabase {
+    private static final String LOG_TAG = "OperatorDatabase";
+    private static final boolean DBG = false;
+
+    /** Operator numeric to SPN, from etc/spn-conf.xml. */
+    public static final int TABLE_SPN_OVERRIDE = 0;
+    /** Operator numeric to display name, from etc/selective-spn-conf.xml. */
+    public static final int TABLE_SELECTIVE_SPN = 1;
+
+    private static final String[] SOURCE_PATHS = {
+        "etc/spn-conf.xml",             // TABLE_SPN_OVERRIDE
+        "etc/selective-spn-conf.xml",   // TABLE_SELECTIVE_SPN
+    };
+
+    private static final String COMPILED_DB_DIRECTORY = "/data/misc/radio";
+    private static final String COMPILED_DB_NAME = "operators.db";
+
+    private static final int MAGIC = 0x4f504442; // "OPDB"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4;
+    private static final int RECORD_SIZE = 4 * 4;
+    private static final int NO_VALUE = -1;
+
+    private static OperatorDatabase sInstance;
+
+    private final ByteBuffer mImage;
+    private final int mRecordCount;
+
+    private OperatorDatabase(ByteBuffer image) {
+        mImage = image;
+        mRecordCount = image.getInt(16);
+    }
+
+    /**
+     * Returns the process-wide database, compiling it from the partner XML files on
+     * first use or when the sources have changed since the last compile.
+     */
+    public static synchronized OperatorDatabase getInstance() {
+        if (sInstance == null) {
+            sInstance = open(new File(COMPILED_DB_DIRECTORY, COMPILED_DB_NAME),
+                    getSourceFiles());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Opens the image in dbFile, compiling it from sources, one per table, if it is
+     * missing, invalid or older than the sources.
+     */
+    static OperatorDatabase open(File dbFile, File[] sources) {
+        return new OperatorDatabase(openImage(dbFile, sources));
+    }
+
+    private static File[] getSourceFiles() {
+        File[] sources = new File[SOURCE_PATHS.length];
+        for (int i = 0; i < SOURCE_PATHS.length; i++) {
+            sources[i] = new File(Environment.getRootDirectory(), SOURCE_PATHS[i]);
+        }
+        return sources;
+    }
+
+    /**
+     * Returns the value stored for {@code key} in {@code table}, or null if none. An
+     * entry without a value also returns null; see {@link #contains}.
+     */
+    public String lookup(int table, String key) {
+        if (key == null) return null;
+        int index = find(table, key);
+        if (index < 0) return null;
+        int valueOffset = mImage.getInt(recordPosition(index) + 12);
+        return valueOffset == NO_VALUE ? null : readString(valueOffset);
+    }
+
+    /**
+     * Returns true if {@code table} contains an entry for {@code key}, including an
+     * entry whose source element had no spn attribute.
+     */
+    public boolean contains(int table, String key) {
+        return key != null && find(table, key) >= 0;
+    }
+
+    /**
+     * Binary searches the records for (table, hash) and then walks the run of equal
+     * hashes comparing the stored key chars in place, so no key String is created.
+     */
+    private int find(int table, String key) {
+        final ByteBuffer image = mImage;
+        final int hash = key.hashCode();
+        int lo = 0;
+        int hi = mRecordCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int pos = recordPosition(mid);
+            int cmp = compare(image.getInt(pos), image.getInt(pos + 4), table, hash);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                // rewind to the first record with this hash, then scan forward
+                while (mid > 0 && compare(image.getInt(recordPosition(mid - 1)),
+                        image.getInt(recordPosition(mid - 1) + 4), table, hash) == 0) {
+                    mid--;
+                }
+                for (int i = mid; i < mRecordCount; i++) {
+                    pos = recordPosition(i);
+                    if (compare(image.getInt(pos), image.getInt(pos + 4), table, hash) != 0) {
+                        break;
+                    }
+                    if (stringEquals(image.getInt(pos + 8), key)) {
+                        return i;
+                    }
+                }
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static int compare(int table1, int hash1, int table2, int hash2) {
+        if (table1 != table2) return table1 < table2 ? -1 : 1;
+        if (hash1 != hash2) return hash1 < hash2 ? -1 : 1;
+        return 0;
+    }
+
+    private static int recordPosition(int index) {
+        return HEADER_SIZE + index * RECORD_SIZE;
+    }
+
+    private boolean stringEquals(int offset, String s) {
+        int length = mImage.getShort(offset) & 0xffff;
+        if (length != s.length()) return false;
+        int pos = offset + 2;
+        for (int i = 0; i < length; i++, pos += 2) {
+            if (mImage.getChar(pos) != s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private String readString(int offset) {
+        int length = mImage.getShort(offset) & 0xffff;
+        char[] chars = new char[length];
+        int pos = offset + 2;
+        for (int i = 0; i < length; i++, pos += 2) {
+            chars[i] = mImage.getChar(pos);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Maps the compiled image if it is current, otherwise recompiles it. If the image
+     * cannot be persisted the freshly compiled bytes are used directly from the heap.
+     */
+    private static ByteBuffer openImage(File dbFile, File[] sources) {
+        final long stamp = computeSourceStamp(sources);
+
+        ByteBuffer image = mapImage(dbFile);
+        if (image != null && image.getLong(8) == stamp) {
+            if (DBG) Rlog.d(LOG_TAG, "openImage: using compiled " + dbFile);
+            return image;
+        }
+
+        long start = System.currentTimeMillis();
+        byte[] compiled = compile(stamp, sources);
+        Rlog.d(LOG_TAG, "openImage: compiled " + compiled.length + " bytes in "
+                + (System.currentTimeMillis() - start) + "ms");
+
+        AtomicFile file = new AtomicFile(dbFile);
+        FileOutputStream out = null;
+        try {
+            out = file.startWrite();
+            out.write(compiled);
+            file.finishWrite(out);
+            image = mapImage(dbFile);
+            if (image != null) return image;
+        } catch (IOException e) {
+            Rlog.w(LOG_TAG, "openImage: unable to persist " + dbFile + " " + e);
+            if (out != null) file.failWrite(out);
+        }
+        return ByteBuffer.wrap(compiled).order(ByteOrder.BIG_ENDIAN);
+    }
+
+    private static ByteBuffer mapImage(File dbFile) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(dbFile);
+            FileChannel channel = in.getChannel();
+            ByteBuffer image = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (image.capacity() < HEADER_SIZE || image.getInt(0) != MAGIC
+                    || image.getInt(4) != VERSION
+                    || image.getInt(20) != image.capacity()
+                    || image.getInt(16) < 0
+                    || image.capacity() < HEADER_SIZE + (long) image.getInt(16) * RECORD_SIZE) {
+                Rlog.w(LOG_TAG, "mapImage: ignoring invalid image " + dbFile);
+                return null;
+            }
+            return image;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Rlog.w(LOG_TAG, "mapImage: unable to map " + dbFile + " " + e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Summarizes the modification time and size of every source file, so the image is
+     * recompiled when the partner configuration is updated by an OTA.
+     */
+    private static long computeSourceStamp(File[] sources) {
+        long stamp = VERSION;
+        for (File f : sources) {
+            stamp = stamp * 31 + f.lastModified();
+            stamp = stamp * 31 + f.length();
+        }
+        return stamp;
+    }
+
+    private static final class Record implements Comparable<Record> {
+        final int mTable;
+        final String mKey;
+        final String mValue;
+
+        Record(int table, String key, String value) {
+            mTable = table;
+            mKey = key;
+            mValue = value;
+        }
+
+        @Override
+        public int compareTo(Record o) {
+            return compare(mTable, mKey.hashCode(), o.mTable, o.mKey.hashCode());
+        }
+    }
+
+    /**
+     * Converts the partner XML files, one per table, into the binary image format.
+     * Runs on the device when the image is first opened, not at build time.
+     */
+    static byte[] compile(long stamp, File[] sources) {
+        ArrayList<Record> records = new ArrayList<Record>();
+        for (int table = 0; table < sources.length; table++) {
+            loadSpnOverrides(table, sources[table], records);
+        }
+        return compile(stamp, records);
+    }
+
+    private static byte[] compile(long stamp, ArrayList<Record> records) {
+        Collections.sort(records);
+
+        int poolSize = 0;
+        for (Record r : records) {
+            poolSize += 2 + 2 * r.mKey.length();
+            if (r.mValue != null) {
+                poolSize += 2 + 2 * r.mValue.length();
+            }
+        }
+        int poolStart = recordPosition(records.size());
+        ByteBuffer image = ByteBuffer.allocate(poolStart + poolSize).order(ByteOrder.BIG_ENDIAN);
+        image.putInt(MAGIC);
+        image.putInt(VERSION);
+        image.putLong(stamp);
+        image.putInt(records.size());
+        image.putInt(image.capacity());
+
+        int poolPos = poolStart;
+        for (int i = 0; i < records.size(); i++) {
+            Record r = records.get(i);
+            int pos = recordPosition(i);
+            image.putInt(pos, r.mTable);
+            image.putInt(pos + 4, r.mKey.hashCode());
+            image.putInt(pos + 8, poolPos);
+            poolPos = writeString(image, poolPos, r.mKey);
+            if (r.mValue != null) {
+                image.putInt(pos + 12, poolPos);
+                poolPos = writeString(image, poolPos, r.mValue);
+            } else {
+                image.putInt(pos + 12, NO_VALUE);
+            }
+        }
+        return image.array();
+    }
+
+    private static int writeString(ByteBuffer image, int pos, String s) {
+        image.putShort(pos, (short) s.length());
+        pos += 2;
+        for (int i = 0; i < s.length(); i++, pos += 2) {
+            image.putChar(pos, s.charAt(i));
+        }
+        return pos;
+    }
+
+    private static void loadSpnOverrides(int table, File spnFile, ArrayList<Record> records) {
+        final HashMap<String, String> entries = new HashMap<String, String>();
+        FileReader spnReader;
+
+        try {
+            spnReader = new FileReader(spnFile);
+        } catch (FileNotFoundException e) {
+            Rlog.w(LOG_TAG, "Can not open " + spnFile);
+            return;
+        }
+
+        try {
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(spnReader);
+
+            XmlUtils.beginDocument(parser, "spnOverrides");
+
+            while (true) {
+                XmlUtils.nextElement(parser);
+
+                String name = parser.getName();
+                if (!"spnOverride".equals(name)) {
+                    break;
+                }
+
+                String numeric = parser.getAttributeValue(null, "numeric");
+                String data    = parser.getAttributeValue(null, "spn");
+                if (numeric == null) {
+                    continue;
+                }
+
+                // later entries win and an entry without spn is still an entry,
+                // matching the previous HashMap.put() semantics
+                entries.put(numeric, data);
+            }
+        } catch (XmlPullParserException e) {
+            Rlog.w(LOG_TAG, "Exception in spn-conf parser " + e);
+        } catch (IOException e) {
+            Rlog.w(LOG_TAG, "Exception in spn-conf parser " + e);
+        } finally {
+            try {
+                spnReader.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            records.add(new Record(table, entry.getKey(), entry.getValue()));
+        }
+    }
+}
@@ -16,71 +16,16 @@
 
 package com.android.internal.telephony;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
-import java.util.Collections;
-import java.util.Map;
-import java.util.HashMap;
-
-import org.xmlpull.v1.XmlPullParser;
-import org.xmlpull.v1.XmlPullParserException;
-
-import android.os.Environment;
-import android.telephony.Rlog;
-import android.util.Xml;
-
-import com.android.internal.util.XmlUtils;
-
 public class Operators{
 
 
-    // Initialize list of Operator codes
-    // this will be taken care of when garbage collection starts.
-    private HashMap<String, String>  initList() {
-        HashMap<String, String> init = new HashMap<String, String>();
-        //taken from spnOveride.java
-
-        FileReader spnReader;
-
-        final File spnFile = new File(Environment.getRootDirectory(),
-                                     "etc/selective-spn-conf.xml");
-
-        try {
-            spnReader = new FileReader(spnFile);
-        } catch (FileNotFoundException e) {
-            Rlog.w("Operatorcheck", "Can not open " +
-                   Environment.getRootDirectory() + "/etc/selective-spn-conf.xml");
-            return init;
-        }
-
-        try {
-            XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(spnReader);
-
-            XmlUtils.beginDocument(parser, "spnOverrides");
-
-            while (true) {
-                XmlUtils.nextElement(parser);
-
-                String name = parser.getName();
-                if (!"spnOverride".equals(name)) {
-                    break;
-                }
-
-                String numeric = parser.getAttributeValue(null, "numeric");
-                String data    = parser.getAttributeValue(null, "spn");
-
-                init.put(numeric, data);
-            }
-        } catch (XmlPullParserException e) {
-            Rlog.w("Operatorcheck", "Exception in spn-conf parser " + e);
-        } catch (IOException e) {
-            Rlog.w("Operatorcheck", "Exception in spn-conf parser " + e);
-        }
-        return init;
+    // Operator codes come from the shared, compiled selective-spn-conf table.
+    private static String lookup(String numeric) {
+        String name = OperatorDatabase.getInstance().lookup(
+                OperatorDatabase.TABLE_SELECTIVE_SPN, numeric);
+        return name != null ? name : numeric;
     }
+
     //this will stay persistant in memory when called
     private static String stored = null;
     private static String storedOperators = null;
@@ -110,16 +55,10 @@ public class Operators{
             storedOperators = response;
             return storedOperators;
         }
-        // this code will be taking care of when garbage collection start
-        Operators init = new Operators();
-        Map<String, String> operators = init.initList();
-        storedOperators = operators.containsKey(response) ? operators.get(response) : response;
+        storedOperators = lookup(response);
         return storedOperators;
     }
 
-    // this will not stay persistant in memory, this will be taken care of
-    // iin garbage collection routiene.
-    private Map<String, String> unOptOperators = null;
     // unoptimized version of operatorreplace for responseOperatorInfos
     // this will provide a little more flexiblilty  in a loop like sisuation
     // same numbers of checks like before
@@ -142,10 +81,6 @@ public class Operators{
             return response;
         }
 
-        if (unOptOperators == null){
-            unOptOperators = initList();
-        }
-
-        return unOptOperators.containsKey(response) ? unOptOperators.get(response) : response;
+        return lookup(response);
     }
 }
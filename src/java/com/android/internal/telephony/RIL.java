@@ -73,6 +73,7 @@ import com.android.internal.telephony.dataconnection.ApnProfileOmh;
 import com.android.internal.telephony.dataconnection.ApnSetting;
 import com.android.internal.telephony.dataconnection.DcFailCause;
 import com.android.internal.telephony.dataconnection.DataCallResponse;
+import com.android.internal.telephony.dataconnection.DataCallTracer;
 import com.android.internal.telephony.dataconnection.DataProfile;
 import com.android.internal.telephony.TelephonyDevController;
 import com.android.internal.telephony.HardwareConfig;
@@ -112,6 +113,8 @@ class RILRequest {
     Message mResult;
     Parcel mParcel;
     RILRequest mNext;
+    // DataCallTracer span of a data call setup, or 0
+    int mTraceSpan;
 
     /**
      * Retrieves a new RILRequest instance from the pool.
@@ -141,6 +144,7 @@ class RILRequest {
         rr.mRequest = request;
         rr.mResult = result;
         rr.mParcel = Parcel.obtain();
+        rr.mTraceSpan = 0;
 
         if (result != null && result.getTarget() == null) {
             throw new NullPointerException("Message target must not be null");
@@ -384,8 +388,13 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
                         //Rlog.v(RILJ_LOG_TAG, "writing packet: " + data.length + " bytes");
 
+                        // rr may be answered and released once written
+                        int traceSpan = rr.mTraceSpan;
+                        int serial = rr.mSerial;
                         s.getOutputStream().write(dataLength);
                         s.getOutputStream().write(data);
+                        DataCallTracer.getInstance().record(traceSpan, DataCallTracer.RIL_SENT,
+                                serial);
                     } catch (IOException ex) {
                         Rlog.e(RILJ_LOG_TAG, "IOException", ex);
                         req = findAndRemoveRequestFromList(rr.mSerial);
@@ -1677,6 +1686,8 @@ public class RIL extends BaseCommands implements CommandsInterface {
             Message result) {
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_SETUP_DATA_CALL, result);
+        // DataConnection passes the trace span of the setup in arg1
+        rr.mTraceSpan = result != null ? result.arg1 : 0;
 
         rr.mParcel.writeInt(7);
 
@@ -2672,6 +2683,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                             + serial + " error: " + error);
             return null;
         }
+        DataCallTracer.getInstance().record(rr.mTraceSpan, DataCallTracer.RIL_RESPONSE, error);
 
         Object ret = null;
 
@@ -20,8 +20,9 @@ import android.telephony.Rlog;
 import android.util.Pair;
 import android.text.TextUtils;
 
-import java.util.Random;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
 
 /**
  * Retry manager allows a simple way to declare a series of
@@ -69,6 +70,9 @@ import java.util.ArrayList;
  * others will be at 3000.
  * <ul><li><code>"max_retries=infinite,1000,2000,3000</code></ul>
  * </ul>
+ *<p>
+ * Parsed configuration strings are cached and shared by all RetryManagers configured
+ * with the same string, so reconfiguring does not parse the string again.
  *
  * {@hide}
  */
@@ -86,12 +90,34 @@ public class RetryManager {
             mRandomizationTime = randomizationTime;
         }
 
-        int mDelayTime;
-        int mRandomizationTime;
+        final int mDelayTime;
+        final int mRandomizationTime;
     }
 
-    /** The array of retry records */
-    private ArrayList<RetryRec> mRetryArray = new ArrayList<RetryRec>();
+    /**
+     * A parsed configuration string, shared and never modified
+     */
+    private static class Config {
+        Config(RetryRec[] retryArray, int maxRetryCount, boolean retryForever) {
+            mRetryArray = retryArray;
+            mMaxRetryCount = maxRetryCount;
+            mRetryForever = retryForever;
+        }
+
+        final RetryRec[] mRetryArray;
+        final int mMaxRetryCount;
+        final boolean mRetryForever;
+    }
+
+    private static final RetryRec[] EMPTY_RETRY_ARRAY = new RetryRec[0];
+
+    /** Parsed configuration strings by string, guarded by itself */
+    private static final HashMap<String, Config> sConfigCache = new HashMap<String, Config>();
+    private static int sConfigCacheHits;
+    private static int sConfigCacheMisses;
+
+    /** The array of retry records, possibly shared with other RetryManagers */
+    private RetryRec[] mRetryArray = EMPTY_RETRY_ARRAY;
 
     /** When true isRetryNeeded() will always return true */
     private boolean mRetryForever;
@@ -162,8 +188,7 @@ public class RetryManager {
         mCurMaxRetryCount = mMaxRetryCount;
 
         resetRetryCount();
-        mRetryArray.clear();
-        mRetryArray.add(new RetryRec(retryTime, randomizationTime));
+        mRetryArray = new RetryRec[] { new RetryRec(retryTime, randomizationTime) };
 
         return true;
     }
@@ -184,69 +209,32 @@ public class RetryManager {
         mConfig = configStr;
 
         if (!TextUtils.isEmpty(configStr)) {
-            int defaultRandomization = 0;
-
             if (VDBG) log("configure: not empty");
 
             mMaxRetryCount = 0;
             resetRetryCount();
-            mRetryArray.clear();
+            mRetryArray = EMPTY_RETRY_ARRAY;
 
-            String strArray[] = configStr.split(",");
-            for (int i = 0; i < strArray.length; i++) {
-                if (VDBG) log("configure: strArray[" + i + "]='" + strArray[i] + "'");
-                Pair<Boolean, Integer> value;
-                String splitStr[] = strArray[i].split("=", 2);
-                splitStr[0] = splitStr[0].trim();
-                if (VDBG) log("configure: splitStr[0]='" + splitStr[0] + "'");
-                if (splitStr.length > 1) {
-                    splitStr[1] = splitStr[1].trim();
-                    if (VDBG) log("configure: splitStr[1]='" + splitStr[1] + "'");
-                    if (TextUtils.equals(splitStr[0], "default_randomization")) {
-                        value = parseNonNegativeInt(splitStr[0], splitStr[1]);
-                        if (!value.first) return false;
-                        defaultRandomization = value.second;
-                    } else if (TextUtils.equals(splitStr[0], "max_retries")) {
-                        if (TextUtils.equals("infinite",splitStr[1])) {
-                            mRetryForever = true;
-                        } else {
-                            value = parseNonNegativeInt(splitStr[0], splitStr[1]);
-                            if (!value.first) return false;
-                            mMaxRetryCount = value.second;
-                        }
-                    } else {
-                        Rlog.e(LOG_TAG, "Unrecognized configuration name value pair: "
-                                        + strArray[i]);
-                        return false;
-                    }
-                } else {
-                    /**
-                     * Assume a retry time with an optional randomization value
-                     * following a ":"
-                     */
-                    splitStr = strArray[i].split(":", 2);
-                    splitStr[0] = splitStr[0].trim();
-                    RetryRec rr = new RetryRec(0, 0);
-                    value = parseNonNegativeInt("delayTime", splitStr[0]);
-                    if (!value.first) return false;
-                    rr.mDelayTime = value.second;
-
-                    // Check if optional randomization value present
-                    if (splitStr.length > 1) {
-                        splitStr[1] = splitStr[1].trim();
-                        if (VDBG) log("configure: splitStr[1]='" + splitStr[1] + "'");
-                        value = parseNonNegativeInt("randomizationTime", splitStr[1]);
-                        if (!value.first) return false;
-                        rr.mRandomizationTime = value.second;
-                    } else {
-                        rr.mRandomizationTime = defaultRandomization;
-                    }
-                    mRetryArray.add(rr);
+            Config config;
+            synchronized (sConfigCache) {
+                config = sConfigCache.get(configStr);
+                if (config != null) {
+                    sConfigCacheHits++;
                 }
             }
-            if (mRetryArray.size() > mMaxRetryCount) {
-                mMaxRetryCount = mRetryArray.size();
-                if (VDBG) log("configure: setting mMaxRetryCount=" + mMaxRetryCount);
+            if (config == null) {
+                config = parseConfig(configStr);
+                if (config == null) return false;
+                synchronized (sConfigCache) {
+                    sConfigCache.put(configStr, config);
+                    sConfigCacheMisses++;
+                }
+            }
+
+            mRetryArray = config.mRetryArray;
+            mMaxRetryCount = config.mMaxRetryCount;
+            if (config.mRetryForever) {
+                mRetryForever = true;
             }
             mCurMaxRetryCount = mMaxRetryCount;
             if (VDBG) log("configure: true");
@@ -257,6 +245,87 @@ public class RetryManager {
         }
     }
 
+    /**
+     * Parse a configuration string, see the class comments for the format.
+     *
+     * @return the configuration or null if configStr is not valid
+     */
+    private static Config parseConfig(String configStr) {
+        int defaultRandomization = 0;
+        int maxRetryCount = 0;
+        boolean retryForever = false;
+        ArrayList<RetryRec> retryArray = new ArrayList<RetryRec>();
+
+        String strArray[] = configStr.split(",");
+        for (int i = 0; i < strArray.length; i++) {
+            if (VDBG) log("configure: strArray[" + i + "]='" + strArray[i] + "'");
+            Pair<Boolean, Integer> value;
+            String splitStr[] = strArray[i].split("=", 2);
+            splitStr[0] = splitStr[0].trim();
+            if (VDBG) log("configure: splitStr[0]='" + splitStr[0] + "'");
+            if (splitStr.length > 1) {
+                splitStr[1] = splitStr[1].trim();
+                if (VDBG) log("configure: splitStr[1]='" + splitStr[1] + "'");
+                if (TextUtils.equals(splitStr[0], "default_randomization")) {
+                    value = parseNonNegativeInt(splitStr[0], splitStr[1]);
+                    if (!value.first) return null;
+                    defaultRandomization = value.second;
+                } else if (TextUtils.equals(splitStr[0], "max_retries")) {
+                    if (TextUtils.equals("infinite",splitStr[1])) {
+                        retryForever = true;
+                    } else {
+                        value = parseNonNegativeInt(splitStr[0], splitStr[1]);
+                        if (!value.first) return null;
+                        maxRetryCount = value.second;
+                    }
+                } else {
+                    Rlog.e(LOG_TAG, "Unrecognized configuration name value pair: "
+                                    + strArray[i]);
+                    return null;
+                }
+            } else {
+                /**
+                 * Assume a retry time with an optional randomization value
+                 * following a ":"
+                 */
+                splitStr = strArray[i].split(":", 2);
+                splitStr[0] = splitStr[0].trim();
+                value = parseNonNegativeInt("delayTime", splitStr[0]);
+                if (!value.first) return null;
+                int delayTime = value.second;
+                int randomizationTime;
+
+                // Check if optional randomization value present
+                if (splitStr.length > 1) {
+                    splitStr[1] = splitStr[1].trim();
+                    if (VDBG) log("configure: splitStr[1]='" + splitStr[1] + "'");
+                    value = parseNonNegativeInt("randomizationTime", splitStr[1]);
+                    if (!value.first) return null;
+                    randomizationTime = value.second;
+                } else {
+                    randomizationTime = defaultRandomization;
+                }
+                retryArray.add(new RetryRec(delayTime, randomizationTime));
+            }
+        }
+        if (retryArray.size() > maxRetryCount) {
+            maxRetryCount = retryArray.size();
+            if (VDBG) log("configure: setting mMaxRetryCount=" + maxRetryCount);
+        }
+        return new Config(retryArray.toArray(new RetryRec[retryArray.size()]), maxRetryCount,
+                retryForever);
+    }
+
+    /**
+     * @return the number of configuration strings parsed and of those reused from the cache
+     */
+    public static String getConfigCacheStats() {
+        synchronized (sConfigCache) {
+            return "RetryManager configs: cached=" + sConfigCache.size()
+                    + " parsed=" + sConfigCacheMisses + " reused=" + sConfigCacheHits;
+        }
+    }
+
     /**
      * Report whether data reconnection should be retried
      *
@@ -274,15 +343,15 @@ public class RetryManager {
      */
     public int getRetryTimer() {
         int index;
-        if (mRetryCount < mRetryArray.size()) {
+        if (mRetryCount < mRetryArray.length) {
             index = mRetryCount;
         } else {
-            index = mRetryArray.size() - 1;
+            index = mRetryArray.length - 1;
         }
 
         int retVal;
-        if ((index >= 0) && (index < mRetryArray.size())) {
-            retVal = mRetryArray.get(index).mDelayTime + nextRandomizationTime(index);
+        if ((index >= 0) && (index < mRetryArray.length)) {
+            retVal = mRetryArray[index].mDelayTime + nextRandomizationTime(index);
         } else {
             retVal = 0;
         }
@@ -393,7 +462,7 @@ public class RetryManager {
      * @param stringValue
      * @return Pair.first == true if stringValue an integer >= 0
      */
-    private Pair<Boolean, Integer> parseNonNegativeInt(String name, String stringValue) {
+    private static Pair<Boolean, Integer> parseNonNegativeInt(String name, String stringValue) {
         int value;
         Pair<Boolean, Integer> retVal;
         try {
@@ -415,7 +484,7 @@ public class RetryManager {
      * @param value
      * @return Pair.first
      */
-    private boolean validateNonNegativeInt(String name, int value) {
+    private static boolean validateNonNegativeInt(String name, int value) {
         boolean retVal;
         if (value < 0) {
             Rlog.e(LOG_TAG, name + " bad value: is < 0");
@@ -431,7 +500,7 @@ public class RetryManager {
      * Return next random number for the index
      */
     private int nextRandomizationTime(int index) {
-        int randomTime = mRetryArray.get(index).mRandomizationTime;
+        int randomTime = mRetryArray[index].mRandomizationTime;
         if (randomTime == 0) {
             return 0;
         } else {
@@ -439,7 +508,7 @@ public class RetryManager {
         }
     }
 
-    private void log(String s) {
+    private static void log(String s) {
         Rlog.d(LOG_TAG, "[RM] " + s);
     }
 }
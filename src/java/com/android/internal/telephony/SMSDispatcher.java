@@ -21,6 +21,7 @@ import android.app.PendingIntent;
 import android.app.PendingIntent.CanceledException;
 import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
+import android.content.ComponentName;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
@@ -71,6 +72,12 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -167,6 +174,16 @@ public abstract class SMSDispatcher extends Handler {
     /** Number of outgoing SmsTrackers waiting for user confirmation. */
     private int mPendingTrackerCount;
 
+    /** Orders approved messages of all dispatchers before they reach the modem. */
+    private final SmsSendScheduler mSendScheduler = SmsSendScheduler.getInstance();
+
+    /** Share of the modem given to the default SMS app relative to other packages. */
+    private static final int DEFAULT_SMS_APP_WEIGHT = 4;
+
+    /** CDMA priority indicator values, 3GPP2 C.S0015-B table 4.5.9-1. */
+    private static final int PRIORITY_INTERACTIVE = 1;
+    private static final int PRIORITY_EMERGENCY = 3;
+
     /* Flags indicating whether the current device allows sms service */
     protected boolean mSmsCapable = true;
     protected boolean mSmsSendDisabled;
@@ -198,6 +215,8 @@ public abstract class SMSDispatcher extends Handler {
                 com.android.internal.R.bool.config_sms_capable);
         mSmsSendDisabled = !SystemProperties.getBoolean(
                                 TelephonyProperties.PROPERTY_SMS_SEND, mSmsCapable);
+        mDeliveryTracker = tracksDeliveryReports()
+                ? new SmsDeliveryTracker(mContext, phone.getPhoneId(), getFormat()) : null;
         Rlog.d(TAG, "SMSDispatcher: ctor mSmsCapable=" + mSmsCapable + " format=" + getFormat()
                 + " mSmsSendDisabled=" + mSmsSendDisabled);
     }
@@ -249,6 +268,21 @@ public abstract class SMSDispatcher extends Handler {
      */
     protected abstract String getFormat();
 
+    /**
+     * Returns whether status reports for messages sent here arrive at this dispatcher.
+     * Called from the constructor, so it must not depend on subclass fields.
+     */
+    protected boolean tracksDeliveryReports() {
+        return true;
+    }
+
+    /**
+     * Returns the tracker that is to match the status report of tracker.
+     */
+    protected SmsDeliveryTracker getDeliveryTracker(SmsTracker tracker) {
+        return mDeliveryTracker;
+    }
+
     /**
      * Pass the Message object to subclass to handle. Currently used to pass CDMA status reports
      * from {@link com.android.internal.telephony.cdma.CdmaInboundSmsHandler}.
@@ -258,13 +292,12 @@ public abstract class SMSDispatcher extends Handler {
         Rlog.d(TAG, "handleStatusReport() called with no subclass.");
     }
 
-    /* TODO: Need to figure out how to keep track of status report routing in a
-     *       persistent manner. If the phone process restarts (reboot or crash),
-     *       we will lose this list and any status reports that come in after
-     *       will be dropped.
+    /**
+     * Sent messages awaiting a delivery status report, indexed by (subId, messageRef) and
+     * journaled so that reports arriving after a phone process restart are not dropped.
+     * Null if this dispatcher does not receive status reports itself.
      */
-    /** Sent messages awaiting a delivery status report. */
-    protected final ArrayList<SmsTracker> deliveryPendingList = new ArrayList<SmsTracker>();
+    protected final SmsDeliveryTracker mDeliveryTracker;
 
     /** Outgoing messages being handled by the carrier app. */
     protected final List<SmsTracker> sendPendingList =
@@ -311,7 +344,7 @@ public abstract class SMSDispatcher extends Handler {
                 } else {
                     tracker.mExpectMore = false;
                 }
-                sendSms(tracker);
+                scheduleSms(tracker);
             }
             mPendingTrackerCount--;
             break;
@@ -358,7 +391,7 @@ public abstract class SMSDispatcher extends Handler {
 
             if (tracker.mDeliveryIntent != null) {
                 // Expecting a status report.  Add it to the list.
-                deliveryPendingList.add(tracker);
+                getDeliveryTracker(tracker).add(mPhone.getSubId(), tracker);
             }
             tracker.onSent(mContext);
         } else {
@@ -634,10 +667,10 @@ public abstract class SMSDispatcher extends Handler {
      *  Validity Period(Maximum) -> 635040 mins(i.e.63 weeks).
      *  Any Other values included Negative considered as Invalid Validity Period of the message.
      */
-    protected void sendMultipartText(String destAddr, String scAddr,
+    protected void sendMultipartText(final String destAddr, final String scAddr,
             ArrayList<String> parts, ArrayList<PendingIntent> sentIntents,
             ArrayList<PendingIntent> deliveryIntents, Uri messageUri, String callingPkg,
-            int priority, boolean isExpectMore, int validityPeriod) {
+            final int priority, final boolean isExpectMore, final int validityPeriod) {
         if (messageUri == null) {
             if (SmsApplication.shouldWriteMessageForPackage(callingPkg, mContext)) {
                 messageUri = writeOutboxMessage(
@@ -650,25 +683,28 @@ public abstract class SMSDispatcher extends Handler {
         } else {
             moveToOutbox(getSubId(), messageUri, callingPkg);
         }
-        int refNumber = getNextConcatenatedRef() & 0x00FF;
-        int msgCount = parts.size();
-        int encoding = SmsConstants.ENCODING_UNKNOWN;
+        final int refNumber = getNextConcatenatedRef() & 0x00FF;
+        final int msgCount = parts.size();
+        // Resolve the sender here, the encode threads would see the phone process uid
+        final PackageInfo appInfo = getCallingAppInfo();
 
-        TextEncodingDetails[] encodingForParts = new TextEncodingDetails[msgCount];
+        // Encoding plan: per-part length details, then one encoding for the whole message
+        TextEncodingDetails[] encodingForParts = calculateLengthForParts(parts);
+        int encoding = SmsConstants.ENCODING_UNKNOWN;
         for (int i = 0; i < msgCount; i++) {
-            TextEncodingDetails details = calculateLength(parts.get(i), false);
+            TextEncodingDetails details = encodingForParts[i];
             if (encoding != details.codeUnitSize
                     && (encoding == SmsConstants.ENCODING_UNKNOWN
                             || encoding == SmsConstants.ENCODING_7BIT)) {
                 encoding = details.codeUnitSize;
             }
-            encodingForParts[i] = details;
         }
 
         // States to track at the message level (for all parts)
         final AtomicInteger unsentPartCount = new AtomicInteger(msgCount);
         final AtomicBoolean anyPartFailed = new AtomicBoolean(false);
 
+        final Callable<SmsTracker>[] encoders = newEncoderArray(msgCount);
         for (int i = 0; i < msgCount; i++) {
             SmsHeader.ConcatRef concatRef = new SmsHeader.ConcatRef();
             concatRef.refNumber = refNumber;
@@ -681,7 +717,7 @@ public abstract class SMSDispatcher extends Handler {
             // Note:  It's not sufficient to just flip this bit to true; it will have
             // ripple effects (several calculations assume 8-bit ref).
             concatRef.isEightBits = true;
-            SmsHeader smsHeader = new SmsHeader();
+            final SmsHeader smsHeader = new SmsHeader();
             smsHeader.concatRef = concatRef;
 
             // Set the national language tables for 3GPP 7-bit encoding, if enabled.
@@ -700,12 +736,135 @@ public abstract class SMSDispatcher extends Handler {
                 deliveryIntent = deliveryIntents.get(i);
             }
 
-            sendNewSubmitPdu(destAddr, scAddr, parts.get(i), smsHeader, encoding,
-                    sentIntent, deliveryIntent, (i == (msgCount - 1)), priority, isExpectMore,
-                    validityPeriod, unsentPartCount, anyPartFailed, messageUri);
+            final String part = parts.get(i);
+            final int partEncoding = encoding;
+            final PendingIntent partSentIntent = sentIntent;
+            final PendingIntent partDeliveryIntent = deliveryIntent;
+            final boolean lastPart = (i == (msgCount - 1));
+            final Uri partMessageUri = messageUri;
+            // Allocated here, in part order, rather than by the encode threads
+            final int messageId = allocateMessageId();
+            encoders[i] = new Callable<SmsTracker>() {
+                @Override
+                public SmsTracker call() {
+                    return getNewSubmitPduTracker(destAddr, scAddr, part, smsHeader,
+                            partEncoding, partSentIntent, partDeliveryIntent, lastPart, priority,
+                            isExpectMore, validityPeriod, unsentPartCount, anyPartFailed,
+                            partMessageUri, appInfo, messageId);
+                }
+            };
+        }
+
+        // Encode all parts, then hand them to the RIL in order as one batch. Every part but
+        // the last is marked expect-more, so it goes out as RIL_REQUEST_SEND_SMS_EXPECT_MORE.
+        // Sending stays on the calling thread since sendRawPdu() checks the calling uid.
+        SmsTracker[] trackers = runAll(encoders, new SmsTracker[msgCount]);
+        // The parts share destination, sender and priority, so they share a scheduling class
+        SmsTracker first = null;
+        for (int i = 0; i < msgCount; i++) {
+            if (trackers[i] != null) {
+                if (first == null) {
+                    first = trackers[i];
+                    resolveScheduling(first);
+                } else {
+                    trackers[i].mSchedulingClass = first.mSchedulingClass;
+                    trackers[i].mSchedulingWeight = first.mSchedulingWeight;
+                }
+                sendSubmitPdu(trackers[i]);
+            } else {
+                Rlog.e(TAG, "sendMultipartText: failed to encode part " + (i + 1) + "/"
+                        + msgCount);
+            }
+        }
+    }
+
+    /** Multipart messages with at least this many parts are encoded in parallel. */
+    private static final int PARALLEL_ENCODE_MIN_PARTS = 3;
+
+    /** Threads shared by all dispatchers for encoding multipart messages. */
+    private static ExecutorService sEncodeExecutor;
+
+    private static synchronized ExecutorService getEncodeExecutor() {
+        if (sEncodeExecutor == null) {
+            int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+            sEncodeExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "SmsEncoder-" + mCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return sEncodeExecutor;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Callable<T>[] newEncoderArray(int size) {
+        return (Callable<T>[]) new Callable[size];
+    }
+
+    /**
+     * Runs the tasks, in parallel on the shared encode threads when there are enough of
+     * them, and returns their results in order. A task that fails yields null.
+     */
+    private static <T> T[] runAll(Callable<T>[] tasks, T[] results) {
+        final int count = tasks.length;
+        if (count < PARALLEL_ENCODE_MIN_PARTS) {
+            for (int i = 0; i < count; i++) {
+                results[i] = callQuietly(tasks[i]);
+            }
+            return results;
+        }
+
+        List<Future<T>> futures = new ArrayList<Future<T>>(count);
+        ExecutorService executor = getEncodeExecutor();
+        for (int i = 0; i < count; i++) {
+            futures.add(executor.submit(tasks[i]));
+        }
+        boolean interrupted = false;
+        for (int i = 0; i < count; i++) {
+            while (true) {
+                try {
+                    results[i] = futures.get(i).get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Rlog.e(TAG, "runAll: task " + i + " failed", e.getCause());
+                    results[i] = null;
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return results;
+    }
+
+    private static <T> T callQuietly(Callable<T> task) {
+        try {
+            return task.call();
+        } catch (Exception e) {
+            Rlog.e(TAG, "callQuietly: task failed", e);
+            return null;
         }
     }
 
+    /**
+     * Calculates the encoding details of every part of a multipart message.
+     */
+    private TextEncodingDetails[] calculateLengthForParts(ArrayList<String> parts) {
+        final int msgCount = parts.size();
+        TextEncodingDetails[] details = new TextEncodingDetails[msgCount];
+        for (int i = 0; i < msgCount; i++) {
+            details[i] = calculateLength(parts.get(i), false);
+        }
+        return details;
+    }
+
     /**
      * Create a new SubmitPdu and send it.
      */
@@ -715,6 +874,33 @@ public abstract class SMSDispatcher extends Handler {
             boolean isExpectMore, int validityPeriod, AtomicInteger unsentPartCount,
             AtomicBoolean anyPartFailed, Uri messageUri);
 
+    /**
+     * Create a new SubmitPdu and return its tracker without sending it, or null if the
+     * PDU could not be encoded. May be called from any thread, so the sending app is
+     * passed in as appInfo, from {@link #getCallingAppInfo} on the binder thread, and
+     * the message id as messageId, from {@link #allocateMessageId}.
+     */
+    protected abstract SmsTracker getNewSubmitPduTracker(String destinationAddress,
+            String scAddress, String message, SmsHeader smsHeader, int encoding,
+            PendingIntent sentIntent, PendingIntent deliveryIntent, boolean lastPart, int priority,
+            boolean isExpectMore, int validityPeriod, AtomicInteger unsentPartCount,
+            AtomicBoolean anyPartFailed, Uri messageUri, PackageInfo appInfo, int messageId);
+
+    /**
+     * Returns the message id for the next submit PDU, for formats whose PDUs carry one,
+     * or -1. Multipart messages take one id per part, in part order.
+     */
+    protected int allocateMessageId() {
+        return -1;
+    }
+
+    /**
+     * Send a tracker created by {@link #getNewSubmitPduTracker}.
+     */
+    protected void sendSubmitPdu(SmsTracker tracker) {
+        sendRawPdu(tracker);
+    }
+
     /**
      * Send a SMS
      * @param tracker will contain:
@@ -785,10 +971,74 @@ public abstract class SMSDispatcher extends Handler {
                 return;
             }
 
-            sendSms(tracker);
+            scheduleSms(tracker);
         }
     }
 
+    /**
+     * Queue an approved message with the send scheduler, which calls
+     * {@link #sendScheduledSms} once the subscription has a free send slot.
+     *
+     * @param tracker the tracker for the SMS to send
+     */
+    protected void scheduleSms(SmsTracker tracker) {
+        if (tracker.mSchedulingClass < 0) {
+            resolveScheduling(tracker);
+        }
+        String pkg = tracker.mAppInfo != null ? tracker.mAppInfo.packageName : null;
+        mSendScheduler.enqueue(this, getSubId(), tracker.mSchedulingClass, pkg,
+                tracker.mSchedulingWeight, tracker);
+    }
+
+    /**
+     * Sets the scheduling class and weight of tracker. Looks up the default SMS app and
+     * the emergency numbers, so multipart messages resolve them once for all parts.
+     */
+    private void resolveScheduling(SmsTracker tracker) {
+        String pkg = tracker.mAppInfo != null ? tracker.mAppInfo.packageName : null;
+        int weight = 1;
+        if (pkg != null) {
+            ComponentName defaultSmsApp =
+                    SmsApplication.getDefaultSmsApplication(mContext, false);
+            if (defaultSmsApp != null && pkg.equals(defaultSmsApp.getPackageName())) {
+                weight = DEFAULT_SMS_APP_WEIGHT;
+            }
+        }
+        tracker.mSchedulingWeight = weight;
+        tracker.mSchedulingClass = getSchedulingClass(tracker, weight > 1);
+    }
+
+    /**
+     * Returns the {@link SmsSendScheduler} class of the message: emergency destinations and
+     * emergency priority first, then urgent or interactive priority and the default SMS app.
+     */
+    private int getSchedulingClass(SmsTracker tracker, boolean fromDefaultSmsApp) {
+        if (tracker.mDestAddress != null
+                && PhoneNumberUtils.isLocalEmergencyNumber(mContext, tracker.mDestAddress)) {
+            return SmsSendScheduler.CLASS_EMERGENCY;
+        }
+        Integer priority = (Integer) tracker.mData.get("priority");
+        if (priority != null && priority >= PRIORITY_EMERGENCY) {
+            return SmsSendScheduler.CLASS_EMERGENCY;
+        }
+        if (fromDefaultSmsApp || (priority != null && priority >= PRIORITY_INTERACTIVE)) {
+            return SmsSendScheduler.CLASS_INTERACTIVE;
+        }
+        return SmsSendScheduler.CLASS_NORMAL;
+    }
+
+    /**
+     * Called by the send scheduler, from any thread, when tracker may go to the modem.
+     */
+    void sendScheduledSms(final SmsTracker tracker) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                sendSms(tracker);
+            }
+        });
+    }
+
     /**
      * Check if destination is a potential premium short code and sender is not pre-approved to
      * send to short codes.
@@ -1085,6 +1335,10 @@ public abstract class SMSDispatcher extends Handler {
         public int mvalidityPeriod;
         String mFormat;
 
+        // SmsSendScheduler class and weight, resolved when the message is first scheduled
+        int mSchedulingClass = -1;
+        int mSchedulingWeight = 1;
+
         public final PendingIntent mSentIntent;
         public final PendingIntent mDeliveryIntent;
 
@@ -1100,7 +1354,7 @@ public abstract class SMSDispatcher extends Handler {
         private AtomicInteger mUnsentPartCount;
         private AtomicBoolean mAnyPartFailed;
 
-        private SmsTracker(HashMap<String, Object> data, PendingIntent sentIntent,
+        SmsTracker(HashMap<String, Object> data, PendingIntent sentIntent,
                 PendingIntent deliveryIntent, PackageInfo appInfo, String destAddr, String format,
                 AtomicInteger unsentPartCount, AtomicBoolean anyPartFailed, Uri messageUri,
                 SmsHeader smsHeader, boolean isExpectMore, int validityPeriod) {
@@ -1217,6 +1471,7 @@ public abstract class SMSDispatcher extends Handler {
          * @param errorCode
          */
         public void onFailed(Context context, int error, int errorCode) {
+            SmsSendScheduler.getInstance().onSendFinished(this);
             if (mAnyPartFailed != null) {
                 mAnyPartFailed.set(true);
             }
@@ -1259,6 +1514,7 @@ public abstract class SMSDispatcher extends Handler {
          * @param context The Context
          */
         public void onSent(Context context) {
+            SmsSendScheduler.getInstance().onSendFinished(this);
             // is single part or last part of multipart message
             boolean isSinglePartOrLastPart = true;
             if (mUnsentPartCount != null) {
@@ -1299,6 +1555,16 @@ public abstract class SMSDispatcher extends Handler {
             PendingIntent deliveryIntent, String format, AtomicInteger unsentPartCount,
             AtomicBoolean anyPartFailed, Uri messageUri, SmsHeader smsHeader,
             boolean isExpectMore, int validityPeriod) {
+        return getSmsTracker(data, sentIntent, deliveryIntent, format, unsentPartCount,
+                anyPartFailed, messageUri, smsHeader, isExpectMore, validityPeriod,
+                getCallingAppInfo());
+    }
+
+    /**
+     * Returns the package info of the app of the current binder call, or null if it is not
+     * known. Only meaningful on the binder thread of the call.
+     */
+    protected PackageInfo getCallingAppInfo() {
         // Get calling app package name via UID from Binder call
         PackageManager pm = mContext.getPackageManager();
         String[] packageNames = pm.getPackagesForUid(Binder.getCallingUid());
@@ -1313,6 +1579,13 @@ public abstract class SMSDispatcher extends Handler {
                 // error will be logged in sendRawPdu
             }
         }
+        return appInfo;
+    }
+
+    protected SmsTracker getSmsTracker(HashMap<String, Object> data, PendingIntent sentIntent,
+            PendingIntent deliveryIntent, String format, AtomicInteger unsentPartCount,
+            AtomicBoolean anyPartFailed, Uri messageUri, SmsHeader smsHeader,
+            boolean isExpectMore, int validityPeriod, PackageInfo appInfo) {
         // Strip non-digits from destination phone number before checking for short codes
         // and before displaying the number to the user if confirmation is required.
         String destAddr = PhoneNumberUtils.extractNetworkPortion((String) data.get("destAddr"));
@@ -30,14 +30,11 @@ import com.android.internal.telephony.cdma.sms.UserData;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.util.Arrays;
+
 public class Sms7BitEncodingTranslator {
     private static final String TAG = "Sms7BitEncodingTranslator";
     private static final boolean DBG = Build.IS_DEBUGGABLE ;
-    private static boolean mIs7BitTranslationTableLoaded = false;
-    private static SparseIntArray mTranslationTable = null;
-    private static SparseIntArray mTranslationTableCommon = null;
-    private static SparseIntArray mTranslationTableGSM = null;
-    private static SparseIntArray mTranslationTableCDMA = null;
 
     // Parser variables
     private static final String XML_START_TAG = "SmsEnforce7BitTranslationTable";
@@ -46,16 +43,71 @@ public class Sms7BitEncodingTranslator {
     private static final String XML_FROM_TAG = "from";
     private static final String XML_TO_TAG = "to";
 
+    /** Number of chars covered by one page of a translation table. */
+    private static final int PAGE_SIZE = 256;
+    private static final int PAGE_SHIFT = 8;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    /** Page of a table whose chars all translate to a space. */
+    private static final char[] SPACE_PAGE = new char[PAGE_SIZE];
+    static {
+        Arrays.fill(SPACE_PAGE, ' ');
+    }
+
+    /**
+     * Translation of every BMP char for one MO SMS format, as a two level table: the high
+     * byte of a char selects a page, the low byte the translated char within it. Pages
+     * without any char that survives translation share {@link #SPACE_PAGE}.
+     */
+    private static final class Table {
+        final char[][] mPages = new char[PAGE_SIZE][];
+
+        char translate(char c) {
+            return mPages[c >>> PAGE_SHIFT][c & PAGE_MASK];
+        }
+    }
+
+    /** Translation tables, built once from the XML resource. */
+    private static final class Tables {
+        final boolean mEmpty;
+        final Table mGsm;
+        final Table mCdma;
+
+        Tables(SparseIntArray common, SparseIntArray gsm, SparseIntArray cdma) {
+            mEmpty = common.size() == 0 && gsm.size() == 0 && cdma.size() == 0;
+            mGsm = buildTable(common, gsm, false);
+            mCdma = buildTable(common, cdma, true);
+        }
+    }
+
+    private static volatile Tables sTables;
+
+    private static Tables getTables() {
+        Tables tables = sTables;
+        if (tables == null) {
+            synchronized (Sms7BitEncodingTranslator.class) {
+                tables = sTables;
+                if (tables == null) {
+                    SparseIntArray common = new SparseIntArray();
+                    SparseIntArray gsm = new SparseIntArray();
+                    SparseIntArray cdma = new SparseIntArray();
+                    load7BitTranslationTableFromXml(common, gsm, cdma);
+                    tables = new Tables(common, gsm, cdma);
+                    sTables = tables;
+                }
+            }
+        }
+        return tables;
+    }
+
     /**
      * Translates each message character that is not supported by GSM 7bit
      * alphabet into a supported one
      *
      * @param message
      *            message to be translated
-     * @param throwsException
-     *            if true and some error occurs during translation, an exception
-     *            is thrown; otherwise a null String is returned
-     * @return translated message or null if some error occur
+     * @return translated message, the message itself if no character needs translation,
+     *         or null if no translation table is available
      */
     public static String translate(CharSequence message) {
         if (message == null) {
@@ -68,26 +120,79 @@ public class Sms7BitEncodingTranslator {
             return "";
         }
 
-        if (!mIs7BitTranslationTableLoaded) {
-            mTranslationTableCommon = new SparseIntArray();
-            mTranslationTableGSM = new SparseIntArray();
-            mTranslationTableCDMA = new SparseIntArray();
-            load7BitTranslationTableFromXml();
-            mIs7BitTranslationTableLoaded = true;
+        Tables tables = getTables();
+        if (tables.mEmpty) {
+            return null;
+        }
+        Table table = useCdmaFormatForMoSms() ? tables.mCdma : tables.mGsm;
+
+        // Fast path: nothing to translate, so no copy
+        int first = 0;
+        while (first < size) {
+            char c = message.charAt(first);
+            if (table.translate(c) != c) {
+                break;
+            }
+            first++;
+        }
+        if (first == size) {
+            return message.toString();
         }
 
-        if ((mTranslationTableCommon != null && mTranslationTableCommon.size() > 0) ||
-                (mTranslationTableGSM != null && mTranslationTableGSM.size() > 0) ||
-                (mTranslationTableCDMA != null && mTranslationTableCDMA.size() > 0)) {
-            char[] output = new char[size];
-            for (int i = 0; i < size; i++) {
-                output[i] = translateIfNeeded(message.charAt(i));
+        char[] output = new char[size];
+        for (int i = 0; i < first; i++) {
+            output[i] = message.charAt(i);
+        }
+        for (int i = first; i < size; i++) {
+            char c = message.charAt(i);
+            output[i] = table.translate(c);
+            if (DBG && output[i] != c) {
+                Rlog.v(TAG, Integer.toHexString(c) + " translated to "
+                        + Integer.toHexString(output[i]));
             }
+        }
+        return String.valueOf(output);
+    }
 
-            return String.valueOf(output);
+    /**
+     * Translates a single character for the given MO SMS format, for callers that work one
+     * character at a time such as {@link SmsLengthCalculator}.
+     *
+     * @return the translated character, or c itself if no translation table is available
+     */
+    static char translate(char c, boolean cdmaFormat) {
+        Tables tables = getTables();
+        if (tables.mEmpty) {
+            return c;
         }
+        return (cdmaFormat ? tables.mCdma : tables.mGsm).translate(c);
+    }
 
-        return null;
+    /**
+     * Builds the table for one MO SMS format. A char present on the GSM 7-bit alphabet
+     * (and for CDMA also on 7-bit ASCII) stays as is; others map through the common table,
+     * then the format specific one, and to a space if neither has them, since we don't know
+     * how to translate them to a GSM 7-bit character.
+     */
+    private static Table buildTable(SparseIntArray common, SparseIntArray specific,
+            boolean cdma) {
+        Table table = new Table();
+        for (int page = 0; page < PAGE_SIZE; page++) {
+            char[] chars = null;
+            for (int low = 0; low < PAGE_SIZE; low++) {
+                char c = (char) ((page << PAGE_SHIFT) | low);
+                char translation = translateIfNeeded(c, common, specific, cdma);
+                if (chars == null && translation != ' ') {
+                    chars = new char[PAGE_SIZE];
+                    System.arraycopy(SPACE_PAGE, 0, chars, 0, low);
+                }
+                if (chars != null) {
+                    chars[low] = translation;
+                }
+            }
+            table.mPages[page] = chars != null ? chars : SPACE_PAGE;
+        }
+        return table;
     }
 
     /**
@@ -101,56 +206,21 @@ public class Sms7BitEncodingTranslator {
      *         space, if no mapping is found in the translation table for such
      *         character
      */
-    private static char translateIfNeeded(char c) {
-        if (noTranslationNeeded(c)) {
-            if (DBG) {
-                Rlog.v(TAG, "No translation needed for " + Integer.toHexString(c));
-            }
+    private static char translateIfNeeded(char c, SparseIntArray common,
+            SparseIntArray specific, boolean cdma) {
+        if (noTranslationNeeded(c, cdma)) {
             return c;
         }
 
-        /*
-         * Trying to translate unicode to Gsm 7-bit alphabet; If c is not
-         * present on translation table, c does not belong to Unicode Latin-1
-         * (Basic + Supplement), so we don't know how to translate it to a Gsm
-         * 7-bit character! We replace c for an empty space and advises the user
-         * about it.
-         */
-        int translation = -1;
-
-        if (mTranslationTableCommon != null) {
-            translation = mTranslationTableCommon.get(c, -1);
-        }
-
+        int translation = common.get(c, -1);
         if (translation == -1) {
-            if (useCdmaFormatForMoSms()) {
-                if (mTranslationTableCDMA != null) {
-                    translation = mTranslationTableCDMA.get(c, -1);
-                }
-            } else {
-                if (mTranslationTableGSM != null) {
-                    translation = mTranslationTableGSM.get(c, -1);
-                }
-            }
-        }
-
-        if (translation != -1) {
-            if (DBG) {
-                Rlog.v(TAG, Integer.toHexString(c) + " (" + c + ")" + " translated to "
-                        + Integer.toHexString(translation) + " (" + (char) translation + ")");
-            }
-            return (char) translation;
-        } else {
-            if (DBG) {
-                Rlog.w(TAG, "No translation found for " + Integer.toHexString(c)
-                        + "! Replacing for empty space");
-            }
-            return ' ';
+            translation = specific.get(c, -1);
         }
+        return translation != -1 ? (char) translation : ' ';
     }
 
-    private static boolean noTranslationNeeded(char c) {
-        if (useCdmaFormatForMoSms()) {
+    private static boolean noTranslationNeeded(char c, boolean cdma) {
+        if (cdma) {
             return GsmAlphabet.isGsmSeptets(c) && UserData.charToAscii.get(c, -1) != -1;
         }
         else {
@@ -158,7 +228,7 @@ public class Sms7BitEncodingTranslator {
         }
     }
 
-    private static boolean useCdmaFormatForMoSms() {
+    static boolean useCdmaFormatForMoSms() {
         if (!SmsManager.getDefault().isImsSmsSupported()) {
             // use Voice technology to determine SMS format.
             return TelephonyManager.getDefault().getCurrentPhoneType()
@@ -172,7 +242,9 @@ public class Sms7BitEncodingTranslator {
      * Load the whole translation table file from the framework resource
      * encoded in XML.
      */
-    private static void load7BitTranslationTableFromXml() {
+    private static void load7BitTranslationTableFromXml(SparseIntArray common,
+            SparseIntArray gsm, SparseIntArray cdma) {
+        SparseIntArray table = null;
         XmlResourceParser parser = null;
         Resources r = Resources.getSystem();
 
@@ -195,15 +267,15 @@ public class Sms7BitEncodingTranslator {
                         Rlog.d(TAG, "type: " + type);
                     }
                     if (type.equals("common")) {
-                        mTranslationTable = mTranslationTableCommon;
+                        table = common;
                     } else if (type.equals("gsm")) {
-                        mTranslationTable = mTranslationTableGSM;
+                        table = gsm;
                     } else if (type.equals("cdma")) {
-                        mTranslationTable = mTranslationTableCDMA;
+                        table = cdma;
                     } else {
                         Rlog.e(TAG, "Error Parsing 7BitTranslationTable: found incorrect type" + type);
                     }
-                } else if (XML_CHARACTOR_TAG.equals(tag) && mTranslationTable != null) {
+                } else if (XML_CHARACTOR_TAG.equals(tag) && table != null) {
                     int from = parser.getAttributeUnsignedIntValue(null,
                             XML_FROM_TAG, -1);
                     int to = parser.getAttributeUnsignedIntValue(null,
@@ -214,7 +286,7 @@ public class Sms7BitEncodingTranslator {
                                     .toUpperCase() + " -> " + Integer.toHexString(to)
                                     .toUpperCase());
                         }
-                        mTranslationTable.put (from, to);
+                        table.put (from, to);
                     } else {
                         Rlog.d(TAG, "Invalid translation table file format");
                     }
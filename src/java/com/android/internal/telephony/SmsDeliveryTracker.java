@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SqliteWrapper;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.provider.Telephony.Sms;
+import android.telephony.Rlog;
+import android.util.AtomicFile;
+
+import com.android.internal.telephony.SMSDispatcher.SmsTracker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Sent messages awaiting a delivery status report, indexed by (subId, message reference).
+ *
+ * Every pending entry is also recorded in a small append-only journal, so that after a
+ * phone process restart the entries are replayed and late status reports still update
+ * the stored message status instead of being dropped. The app's delivery PendingIntent
+ * is a binder reference and cannot outlive the process, so replayed entries only update
+ * the message in the SMS provider.
+ *
+ * Entries older than {@link #PENDING_TTL_MS} are expired. Not thread safe; used from the
+ * owning SMSDispatcher's handler thread. Journal records are batched and written on a
+ * shared background thread up to {@link #JOURNAL_FLUSH_DELAY_MS} later, so sending never
+ * waits for the disk.
+ */
+public final class SmsDeliveryTracker {
+    private static final String TAG = "SmsDeliveryTracker";
+    private static final boolean DBG = false;
+
+    /** Status reports arriving later than this are no longer matched. */
+    static final long PENDING_TTL_MS = 3 * 24 * 60 * 60 * 1000L;
+
+    private static final String JOURNAL_DIRECTORY = "/data/misc/sms";
+
+    private static final int JOURNAL_VERSION = 1;
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+
+    /** Rewrite the journal once it holds this many records more than are live. */
+    private static final int COMPACT_THRESHOLD = 256;
+
+    /** Records made within this long of each other are written to the journal together. */
+    static final long JOURNAL_FLUSH_DELAY_MS = 500;
+
+    private static HandlerThread sJournalThread;
+
+    /**
+     * A pending delivery report. mTracker is null for entries replayed from the journal.
+     */
+    public static final class Entry {
+        public final long mSubId;
+        public final int mMessageRef;
+        public final SmsTracker mTracker;
+        final Uri mMessageUri;
+        final long mTimestamp;
+
+        Entry(long subId, int messageRef, SmsTracker tracker, Uri messageUri, long timestamp) {
+            mSubId = subId;
+            mMessageRef = messageRef;
+            mTracker = tracker;
+            mMessageUri = messageUri;
+            mTimestamp = timestamp;
+        }
+
+        /**
+         * Updates the status of the stored message, if it was persisted.
+         */
+        public void updateSentMessageStatus(Context context, int status) {
+            if (mTracker != null) {
+                mTracker.updateSentMessageStatus(context, status);
+            } else if (mMessageUri != null) {
+                ContentValues values = new ContentValues(1);
+                values.put(Sms.STATUS, status);
+                SqliteWrapper.update(context, context.getContentResolver(),
+                        mMessageUri, values, null, null);
+            }
+        }
+    }
+
+    /** A journal record waiting to be written. */
+    private static final class Record {
+        final byte mOp;
+        final Entry mEntry;
+
+        Record(byte op, Entry entry) {
+            mOp = op;
+            mEntry = entry;
+        }
+    }
+
+    private final Context mContext;
+    private final AtomicFile mJournalFile;
+    private final Handler mJournalHandler;
+    private final long mFlushDelayMs;
+
+    // Insertion ordered, so the eldest entry is checked first for expiry
+    private final LinkedHashMap<Long, Entry> mPending = new LinkedHashMap<Long, Entry>();
+
+    // Records in the journal file once everything handed to the journal thread is written
+    private int mJournalRecords;
+    private boolean mJournalStarted;
+
+    // Handed from the dispatcher's thread to the journal thread, guarded by mJournalLock.
+    // A non-null snapshot replaces the journal before the records are appended.
+    private final Object mJournalLock = new Object();
+    private ArrayList<Record> mUnwritten = new ArrayList<Record>();
+    private ArrayList<Entry> mRewriteSnapshot;
+    private boolean mFlushPending;
+    private volatile boolean mJournalFailed;
+
+    // Journal thread only
+    private DataOutputStream mJournal;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushJournal();
+        }
+    };
+
+    private int mMatched;
+    private int mExpired;
+    private int mReplayed;
+
+    public SmsDeliveryTracker(Context context, int phoneId, String format) {
+        this(context, new File(JOURNAL_DIRECTORY,
+                "delivery_pending_" + phoneId + "_" + format + ".journal"),
+                getJournalLooper(), JOURNAL_FLUSH_DELAY_MS);
+    }
+
+    /**
+     * @param journalLooper thread the journal is written on
+     * @param flushDelayMs how long records are batched before they are written
+     */
+    SmsDeliveryTracker(Context context, File journalFile, Looper journalLooper,
+            long flushDelayMs) {
+        mContext = context;
+        mJournalFile = new AtomicFile(journalFile);
+        mJournalHandler = new Handler(journalLooper);
+        mFlushDelayMs = flushDelayMs;
+        replayJournal();
+    }
+
+    private static synchronized Looper getJournalLooper() {
+        if (sJournalThread == null) {
+            sJournalThread = new HandlerThread("SmsDeliveryJournal",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            sJournalThread.start();
+        }
+        return sJournalThread.getLooper();
+    }
+
+    private static long key(long subId, int messageRef) {
+        return (subId << 32) | (messageRef & 0xffffffffL);
+    }
+
+    /**
+     * Starts tracking a sent message until its final status report arrives. A newer
+     * message reusing a still pending reference replaces the older entry, since the
+     * network can no longer tell the two apart.
+     */
+    public void add(long subId, SmsTracker tracker) {
+        add(subId, tracker, System.currentTimeMillis());
+    }
+
+    void add(long subId, SmsTracker tracker, long now) {
+        expireStale(now);
+        Entry entry = new Entry(subId, tracker.mMessageRef, tracker, tracker.mMessageUri, now);
+        // remove first so the entry moves to the end of the insertion order
+        Entry old = mPending.remove(key(subId, tracker.mMessageRef));
+        mPending.put(key(subId, tracker.mMessageRef), entry);
+        if (old != null) {
+            Rlog.w(TAG, "add: messageRef " + tracker.mMessageRef + " reused while pending");
+        }
+        appendRecord(OP_ADD, entry);
+    }
+
+    /**
+     * Returns the pending entry for (subId, messageRef), or null.
+     */
+    public Entry find(long subId, int messageRef) {
+        return find(subId, messageRef, System.currentTimeMillis());
+    }
+
+    Entry find(long subId, int messageRef, long now) {
+        Entry entry = mPending.get(key(subId, messageRef));
+        if (entry != null && now - entry.mTimestamp > PENDING_TTL_MS) {
+            remove(entry);
+            mExpired++;
+            return null;
+        }
+        if (entry != null) mMatched++;
+        return entry;
+    }
+
+    /**
+     * Stops tracking entry, e.g. once its final status report has been received.
+     */
+    public void remove(Entry entry) {
+        if (mPending.remove(key(entry.mSubId, entry.mMessageRef)) != null) {
+            appendRecord(OP_REMOVE, entry);
+        }
+    }
+
+    public int size() {
+        return mPending.size();
+    }
+
+    private void expireStale(long now) {
+        Iterator<Entry> it = mPending.values().iterator();
+        while (it.hasNext()) {
+            Entry eldest = it.next();
+            if (now - eldest.mTimestamp <= PENDING_TTL_MS) {
+                break;
+            }
+            it.remove();
+            mExpired++;
+            appendRecord(OP_REMOVE, eldest);
+        }
+    }
+
+    /**
+     * Queues a record of a change already made to mPending for the journal thread.
+     */
+    private void appendRecord(byte op, Entry entry) {
+        mJournalRecords++;
+        if (!mJournalStarted || mJournalFailed
+                || mJournalRecords > mPending.size() + COMPACT_THRESHOLD) {
+            // start every process lifetime, and recover from a write error, with a
+            // compact journal of live entries; the snapshot already includes this change
+            mJournalStarted = true;
+            mJournalFailed = false;
+            ArrayList<Entry> snapshot = new ArrayList<Entry>(mPending.values());
+            synchronized (mJournalLock) {
+                mRewriteSnapshot = snapshot;
+                mUnwritten.clear();
+            }
+            mJournalRecords = snapshot.size();
+        } else {
+            synchronized (mJournalLock) {
+                mUnwritten.add(new Record(op, entry));
+            }
+        }
+        synchronized (mJournalLock) {
+            if (mFlushPending) {
+                return;
+            }
+            mFlushPending = true;
+        }
+        mJournalHandler.postDelayed(mFlushRunnable, mFlushDelayMs);
+    }
+
+    /**
+     * Writes the queued records, on the journal thread.
+     */
+    private void flushJournal() {
+        ArrayList<Entry> snapshot;
+        ArrayList<Record> records;
+        synchronized (mJournalLock) {
+            mFlushPending = false;
+            snapshot = mRewriteSnapshot;
+            mRewriteSnapshot = null;
+            records = mUnwritten;
+            mUnwritten = new ArrayList<Record>();
+        }
+        try {
+            if (snapshot != null) {
+                rewriteJournal(snapshot);
+            }
+            if (mJournal == null) {
+                // an earlier write failed; the next change brings a fresh snapshot
+                return;
+            }
+            for (int i = 0, count = records.size(); i < count; i++) {
+                Record record = records.get(i);
+                writeRecord(mJournal, record.mOp, record.mEntry);
+            }
+            mJournal.flush();
+        } catch (IOException e) {
+            Rlog.e(TAG, "Unable to write delivery journal", e);
+            closeJournal();
+            mJournalFailed = true;
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, byte op, Entry entry)
+            throws IOException {
+        out.writeByte(op);
+        out.writeLong(entry.mSubId);
+        out.writeInt(entry.mMessageRef);
+        if (op == OP_ADD) {
+            out.writeLong(entry.mTimestamp);
+            out.writeUTF(entry.mMessageUri != null ? entry.mMessageUri.toString() : "");
+        }
+    }
+
+    /**
+     * Replaces the journal with one ADD record per live entry and reopens it for append.
+     */
+    private void rewriteJournal(ArrayList<Entry> entries) throws IOException {
+        closeJournal();
+        FileOutputStream out = null;
+        try {
+            mJournalFile.getBaseFile().getParentFile().mkdirs();
+            out = mJournalFile.startWrite();
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            data.writeInt(JOURNAL_VERSION);
+            for (int i = 0, count = entries.size(); i < count; i++) {
+                writeRecord(data, OP_ADD, entries.get(i));
+            }
+            data.flush();
+            mJournalFile.finishWrite(out);
+        } catch (IOException e) {
+            if (out != null) mJournalFile.failWrite(out);
+            throw e;
+        }
+        mJournal = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(mJournalFile.getBaseFile(), true)));
+    }
+
+    private void closeJournal() {
+        if (mJournal != null) {
+            try {
+                mJournal.close();
+            } catch (IOException ignored) {
+            }
+            mJournal = null;
+        }
+    }
+
+    private void replayJournal() {
+        DataInputStream in = null;
+        try {
+            FileInputStream file = mJournalFile.openRead();
+            in = new DataInputStream(new BufferedInputStream(file));
+            if (in.readInt() != JOURNAL_VERSION) {
+                Rlog.w(TAG, "Ignoring delivery journal with unknown version");
+                return;
+            }
+            final long now = System.currentTimeMillis();
+            while (true) {
+                byte op = in.readByte();
+                long subId = in.readLong();
+                int messageRef = in.readInt();
+                if (op == OP_ADD) {
+                    long timestamp = in.readLong();
+                    String uri = in.readUTF();
+                    if (now - timestamp <= PENDING_TTL_MS) {
+                        mPending.put(key(subId, messageRef), new Entry(subId, messageRef,
+                                null, uri.isEmpty() ? null : Uri.parse(uri), timestamp));
+                    }
+                } else if (op == OP_REMOVE) {
+                    mPending.remove(key(subId, messageRef));
+                } else {
+                    Rlog.w(TAG, "Corrupt delivery journal, op=" + op);
+                    break;
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing pending
+        } catch (EOFException e) {
+            // End of journal; a torn final record is simply dropped
+        } catch (IOException e) {
+            Rlog.e(TAG, "Unable to read delivery journal", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        mReplayed = mPending.size();
+        if (DBG || mReplayed > 0) Rlog.d(TAG, "Replayed " + mReplayed + " pending reports");
+    }
+
+    @Override
+    public String toString() {
+        return "SmsDeliveryTracker: pending=" + mPending.size() + " matched=" + mMatched
+                + " expired=" + mExpired + " replayed=" + mReplayed;
+    }
+}
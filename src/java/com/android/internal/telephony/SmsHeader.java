@@ -118,7 +118,19 @@ public class SmsHeader {
      * @return SmsHeader object
      */
     public static SmsHeader fromByteArray(byte[] data) {
-        ByteArrayInputStream inStream = new ByteArrayInputStream(data);
+        return fromByteArray(data, 0, data.length);
+    }
+
+    /**
+     * Create structured SmsHeader object from the user data header bytes found at
+     * data[offset] through data[offset + length - 1], without copying them out first.
+     * @param data array holding the user data header bytes, e.g. a whole PDU
+     * @param offset index of the first header byte
+     * @param length number of header bytes
+     * @return SmsHeader object
+     */
+    public static SmsHeader fromByteArray(byte[] data, int offset, int length) {
+        ByteArrayInputStream inStream = new ByteArrayInputStream(data, offset, length);
         SmsHeader smsHeader = new SmsHeader();
         while (inStream.available() > 0) {
             /**
@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.content.res.Resources;
+import android.util.SparseArray;
+
+import com.android.internal.telephony.GsmAlphabet.TextEncodingDetails;
+import com.android.internal.telephony.cdma.sms.UserData;
+
+import java.util.Arrays;
+
+/**
+ * Incremental calculation of the encoding details of an MO SMS text.
+ *
+ * The calculator keeps a septet count and an unencodable character count for every enabled
+ * pair of GSM national language locking and single shift tables, plus the number of chars
+ * outside 7-bit ASCII for CDMA. Appending or removing chars only updates these counters, so
+ * a compose UI recalculating on every keystroke pays for the changed chars instead of the
+ * whole text. A language pair is feasible for 7-bit encoding while its unencodable count is
+ * zero. The details returned match {@link com.android.internal.telephony.gsm.SmsMessage}
+ * and {@link com.android.internal.telephony.cdma.SmsMessage} calculateLength, including the
+ * forced 7-bit translation when configured.
+ *
+ * Not thread safe; {@link #calculateLength} uses one calculator per thread.
+ */
+public final class SmsLengthCalculator {
+
+    private static final int MAX_LANGUAGE_CODE = 15;
+
+    /** Cost of an unencodable char in a table pair; counted as one septet (a space). */
+    private static final byte UNENCODABLE = -1;
+    private static final byte UNKNOWN = Byte.MIN_VALUE;
+
+    /** Distinct chars whose per table pair costs are kept. */
+    private static final int MAX_CACHED_CHARS = 512;
+
+    // Septet cost of a char in every (locking shift, single shift) table pair, indexed by
+    // pairCode(); filled in as pairs are looked up. The tables themselves never change.
+    private static final SparseArray<byte[]> sCharCosts = new SparseArray<byte[]>();
+
+    private static final ThreadLocal<SmsLengthCalculator[]> sThreadCalculators =
+            new ThreadLocal<SmsLengthCalculator[]>() {
+                @Override
+                protected SmsLengthCalculator[] initialValue() {
+                    return new SmsLengthCalculator[] {
+                            new SmsLengthCalculator(false), new SmsLengthCalculator(true) };
+                }
+            };
+
+    private static final int TRANSLATION_NONE = 0;
+    private static final int TRANSLATION_GSM = 1;
+    private static final int TRANSLATION_CDMA = 2;
+
+    private final boolean mCdmaFormat;
+
+    // The text as given, and as counted after the forced 7-bit translation
+    private final StringBuilder mText = new StringBuilder();
+    private final StringBuilder mTranslated = new StringBuilder();
+
+    // Configuration the counters were built for
+    private int mTranslation = TRANSLATION_NONE;
+    private int[] mEnabledLockingShiftTables = new int[0];
+    private int[] mEnabledSingleShiftTables = new int[0];
+
+    // Table pairs in the order GsmAlphabet.countGsmSeptets() considers them
+    private int[] mPairs = { 0 };
+    private int[] mSeptets = new int[1];
+    private int[] mUnencodable = new int[1];
+
+    private int mNonAsciiCount;
+
+    /**
+     * @param cdmaFormat true to calculate for 3GPP2 MO SMS, false for 3GPP
+     */
+    public SmsLengthCalculator(boolean cdmaFormat) {
+        mCdmaFormat = cdmaFormat;
+    }
+
+    /**
+     * Calculates the encoding details of msgBody with the calling thread's calculator, which
+     * only recounts the chars after the prefix msgBody shares with its previous text.
+     *
+     * @param use7bitOnly ignore (but still count) illegal characters if true
+     */
+    public static TextEncodingDetails calculateLength(CharSequence msgBody, boolean use7bitOnly,
+            boolean cdmaFormat) {
+        SmsLengthCalculator calculator = forCurrentThread(cdmaFormat);
+        calculator.setText(msgBody);
+        return calculator.getTextEncodingDetails(use7bitOnly);
+    }
+
+    /**
+     * Returns the calling thread's calculator for the given format.
+     */
+    public static SmsLengthCalculator forCurrentThread(boolean cdmaFormat) {
+        return sThreadCalculators.get()[cdmaFormat ? 1 : 0];
+    }
+
+    public int length() {
+        return mText.length();
+    }
+
+    /**
+     * Returns the text as it will be encoded, i.e. after the forced 7-bit translation, as
+     * of the last {@link #getTextEncodingDetails} call.
+     */
+    public String getTranslatedText() {
+        return mTranslated.toString();
+    }
+
+    public void append(char c) {
+        char t = translate(c);
+        mText.append(c);
+        mTranslated.append(t);
+        count(t, 1);
+    }
+
+    public void append(CharSequence s) {
+        for (int i = 0, len = s.length(); i < len; i++) {
+            append(s.charAt(i));
+        }
+    }
+
+    /**
+     * Removes the chars from length to the end of the text.
+     */
+    public void truncate(int length) {
+        for (int i = mText.length() - 1; i >= length; i--) {
+            count(mTranslated.charAt(i), -1);
+        }
+        mText.setLength(length);
+        mTranslated.setLength(length);
+    }
+
+    /**
+     * Replaces the text, keeping the counts of the prefix it shares with the current one.
+     */
+    public void setText(CharSequence s) {
+        int len = s.length();
+        int common = 0;
+        int max = Math.min(len, mText.length());
+        while (common < max && mText.charAt(common) == s.charAt(common)) {
+            common++;
+        }
+        truncate(common);
+        for (int i = common; i < len; i++) {
+            append(s.charAt(i));
+        }
+    }
+
+    /**
+     * Returns the encoding details of the current text.
+     *
+     * @param use7bitOnly ignore (but still count) illegal characters if true
+     */
+    public TextEncodingDetails getTextEncodingDetails(boolean use7bitOnly) {
+        refreshConfiguration();
+        if (mCdmaFormat) {
+            return getCdmaDetails(use7bitOnly);
+        }
+        TextEncodingDetails ted = getGsm7BitDetails(use7bitOnly);
+        return ted != null ? ted : get16BitDetails(mTranslated.length());
+    }
+
+    /**
+     * See {@link com.android.internal.telephony.cdma.sms.BearerData#calcTextEncodingDetails}.
+     */
+    private TextEncodingDetails getCdmaDetails(boolean use7bitOnly) {
+        int septets = mTranslated.length();
+        if ((use7bitOnly || mNonAsciiCount == 0)
+                && septets <= SmsConstants.MAX_USER_DATA_SEPTETS) {
+            TextEncodingDetails ted = new TextEncodingDetails();
+            ted.msgCount = 1;
+            ted.codeUnitCount = septets;
+            ted.codeUnitsRemaining = SmsConstants.MAX_USER_DATA_SEPTETS - septets;
+            ted.codeUnitSize = SmsConstants.ENCODING_7BIT;
+            return ted;
+        }
+        TextEncodingDetails ted = getGsm7BitDetails(use7bitOnly);
+        if (ted == null) {
+            return get16BitDetails(mTranslated.length());
+        }
+        if (ted.msgCount == 1) {
+            // We don't support single-segment EMS, so calculate for 16-bit
+            return get16BitDetails(mTranslated.length());
+        }
+        return ted;
+    }
+
+    /**
+     * Picks the table pair giving the fewest messages and most septets remaining, as
+     * {@link GsmAlphabet#countGsmSeptets(CharSequence, boolean)} does.
+     *
+     * @return the details, or null if no table pair can encode the text
+     */
+    private TextEncodingDetails getGsm7BitDetails(boolean use7bitOnly) {
+        TextEncodingDetails ted = new TextEncodingDetails();
+        ted.msgCount = Integer.MAX_VALUE;
+        ted.codeUnitSize = SmsConstants.ENCODING_7BIT;
+        int minUnencodableCount = Integer.MAX_VALUE;
+        for (int i = 0; i < mPairs.length; i++) {
+            int unencodableCount = mUnencodable[i];
+            if (!use7bitOnly && unencodableCount != 0) {
+                continue;
+            }
+            int languageTable = mPairs[i] >> 4;
+            int languageShiftTable = mPairs[i] & MAX_LANGUAGE_CODE;
+            int septets = mSeptets[i];
+            int udhLength;
+            if (languageTable != 0 && languageShiftTable != 0) {
+                udhLength = GsmAlphabet.UDH_SEPTET_COST_LENGTH
+                        + GsmAlphabet.UDH_SEPTET_COST_TWO_SHIFT_TABLES;
+            } else if (languageTable != 0 || languageShiftTable != 0) {
+                udhLength = GsmAlphabet.UDH_SEPTET_COST_LENGTH
+                        + GsmAlphabet.UDH_SEPTET_COST_ONE_SHIFT_TABLE;
+            } else {
+                udhLength = 0;
+            }
+            int msgCount;
+            int septetsRemaining;
+            if (septets + udhLength > SmsConstants.MAX_USER_DATA_SEPTETS) {
+                if (udhLength == 0) {
+                    udhLength = GsmAlphabet.UDH_SEPTET_COST_LENGTH;
+                }
+                udhLength += GsmAlphabet.UDH_SEPTET_COST_CONCATENATED_MESSAGE;
+                int septetsPerMessage = SmsConstants.MAX_USER_DATA_SEPTETS - udhLength;
+                msgCount = (septets + septetsPerMessage - 1) / septetsPerMessage;
+                septetsRemaining = (msgCount * septetsPerMessage) - septets;
+            } else {
+                msgCount = 1;
+                septetsRemaining = SmsConstants.MAX_USER_DATA_SEPTETS - udhLength - septets;
+            }
+            if (use7bitOnly && unencodableCount > minUnencodableCount) {
+                continue;
+            }
+            if ((use7bitOnly && unencodableCount < minUnencodableCount)
+                    || msgCount < ted.msgCount || (msgCount == ted.msgCount
+                    && septetsRemaining > ted.codeUnitsRemaining)) {
+                minUnencodableCount = unencodableCount;
+                ted.msgCount = msgCount;
+                ted.codeUnitCount = septets;
+                ted.codeUnitsRemaining = septetsRemaining;
+                ted.languageTable = languageTable;
+                ted.languageShiftTable = languageShiftTable;
+            }
+        }
+        return ted.msgCount != Integer.MAX_VALUE ? ted : null;
+    }
+
+    /**
+     * Returns the details of a UCS-2 encoding of length chars.
+     */
+    private static TextEncodingDetails get16BitDetails(int length) {
+        TextEncodingDetails ted = new TextEncodingDetails();
+        int octets = length * 2;
+        ted.codeUnitCount = length;
+        if (octets > SmsConstants.MAX_USER_DATA_BYTES) {
+            // If EMS is not supported, break down EMS into single segment SMS
+            // and add page info " x/y".
+            // In the case of UCS2 encoding type, we need 8 bytes for this
+            // but we only have 6 bytes from UDH, so truncate the limit for
+            // each segment by 2 bytes (1 char).
+            int max_user_data_bytes_with_header = SmsConstants.MAX_USER_DATA_BYTES_WITH_HEADER;
+            if (!android.telephony.SmsMessage.hasEmsSupport()) {
+                // make sure total number of segments is less than 10
+                if (octets <= 9 * (max_user_data_bytes_with_header - 2))
+                    max_user_data_bytes_with_header -= 2;
+            }
+
+            ted.msgCount = (octets + (max_user_data_bytes_with_header - 1)) /
+                    max_user_data_bytes_with_header;
+            ted.codeUnitsRemaining = ((ted.msgCount *
+                    max_user_data_bytes_with_header) - octets) / 2;
+        } else {
+            ted.msgCount = 1;
+            ted.codeUnitsRemaining = (SmsConstants.MAX_USER_DATA_BYTES - octets)/2;
+        }
+        ted.codeUnitSize = SmsConstants.ENCODING_16BIT;
+        return ted;
+    }
+
+    /**
+     * Rebuilds the counters if the forced 7-bit translation or the enabled national
+     * language tables changed since they were built.
+     */
+    private void refreshConfiguration() {
+        int translation = TRANSLATION_NONE;
+        if (Resources.getSystem().getBoolean(
+                com.android.internal.R.bool.config_sms_force_7bit_encoding)) {
+            translation = Sms7BitEncodingTranslator.useCdmaFormatForMoSms()
+                    ? TRANSLATION_CDMA : TRANSLATION_GSM;
+        }
+        int[] locking = GsmAlphabet.getEnabledLockingShiftTables();
+        int[] single = GsmAlphabet.getEnabledSingleShiftTables();
+        if (translation == mTranslation && locking == mEnabledLockingShiftTables
+                && single == mEnabledSingleShiftTables) {
+            return;
+        }
+
+        mTranslation = translation;
+        mEnabledLockingShiftTables = locking;
+        mEnabledSingleShiftTables = single;
+        mPairs = buildPairs(locking, single);
+        mSeptets = new int[mPairs.length];
+        mUnencodable = new int[mPairs.length];
+        mNonAsciiCount = 0;
+
+        String text = mText.toString();
+        mText.setLength(0);
+        mTranslated.setLength(0);
+        append(text);
+    }
+
+    /**
+     * Returns the table pairs GsmAlphabet.countGsmSeptets() considers: the default tables
+     * and every enabled locking shift table, each with the default and every enabled single
+     * shift table, except Turkish with Turkish and Portuguese with Spanish which are never
+     * optimal.
+     */
+    private static int[] buildPairs(int[] locking, int[] single) {
+        int[] singleCodes = new int[single.length + 1];
+        int singleCount = 1;
+        for (int code : single) {
+            if (code != 0) singleCodes[singleCount++] = code;
+        }
+        Arrays.sort(singleCodes, 1, singleCount);
+
+        int[] pairs = new int[(locking.length + 1) * singleCount];
+        int count = 0;
+        for (int i = -1; i < locking.length; i++) {
+            int languageTable = i < 0 ? 0 : locking[i];
+            if (i >= 0 && languageTable == 0) {
+                continue;
+            }
+            for (int j = 0; j < singleCount; j++) {
+                int languageShiftTable = singleCodes[j];
+                if ((languageTable == 1 && languageShiftTable == 1)
+                        || (languageTable == 3 && languageShiftTable == 2)) {
+                    continue;
+                }
+                pairs[count++] = pairCode(languageTable, languageShiftTable);
+            }
+        }
+        return Arrays.copyOf(pairs, count);
+    }
+
+    private static int pairCode(int languageTable, int languageShiftTable) {
+        return (languageTable << 4) | languageShiftTable;
+    }
+
+    private char translate(char c) {
+        if (mTranslation == TRANSLATION_NONE) {
+            return c;
+        }
+        return Sms7BitEncodingTranslator.translate(c, mTranslation == TRANSLATION_CDMA);
+    }
+
+    /**
+     * Adds (sign 1) or removes (sign -1) the cost of char c to every counter.
+     */
+    private void count(char c, int sign) {
+        if (UserData.charToAscii.get(c, -1) == -1) {
+            mNonAsciiCount += sign;
+        }
+        if (c == GsmAlphabet.GSM_EXTENDED_ESCAPE) {
+            // skipped by GSM septet counting
+            return;
+        }
+        byte[] costs = getCosts(c, mPairs);
+        for (int i = 0; i < mPairs.length; i++) {
+            int cost = costs[mPairs[i]];
+            if (cost == UNENCODABLE) {
+                mSeptets[i] += sign;
+                mUnencodable[i] += sign;
+            } else {
+                mSeptets[i] += sign * cost;
+            }
+        }
+    }
+
+    /**
+     * Returns the costs of c, indexed by pair code, with at least the given pairs known.
+     */
+    private static byte[] getCosts(char c, int[] pairs) {
+        synchronized (sCharCosts) {
+            byte[] costs = sCharCosts.get(c);
+            if (costs == null) {
+                costs = new byte[(MAX_LANGUAGE_CODE + 1) * (MAX_LANGUAGE_CODE + 1)];
+                Arrays.fill(costs, UNKNOWN);
+                if (sCharCosts.size() < MAX_CACHED_CHARS) {
+                    sCharCosts.put(c, costs);
+                }
+            }
+            String s = null;
+            for (int pair : pairs) {
+                if (costs[pair] == UNKNOWN) {
+                    if (s == null) s = String.valueOf(c);
+                    int septets = GsmAlphabet.countGsmSeptetsUsingTables(s, false,
+                            pair >> 4, pair & MAX_LANGUAGE_CODE);
+                    costs[pair] = septets == -1 ? UNENCODABLE : (byte) septets;
+                }
+            }
+            return costs;
+        }
+    }
+}
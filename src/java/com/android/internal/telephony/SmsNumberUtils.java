@@ -16,23 +16,16 @@
 
 package com.android.internal.telephony;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 
 import android.content.Context;
 import android.os.SystemProperties;
 import android.os.Build;
 import android.text.TextUtils;
-import android.content.ContentResolver;
-import android.database.Cursor;
-import android.database.SQLException;
+import android.util.LruCache;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.TelephonyManager;
 import android.telephony.Rlog;
-import com.android.internal.telephony.HbpcdLookup.MccIdd;
-import com.android.internal.telephony.HbpcdLookup.MccLookup;
 
 
  /**
@@ -98,10 +91,18 @@ public class SmsNumberUtils {
     /* <Country_code>-<Area_code>-<Phone Number>, 86-25-86281234*/
     private static final int NP_CC_AREA_LOCAL = NP_INTERNATIONAL_BEGIN + 4;
 
-    private static int[] ALL_COUNTRY_CODES = null;
-    private static int MAX_COUNTRY_CODES_LENGTH;
-    private static HashMap<String, ArrayList<String>> IDDS_MAPS =
-            new HashMap<String, ArrayList<String>>();
+    // Memo of formatted destination addresses for the current network and SIM
+    private static final int FORMAT_CACHE_SIZE = 128;
+    private static final LruCache<String, String> sFormatCache =
+            new LruCache<String, String>(FORMAT_CACHE_SIZE);
+    private static final Object sFormatCacheLock = new Object();
+    // The (network type, MCC, GID1) the cached results were computed for
+    private static int sCachedNetworkType = -1;
+    private static String sCachedMcc;
+    private static String sCachedGid1;
+    private static int sFormatCacheHits;
+    private static int sFormatCacheMisses;
+    private static int sFormatCacheInvalidations;
 
     private static class NumberEntry {
         public String number;
@@ -138,7 +139,7 @@ public class SmsNumberUtils {
         }
 
         NumberEntry numberEntry = new NumberEntry(networkPortionNumber);
-        ArrayList<String> allIDDs = getAllIDDs(context, activeMcc);
+        List<String> allIDDs = getAllIDDs(context, activeMcc);
 
         // First check whether the number is a NANP number.
         int nanpState = checkNANP(numberEntry, allIDDs);
@@ -238,47 +239,8 @@ public class SmsNumberUtils {
      *
      * @return the IDD array list.
      */
-    private static ArrayList<String> getAllIDDs(Context context, String mcc) {
-        ArrayList<String> allIDDs = IDDS_MAPS.get(mcc);
-        if (allIDDs != null) {
-            return allIDDs;
-        } else {
-            allIDDs = new ArrayList<String>();
-        }
-
-        String projection[] = {MccIdd.IDD, MccIdd.MCC};
-        String where = null;
-
-        // if mcc is null         : return all rows
-        // if mcc is empty-string : return those rows whose mcc is emptry-string
-        String[] selectionArgs = null;
-        if (mcc != null) {
-            where = MccIdd.MCC + "=?";
-            selectionArgs = new String[] {mcc};
-        }
-
-        Cursor cursor = null;
-        try {
-            cursor = context.getContentResolver().query(MccIdd.CONTENT_URI, projection,
-                    where, selectionArgs, null);
-            if (cursor.getCount() > 0) {
-                while (cursor.moveToNext()) {
-                    String idd = cursor.getString(0);
-                    if (!allIDDs.contains(idd)) {
-                        allIDDs.add(idd);
-                    }
-                }
-            }
-        } catch (SQLException e) {
-            Rlog.e(TAG, "Can't access HbpcdLookup database", e);
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-        }
-
-        IDDS_MAPS.put(mcc, allIDDs);
-
+    private static List<String> getAllIDDs(Context context, String mcc) {
+        List<String> allIDDs = HbpcdIndex.getInstance(context).getIdds(mcc);
         if (DBG) Rlog.d(TAG, "MCC = " + mcc + ", all IDDs = " + allIDDs);
         return allIDDs;
     }
@@ -291,7 +253,7 @@ public class SmsNumberUtils {
      *
      * @return the number plan type related NANP
      */
-    private static int checkNANP(NumberEntry numberEntry, ArrayList<String> allIDDs) {
+    private static int checkNANP(NumberEntry numberEntry, List<String> allIDDs) {
         boolean isNANP = false;
         String number = numberEntry.number;
 
@@ -375,7 +337,7 @@ public class SmsNumberUtils {
      * @return the number plan type related international number
      */
     private static int checkInternationalNumberPlan(Context context, NumberEntry numberEntry,
-            ArrayList<String> allIDDs,String homeIDD) {
+            List<String> allIDDs,String homeIDD) {
         String number = numberEntry.number;
         int countryCode = -1;
 
@@ -428,66 +390,13 @@ public class SmsNumberUtils {
         int countryCode = -1;
         if (number.length() >= MIN_COUNTRY_AREA_LOCAL_LENGTH) {
             // Check Country code
-            int[] allCCs = getAllCountryCodes(context);
-            if (allCCs == null) {
-                return countryCode;
-            }
-
-            int[] ccArray = new int[MAX_COUNTRY_CODES_LENGTH];
-            for (int i = 0; i < MAX_COUNTRY_CODES_LENGTH; i ++) {
-                ccArray[i] = Integer.valueOf(number.substring(0, i+1));
-            }
-
-            for (int i = 0; i < allCCs.length; i ++) {
-                int tempCC = allCCs[i];
-                for (int j = 0; j < MAX_COUNTRY_CODES_LENGTH; j ++) {
-                    if (tempCC == ccArray[j]) {
-                        if (DBG) Rlog.d(TAG, "Country code = " + tempCC);
-                        return tempCC;
-                    }
-                }
-            }
+            countryCode = HbpcdIndex.getInstance(context).findCountryCode(number);
+            if (DBG && countryCode > 0) Rlog.d(TAG, "Country code = " + countryCode);
         }
 
         return countryCode;
     }
 
-    /**
-     *  Gets all country Codes information with given MCC.
-     */
-    private static int[] getAllCountryCodes(Context context) {
-        if (ALL_COUNTRY_CODES != null) {
-            return ALL_COUNTRY_CODES;
-        }
-
-        Cursor cursor = null;
-        try {
-            String projection[] = {MccLookup.COUNTRY_CODE};
-            cursor = context.getContentResolver().query(MccLookup.CONTENT_URI,
-                    projection, null, null, null);
-
-            if (cursor.getCount() > 0) {
-                ALL_COUNTRY_CODES = new int[cursor.getCount()];
-                int i = 0;
-                while (cursor.moveToNext()) {
-                    int countryCode = cursor.getInt(0);
-                    ALL_COUNTRY_CODES[i++] = countryCode;
-                    int length = String.valueOf(countryCode).trim().length();
-                    if (length > MAX_COUNTRY_CODES_LENGTH) {
-                        MAX_COUNTRY_CODES_LENGTH = length;
-                    }
-                }
-            }
-        } catch (SQLException e) {
-            Rlog.e(TAG, "Can't access HbpcdLookup database", e);
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-        }
-        return ALL_COUNTRY_CODES;
-    }
-
     private static boolean inExceptionListForNpCcAreaLocal(NumberEntry numberEntry) {
         int countryCode = numberEntry.countryCode;
         boolean result = (numberEntry.number.length() == 12
@@ -546,7 +455,8 @@ public class SmsNumberUtils {
             if (networkType != -1) {
                 String networkMcc = networkOperator.substring(0, 3);
                 if (networkMcc != null && networkMcc.trim().length() > 0) {
-                    result = formatNumber(phoneBase.getContext(), destAddr, networkMcc, networkType);
+                    result = formatNumberCached(phoneBase.getContext(), destAddr, networkMcc,
+                            networkType, phoneBase.getGroupIdLevel1());
                 }
             }
         }
@@ -555,6 +465,64 @@ public class SmsNumberUtils {
         return result != null ? result : destAddr;
     }
 
+    /**
+     * Returns the formatted number, reusing the result of an earlier call for the same
+     * destination while the network type (which includes the CDMA roaming state), the
+     * network MCC and the SIM GID1 are unchanged. Any change to those clears the memo.
+     */
+    static String formatNumberCached(Context context, String destAddr, String activeMcc,
+            int networkType, String gid1) {
+        synchronized (sFormatCacheLock) {
+            if (networkType != sCachedNetworkType || !TextUtils.equals(activeMcc, sCachedMcc)
+                    || !TextUtils.equals(gid1, sCachedGid1)) {
+                if (sFormatCache.size() > 0) {
+                    sFormatCache.evictAll();
+                    sFormatCacheInvalidations++;
+                }
+                sCachedNetworkType = networkType;
+                sCachedMcc = activeMcc;
+                sCachedGid1 = gid1;
+            }
+            String result = sFormatCache.get(destAddr);
+            if (result != null) {
+                sFormatCacheHits++;
+                return result;
+            }
+            sFormatCacheMisses++;
+        }
+
+        String result = formatNumber(context, destAddr, activeMcc, networkType);
+
+        synchronized (sFormatCacheLock) {
+            // Only keep the result if the context did not change while formatting
+            if (result != null && networkType == sCachedNetworkType
+                    && TextUtils.equals(activeMcc, sCachedMcc)
+                    && TextUtils.equals(gid1, sCachedGid1)) {
+                sFormatCache.put(destAddr, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Drops all memoized destination addresses, e.g. when the HBPCD data changes.
+     */
+    static void invalidateFormatCache() {
+        synchronized (sFormatCacheLock) {
+            sFormatCache.evictAll();
+            sFormatCacheInvalidations++;
+        }
+    }
+
+    /**
+     * Returns the memo statistics as {hits, misses, invalidations}.
+     */
+    static int[] getFormatCacheStats() {
+        synchronized (sFormatCacheLock) {
+            return new int[] {sFormatCacheHits, sFormatCacheMisses, sFormatCacheInvalidations};
+        }
+    }
+
     /**
      * Returns the current network type
      */
@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.telephony.Rlog;
+
+import com.android.internal.telephony.SMSDispatcher.SmsTracker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * Orders approved outgoing SMS before they are handed to the modem.
+ *
+ * Every subscription has one queue per priority class. Within a class, calling packages
+ * share the modem by weighted fair queuing (start-time fair queuing with one unit of cost
+ * per PDU), so a bulk burst from one app cannot starve messages from another, while each
+ * package's own messages stay in submission order. At most {@link #MAX_IN_FLIGHT} messages
+ * per subscription are with the modem at once; a slot is released when the tracker reports
+ * its final result, or reclaimed after {@link #IN_FLIGHT_TIMEOUT_MS}. A timer runs for the
+ * oldest slot of each subscription, so a lost result cannot hold up the queue until the
+ * next send or completion.
+ *
+ * Thread safe; trackers are handed back to their dispatcher's handler thread.
+ */
+public class SmsSendScheduler {
+    private static final String TAG = "SmsSendScheduler";
+    private static final boolean DBG = false;
+
+    /** Emergency destinations and messages sent with emergency priority. */
+    public static final int CLASS_EMERGENCY = 0;
+    /** Urgent or interactive priority, and messages from the default SMS app. */
+    public static final int CLASS_INTERACTIVE = 1;
+    /** Everything else. */
+    public static final int CLASS_NORMAL = 2;
+    private static final int NUM_CLASSES = 3;
+
+    private static final String[] CLASS_NAMES = { "emergency", "interactive", "normal" };
+
+    /** Messages per subscription handed to the modem but not yet completed. */
+    static final int MAX_IN_FLIGHT = 2;
+
+    /** A send that has not completed after this long no longer holds its slot. */
+    static final long IN_FLIGHT_TIMEOUT_MS = 3 * 60 * 1000;
+
+    /** Virtual cost of one PDU for a package of weight 1. */
+    private static final long COST_UNIT = 1000;
+
+    private static final int EVENT_RECLAIM = 1;
+
+    private static SmsSendScheduler sInstance;
+
+    private final Object mLock = new Object();
+    private final HashMap<Long, SubQueue> mSubQueues = new HashMap<Long, SubQueue>();
+    private final IdentityHashMap<SmsTracker, Pending> mInFlight =
+            new IdentityHashMap<SmsTracker, Pending>();
+    private final Handler mHandler;
+    private long mSequence;
+
+    public static synchronized SmsSendScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new SmsSendScheduler(Looper.getMainLooper());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param looper runs the reclaim timers
+     */
+    SmsSendScheduler(Looper looper) {
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == EVENT_RECLAIM) {
+                    onReclaimTimer((SubQueue) msg.obj);
+                }
+            }
+        };
+    }
+
+    /** A message waiting for, or holding, a send slot. */
+    private static final class Pending implements Comparable<Pending> {
+        final SMSDispatcher mDispatcher;
+        final SmsTracker mTracker;
+        final SubQueue mQueue;
+        final int mClass;
+        final String mPackage;
+        final long mStartTag;
+        final long mSequence;
+        final long mEnqueueTime;
+        long mDispatchTime;
+
+        Pending(SMSDispatcher dispatcher, SmsTracker tracker, SubQueue queue, int cls,
+                String pkg, long startTag, long sequence) {
+            mDispatcher = dispatcher;
+            mTracker = tracker;
+            mQueue = queue;
+            mClass = cls;
+            mPackage = pkg;
+            mStartTag = startTag;
+            mSequence = sequence;
+            mEnqueueTime = SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public int compareTo(Pending other) {
+            if (mStartTag != other.mStartTag) {
+                return mStartTag < other.mStartTag ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    /** Queues and counters of one subscription. */
+    private static final class SubQueue {
+        final long mSubId;
+        final ClassQueue[] mClasses = new ClassQueue[NUM_CLASSES];
+        int mInFlight;
+        int mReclaimed;
+
+        SubQueue(long subId) {
+            mSubId = subId;
+            for (int i = 0; i < NUM_CLASSES; i++) {
+                mClasses[i] = new ClassQueue();
+            }
+        }
+    }
+
+    /** Fair queue of one priority class. */
+    private static final class ClassQueue {
+        final PriorityQueue<Pending> mQueue = new PriorityQueue<Pending>();
+        // Finish tag of the last queued message, per package with messages queued
+        final HashMap<String, Long> mLastFinish = new HashMap<String, Long>();
+        long mVirtualTime;
+
+        int mMaxDepth;
+        long mDispatched;
+        long mTotalWaitMs;
+        long mMaxWaitMs;
+    }
+
+    /**
+     * Queues an approved message for sending on subId. The message is sent through
+     * {@link SMSDispatcher#sendSms} on the dispatcher's handler once a slot is free.
+     *
+     * @param weight share of the class given to this package relative to others, at least 1
+     */
+    public void enqueue(SMSDispatcher dispatcher, long subId, int cls, String pkg, int weight,
+            SmsTracker tracker) {
+        if (pkg == null) pkg = "";
+        ArrayList<Pending> ready;
+        synchronized (mLock) {
+            SubQueue queue = mSubQueues.get(subId);
+            if (queue == null) {
+                queue = new SubQueue(subId);
+                mSubQueues.put(subId, queue);
+            }
+            ClassQueue classQueue = queue.mClasses[cls];
+            Long lastFinish = classQueue.mLastFinish.get(pkg);
+            long start = classQueue.mVirtualTime;
+            if (lastFinish != null && lastFinish > start) {
+                start = lastFinish;
+            }
+            classQueue.mLastFinish.put(pkg, start + COST_UNIT / Math.max(1, weight));
+            classQueue.mQueue.add(new Pending(dispatcher, tracker, queue, cls, pkg, start,
+                    mSequence++));
+            classQueue.mMaxDepth = Math.max(classQueue.mMaxDepth, classQueue.mQueue.size());
+            ready = pollReadyLocked(queue);
+        }
+        send(ready);
+    }
+
+    /**
+     * Releases the send slot held by tracker, if any, and starts the next queued message.
+     * Called once the tracker has its final result; retries keep the slot.
+     */
+    public void onSendFinished(SmsTracker tracker) {
+        ArrayList<Pending> ready;
+        synchronized (mLock) {
+            Pending pending = mInFlight.remove(tracker);
+            if (pending == null) {
+                return;
+            }
+            pending.mQueue.mInFlight--;
+            ready = pollReadyLocked(pending.mQueue);
+        }
+        send(ready);
+    }
+
+    private void onReclaimTimer(SubQueue queue) {
+        ArrayList<Pending> ready;
+        synchronized (mLock) {
+            ready = pollReadyLocked(queue);
+        }
+        send(ready);
+    }
+
+    private ArrayList<Pending> pollReadyLocked(SubQueue queue) {
+        reclaimStaleLocked(queue);
+        ArrayList<Pending> ready = null;
+        while (queue.mInFlight < MAX_IN_FLIGHT) {
+            Pending next = null;
+            for (int i = 0; i < NUM_CLASSES && next == null; i++) {
+                ClassQueue classQueue = queue.mClasses[i];
+                next = classQueue.mQueue.poll();
+                if (next != null) {
+                    classQueue.mVirtualTime = next.mStartTag;
+                    if (classQueue.mQueue.isEmpty()) {
+                        classQueue.mLastFinish.clear();
+                    }
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            next.mDispatchTime = SystemClock.elapsedRealtime();
+            long waitMs = next.mDispatchTime - next.mEnqueueTime;
+            ClassQueue classQueue = queue.mClasses[next.mClass];
+            classQueue.mDispatched++;
+            classQueue.mTotalWaitMs += waitMs;
+            classQueue.mMaxWaitMs = Math.max(classQueue.mMaxWaitMs, waitMs);
+            queue.mInFlight++;
+            mInFlight.put(next.mTracker, next);
+            if (ready == null) {
+                ready = new ArrayList<Pending>(MAX_IN_FLIGHT);
+            }
+            ready.add(next);
+        }
+        scheduleReclaimLocked(queue);
+        return ready;
+    }
+
+    /**
+     * Restarts the reclaim timer of queue for its oldest in-flight message, if any.
+     */
+    private void scheduleReclaimLocked(SubQueue queue) {
+        mHandler.removeMessages(EVENT_RECLAIM, queue);
+        if (queue.mInFlight == 0) {
+            return;
+        }
+        long oldest = Long.MAX_VALUE;
+        for (Pending pending : mInFlight.values()) {
+            if (pending.mQueue == queue && pending.mDispatchTime < oldest) {
+                oldest = pending.mDispatchTime;
+            }
+        }
+        if (oldest != Long.MAX_VALUE) {
+            long delay = oldest + getInFlightTimeoutMs() - SystemClock.elapsedRealtime();
+            mHandler.sendMessageDelayed(mHandler.obtainMessage(EVENT_RECLAIM, queue),
+                    Math.max(0, delay));
+        }
+    }
+
+    private void reclaimStaleLocked(SubQueue queue) {
+        final long now = SystemClock.elapsedRealtime();
+        final long timeout = getInFlightTimeoutMs();
+        Iterator<Pending> it = mInFlight.values().iterator();
+        while (it.hasNext()) {
+            Pending pending = it.next();
+            if (pending.mQueue == queue && now - pending.mDispatchTime >= timeout) {
+                Rlog.w(TAG, "Reclaiming send slot of sub " + queue.mSubId + " held for "
+                        + (now - pending.mDispatchTime) + " ms");
+                it.remove();
+                queue.mInFlight--;
+                queue.mReclaimed++;
+            }
+        }
+    }
+
+    /** Overridden by tests to reclaim sooner. */
+    long getInFlightTimeoutMs() {
+        return IN_FLIGHT_TIMEOUT_MS;
+    }
+
+    private void send(ArrayList<Pending> ready) {
+        if (ready == null) {
+            return;
+        }
+        for (int i = 0, count = ready.size(); i < count; i++) {
+            Pending pending = ready.get(i);
+            if (DBG) {
+                Rlog.d(TAG, "send: sub=" + pending.mQueue.mSubId + " class="
+                        + CLASS_NAMES[pending.mClass] + " pkg=" + pending.mPackage);
+            }
+            sendScheduledSms(pending.mDispatcher, pending.mTracker);
+        }
+    }
+
+    /** Hands tracker to its dispatcher; overridden by tests to record the send order. */
+    void sendScheduledSms(SMSDispatcher dispatcher, SmsTracker tracker) {
+        dispatcher.sendScheduledSms(tracker);
+    }
+
+    /**
+     * Returns the queue depth and wait time counters of subId, for dumpsys.
+     */
+    public String getStats(long subId) {
+        StringBuilder sb = new StringBuilder("SmsSendScheduler{sub=").append(subId);
+        synchronized (mLock) {
+            SubQueue queue = mSubQueues.get(subId);
+            if (queue == null) {
+                return sb.append(" idle}").toString();
+            }
+            sb.append(" inFlight=").append(queue.mInFlight)
+                    .append(" reclaimed=").append(queue.mReclaimed);
+            for (int i = 0; i < NUM_CLASSES; i++) {
+                ClassQueue classQueue = queue.mClasses[i];
+                sb.append(' ').append(CLASS_NAMES[i])
+                        .append("[depth=").append(classQueue.mQueue.size())
+                        .append(" maxDepth=").append(classQueue.mMaxDepth)
+                        .append(" sent=").append(classQueue.mDispatched)
+                        .append(" avgWaitMs=").append(classQueue.mDispatched == 0 ? 0
+                                : classQueue.mTotalWaitMs / classQueue.mDispatched)
+                        .append(" maxWaitMs=").append(classQueue.mMaxWaitMs)
+                        .append(']');
+            }
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -1547,6 +1547,10 @@ public class SubscriptionController extends ISub.Stub {
         mLocalLog.dump(fd, pw, args);
         pw.flush();
         pw.println("++++++++++++++++++++++++++++++++");
+
+        mScheduler.dump(fd, pw, args);
+        pw.flush();
+        pw.println("++++++++++++++++++++++++++++++++");
         pw.flush();
     }
 
@@ -23,6 +23,7 @@ import android.app.PendingIntent.CanceledException;
 import android.content.BroadcastReceiver;
 import android.content.Intent;
 import android.content.Context;
+import android.content.pm.PackageInfo;
 import android.net.Uri;
 import android.os.Message;
 import android.os.SystemProperties;
@@ -38,6 +39,7 @@ import com.android.internal.telephony.PhoneBase;
 import com.android.internal.telephony.SMSDispatcher;
 import com.android.internal.telephony.SmsApplication;
 import com.android.internal.telephony.SmsConstants;
+import com.android.internal.telephony.SmsDeliveryTracker;
 import com.android.internal.telephony.SmsHeader;
 import com.android.internal.telephony.SmsUsageMonitor;
 import com.android.internal.telephony.TelephonyProperties;
@@ -86,22 +88,22 @@ public class CdmaSMSDispatcher extends SMSDispatcher {
      * @param sms the CDMA SMS message to process
      */
     void handleCdmaStatusReport(SmsMessage sms) {
-        for (int i = 0, count = deliveryPendingList.size(); i < count; i++) {
-            SmsTracker tracker = deliveryPendingList.get(i);
-            if (tracker.mMessageRef == sms.mMessageRef) {
-                // Found it.  Remove from list and broadcast.
-                deliveryPendingList.remove(i);
-                // Update the message status (COMPLETE)
-                tracker.updateSentMessageStatus(mContext, Sms.STATUS_COMPLETE);
+        SmsDeliveryTracker.Entry entry = mDeliveryTracker.find(mPhone.getSubId(), sms.mMessageRef);
+        if (entry != null) {
+            // Found it.  Remove from list and broadcast.
+            mDeliveryTracker.remove(entry);
+            // Update the message status (COMPLETE)
+            entry.updateSentMessageStatus(mContext, Sms.STATUS_COMPLETE);
 
-                PendingIntent intent = tracker.mDeliveryIntent;
+            // Entries replayed after a restart have no delivery intent to send
+            if (entry.mTracker != null) {
+                PendingIntent intent = entry.mTracker.mDeliveryIntent;
                 Intent fillIn = new Intent();
                 fillIn.putExtra("pdu", sms.getPdu());
                 fillIn.putExtra("format", getFormat());
                 try {
                     intent.send(mContext, Activity.RESULT_OK, fillIn);
                 } catch (CanceledException ex) {}
-                break;  // Only expect to see one tracker matching this message.
             }
         }
     }
@@ -139,6 +141,7 @@ public class CdmaSMSDispatcher extends SMSDispatcher {
                 moveToOutbox(getSubId(), messageUri, callingPkg);
             }
             HashMap map = getSmsTrackerMap(destAddr, scAddr, text, pdu);
+            map.put("priority", priority);
             SmsTracker tracker = getSmsTracker(map, sentIntent, deliveryIntent, getFormat(),
                     messageUri, isExpectMore, validityPeriod);
             sendSubmitPdu(tracker);
@@ -167,6 +170,21 @@ public class CdmaSMSDispatcher extends SMSDispatcher {
             PendingIntent sentIntent, PendingIntent deliveryIntent, boolean lastPart,
             int priority, boolean isExpectMore, int validityPeriod,
             AtomicInteger unsentPartCount, AtomicBoolean anyPartFailed, Uri messageUri) {
+        SmsTracker tracker = getNewSubmitPduTracker(destinationAddress, scAddress, message,
+                smsHeader, encoding, sentIntent, deliveryIntent, lastPart, priority,
+                isExpectMore, validityPeriod, unsentPartCount, anyPartFailed, messageUri,
+                getCallingAppInfo(), allocateMessageId());
+        sendSubmitPdu(tracker);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected SmsTracker getNewSubmitPduTracker(String destinationAddress, String scAddress,
+            String message, SmsHeader smsHeader, int encoding,
+            PendingIntent sentIntent, PendingIntent deliveryIntent, boolean lastPart,
+            int priority, boolean isExpectMore, int validityPeriod,
+            AtomicInteger unsentPartCount, AtomicBoolean anyPartFailed, Uri messageUri,
+            PackageInfo appInfo, int messageId) {
         UserData uData = new UserData();
         uData.payloadStr = message;
         uData.userDataHeader = smsHeader;
@@ -189,16 +207,23 @@ public class CdmaSMSDispatcher extends SMSDispatcher {
          * callback to the sender when that last fragment delivery
          * has been acknowledged. */
         SmsMessage.SubmitPdu submitPdu = SmsMessage.getSubmitPdu(destinationAddress,
-                uData, (deliveryIntent != null) && lastPart, priority);
+                uData, (deliveryIntent != null) && lastPart, priority, messageId);
 
         HashMap map = getSmsTrackerMap(destinationAddress, scAddress,
                 message, submitPdu);
-        SmsTracker tracker = getSmsTracker(map, sentIntent,
+        map.put("priority", priority);
+        return getSmsTracker(map, sentIntent,
                 deliveryIntent, getFormat(), unsentPartCount, anyPartFailed, messageUri, smsHeader,
-                (!lastPart || isExpectMore), validityPeriod);
-        sendSubmitPdu(tracker);
+                (!lastPart || isExpectMore), validityPeriod, appInfo);
     }
 
+    /** {@inheritDoc} */
+    @Override
+    protected int allocateMessageId() {
+        return SmsMessage.getNextMessageId();
+    }
+
+    @Override
     protected void sendSubmitPdu(SmsTracker tracker) {
         if (SystemProperties.getBoolean(TelephonyProperties.PROPERTY_INECM_MODE, false)) {
             if (VDBG) {
@@ -29,10 +29,13 @@ import com.android.internal.util.XmlUtils;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.Locale;
+import java.util.Objects;
 
 /**
  * EriManager loads the ERI file definitions and manages the CDMA roaming information.
@@ -40,7 +43,11 @@ import java.util.HashMap;
  */
 public final class EriManager {
 
-    class EriFile {
+    /**
+     * Parsed ERI file. Once published through {@link #sEriFile} it is never modified,
+     * so a single instance is shared by every CDMAPhone in the process.
+     */
+    static final class EriFile {
 
         int mVersionNumber;                      // File version number
         int mNumberOfEriEntries;                 // Number of entries
@@ -50,6 +57,12 @@ public final class EriManager {
         String[] mCallPromptId;                  // reserved for future use
         HashMap<Integer, EriInfo> mRoamIndTable; // Roaming Indicator Table
 
+        // Identifies the source this file was parsed from, see getEriSourceStamp()
+        String mSourceStamp;
+
+        // Display results computed from this file for the current locale
+        volatile EriDisplayTable mDisplayTable;
+
         EriFile() {
             mVersionNumber = -1;
             mNumberOfEriEntries = 0;
@@ -59,10 +72,10 @@ public final class EriManager {
         }
     }
 
-    class EriDisplayInformation {
-        int mEriIconIndex;
-        int mEriIconMode;
-        String mEriIconText;
+    static final class EriDisplayInformation {
+        final int mEriIconIndex;
+        final int mEriIconMode;
+        final String mEriIconText;
 
         EriDisplayInformation(int eriIconIndex, int eriIconMode, String eriIconText) {
             mEriIconIndex = eriIconIndex;
@@ -83,6 +96,24 @@ public final class EriManager {
         }
     }
 
+    /**
+     * Precomputed display results indexed by roaming indicator. An indicator that
+     * resolves on its own (a standard indicator or one defined in the ERI file) is
+     * served from mByRoamInd; any other indicator falls back to the result for the
+     * default roaming indicator in mByDefRoamInd.
+     */
+    static final class EriDisplayTable {
+        static final int SIZE = 256;             // roaming indicators are 8 bits
+
+        final Locale mLocale;
+        final EriDisplayInformation[] mByRoamInd = new EriDisplayInformation[SIZE];
+        final EriDisplayInformation[] mByDefRoamInd = new EriDisplayInformation[SIZE];
+
+        EriDisplayTable(Locale locale) {
+            mLocale = locale;
+        }
+    }
+
     private static final String LOG_TAG = "CDMA";
     private static final boolean DBG = true;
     private static final boolean VDBG = false;
@@ -91,19 +122,28 @@ public final class EriManager {
     static final int ERI_FROM_FILE_SYSTEM  = 1;
     static final int ERI_FROM_MODEM        = 2;
 
+    private static final EriFile EMPTY_ERI_FILE = new EriFile();
+
+    // ERI file shared by all phones, replaced atomically when the source changes
+    private static EriFile sEriFile;
+    private static final Object sEriFileLock = new Object();
+
+    // Display results used while no ERI file is loaded
+    private static volatile EriDisplayTable sNoFileDisplayTable;
+
     private Context mContext;
     private int mEriFileSource = ERI_FROM_XML;
-    private boolean mIsEriFileLoaded;
-    private EriFile mEriFile;
+    private volatile boolean mIsEriFileLoaded;
+    private volatile EriFile mEriFile;
 
     public EriManager(PhoneBase phone, Context context, int eriFileSource) {
         mContext = context;
         mEriFileSource = eriFileSource;
-        mEriFile = new EriFile();
+        mEriFile = EMPTY_ERI_FILE;
     }
 
     public void dispose() {
-        mEriFile = new EriFile();
+        mEriFile = EMPTY_ERI_FILE;
         mIsEriFileLoaded = false;
     }
 
@@ -148,11 +188,47 @@ public final class EriManager {
     /**
      * Load the ERI file from the application framework resources encoded in XML
      *
+     * The parsed file is shared across phones; it is only re-parsed when the alternate
+     * ERI file has changed since it was last loaded.
      */
     private void loadEriFileFromXml() {
+        final String sourceStamp = getEriSourceStamp();
+        synchronized (sEriFileLock) {
+            if (sEriFile == null || !sEriFile.mSourceStamp.equals(sourceStamp)) {
+                EriFile eriFile = parseEriFileFromXml();
+                if (eriFile != null) {
+                    eriFile.mSourceStamp = sourceStamp;
+                    sEriFile = eriFile;
+                }
+            } else {
+                if (DBG) Rlog.d(LOG_TAG, "loadEriFileFromXml: using shared ERI file");
+            }
+            if (sEriFile != null) {
+                mEriFile = sEriFile;
+                mIsEriFileLoaded = true;
+            }
+        }
+    }
+
+    /**
+     * Returns a stamp identifying the current ERI source, which changes whenever the
+     * alternate ERI file is added, removed or modified.
+     */
+    private String getEriSourceStamp() {
+        String path = mContext.getResources().getString(
+                com.android.internal.R.string.alternate_eri_file);
+        File file = new File(path);
+        if (!file.exists()) {
+            return "";
+        }
+        return path + ":" + file.lastModified() + ":" + file.length();
+    }
+
+    private EriFile parseEriFileFromXml() {
         XmlPullParser parser = null;
         FileInputStream stream = null;
         Resources r = mContext.getResources();
+        EriFile eriFile = new EriFile();
 
         try {
             if (DBG) Rlog.d(LOG_TAG, "loadEriFileFromXml: check for alternate file");
@@ -176,11 +252,11 @@ public final class EriManager {
 
         try {
             XmlUtils.beginDocument(parser, "EriFile");
-            mEriFile.mVersionNumber = Integer.parseInt(
+            eriFile.mVersionNumber = Integer.parseInt(
                     parser.getAttributeValue(null, "VersionNumber"));
-            mEriFile.mNumberOfEriEntries = Integer.parseInt(
+            eriFile.mNumberOfEriEntries = Integer.parseInt(
                     parser.getAttributeValue(null, "NumberOfEriEntries"));
-            mEriFile.mEriFileType = Integer.parseInt(
+            eriFile.mEriFileType = Integer.parseInt(
                     parser.getAttributeValue(null, "EriFileType"));
 
             int parsedEriEntries = 0;
@@ -188,15 +264,15 @@ public final class EriManager {
                 XmlUtils.nextElement(parser);
                 String name = parser.getName();
                 if (name == null) {
-                    if (parsedEriEntries != mEriFile.mNumberOfEriEntries)
-                        Rlog.e(LOG_TAG, "Error Parsing ERI file: " +  mEriFile.mNumberOfEriEntries
+                    if (parsedEriEntries != eriFile.mNumberOfEriEntries)
+                        Rlog.e(LOG_TAG, "Error Parsing ERI file: " +  eriFile.mNumberOfEriEntries
                                 + " defined, " + parsedEriEntries + " parsed!");
                     break;
                 } else if (name.equals("CallPromptId")) {
                     int id = Integer.parseInt(parser.getAttributeValue(null, "Id"));
                     String text = parser.getAttributeValue(null, "CallPromptText");
                     if (id >= 0 && id <= 2) {
-                        mEriFile.mCallPromptId[id] = text;
+                        eriFile.mCallPromptId[id] = text;
                     } else {
                         Rlog.e(LOG_TAG, "Error Parsing ERI file: found" + id + " CallPromptId");
                     }
@@ -211,16 +287,17 @@ public final class EriManager {
                             parser.getAttributeValue(null, "CallPromptId"));
                     int alertId = Integer.parseInt(parser.getAttributeValue(null, "AlertId"));
                     parsedEriEntries++;
-                    mEriFile.mRoamIndTable.put(roamingIndicator, new EriInfo (roamingIndicator,
+                    eriFile.mRoamIndTable.put(roamingIndicator, new EriInfo (roamingIndicator,
                             iconIndex, iconMode, eriText, callPromptId, alertId));
                 }
             }
 
             if (DBG) Rlog.d(LOG_TAG, "loadEriFileFromXml: eri parsing successful, file loaded");
-            mIsEriFileLoaded = true;
+            return eriFile;
 
         } catch (Exception e) {
             Rlog.e(LOG_TAG, "Got exception while loading ERI file.", e);
+            return null;
         } finally {
             if (parser instanceof XmlResourceParser) {
                 ((XmlResourceParser)parser).close();
@@ -271,20 +348,92 @@ public final class EriManager {
      * Returns the EriInfo record associated with roamingIndicator
      * or null if the entry is not found
      */
-    private EriInfo getEriInfo(int roamingIndicator) {
-        if (mEriFile.mRoamIndTable.containsKey(roamingIndicator)) {
-            return mEriFile.mRoamIndTable.get(roamingIndicator);
-        } else {
-            return null;
-        }
+    private static EriInfo getEriInfo(EriFile eriFile, int roamingIndicator) {
+        return eriFile.mRoamIndTable.get(roamingIndicator);
     }
 
+    /**
+     * Returns the display information for the indicators from the precomputed table,
+     * building the table if the ERI file or the locale changed since it was computed.
+     */
     private EriDisplayInformation getEriDisplayInformation(int roamInd, int defRoamInd){
+        final boolean loaded = mIsEriFileLoaded;
+        final EriFile eriFile = mEriFile;
+        final Locale locale = mContext.getResources().getConfiguration().locale;
+
+        EriDisplayTable table = loaded ? eriFile.mDisplayTable : sNoFileDisplayTable;
+        if (table == null || !Objects.equals(table.mLocale, locale)) {
+            table = buildEriDisplayTable(loaded, eriFile, locale);
+            if (loaded) {
+                eriFile.mDisplayTable = table;
+            } else {
+                sNoFileDisplayTable = table;
+            }
+        }
+
+        EriDisplayInformation ret = null;
+        if (roamInd >= 0 && roamInd < EriDisplayTable.SIZE) {
+            ret = table.mByRoamInd[roamInd];
+        } else if (isResolvedByRoamInd(loaded, eriFile, roamInd)) {
+            ret = computeEriDisplayInformation(loaded, eriFile, roamInd, defRoamInd, false);
+        }
+        if (ret == null) {
+            if (defRoamInd >= 0 && defRoamInd < EriDisplayTable.SIZE) {
+                ret = table.mByDefRoamInd[defRoamInd];
+            } else {
+                ret = computeEriDisplayInformation(loaded, eriFile, roamInd, defRoamInd, false);
+            }
+        }
+        if (VDBG) Rlog.v(LOG_TAG, "Displaying ERI " + ret.toString());
+        return ret;
+    }
+
+    /**
+     * Returns true if the display information for roamInd does not depend on the
+     * default roaming indicator.
+     */
+    private static boolean isResolvedByRoamInd(boolean loaded, EriFile eriFile, int roamInd) {
+        return (loaded && getEriInfo(eriFile, roamInd) != null)
+                || (roamInd >= EriInfo.ROAMING_INDICATOR_ON && roamInd <= 12);
+    }
+
+    private EriDisplayTable buildEriDisplayTable(boolean loaded, EriFile eriFile,
+            Locale locale) {
+        EriDisplayTable table = new EriDisplayTable(locale);
+        // Any indicator outside the standard and file-defined ones uses the default path
+        int unresolvedRoamInd = -1;
+        for (int i = 0; i < EriDisplayTable.SIZE; i++) {
+            if (isResolvedByRoamInd(loaded, eriFile, i)) {
+                table.mByRoamInd[i] = computeEriDisplayInformation(loaded, eriFile, i, i, true);
+            }
+        }
+        // Entries are computed quietly, the indicators missing from the file are logged here
+        int missingDefRoamInds = 0;
+        for (int i = 0; i < EriDisplayTable.SIZE; i++) {
+            table.mByDefRoamInd[i] =
+                    computeEriDisplayInformation(loaded, eriFile, unresolvedRoamInd, i, true);
+            if (loaded && getEriInfo(eriFile, i) == null) {
+                missingDefRoamInds++;
+            }
+        }
+        if (DBG) {
+            Rlog.d(LOG_TAG, "buildEriDisplayTable: loaded=" + loaded + " locale=" + locale
+                    + " defRoamIndsNotInFile=" + missingDefRoamInds);
+        }
+        return table;
+    }
+
+    /**
+     * Computes the display information for the indicators. When quiet, as while building
+     * the display table, the per-indicator debug and error logs are skipped.
+     */
+    private EriDisplayInformation computeEriDisplayInformation(boolean loaded, EriFile eriFile,
+            int roamInd, int defRoamInd, boolean quiet) {
         EriDisplayInformation ret;
 
         // Carrier can use eri.xml to customize any built-in roaming display indications
-        if (mIsEriFileLoaded) {
-            EriInfo eriInfo = getEriInfo(roamInd);
+        if (loaded) {
+            EriInfo eriInfo = getEriInfo(eriFile, roamInd);
             if (eriInfo != null) {
                 if (VDBG) Rlog.v(LOG_TAG, "ERI roamInd " + roamInd + " found in ERI file");
                 ret = new EriDisplayInformation(
@@ -392,9 +541,9 @@ public final class EriManager {
 
         // Handling the non standard Enhanced Roaming Indicator (roamInd > 63)
         default:
-            if (!mIsEriFileLoaded) {
+            if (!loaded) {
                 // ERI file NOT loaded
-                if (DBG) Rlog.d(LOG_TAG, "ERI File not loaded");
+                if (DBG && !quiet) Rlog.d(LOG_TAG, "ERI File not loaded");
                 if(defRoamInd > 2) {
                     if (VDBG) Rlog.v(LOG_TAG, "ERI defRoamInd > 2 ...flashing");
                     ret = new EriDisplayInformation(
@@ -435,16 +584,18 @@ public final class EriManager {
                 }
             } else {
                 // ERI file loaded
-                EriInfo eriInfo = getEriInfo(roamInd);
-                EriInfo defEriInfo = getEriInfo(defRoamInd);
+                EriInfo eriInfo = getEriInfo(eriFile, roamInd);
+                EriInfo defEriInfo = getEriInfo(eriFile, defRoamInd);
                 if (eriInfo == null) {
                     if (VDBG) {
                         Rlog.v(LOG_TAG, "ERI roamInd " + roamInd
                             + " not found in ERI file ...using defRoamInd " + defRoamInd);
                     }
                     if(defEriInfo == null) {
-                        Rlog.e(LOG_TAG, "ERI defRoamInd " + defRoamInd
-                                + " not found in ERI file ...on");
+                        if (!quiet) {
+                            Rlog.e(LOG_TAG, "ERI defRoamInd " + defRoamInd
+                                    + " not found in ERI file ...on");
+                        }
                         ret = new EriDisplayInformation(
                                 EriInfo.ROAMING_INDICATOR_ON,
                                 EriInfo.ROAMING_ICON_MODE_NORMAL,
@@ -470,7 +621,6 @@ public final class EriManager {
             }
             break;
         }
-        if (VDBG) Rlog.v(LOG_TAG, "Displaying ERI " + ret.toString());
         return ret;
     }
 
@@ -25,7 +25,6 @@ import android.telephony.SmsCbMessage;
 import android.telephony.cdma.CdmaSmsCbProgramData;
 import android.telephony.Rlog;
 import android.util.Log;
-import android.text.TextUtils;
 import android.content.res.Resources;
 
 import com.android.internal.telephony.GsmAlphabet.TextEncodingDetails;
@@ -42,7 +41,7 @@ import com.android.internal.telephony.cdma.sms.UserData;
 import com.android.internal.telephony.uicc.IccUtils;
 import com.android.internal.util.BitwiseInputStream;
 import com.android.internal.util.HexDump;
-import com.android.internal.telephony.Sms7BitEncodingTranslator;
+import com.android.internal.telephony.SmsLengthCalculator;
 
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
@@ -438,6 +437,18 @@ public class SmsMessage extends SmsMessageBase {
         return privateGetSubmitPdu(destAddr, statusReportRequested, userData, priority);
     }
 
+    /**
+     * Get an SMS-SUBMIT PDU with a message id taken earlier from getNextMessageId(), so
+     * the parts of a multipart message can be encoded on any thread in any order.
+     *
+     * @param messageId the message id, or -1 to take the next one
+     */
+    static SubmitPdu getSubmitPdu(String destAddr, UserData userData,
+            boolean statusReportRequested, int priority, int messageId) {
+        return privateGetSubmitPdu(destAddr, statusReportRequested, userData, priority,
+                messageId);
+    }
+
     /**
      * Note: This function is a GSM specific functionality which is not supported in CDMA mode.
      */
@@ -527,15 +538,7 @@ public class SmsMessage extends SmsMessageBase {
      */
     public static TextEncodingDetails calculateLength(CharSequence messageBody,
             boolean use7bitOnly) {
-        CharSequence newMsgBody = null;
-        Resources r = Resources.getSystem();
-        if (r.getBoolean(com.android.internal.R.bool.config_sms_force_7bit_encoding)) {
-            newMsgBody  = Sms7BitEncodingTranslator.translate(messageBody);
-        }
-        if (TextUtils.isEmpty(newMsgBody)) {
-            newMsgBody = messageBody;
-        }
-        return BearerData.calcTextEncodingDetails(newMsgBody, use7bitOnly);
+        return SmsLengthCalculator.calculateLength(messageBody, use7bitOnly, true);
     }
 
     /**
@@ -930,6 +933,16 @@ public class SmsMessage extends SmsMessageBase {
      */
     private static SubmitPdu privateGetSubmitPdu(String destAddrStr, boolean statusReportRequested,
             UserData userData, int priority) {
+        return privateGetSubmitPdu(destAddrStr, statusReportRequested, userData, priority, -1);
+    }
+
+    /**
+     * Creates BearerData and Envelope from parameters for a Submit SMS.
+     * @param messageId the message id, or -1 to take the next one
+     * @return byte stream for SubmitPdu.
+     */
+    private static SubmitPdu privateGetSubmitPdu(String destAddrStr, boolean statusReportRequested,
+            UserData userData, int priority, int messageId) {
 
         /**
          * TODO(cleanup): give this function a more meaningful name.
@@ -952,7 +965,7 @@ public class SmsMessage extends SmsMessageBase {
         BearerData bearerData = new BearerData();
         bearerData.messageType = BearerData.MESSAGE_TYPE_SUBMIT;
 
-        bearerData.messageId = getNextMessageId();
+        bearerData.messageId = messageId >= 0 ? messageId : getNextMessageId();
 
         bearerData.deliveryAckReq = statusReportRequested;
         bearerData.userAckReq = false;
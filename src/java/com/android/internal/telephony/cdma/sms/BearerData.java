@@ -456,12 +456,7 @@ public final class BearerData {
     private static int countAsciiSeptets(CharSequence msg, boolean force) {
         int msgLen = msg.length();
         if (force) return msgLen;
-        for (int i = 0; i < msgLen; i++) {
-            if (UserData.charToAscii.get(msg.charAt(i), -1) == -1) {
-                return -1;
-            }
-        }
-        return msgLen;
+        return SeptetCodec.findUnencodable(msg) == -1 ? msgLen : -1;
     }
 
     /**
@@ -520,24 +515,21 @@ public final class BearerData {
     private static byte[] encode7bitAscii(String msg, boolean force)
         throws CodingException
     {
-        try {
-            BitwiseOutputStream outStream = new BitwiseOutputStream(msg.length());
-            int msgLen = msg.length();
-            for (int i = 0; i < msgLen; i++) {
-                int charCode = UserData.charToAscii.get(msg.charAt(i), -1);
-                if (charCode == -1) {
-                    if (force) {
-                        outStream.write(7, UserData.UNENCODABLE_7_BIT_CHAR);
-                    } else {
-                        throw new CodingException("cannot ASCII encode (" + msg.charAt(i) + ")");
-                    }
-                } else {
-                    outStream.write(7, charCode);
-                }
+        checkAsciiEncodable(msg, force);
+        byte[] payload = new byte[SeptetCodec.packedLength(0, msg.length())];
+        SeptetCodec.pack(msg, 0, payload, 0);
+        return payload;
+    }
+
+    private static void checkAsciiEncodable(String msg, boolean force)
+        throws CodingException
+    {
+        if (!force) {
+            int unencodable = SeptetCodec.findUnencodable(msg);
+            if (unencodable != -1) {
+                throw new CodingException("cannot ASCII encode (" + msg.charAt(unencodable)
+                        + ")");
             }
-            return outStream.toByteArray();
-        } catch (BitwiseOutputStream.AccessException ex) {
-            throw new CodingException("7bit ASCII encode failed: " + ex);
         }
     }
 
@@ -620,40 +612,21 @@ public final class BearerData {
     private static void encode7bitAsciiEms(UserData uData, byte[] udhData, boolean force)
             throws CodingException
     {
-        try {
-            Rlog.d(LOG_TAG, "encode7bitAsciiEms");
-            int udhBytes = udhData.length + 1;  // Add length octet.
-            int udhSeptets = ((udhBytes * 8) + 6) / 7;
-            int paddingBits = (udhSeptets * 7) - (udhBytes * 8);
-            String msg = uData.payloadStr;
-            byte[] payload ;
-            int msgLen = msg.length();
-            BitwiseOutputStream outStream = new BitwiseOutputStream(msgLen +
-                    (paddingBits > 0 ? 1 : 0));
-            outStream.write(paddingBits, 0);
-            for (int i = 0; i < msgLen; i++) {
-                int charCode = UserData.charToAscii.get(msg.charAt(i), -1);
-                if (charCode == -1) {
-                    if (force) {
-                        outStream.write(7, UserData.UNENCODABLE_7_BIT_CHAR);
-                    } else {
-                        throw new CodingException("cannot ASCII encode (" + msg.charAt(i) + ")");
-                    }
-                } else {
-                    outStream.write(7, charCode);
-                }
-            }
-            payload = outStream.toByteArray();
-            uData.msgEncoding = UserData.ENCODING_7BIT_ASCII;
-            uData.msgEncodingSet = true;
-            uData.numFields = udhSeptets + uData.payloadStr.length();
-            uData.payload = new byte[udhBytes + payload.length];
-            uData.payload[0] = (byte)udhData.length;
-            System.arraycopy(udhData, 0, uData.payload, 1, udhData.length);
-            System.arraycopy(payload, 0, uData.payload, udhBytes, payload.length);
-        } catch (BitwiseOutputStream.AccessException ex) {
-            throw new CodingException("7bit ASCII encode failed: " + ex);
-        }
+        Rlog.d(LOG_TAG, "encode7bitAsciiEms");
+        int udhBytes = udhData.length + 1;  // Add length octet.
+        int udhSeptets = ((udhBytes * 8) + 6) / 7;
+        int paddingBits = (udhSeptets * 7) - (udhBytes * 8);
+        String msg = uData.payloadStr;
+        checkAsciiEncodable(msg, force);
+        // Header and septets go straight into the final payload
+        byte[] payload = new byte[udhBytes + SeptetCodec.packedLength(paddingBits, msg.length())];
+        payload[0] = (byte)udhData.length;
+        System.arraycopy(udhData, 0, payload, 1, udhData.length);
+        SeptetCodec.pack(msg, paddingBits, payload, udhBytes);
+        uData.msgEncoding = UserData.ENCODING_7BIT_ASCII;
+        uData.msgEncodingSet = true;
+        uData.numFields = udhSeptets + msg.length();
+        uData.payload = payload;
     }
 
     private static void encodeEmsUserDataPayload(UserData uData)
@@ -1117,38 +1090,22 @@ public final class BearerData {
     private static String decode7bitAscii(byte[] data, int offset, int numFields)
         throws CodingException
     {
-        try {
-            int offsetBits = offset * 8;
-            int offsetSeptets = (offsetBits + 6) / 7;
-            numFields -= offsetSeptets;
-            int paddingBits = (offsetSeptets * 7) - offsetBits;
-
-            StringBuffer strBuf = new StringBuffer(numFields);
-            BitwiseInputStream inStream = new BitwiseInputStream(data);
-            int wantedBits = (offsetSeptets * 7) + (numFields * 7);
-            if (inStream.available() < wantedBits) {
-                throw new CodingException("insufficient data (wanted " + wantedBits +
-                                          " bits, but only have " + inStream.available() + ")");
-            }
-            inStream.skip(offsetBits + paddingBits);
-            for (int i = 0; i < numFields; i++) {
-                int charCode = inStream.read(7);
-                if ((charCode >= UserData.ASCII_MAP_BASE_INDEX) &&
-                        (charCode <= UserData.ASCII_MAP_MAX_INDEX)) {
-                    strBuf.append(UserData.ASCII_MAP[charCode - UserData.ASCII_MAP_BASE_INDEX]);
-                } else if (charCode == UserData.ASCII_NL_INDEX) {
-                    strBuf.append('\n');
-                } else if (charCode == UserData.ASCII_CR_INDEX) {
-                    strBuf.append('\r');
-                } else {
-                    /* For other charCodes, they are unprintable, and so simply use SPACE. */
-                    strBuf.append(' ');
-                }
-            }
-            return strBuf.toString();
-        } catch (BitwiseInputStream.AccessException ex) {
-            throw new CodingException("7bit ASCII decode failed: " + ex);
+        int offsetBits = offset * 8;
+        int offsetSeptets = (offsetBits + 6) / 7;
+        numFields -= offsetSeptets;
+        int paddingBits = (offsetSeptets * 7) - offsetBits;
+
+        if (numFields < 0) {
+            throw new CodingException("7bit ASCII decode failed: numFields " + numFields);
+        }
+        int availableBits = data.length * 8;
+        int wantedBits = (offsetSeptets * 7) + (numFields * 7);
+        if (availableBits < wantedBits) {
+            throw new CodingException("insufficient data (wanted " + wantedBits +
+                                      " bits, but only have " + availableBits + ")");
         }
+        // Unprintable codes decode as SPACE
+        return SeptetCodec.unpack(data, offsetBits + paddingBits, numFields);
     }
 
     private static String decode7bitGsm(byte[] data, int offset, int numFields)
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.cdma.sms;
+
+/**
+ * Packs and unpacks 7-bit ASCII user data, most significant bit first as in
+ * 3GPP2 C.S0015-B section 4.5.2, the same bit order as BitwiseOutputStream.
+ *
+ * Bits are moved through a word sized accumulator a byte at a time instead of one bit at
+ * a time, into and out of caller supplied arrays, and characters are mapped through dense
+ * tables rather than {@link UserData#charToAscii}.
+ */
+final class SeptetCodec {
+
+    /** ASCII code of each char below 0x80, or -1 if it has none. */
+    private static final byte[] CHAR_TO_ASCII = new byte[0x80];
+
+    /** Char decoded from each 7-bit ASCII code; unprintable codes decode as space. */
+    private static final char[] ASCII_TO_CHAR = new char[0x80];
+
+    static {
+        for (int c = 0; c < CHAR_TO_ASCII.length; c++) {
+            CHAR_TO_ASCII[c] = (byte) UserData.charToAscii.get(c, -1);
+        }
+        for (int code = 0; code < ASCII_TO_CHAR.length; code++) {
+            if (code >= UserData.ASCII_MAP_BASE_INDEX && code <= UserData.ASCII_MAP_MAX_INDEX) {
+                ASCII_TO_CHAR[code] = UserData.ASCII_MAP[code - UserData.ASCII_MAP_BASE_INDEX];
+            } else if (code == UserData.ASCII_NL_INDEX) {
+                ASCII_TO_CHAR[code] = '\n';
+            } else if (code == UserData.ASCII_CR_INDEX) {
+                ASCII_TO_CHAR[code] = '\r';
+            } else {
+                ASCII_TO_CHAR[code] = ' ';
+            }
+        }
+    }
+
+    private SeptetCodec() {
+    }
+
+    /**
+     * Returns the 7-bit ASCII code of c, or -1 if c cannot be encoded.
+     */
+    static int toAscii(char c) {
+        return c < CHAR_TO_ASCII.length ? CHAR_TO_ASCII[c] : -1;
+    }
+
+    /**
+     * Returns the index of the first char of msg that cannot be 7-bit ASCII encoded, or -1
+     * if all of them can.
+     */
+    static int findUnencodable(CharSequence msg) {
+        for (int i = 0, len = msg.length(); i < len; i++) {
+            if (toAscii(msg.charAt(i)) == -1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the number of bytes taken by paddingBits zero bits followed by the given
+     * number of septets.
+     */
+    static int packedLength(int paddingBits, int septets) {
+        return (paddingBits + septets * 7 + 7) / 8;
+    }
+
+    /**
+     * Writes paddingBits zero bits and then msg as 7-bit ASCII into out, starting at
+     * out[offset]. Unencodable chars are written as {@link UserData#UNENCODABLE_7_BIT_CHAR}.
+     * out must have room for {@link #packedLength} bytes from offset.
+     *
+     * @return the offset just past the last byte written
+     */
+    static int pack(CharSequence msg, int paddingBits, byte[] out, int offset) {
+        int pos = offset;
+        long acc = 0;
+        int bits = paddingBits;
+        for (int i = 0, len = msg.length(); i < len; i++) {
+            int code = toAscii(msg.charAt(i));
+            if (code == -1) code = UserData.UNENCODABLE_7_BIT_CHAR;
+            acc = (acc << 7) | code;
+            bits += 7;
+            if (bits >= 8) {
+                bits -= 8;
+                out[pos++] = (byte) (acc >>> bits);
+            }
+        }
+        // bits is at most 7 here; the remaining bits go to the top of one more byte
+        if (bits > 0) {
+            out[pos++] = (byte) (acc << (8 - bits));
+        }
+        return pos;
+    }
+
+    /**
+     * Decodes count septets of 7-bit ASCII from data, starting bitOffset bits into it.
+     * data must hold at least bitOffset + 7 * count bits.
+     */
+    static String unpack(byte[] data, int bitOffset, int count) {
+        char[] chars = new char[count];
+        int pos = bitOffset >>> 3;
+        int bits = 0;
+        int acc = 0;
+        int skip = bitOffset & 7;
+        if (skip != 0) {
+            acc = data[pos++] & (0xff >>> skip);
+            bits = 8 - skip;
+        }
+        for (int i = 0; i < count; i++) {
+            if (bits < 7) {
+                acc = (acc << 8) | (data[pos++] & 0xff);
+                bits += 8;
+            }
+            bits -= 7;
+            chars[i] = ASCII_TO_CHAR[(acc >>> bits) & 0x7f];
+            acc &= (1 << bits) - 1;
+        }
+        return new String(chars);
+    }
+}
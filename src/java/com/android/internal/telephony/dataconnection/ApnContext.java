@@ -77,6 +77,11 @@ public class ApnContext {
 
     private final DcTrackerBase mDcTracker;
 
+    /**
+     * DataCallTracer span of the setup in progress, or 0
+     */
+    private int mTraceSpan;
+
     public ApnContext(Context context, String apnType, String logTag, NetworkConfig config,
             DcTrackerBase tracker) {
         mContext = context;
@@ -218,12 +223,38 @@ public class ApnContext {
             log("set enabled as " + enabled + ", current state is " + mDataEnabled.get());
         }
         mDataEnabled.set(enabled);
+        if (!enabled) {
+            endTraceSpan(DataCallTracer.CANCELLED, 0);
+        }
     }
 
     public boolean isEnabled() {
         return mDataEnabled.get();
     }
 
+    public synchronized int getTraceSpan() {
+        return mTraceSpan;
+    }
+
+    /**
+     * Starts tracing a setup for this APN type, unless one is being traced already.
+     */
+    public synchronized void startTraceSpan(int phoneId) {
+        if (mTraceSpan == 0) {
+            mTraceSpan = DataCallTracer.getInstance().startSpan(phoneId, mApnType);
+        }
+    }
+
+    /**
+     * Ends the span of the setup being traced, if any, with point.
+     */
+    public synchronized void endTraceSpan(int point, int arg) {
+        if (mTraceSpan != 0) {
+            DataCallTracer.getInstance().record(mTraceSpan, point, arg);
+            mTraceSpan = 0;
+        }
+    }
+
     public void setDependencyMet(boolean met) {
         if (DBG) {
             log("set mDependencyMet as " + met + " current state is " + mDependencyMet.get());
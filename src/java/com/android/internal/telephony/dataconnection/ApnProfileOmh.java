@@ -204,5 +204,44 @@ public class ApnProfileOmh extends ApnSetting {
         }
         types = serviceTypes.toArray(new String[0]);
     }
+
+    /**
+     * Returns the fields read from the modem, as
+     * "profileId:priority:serviceTypeMasks:modemProfileTypeId", for
+     * CdmaApnProfileTracker to cache them.
+     */
+    String toCacheString() {
+        return profileId + ":" + mPriority + ":" + mServiceTypeMasks + ":"
+                + (mApnProfileModem == null ? 0 : mApnProfileModem.getid());
+    }
+
+    /**
+     * Rebuilds a profile from a toCacheString() string.
+     *
+     * @return the profile, or null if data is malformed
+     */
+    static ApnProfileOmh fromCacheString(String data) {
+        String[] fields = data.split(":");
+        if (fields.length != 4) {
+            return null;
+        }
+        try {
+            ApnProfileOmh apn = new ApnProfileOmh(Integer.parseInt(fields[0]),
+                    Integer.parseInt(fields[1]));
+            int serviceTypeMasks = Integer.parseInt(fields[2]);
+            int modemProfileTypeId = Integer.parseInt(fields[3]);
+            for (ApnProfileTypeModem apt : ApnProfileTypeModem.values()) {
+                if (0 != (serviceTypeMasks & apt.getid())) {
+                    apn.addServiceType(apt);
+                }
+                if (modemProfileTypeId == apt.getid()) {
+                    apn.setApnProfileTypeModem(apt);
+                }
+            }
+            return apn;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
 }
 
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.provider.Telephony;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The enabled APN rows of the current operator, as parsed ApnSettings cached by row id.
+ *
+ * The carriers provider does not say which rows changed, so every refresh still reads
+ * the operator's rows, but a row whose column values are the same as last time keeps its
+ * ApnSetting object; only new and edited rows are parsed again. Callers can therefore
+ * tell unchanged APNs by identity. Also counts how long APN list rebuilds take and how
+ * many data connection restarts APN changes needed or avoided, for dumpsys.
+ *
+ * Not thread safe; used from DcTracker's handler thread.
+ */
+public final class ApnRepository {
+
+    private static final String SELECTION = Telephony.Carriers.NUMERIC + " = ? and "
+            + Telephony.Carriers.CARRIER_ENABLED + " = 1";
+
+    /** A cached row: its column values when parsed, and the result. */
+    private static final class Row {
+        final String[] mValues;
+        final ApnSetting mApn;
+
+        Row(String[] values, ApnSetting apn) {
+            mValues = values;
+            mApn = apn;
+        }
+    }
+
+    private String mOperator;
+    private SparseArray<Row> mRows = new SparseArray<Row>();
+
+    private int mQueries;
+    private int mRowsParsed;
+    private int mRowsReused;
+
+    private int mRebuilds;
+    private long mTotalRebuildMs;
+    private long mMaxRebuildMs;
+    private long mLastRebuildMs;
+
+    private int mApnChanges;
+    private int mRestarts;
+    private int mRestartsAvoided;
+
+    /**
+     * Returns the enabled APNs of operator in provider order, parsing only rows that were
+     * added or changed since the last call for the same operator.
+     */
+    public ArrayList<ApnSetting> query(ContentResolver resolver, String operator) {
+        if (!operator.equals(mOperator)) {
+            mOperator = operator;
+            mRows.clear();
+        }
+        mQueries++;
+
+        ArrayList<ApnSetting> result = new ArrayList<ApnSetting>();
+        Cursor cursor = resolver.query(Telephony.Carriers.CONTENT_URI, null, SELECTION,
+                new String[] { operator }, null);
+        if (cursor == null) {
+            return result;
+        }
+        try {
+            SparseArray<Row> rows = new SparseArray<Row>(cursor.getCount());
+            int idColumn = cursor.getColumnIndexOrThrow(Telephony.Carriers._ID);
+            int columnCount = cursor.getColumnCount();
+            while (cursor.moveToNext()) {
+                int id = cursor.getInt(idColumn);
+                String[] values = new String[columnCount];
+                for (int i = 0; i < columnCount; i++) {
+                    values[i] = cursor.getString(i);
+                }
+
+                Row row = mRows.get(id);
+                if (row != null && Arrays.equals(row.mValues, values)) {
+                    mRowsReused++;
+                } else {
+                    ApnSetting apn = DcTracker.makeApnSetting(cursor);
+                    if (apn == null) {
+                        continue;
+                    }
+                    row = new Row(values, apn);
+                    mRowsParsed++;
+                }
+                rows.put(id, row);
+                result.add(row.mApn);
+            }
+            // rows no longer returned are dropped
+            mRows = rows;
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    /**
+     * Records the time taken to rebuild the APN list.
+     */
+    public void noteRebuild(long startElapsedRealtime) {
+        long ms = SystemClock.elapsedRealtime() - startElapsedRealtime;
+        mRebuilds++;
+        mTotalRebuildMs += ms;
+        mLastRebuildMs = ms;
+        mMaxRebuildMs = Math.max(mMaxRebuildMs, ms);
+    }
+
+    /**
+     * Records the outcome of an APN change for connections that were up: how many had to
+     * be restarted, and how many kept their APN.
+     */
+    public void noteApnChange(int restarts, int restartsAvoided) {
+        mApnChanges++;
+        mRestarts += restarts;
+        mRestartsAvoided += restartsAvoided;
+    }
+
+    @Override
+    public String toString() {
+        return "ApnRepository{operator=" + mOperator + " rows=" + mRows.size()
+                + " queries=" + mQueries + " parsed=" + mRowsParsed + " reused=" + mRowsReused
+                + " rebuilds=" + mRebuilds + " lastRebuildMs=" + mLastRebuildMs
+                + " avgRebuildMs=" + (mRebuilds == 0 ? 0 : mTotalRebuildMs / mRebuilds)
+                + " maxRebuildMs=" + mMaxRebuildMs + " apnChanges=" + mApnChanges
+                + " restarts=" + mRestarts + " restartsAvoided=" + mRestartsAvoided + "}";
+    }
+}
@@ -23,7 +23,13 @@ import android.text.TextUtils;
 import com.android.internal.telephony.PhoneConstants;
 import com.android.internal.telephony.RILConstants;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 
@@ -32,8 +38,42 @@ import java.util.Locale;
  */
 public class ApnSetting {
 
-    static final String V2_FORMAT_REGEX = "^\\[ApnSettingV2\\]\\s*";
-    static final String V3_FORMAT_REGEX = "^\\[ApnSettingV3\\]\\s*";
+    private static final String V2_FORMAT_PREFIX = "[ApnSettingV2]";
+    private static final String V3_FORMAT_PREFIX = "[ApnSettingV3]";
+
+    /** Version of the format written by {@link #toByteArray}. */
+    static final int BINARY_FORMAT_VERSION = 1;
+    // Codes of types in the binary format besides the BITMASK_TYPES indexes
+    private static final int TYPE_CODE_ALL = 0x7e;
+    private static final int TYPE_CODE_STRING = 0x7f;
+
+    /**
+     * APN types with a bit in {@link #getTypesBitmask}; bit i stands for BITMASK_TYPES[i].
+     */
+    private static final String[] BITMASK_TYPES = {
+            PhoneConstants.APN_TYPE_DEFAULT,
+            PhoneConstants.APN_TYPE_MMS,
+            PhoneConstants.APN_TYPE_SUPL,
+            PhoneConstants.APN_TYPE_DUN,
+            PhoneConstants.APN_TYPE_HIPRI,
+            PhoneConstants.APN_TYPE_FOTA,
+            PhoneConstants.APN_TYPE_IMS,
+            PhoneConstants.APN_TYPE_CBS,
+            PhoneConstants.APN_TYPE_IA,
+            PhoneConstants.APN_TYPE_EMERGENCY
+    };
+
+    /** Number of APN types with a bit of their own. */
+    static final int NUM_TYPE_BITS = BITMASK_TYPES.length;
+
+    static final int TYPE_BIT_DEFAULT = 1 << 0;
+    static final int TYPE_BIT_DUN = 1 << 3;
+    static final int TYPE_BIT_HIPRI = 1 << 4;
+    static final int TYPE_BIT_EMERGENCY = 1 << 9;
+    /** Set for APN_TYPE_ALL, which handles every type. */
+    static final int TYPE_BIT_ALL = 1 << 30;
+    /** Set for any type not in BITMASK_TYPES; such types are compared as strings. */
+    static final int TYPE_BIT_OTHER = 1 << 31;
 
     public final String carrier;
     public final String apn;
@@ -46,6 +86,10 @@ public class ApnSetting {
     public final String password;
     public final int authType;
     public String[] types;
+
+    // types as a bitmask, and the array it was computed from, since types is not final
+    private int mTypesBitmask;
+    private String[] mBitmaskTypes;
     public final int id;
     public final String numeric;
     public final String protocol;
@@ -72,6 +116,11 @@ public class ApnSetting {
     public final int waitTime;
     public final int maxConnsTime;
 
+    // toString(), and the types and profileId it was built from, as neither is final
+    private String mString;
+    private String[] mStringTypes;
+    private int mStringProfileId;
+
     /**
       * MVNO match type. Possible values:
       *   "spn": Service provider name.
@@ -126,6 +175,7 @@ public class ApnSetting {
         for (int i = 0; i < types.length; i++) {
             this.types[i] = types[i].toLowerCase(Locale.ROOT);
         }
+        getTypesBitmask();
         this.protocol = protocol;
         this.roamingProtocol = roamingProtocol;
         this.carrierEnabled = carrierEnabled;
@@ -173,18 +223,17 @@ public class ApnSetting {
         if (data == null) return null;
 
         int version;
-        // matches() operates on the whole string, so append .* to the regex.
-        if (data.matches(V3_FORMAT_REGEX + ".*")) {
+        if (data.startsWith(V3_FORMAT_PREFIX)) {
             version = 3;
-            data = data.replaceFirst(V3_FORMAT_REGEX, "");
-        } else if (data.matches(V2_FORMAT_REGEX + ".*")) {
+            data = data.substring(skipWhitespace(data, V3_FORMAT_PREFIX.length()));
+        } else if (data.startsWith(V2_FORMAT_PREFIX)) {
             version = 2;
-            data = data.replaceFirst(V2_FORMAT_REGEX, "");
+            data = data.substring(skipWhitespace(data, V2_FORMAT_PREFIX.length()));
         } else {
             version = 1;
         }
 
-        String[] a = data.split("\\s*,\\s*");
+        String[] a = split(data, ',');
         if (a.length < 14) {
             return null;
         }
@@ -219,7 +268,7 @@ public class ApnSetting {
             if (a.length < 18) {
                 return null;
             }
-            typeArray = a[13].split("\\s*\\|\\s*");
+            typeArray = split(a[13], '|');
             protocol = a[14];
             roamingProtocol = a[15];
             carrierEnabled = Boolean.parseBoolean(a[16]);
@@ -270,7 +319,7 @@ public class ApnSetting {
         if (TextUtils.isEmpty(data)) {
             return retVal;
         }
-        String[] apnStrings = data.split("\\s*;\\s*");
+        String[] apnStrings = split(data, ';');
         for (String apnString : apnStrings) {
             ApnSetting apn = fromString(apnString);
             if (apn != null) {
@@ -280,8 +329,245 @@ public class ApnSetting {
         return retVal;
     }
 
+    private static boolean isWhitespace(char c) {
+        // The characters a regex matches with \s
+        return c == ' ' || c == '\t' || c == '\n' || c == '\013' || c == '\f' || c == '\r';
+    }
+
+    private static int skipWhitespace(String data, int index) {
+        while (index < data.length() && isWhitespace(data.charAt(index))) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Splits data around separator and the whitespace next to it, as String.split() with
+     * the regex \s*&lt;separator&gt;\s* does, trailing empty strings dropped, but without
+     * compiling a regex.
+     */
+    static String[] split(String data, char separator) {
+        int count = 1;
+        for (int i = 0; i < data.length(); i++) {
+            if (data.charAt(i) == separator) count++;
+        }
+        if (count == 1) {
+            return new String[] { data };
+        }
+
+        String[] parts = new String[count];
+        int n = 0;
+        int start = 0;
+        for (int i = 0; i < data.length(); i++) {
+            if (data.charAt(i) != separator) continue;
+            int end = i;
+            while (end > start && isWhitespace(data.charAt(end - 1))) {
+                end--;
+            }
+            parts[n++] = data.substring(start, end);
+            start = skipWhitespace(data, i + 1);
+            i = start - 1;
+        }
+        parts[n++] = data.substring(start);
+
+        while (n > 0 && parts[n - 1].length() == 0) {
+            n--;
+        }
+        return n == parts.length ? parts : Arrays.copyOf(parts, n);
+    }
+
+    /**
+     * Serializes this APN in a compact binary format read by {@link #fromByteArray}.
+     * Unlike toString(), the user and password are kept. Only the ApnSetting fields are
+     * written, so subclasses read back as a plain ApnSetting.
+     */
+    public byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(BINARY_FORMAT_VERSION);
+            writeTo(out);
+        } catch (IOException e) {
+            // Not thrown by a ByteArrayOutputStream
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Serializes a list of APNs in the binary format read by {@link #arrayFromByteArray}.
+     */
+    public static byte[] arrayToByteArray(List<ApnSetting> apns) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128 * apns.size() + 8);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(BINARY_FORMAT_VERSION);
+            out.writeInt(apns.size());
+            for (ApnSetting apn : apns) {
+                apn.writeTo(out);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Creates an ApnSetting from bytes written by {@link #toByteArray}.
+     *
+     * @return the APN, or null if the bytes are not a whole APN of the current format
+     */
+    public static ApnSetting fromByteArray(byte[] data) {
+        if (data == null) return null;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            if (in.readByte() != BINARY_FORMAT_VERSION) {
+                return null;
+            }
+            ApnSetting apn = readFrom(in);
+            return in.available() == 0 ? apn : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates a list of ApnSettings from bytes written by {@link #arrayToByteArray}.
+     *
+     * @return the APNs, or an empty list if the bytes are not a whole list of the current
+     *         format
+     */
+    public static List<ApnSetting> arrayFromByteArray(byte[] data) {
+        List<ApnSetting> retVal = new ArrayList<ApnSetting>();
+        if (data == null) return retVal;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            if (in.readByte() != BINARY_FORMAT_VERSION) {
+                return retVal;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                retVal.add(readFrom(in));
+            }
+            if (in.available() == 0) {
+                return retVal;
+            }
+        } catch (IOException e) {
+        }
+        retVal.clear();
+        return retVal;
+    }
+
+    private void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(id);
+        writeString(out, numeric);
+        writeString(out, carrier);
+        writeString(out, apn);
+        writeString(out, proxy);
+        writeString(out, port);
+        writeString(out, mmsc);
+        writeString(out, mmsProxy);
+        writeString(out, mmsPort);
+        writeString(out, user);
+        writeString(out, password);
+        out.writeInt(authType);
+        // Known types as their index, so they take a byte each
+        String[] t = types;
+        out.writeShort(t.length);
+        for (int i = 0; i < t.length; i++) {
+            int typeBit = getTypeBit(t[i]);
+            if (typeBit == TYPE_BIT_ALL) {
+                out.writeByte(TYPE_CODE_ALL);
+            } else if (typeBit == TYPE_BIT_OTHER || !t[i].equals(getTypeForBitIndex(
+                    Integer.numberOfTrailingZeros(typeBit)))) {
+                out.writeByte(TYPE_CODE_STRING);
+                out.writeUTF(t[i]);
+            } else {
+                out.writeByte(Integer.numberOfTrailingZeros(typeBit));
+            }
+        }
+        writeString(out, protocol);
+        writeString(out, roamingProtocol);
+        out.writeBoolean(carrierEnabled);
+        out.writeInt(bearer);
+        out.writeInt(profileId);
+        out.writeBoolean(modemCognitive);
+        out.writeInt(maxConns);
+        out.writeInt(waitTime);
+        out.writeInt(maxConnsTime);
+        out.writeInt(mtu);
+        writeString(out, mvnoType);
+        writeString(out, mvnoMatchData);
+    }
+
+    private static ApnSetting readFrom(DataInputStream in) throws IOException {
+        int id = in.readInt();
+        String numeric = readString(in);
+        String carrier = readString(in);
+        String apn = readString(in);
+        String proxy = readString(in);
+        String port = readString(in);
+        String mmsc = readString(in);
+        String mmsProxy = readString(in);
+        String mmsPort = readString(in);
+        String user = readString(in);
+        String password = readString(in);
+        int authType = in.readInt();
+        String[] types = new String[in.readUnsignedShort()];
+        for (int i = 0; i < types.length; i++) {
+            int code = in.readUnsignedByte();
+            if (code == TYPE_CODE_ALL) {
+                types[i] = PhoneConstants.APN_TYPE_ALL;
+            } else if (code == TYPE_CODE_STRING) {
+                types[i] = in.readUTF();
+            } else if (code < NUM_TYPE_BITS) {
+                types[i] = getTypeForBitIndex(code);
+            } else {
+                throw new IOException("Unknown APN type code " + code);
+            }
+        }
+        String protocol = readString(in);
+        String roamingProtocol = readString(in);
+        boolean carrierEnabled = in.readBoolean();
+        int bearer = in.readInt();
+        int profileId = in.readInt();
+        boolean modemCognitive = in.readBoolean();
+        int maxConns = in.readInt();
+        int waitTime = in.readInt();
+        int maxConnsTime = in.readInt();
+        int mtu = in.readInt();
+        String mvnoType = readString(in);
+        String mvnoMatchData = readString(in);
+        return new ApnSetting(id, numeric, carrier, apn, proxy, port, mmsc, mmsProxy, mmsPort,
+                user, password, authType, types, protocol, roamingProtocol, carrierEnabled,
+                bearer, profileId, modemCognitive, maxConns, waitTime, maxConnsTime, mtu,
+                mvnoType, mvnoMatchData);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
     @Override
     public String toString() {
+        String[] t = types;
+        int p = profileId;
+        if (mString == null || t != mStringTypes || p != mStringProfileId) {
+            mString = buildString(t, p);
+            mStringTypes = t;
+            mStringProfileId = p;
+        }
+        return mString;
+    }
+
+    private String buildString(String[] types, int profileId) {
         StringBuilder sb = new StringBuilder();
         sb.append("[ApnSettingV3] ")
         .append(carrier)
@@ -322,7 +608,61 @@ public class ApnSetting {
         return !TextUtils.isEmpty(mvnoType) && !TextUtils.isEmpty(mvnoMatchData);
     }
 
+    /**
+     * Returns the bit of an APN type in {@link #getTypesBitmask}, TYPE_BIT_ALL for
+     * APN_TYPE_ALL, or TYPE_BIT_OTHER for any other type. Case insensitive.
+     */
+    static int getTypeBit(String type) {
+        for (int i = 0; i < NUM_TYPE_BITS; i++) {
+            if (BITMASK_TYPES[i].equals(type)) return 1 << i;
+        }
+        if (PhoneConstants.APN_TYPE_ALL.equals(type)) return TYPE_BIT_ALL;
+        for (int i = 0; i < NUM_TYPE_BITS; i++) {
+            if (BITMASK_TYPES[i].equalsIgnoreCase(type)) return 1 << i;
+        }
+        return TYPE_BIT_OTHER;
+    }
+
+    /**
+     * Returns the APN type whose bit is 1 << index, for index below NUM_TYPE_BITS.
+     */
+    static String getTypeForBitIndex(int index) {
+        return BITMASK_TYPES[index];
+    }
+
+    /**
+     * Returns the types of this APN as a bitmask of getTypeBit() values.
+     */
+    int getTypesBitmask() {
+        String[] t = types;
+        if (t != mBitmaskTypes) {
+            int mask = 0;
+            for (int i = 0; i < t.length; i++) {
+                mask |= getTypeBit(t[i]);
+            }
+            mTypesBitmask = mask;
+            mBitmaskTypes = t;
+        }
+        return mTypesBitmask;
+    }
+
+    /**
+     * Returns whether this APN handles the type with the given getTypeBit() value, which
+     * must not be TYPE_BIT_OTHER.
+     */
+    boolean canHandleTypeBit(int typeBit) {
+        if (!carrierEnabled) return false;
+        int mask = getTypesBitmask();
+        // DEFAULT handles all, and HIPRI is handled by DEFAULT
+        return (mask & (typeBit | TYPE_BIT_ALL)) != 0
+                || (typeBit == TYPE_BIT_HIPRI && (mask & TYPE_BIT_DEFAULT) != 0);
+    }
+
     public boolean canHandleType(String type) {
+        int typeBit = getTypeBit(type);
+        if (typeBit != TYPE_BIT_OTHER) {
+            return canHandleTypeBit(typeBit);
+        }
         if (!carrierEnabled) return false;
         for (String t : types) {
             // DEFAULT handles all, and HIPRI is handled by DEFAULT
@@ -336,12 +676,20 @@ public class ApnSetting {
         return false;
     }
 
-    // TODO - if we have this function we should also have hashCode.
-    // Also should handle changes in type order and perhaps case-insensitivity
+    // TODO - Should handle changes in type order and perhaps case-insensitivity
     @Override
     public boolean equals(Object o) {
         if (o instanceof ApnSetting == false) return false;
-        return (toString().equals(o.toString()));
+        if (o == this) return true;
+        String s = toString();
+        String other = o.toString();
+        // String caches its hash, so this usually rejects without comparing characters
+        return s.hashCode() == other.hashCode() && s.equals(other);
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
     }
 
     public ApnProfileType getApnProfileType() {
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The APNs able to serve each APN type, built once from DcTracker's APN list so that
+ * finding the waiting APNs for a data setup does not check every APN's types again.
+ *
+ * Candidates are kept per type in list order, and narrowed to a radio technology (APNs
+ * for any bearer, or for that one) the first time that combination is asked for. APN
+ * types without a bit of their own fall back to scanning the list.
+ */
+public final class ApnTypeIndex {
+    private final List<ApnSetting> mApns;
+    private final int mSize;
+
+    // Indexed by type bit index
+    private final ApnSetting[][] mByType = new ApnSetting[ApnSetting.NUM_TYPE_BITS][];
+
+    // (type bit index << 8 | radio technology) -> candidates
+    private final SparseArray<ApnSetting[]> mByTypeAndBearer = new SparseArray<ApnSetting[]>();
+
+    private static final ApnSetting[] EMPTY = new ApnSetting[0];
+
+    public ApnTypeIndex(List<ApnSetting> apns) {
+        mApns = apns;
+        mSize = apns.size();
+        ArrayList<ApnSetting> candidates = new ArrayList<ApnSetting>(mSize);
+        for (int i = 0; i < ApnSetting.NUM_TYPE_BITS; i++) {
+            candidates.clear();
+            for (int j = 0; j < mSize; j++) {
+                ApnSetting apn = apns.get(j);
+                if (apn.canHandleTypeBit(1 << i)) {
+                    candidates.add(apn);
+                }
+            }
+            mByType[i] = candidates.isEmpty() ? EMPTY
+                    : candidates.toArray(new ApnSetting[candidates.size()]);
+        }
+    }
+
+    /**
+     * Returns whether this index was built from apns as it is now. APN lists are replaced
+     * or appended to rather than edited in place, so the size is enough to tell.
+     */
+    public boolean isFor(List<ApnSetting> apns) {
+        return apns == mApns && apns.size() == mSize;
+    }
+
+    /**
+     * Returns a new list of the APNs, in list order, that can handle apnType on radioTech.
+     */
+    public ArrayList<ApnSetting> getCandidates(String apnType, int radioTech) {
+        int typeBit = ApnSetting.getTypeBit(apnType);
+        if (typeBit == ApnSetting.TYPE_BIT_OTHER || typeBit == ApnSetting.TYPE_BIT_ALL) {
+            ArrayList<ApnSetting> result = new ArrayList<ApnSetting>();
+            for (int i = 0; i < mSize; i++) {
+                ApnSetting apn = mApns.get(i);
+                if (apn.canHandleType(apnType) && (apn.bearer == 0 || apn.bearer == radioTech)) {
+                    result.add(apn);
+                }
+            }
+            return result;
+        }
+
+        int typeIndex = Integer.numberOfTrailingZeros(typeBit);
+        int key = (typeIndex << 8) | (radioTech & 0xff);
+        ApnSetting[] candidates = mByTypeAndBearer.get(key);
+        if (candidates == null) {
+            ApnSetting[] forType = mByType[typeIndex];
+            int count = 0;
+            ApnSetting[] matching = new ApnSetting[forType.length];
+            for (ApnSetting apn : forType) {
+                if (apn.bearer == 0 || apn.bearer == radioTech) {
+                    matching[count++] = apn;
+                }
+            }
+            candidates = count == matching.length ? matching : Arrays.copyOf(matching, count);
+            mByTypeAndBearer.put(key, candidates);
+        }
+
+        return new ArrayList<ApnSetting>(Arrays.asList(candidates));
+    }
+}
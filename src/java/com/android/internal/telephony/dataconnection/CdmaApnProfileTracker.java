@@ -30,6 +30,7 @@
 
 package com.android.internal.telephony.dataconnection;
 
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.os.AsyncResult;
 import android.os.Handler;
@@ -37,12 +38,15 @@ import android.os.Message;
 import android.os.Registrant;
 import android.os.RegistrantList;
 import android.os.SystemProperties;
+import android.preference.PreferenceManager;
 import android.provider.Telephony;
 import android.text.TextUtils;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 
 import com.android.internal.telephony.cdma.CDMAPhone;
 import com.android.internal.telephony.cdma.CdmaSubscriptionSourceManager;
@@ -63,9 +67,28 @@ public final class CdmaApnProfileTracker extends Handler {
     private CdmaSubscriptionSourceManager mCdmaSsm;
 
     /**
-     * mApnProfilesList holds all the Apn profiles for cdma
+     * mApnProfilesList holds all the Apn profiles for cdma. It is unmodifiable and
+     * replaced as a whole, so getOmhApnProfilesList can return it without copying.
      */
-    private ArrayList<ApnSetting> mApnProfilesList = new ArrayList<ApnSetting>();
+    private List<ApnSetting> mApnProfilesList = Collections.emptyList();
+
+    /*
+     * Preference keys, followed by the phone ID, of the ICCID of the RUIM the profiles
+     * were read from and of the profiles, so they are read from the modem only once per
+     * card.
+     */
+    private static final String OMH_RUIM_ID_KEY = "omh_profiles_ruim_id_key";
+    private static final String OMH_PROFILES_KEY = "omh_profiles_key";
+
+    // ICCID of the RUIM of mApnProfilesList, null if not known
+    private String mApnProfilesRuimId;
+
+    // ICCID of the RUIM when the modem read started, and whether any of its requests failed
+    private String mReadingRuimId;
+    private boolean mOmhReadFailed;
+
+    private int mModemReads;
+    private int mCacheHits;
 
     private static final String[] mSupportedApnTypes = {
             PhoneConstants.APN_TYPE_DEFAULT,
@@ -128,12 +151,78 @@ public final class CdmaApnProfileTracker extends Handler {
      * Load the CDMA profiles
      */
     void loadProfiles() {
-        log("loadProfiles...");
-        mApnProfilesList.clear();
+        String ruimId = mPhone.getIccSerialNumber();
+        log("loadProfiles... ruimIdKnown=" + !TextUtils.isEmpty(ruimId));
+
+        if (!TextUtils.isEmpty(ruimId)) {
+            if (ruimId.equals(mApnProfilesRuimId)) {
+                log("OMH: profiles of this RUIM already loaded");
+                mCacheHits++;
+                mModemApnProfileRegistrants.notifyRegistrants();
+                return;
+            }
+            List<ApnSetting> profiles = restoreProfiles(ruimId);
+            if (profiles != null) {
+                log("OMH: restored " + profiles.size() + " profiles of this RUIM");
+                mApnProfilesList = profiles;
+                mApnProfilesRuimId = ruimId;
+                mCacheHits++;
+                mModemApnProfileRegistrants.notifyRegistrants();
+                return;
+            }
+        }
 
+        mApnProfilesList = Collections.emptyList();
+        mApnProfilesRuimId = null;
         readApnProfilesFromModem();
     }
 
+    /*
+     * Saves the profiles read from the RUIM ruimId.
+     */
+    private void saveProfiles(String ruimId, List<ApnSetting> profiles) {
+        StringBuilder sb = new StringBuilder();
+        for (ApnSetting apn : profiles) {
+            if (sb.length() > 0) {
+                sb.append(';');
+            }
+            sb.append(((ApnProfileOmh) apn).toCacheString());
+        }
+        SharedPreferences.Editor editor =
+                PreferenceManager.getDefaultSharedPreferences(mPhone.getContext()).edit();
+        editor.putString(OMH_RUIM_ID_KEY + mPhone.getPhoneId(), ruimId);
+        editor.putString(OMH_PROFILES_KEY + mPhone.getPhoneId(), sb.toString());
+        editor.apply();
+    }
+
+    /*
+     * Returns the saved profiles of the RUIM ruimId, or null if there are none.
+     */
+    private List<ApnSetting> restoreProfiles(String ruimId) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(
+                mPhone.getContext());
+        if (!ruimId.equals(sp.getString(OMH_RUIM_ID_KEY + mPhone.getPhoneId(), null))) {
+            return null;
+        }
+        String data = sp.getString(OMH_PROFILES_KEY + mPhone.getPhoneId(), null);
+        if (data == null) {
+            return null;
+        }
+
+        ArrayList<ApnSetting> profiles = new ArrayList<ApnSetting>();
+        if (!data.isEmpty()) {
+            for (String entry : data.split(";")) {
+                ApnProfileOmh apn = ApnProfileOmh.fromCacheString(entry);
+                if (apn == null) {
+                    loge("OMH: ignoring malformed saved profile " + entry);
+                    return null;
+                }
+                profiles.add(apn);
+            }
+        }
+        return Collections.unmodifiableList(profiles);
+    }
+
 
     /**
      * @param types comma delimited list of data service types
@@ -201,8 +290,11 @@ public final class CdmaApnProfileTracker extends Handler {
     private void onReadApnProfilesFromModem() {
         log("OMH: onReadApnProfilesFromModem()");
         mOmhReadProfileContext++;
+        mModemReads++;
 
         mOmhReadProfileCount = 0; // Reset the count and list(s)
+        mReadingRuimId = mPhone.getIccSerialNumber();
+        mOmhReadFailed = false;
         /* Clear out the modem profiles lists (main and temp) which were read/saved */
         mTempOmhApnProfilesList.clear();
         mOmhServicePriorityMap.clear();
@@ -230,16 +322,17 @@ public final class CdmaApnProfileTracker extends Handler {
             return;
         }
 
+        // ApnProfile list from the modem for a given SERVICE_TYPE. These may
+        // be from RUIM in case of OMH
+        ArrayList<ApnSetting> dataProfileListModem = null;
         if (ar.exception != null) {
+            // Still complete the read with the other service types, but do not save it
             log("OMH: Exception in onGetDataCallProfileDone:" + ar.exception);
-            mOmhReadProfileCount--;
-            return;
+            mOmhReadFailed = true;
+        } else {
+            dataProfileListModem = (ArrayList<ApnSetting>)ar.result;
         }
 
-        // ApnProfile list from the modem for a given SERVICE_TYPE. These may
-        // be from RUIM in case of OMH
-        ArrayList<ApnSetting> dataProfileListModem = (ArrayList<ApnSetting>)ar.result;
-
         ApnProfileTypeModem modemProfile = (ApnProfileTypeModem)ar.userObj;
 
         mOmhReadProfileCount--;
@@ -288,7 +381,12 @@ public final class CdmaApnProfileTracker extends Handler {
         if (mOmhReadProfileCount == 0) {
             log("OMH: Modem omh profile read complete.");
             addServiceTypeToUnSpecified();
-            mApnProfilesList.addAll(mTempOmhApnProfilesList);
+            mApnProfilesList = Collections.unmodifiableList(
+                    new ArrayList<ApnSetting>(mTempOmhApnProfilesList));
+            if (!mOmhReadFailed && !TextUtils.isEmpty(mReadingRuimId)) {
+                mApnProfilesRuimId = mReadingRuimId;
+                saveProfiles(mReadingRuimId, mApnProfilesList);
+            }
             mModemApnProfileRegistrants.notifyRegistrants();
         }
 
@@ -325,8 +423,11 @@ public final class CdmaApnProfileTracker extends Handler {
         return profile;
     }
 
-    public ArrayList<ApnSetting> getOmhApnProfilesList() {
-        log("getOmhApnProfilesList:" + mApnProfilesList);
+    /**
+     * Returns the profiles; the list is unmodifiable and shared.
+     */
+    public List<ApnSetting> getOmhApnProfilesList() {
+        log("getOmhApnProfilesList: size=" + mApnProfilesList.size());
         return mApnProfilesList;
     }
 
@@ -403,6 +504,13 @@ public final class CdmaApnProfileTracker extends Handler {
         return false;
     }
 
+    @Override
+    public String toString() {
+        return "CdmaApnProfileTracker{profiles=" + mApnProfilesList.size()
+                + " ruimIdKnown=" + (mApnProfilesRuimId != null)
+                + " modemReads=" + mModemReads + " cacheHits=" + mCacheHits + "}";
+    }
+
     protected void log(String s) {
         Log.d(LOG_TAG, "[CdmaApnProfileTracker] " + s);
     }
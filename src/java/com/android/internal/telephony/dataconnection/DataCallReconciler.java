@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import java.util.Arrays;
+
+/**
+ * Tells DcController which entries of a data call list have changed since the previous
+ * list, by cid, so that unchanged active calls need not have their link properties
+ * rebuilt and compared. Modems resend the whole list on many events, handovers in
+ * particular, usually with nothing changed.
+ *
+ * Each response is reduced to a 64 bit fingerprint of all its fields. Between
+ * {@link #begin} and {@link #end} each response of the list is passed to
+ * {@link #reconcile}; at {@link #end} the cids that were not in the list are dropped.
+ * Storage is kept in arrays that only grow, so a list does not allocate.
+ *
+ * Not thread safe; used from DcController's handler thread.
+ */
+final class DataCallReconciler {
+    /** The cid was not in the previous list, or was forgotten since. */
+    static final int ADDED = 0;
+    /** The cid was in the previous list with different contents. */
+    static final int CHANGED = 1;
+    /** The cid was in the previous list with the same contents. */
+    static final int UNCHANGED = 2;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private int[] mCids = new int[4];
+    private long[] mFingerprints = new long[4];
+    private boolean[] mSeen = new boolean[4];
+    private int mSize;
+
+    private boolean mEventChanged;
+
+    private int mEvents;
+    private int mNoOpEvents;
+    private int mResponses;
+    private int mAdded;
+    private int mChanged;
+    private int mUnchanged;
+    private int mRemoved;
+
+    /**
+     * Starts reconciling a new data call list.
+     */
+    void begin() {
+        Arrays.fill(mSeen, 0, mSize, false);
+        mEventChanged = false;
+        mEvents++;
+    }
+
+    /**
+     * Records response as the current state of its cid.
+     *
+     * @return {@link #ADDED}, {@link #CHANGED} or {@link #UNCHANGED}
+     */
+    int reconcile(DataCallResponse response) {
+        long fingerprint = fingerprint(response);
+        mResponses++;
+        int i = indexOf(response.cid);
+        if (i < 0) {
+            i = append(response.cid);
+            mFingerprints[i] = fingerprint;
+            mSeen[i] = true;
+            mAdded++;
+            mEventChanged = true;
+            return ADDED;
+        }
+        mSeen[i] = true;
+        if (mFingerprints[i] == fingerprint) {
+            mUnchanged++;
+            return UNCHANGED;
+        }
+        mFingerprints[i] = fingerprint;
+        mChanged++;
+        mEventChanged = true;
+        return CHANGED;
+    }
+
+    /**
+     * Ends reconciling a data call list, dropping the cids that were not in it.
+     *
+     * @return the number of cids dropped
+     */
+    int end() {
+        int removed = 0;
+        for (int i = 0; i < mSize; ) {
+            if (mSeen[i]) {
+                i++;
+            } else {
+                removeAt(i);
+                removed++;
+            }
+        }
+        mRemoved += removed;
+        if (!mEventChanged && removed == 0) {
+            mNoOpEvents++;
+        }
+        return removed;
+    }
+
+    /**
+     * Forgets what was last seen for cid, so that its next response is reported as
+     * {@link #ADDED}. Used when the data connection with that cid is set up or torn down,
+     * as its link properties then no longer follow the data call list.
+     */
+    void forget(int cid) {
+        int i = indexOf(cid);
+        if (i >= 0) {
+            removeAt(i);
+        }
+    }
+
+    /**
+     * Returns a fingerprint of all the fields of response.
+     */
+    static long fingerprint(DataCallResponse response) {
+        long h = FNV_OFFSET_BASIS;
+        h = mix(h, response.version);
+        h = mix(h, response.status);
+        h = mix(h, response.cid);
+        h = mix(h, response.active);
+        h = mix(h, response.suggestedRetryTime);
+        h = mix(h, response.mtu);
+        h = mix(h, response.type);
+        h = mix(h, response.ifname);
+        h = mix(h, response.addresses);
+        h = mix(h, response.dnses);
+        h = mix(h, response.gateways);
+        h = mix(h, response.pcscf);
+        return h;
+    }
+
+    private static long mix(long h, int value) {
+        for (int shift = 0; shift < 32; shift += 8) {
+            h = (h ^ ((value >>> shift) & 0xff)) * FNV_PRIME;
+        }
+        return h;
+    }
+
+    private static long mix(long h, String value) {
+        if (value == null) {
+            return mix(h, -1);
+        }
+        int length = value.length();
+        h = mix(h, length);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            h = (h ^ (c & 0xff)) * FNV_PRIME;
+            h = (h ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return h;
+    }
+
+    private static long mix(long h, String[] values) {
+        if (values == null) {
+            return mix(h, -1);
+        }
+        h = mix(h, values.length);
+        for (String value : values) {
+            h = mix(h, value);
+        }
+        return h;
+    }
+
+    private int indexOf(int cid) {
+        for (int i = 0; i < mSize; i++) {
+            if (mCids[i] == cid) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int append(int cid) {
+        if (mSize == mCids.length) {
+            int capacity = mSize * 2;
+            mCids = Arrays.copyOf(mCids, capacity);
+            mFingerprints = Arrays.copyOf(mFingerprints, capacity);
+            mSeen = Arrays.copyOf(mSeen, capacity);
+        }
+        mCids[mSize] = cid;
+        return mSize++;
+    }
+
+    private void removeAt(int i) {
+        int last = --mSize;
+        mCids[i] = mCids[last];
+        mFingerprints[i] = mFingerprints[last];
+        mSeen[i] = mSeen[last];
+    }
+
+    @Override
+    public String toString() {
+        return "DataCallReconciler{cids=" + mSize + " events=" + mEvents
+                + " noOpEvents=" + mNoOpEvents + " responses=" + mResponses
+                + " added=" + mAdded + " changed=" + mChanged + " unchanged=" + mUnchanged
+                + " removed=" + mRemoved + "}";
+    }
+}
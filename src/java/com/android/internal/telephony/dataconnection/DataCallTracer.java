@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Traces data call setups, from DcTracker.trySetupData through DataConnection and the
+ * RIL_REQUEST_SETUP_DATA_CALL request to the connection being reported to DcTracker.
+ *
+ * Each setup gets a span ID, carried by its ApnContext, ConnectionParams and RILRequest,
+ * and every step it passes records an event of the span. Events go into a fixed size
+ * ring of primitive arrays, so recording does not allocate and the oldest events are
+ * overwritten. dump rebuilds the timeline of each setup still in the ring, and the
+ * percentiles of each phase over them.
+ *
+ * Thread safe; events come from the DcTracker, DataConnection and RIL threads.
+ */
+public final class DataCallTracer {
+    /** Number of events kept. */
+    static final int CAPACITY = 512;
+    /** Number of setup timelines printed by dump. */
+    static final int MAX_DUMPED_SPANS = 10;
+
+    // Trace points, in the order a setup passes them
+    /** trySetupData first called for the ApnContext, arg is the phone ID. */
+    public static final int START = 0;
+    /** trySetupData found data not allowed, the span stays open. */
+    public static final int GATED = 1;
+    /** setupData asked a DataConnection to bring up, arg is the APN ID. */
+    public static final int SETUP_DATA = 2;
+    /** The DataConnection started connecting. */
+    public static final int DC_CONNECT = 3;
+    /** The setup request was written to the RIL socket, arg is the RIL serial. */
+    public static final int RIL_SENT = 4;
+    /** The RIL response was read, arg is the RIL error. */
+    public static final int RIL_RESPONSE = 5;
+    /** The DataConnection handled the response. */
+    public static final int DC_SETUP_DONE = 6;
+    /** The LinkProperties of the response were applied. */
+    public static final int LINK_PROPERTIES = 7;
+    /** The DataConnection entered DcActiveState. */
+    public static final int DC_ACTIVE = 8;
+    /** DcTracker completed the setup, arg is 0 or the DcFailCause error code. */
+    public static final int CONNECTED = 9;
+    public static final int FAILED = 10;
+    /** The ApnContext was disabled or could not start a setup. */
+    public static final int CANCELLED = 11;
+    static final int NUM_POINTS = 12;
+
+    private static final String[] POINT_NAMES = {
+        "start", "gated", "setupData", "dcConnect", "rilSent", "rilResponse", "dcSetupDone",
+        "linkProperties", "dcActive", "connected", "failed", "cancelled",
+    };
+
+    // Phases reported by dump, each from the first point to the second
+    private static final int[][] PHASES = {
+        { START, SETUP_DATA },              // DcTracker gating
+        { SETUP_DATA, DC_CONNECT },         // DcAsyncChannel to DataConnection
+        { DC_CONNECT, RIL_SENT },           // RIL queue
+        { RIL_SENT, RIL_RESPONSE },         // modem
+        { RIL_RESPONSE, DC_SETUP_DONE },    // back to DataConnection
+        { DC_SETUP_DONE, LINK_PROPERTIES }, // LinkProperties
+        { LINK_PROPERTIES, DC_ACTIVE },     // DcActiveState, network agent
+        { DC_ACTIVE, CONNECTED },           // back to DcTracker
+        { START, CONNECTED },               // total
+    };
+    private static final String[] PHASE_NAMES = {
+        "gating", "toDc", "rilQueue", "modem", "rilToDc", "linkProperties", "activate",
+        "toDct", "total",
+    };
+
+    private static DataCallTracer sInstance;
+
+    private final long[] mTimes = new long[CAPACITY];
+    private final int[] mSpans = new int[CAPACITY];
+    private final int[] mPoints = new int[CAPACITY];
+    private final int[] mArgs = new int[CAPACITY];
+    // The APN type of START events
+    private final String[] mTypes = new String[CAPACITY];
+    private int mNext;
+    private long mRecorded;
+    private int mLastSpan;
+
+    DataCallTracer() {
+    }
+
+    public static synchronized DataCallTracer getInstance() {
+        if (sInstance == null) {
+            sInstance = new DataCallTracer();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Starts a span for a setup of apnType.
+     *
+     * @return the ID of the span, never 0
+     */
+    public int startSpan(int phoneId, String apnType) {
+        return startSpan(SystemClock.elapsedRealtime(), phoneId, apnType);
+    }
+
+    synchronized int startSpan(long now, int phoneId, String apnType) {
+        mLastSpan++;
+        if (mLastSpan == 0) {
+            mLastSpan++;
+        }
+        mTypes[mNext] = apnType;
+        recordLocked(now, mLastSpan, START, phoneId);
+        return mLastSpan;
+    }
+
+    /**
+     * Records that the setup of span passed point. Does nothing for span 0, the span of
+     * requests that are not traced.
+     */
+    public void record(int span, int point, int arg) {
+        if (span != 0) {
+            record(SystemClock.elapsedRealtime(), span, point, arg);
+        }
+    }
+
+    synchronized void record(long now, int span, int point, int arg) {
+        mTypes[mNext] = null;
+        recordLocked(now, span, point, arg);
+    }
+
+    private void recordLocked(long now, int span, int point, int arg) {
+        mTimes[mNext] = now;
+        mSpans[mNext] = span;
+        mPoints[mNext] = point;
+        mArgs[mNext] = arg;
+        mNext = (mNext + 1) % CAPACITY;
+        mRecorded++;
+    }
+
+    /** The events of one span, rebuilt from the ring. */
+    static final class Timeline {
+        final int mSpan;
+        String mApnType;
+        int mPhoneId = -1;
+        int mGated;
+        final long[] mTimes = new long[NUM_POINTS];
+        final int[] mArgs = new int[NUM_POINTS];
+
+        Timeline(int span) {
+            mSpan = span;
+            Arrays.fill(mTimes, -1);
+        }
+
+        boolean isComplete() {
+            return mTimes[START] >= 0 && (mTimes[CONNECTED] >= 0 || mTimes[FAILED] >= 0
+                    || mTimes[CANCELLED] >= 0);
+        }
+
+        /**
+         * Returns the time from point from to point to, or -1 if the span did not pass both.
+         */
+        long getDuration(int from, int to) {
+            if (mTimes[from] < 0 || mTimes[to] < 0) {
+                return -1;
+            }
+            return mTimes[to] - mTimes[from];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("span=").append(mSpan).append(" type=").append(mApnType)
+                    .append(" phoneId=").append(mPhoneId);
+            if (mGated > 0) {
+                sb.append(" gated=").append(mGated);
+            }
+            for (int point = SETUP_DATA; point < NUM_POINTS; point++) {
+                if (mTimes[point] < 0) {
+                    continue;
+                }
+                sb.append(' ').append(POINT_NAMES[point]).append("=+");
+                sb.append(mTimes[START] < 0 ? -1 : mTimes[point] - mTimes[START]);
+                if (point == SETUP_DATA || (point >= RIL_SENT && point <= RIL_RESPONSE)
+                        || point == FAILED) {
+                    sb.append('(').append(mArgs[point]).append(')');
+                }
+            }
+            if (!isComplete()) {
+                sb.append(" open");
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Rebuilds the timelines of the spans in the ring, oldest first. Spans whose first
+     * events were overwritten are left out.
+     */
+    synchronized ArrayList<Timeline> getTimelines() {
+        ArrayList<Timeline> timelines = new ArrayList<Timeline>();
+        int count = (int) Math.min(mRecorded, CAPACITY);
+        int first = (mNext - count + CAPACITY) % CAPACITY;
+        for (int i = 0; i < count; i++) {
+            int index = (first + i) % CAPACITY;
+            int point = mPoints[index];
+            Timeline timeline = null;
+            for (int j = timelines.size() - 1; j >= 0; j--) {
+                if (timelines.get(j).mSpan == mSpans[index]) {
+                    timeline = timelines.get(j);
+                    break;
+                }
+            }
+            if (timeline == null) {
+                if (point != START) {
+                    continue;
+                }
+                timeline = new Timeline(mSpans[index]);
+                timelines.add(timeline);
+            }
+            if (point == START) {
+                timeline.mApnType = mTypes[index];
+                timeline.mPhoneId = mArgs[index];
+            } else if (point == GATED) {
+                timeline.mGated++;
+                continue;
+            }
+            // A setup is traced once, but keep the last of any repeated point
+            timeline.mTimes[point] = mTimes[index];
+            timeline.mArgs[point] = mArgs[index];
+        }
+        return timelines;
+    }
+
+    /**
+     * Returns the pth percentile of the sorted values, or -1 if there are none.
+     */
+    static long percentile(long[] sorted, int count, int p) {
+        if (count == 0) {
+            return -1;
+        }
+        int index = (int) Math.ceil(count * p / 100.0) - 1;
+        return sorted[Math.max(0, Math.min(index, count - 1))];
+    }
+
+    public void dump(PrintWriter pw) {
+        ArrayList<Timeline> timelines = getTimelines();
+        synchronized (this) {
+            pw.println(" DataCallTracer: recorded=" + mRecorded + " lastSpan=" + mLastSpan
+                    + " spansInRing=" + timelines.size());
+        }
+
+        long[] values = new long[timelines.size()];
+        for (int phase = 0; phase < PHASES.length; phase++) {
+            int count = 0;
+            for (Timeline timeline : timelines) {
+                if (timeline.mTimes[CONNECTED] < 0) {
+                    continue;
+                }
+                long duration = timeline.getDuration(PHASES[phase][0], PHASES[phase][1]);
+                if (duration >= 0) {
+                    values[count++] = duration;
+                }
+            }
+            Arrays.sort(values, 0, count);
+            pw.println("  " + PHASE_NAMES[phase] + ": n=" + count
+                    + " p50=" + percentile(values, count, 50)
+                    + " p90=" + percentile(values, count, 90)
+                    + " p99=" + percentile(values, count, 99)
+                    + " max=" + (count == 0 ? -1 : values[count - 1]));
+        }
+
+        int first = Math.max(0, timelines.size() - MAX_DUMPED_SPANS);
+        for (int i = first; i < timelines.size(); i++) {
+            pw.println("  " + timelines.get(i));
+        }
+    }
+}
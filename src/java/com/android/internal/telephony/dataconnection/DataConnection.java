@@ -128,6 +128,7 @@ public final class DataConnection extends StateMachine {
         int mRilRat;
         boolean mRetryWhenSSChange;
         Message mOnCompletedMsg;
+        int mTraceSpan;
 
         ConnectionParams(ApnContext apnContext, int initialMaxRetry, int profileId,
                 int rilRadioTechnology, boolean retryWhenSSChange, Message onCompletedMsg) {
@@ -143,7 +144,7 @@ public final class DataConnection extends StateMachine {
         public String toString() {
             return "{mTag=" + mTag + " mApnContext=" + mApnContext
                     + " mInitialMaxRetry=" + mInitialMaxRetry + " mProfileId=" + mProfileId
-                    + " mRat=" + mRilRat
+                    + " mRat=" + mRilRat + " mTraceSpan=" + mTraceSpan
                     + " mOnCompletedMsg=" + msgToString(mOnCompletedMsg) + "}";
         }
     }
@@ -420,7 +421,7 @@ public final class DataConnection extends StateMachine {
         mDcController = dcc;
         mId = id;
         mCid = -1;
-        mDcRetryAlarmController = new DcRetryAlarmController(mPhone, this);
+        mDcRetryAlarmController = new DcRetryAlarmController(mPhone, this, dcc);
         ServiceState ss = mPhone.getServiceState();
         mRilRat = ss.getRilDataRadioTechnology();
         mDataRegState = mPhone.getServiceState().getDataRegState();
@@ -507,6 +508,7 @@ public final class DataConnection extends StateMachine {
         if (DBG) log("onConnect: carrier='" + mApnSetting.carrier
                 + "' APN='" + mApnSetting.apn
                 + "' proxy='" + mApnSetting.proxy + "' port='" + mApnSetting.port + "'");
+        DataCallTracer.getInstance().record(cp.mTraceSpan, DataCallTracer.DC_CONNECT, 0);
 
         // Check if we should fake an error.
         if (mDcTesterFailBringUpAll.getDcFailBringUp().mCounter  > 0) {
@@ -552,6 +554,8 @@ public final class DataConnection extends StateMachine {
         // msg.obj will be returned in AsyncResult.userObj;
         Message msg = obtainMessage(EVENT_SETUP_DATA_CONNECTION_DONE, cp);
         msg.obj = cp;
+        // RIL traces the request under the span in arg1
+        msg.arg1 = cp.mTraceSpan;
 
         int authType = mApnSetting.authType;
         if (authType == -1) {
@@ -782,6 +786,7 @@ public final class DataConnection extends StateMachine {
         ConnectionParams cp = (ConnectionParams) ar.userObj;
         DataCallResponse.SetupResult result;
 
+        DataCallTracer.getInstance().record(cp.mTraceSpan, DataCallTracer.DC_SETUP_DONE, 0);
         if (cp.mTag != mTag) {
             if (DBG) {
                 log("onSetupConnectionCompleted stale cp.tag=" + cp.mTag + ", mtag=" + mTag);
@@ -814,6 +819,8 @@ public final class DataConnection extends StateMachine {
             mPcscfAddr = response.pcscf;
 
             result = updateLinkProperty(response).setupResult;
+            DataCallTracer.getInstance().record(cp.mTraceSpan, DataCallTracer.LINK_PROPERTIES,
+                    0);
         }
 
         return result;
@@ -1765,6 +1772,10 @@ public final class DataConnection extends StateMachine {
                     mPhone.getContext(),
                     "DcNetworkAgent" + mPhone.getSubId(), mNetworkInfo,
                     makeNetworkCapabilities(), mLinkProperties, 50);
+            if (mConnectionParams != null) {
+                DataCallTracer.getInstance().record(mConnectionParams.mTraceSpan,
+                        DataCallTracer.DC_ACTIVE, 0);
+            }
         }
 
         @Override
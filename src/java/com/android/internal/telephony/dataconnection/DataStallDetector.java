@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import java.io.PrintWriter;
+
+/**
+ * Keeps the tx/rx packet deltas of the last data stall polls, picks the delay of the next
+ * poll from them and records each stall from the first poll that saw packets sent with
+ * none received until packets are received again.
+ *
+ * The next poll is soon (the aggressive delay) while the caller suspects a stall or
+ * recovery is under way. Packets sent without any received only start a stall event;
+ * it takes recovery actions for it to speed up polling, and one without any is dropped
+ * after {@link #SUSPECT_IDLE_POLLS} idle polls, so an unanswered keepalive does not keep
+ * the device polling. Otherwise, with
+ * the screen on, polls back off from the aggressive delay while the window shows no
+ * traffic, but only up to {@link #SCREEN_ON_BACKOFF_LIMIT} times it, so a stall on a
+ * device in use is still found quickly; with the screen off they use the non-aggressive
+ * delay, backed off further once the whole window is idle, as there is nothing to detect
+ * a stall from and every poll wakes the device.
+ *
+ * Not thread safe; used from DcTracker's handler thread.
+ */
+public final class DataStallDetector {
+    /** Number of polls in the rolling window. */
+    static final int WINDOW = 8;
+    /** Number of stall events kept for dumpsys. */
+    static final int MAX_EVENTS = 16;
+    /** The screen off delay is multiplied by this at most when the window is idle. */
+    static final int IDLE_BACKOFF_LIMIT = 4;
+    /** The screen on delay is the aggressive one multiplied by this at most. */
+    static final int SCREEN_ON_BACKOFF_LIMIT = 2;
+    /** Idle polls after which a stall without recovery actions is dropped. */
+    static final int SUSPECT_IDLE_POLLS = 2;
+
+    /** A stall, from the first poll that saw no packets received to recovery. */
+    public static final class StallEvent {
+        /** When packets were first sent without any being received. */
+        public long mStart;
+        /** When the first recovery action was taken. */
+        public long mDetected = -1;
+        /** When packets were received again, or -1 if still stalled. */
+        public long mRecovered = -1;
+        /** Recovery actions taken, and the last one. */
+        public int mActions;
+        public int mLastAction = -1;
+        /** Polls, each an alarm waking the device, made during the stall. */
+        public int mPolls;
+        /** Packets sent without any received. */
+        public long mSentPackets;
+
+        public long getDurationMs() {
+            return mRecovered < 0 ? -1 : mRecovered - mStart;
+        }
+
+        @Override
+        public String toString() {
+            return "StallEvent{start=" + mStart
+                    + " detectedAfterMs=" + (mDetected < 0 ? -1 : mDetected - mStart)
+                    + " durationMs=" + getDurationMs() + " actions=" + mActions
+                    + " lastAction=" + mLastAction + " polls=" + mPolls
+                    + " sentPackets=" + mSentPackets + "}";
+        }
+    }
+
+    // Rolling window of poll results, oldest overwritten first
+    private final long[] mSent = new long[WINDOW];
+    private final long[] mReceived = new long[WINDOW];
+    private int mNext;
+    private int mCount;
+
+    // The stall in progress, if any, and the last ones
+    private StallEvent mStall;
+    private final StallEvent[] mEvents = new StallEvent[MAX_EVENTS];
+    private int mEventCount;
+
+    private int mPolls;
+    private int mIdlePolls;
+    private int mStalls;
+    private int mRecoveryActions;
+    private long mTotalStallMs;
+    private long mLastDelayMs;
+
+    /**
+     * Records the packets sent and received since the previous poll.
+     *
+     * @return the stall that ended with this poll, or null
+     */
+    public StallEvent onPoll(long now, long sent, long received) {
+        mSent[mNext] = sent;
+        mReceived[mNext] = received;
+        mNext = (mNext + 1) % WINDOW;
+        if (mCount < WINDOW) {
+            mCount++;
+        }
+        mPolls++;
+        if (sent == 0 && received == 0) {
+            mIdlePolls++;
+        }
+
+        if (received > 0) {
+            StallEvent ended = mStall;
+            mStall = null;
+            if (ended != null) {
+                ended.mPolls++;
+                ended.mRecovered = now;
+                if (ended.mActions > 0) {
+                    mTotalStallMs += ended.getDurationMs();
+                    addEvent(ended);
+                    return ended;
+                }
+            }
+        } else if (sent > 0) {
+            if (mStall == null) {
+                mStall = new StallEvent();
+                mStall.mStart = now;
+            }
+            mStall.mPolls++;
+            mStall.mSentPackets += sent;
+        } else if (mStall != null) {
+            mStall.mPolls++;
+            if (mStall.mActions == 0 && countIdlePolls() >= SUSPECT_IDLE_POLLS) {
+                // Nothing more was sent, so there is nothing to recover
+                mStall = null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records that recovery action was taken for the current stall.
+     */
+    public void onRecoveryAction(long now, int action) {
+        if (mStall == null) {
+            // Sent packets were counted before this detector saw them
+            mStall = new StallEvent();
+            mStall.mStart = now;
+        }
+        if (mStall.mActions == 0) {
+            mStall.mDetected = now;
+            mStalls++;
+        }
+        mStall.mActions++;
+        mStall.mLastAction = action;
+        mRecoveryActions++;
+    }
+
+    /**
+     * Forgets the poll window, for when data disconnects. A stall that recovery actions
+     * were taken for is kept, as those actions disconnect data themselves; it ends when
+     * packets are received again.
+     */
+    public void reset() {
+        mNext = 0;
+        mCount = 0;
+        if (mStall != null && mStall.mActions == 0) {
+            mStall = null;
+        }
+    }
+
+    /**
+     * Returns the delay before the next poll.
+     *
+     * @param screenOn whether the screen is on
+     * @param urgent whether a stall is suspected or a recovery action is pending
+     * @param aggressiveMs the delay to use while a stall is suspected, and with the screen
+     *        on while there is traffic
+     * @param nonAggressiveMs the delay to use with the screen off
+     */
+    public long getPollDelay(boolean screenOn, boolean urgent, long aggressiveMs,
+            long nonAggressiveMs) {
+        long delay;
+        int idle = countIdlePolls();
+        if (urgent || (mStall != null && mStall.mActions > 0)) {
+            delay = aggressiveMs;
+        } else if (screenOn) {
+            // Double the delay for every idle poll, up to the screen on limit, and never
+            // beyond the screen off delay
+            delay = aggressiveMs << Math.min(idle, 30);
+            delay = Math.min(delay, aggressiveMs * SCREEN_ON_BACKOFF_LIMIT);
+            delay = Math.max(aggressiveMs, Math.min(delay, nonAggressiveMs));
+        } else if (idle == WINDOW) {
+            delay = nonAggressiveMs * IDLE_BACKOFF_LIMIT;
+        } else {
+            delay = nonAggressiveMs;
+        }
+        mLastDelayMs = delay;
+        return delay;
+    }
+
+    /**
+     * Returns the number of the most recent polls in a row that saw no packets.
+     */
+    private int countIdlePolls() {
+        int idle = 0;
+        for (int i = 1; i <= mCount; i++) {
+            int index = (mNext - i + WINDOW) % WINDOW;
+            if (mSent[index] != 0 || mReceived[index] != 0) {
+                break;
+            }
+            idle++;
+        }
+        return idle;
+    }
+
+    private void addEvent(StallEvent event) {
+        mEvents[mEventCount % MAX_EVENTS] = event;
+        mEventCount++;
+    }
+
+    /**
+     * Returns the stall in progress, or null.
+     */
+    public StallEvent getCurrentStall() {
+        return mStall;
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println(" mDataStallDetector=" + this);
+        int first = Math.max(0, mEventCount - MAX_EVENTS);
+        for (int i = first; i < mEventCount; i++) {
+            pw.println("  " + mEvents[i % MAX_EVENTS]);
+        }
+        if (mStall != null) {
+            pw.println("  current " + mStall);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DataStallDetector{polls=" + mPolls + " idlePolls=" + mIdlePolls
+                + " stalls=" + mStalls + " recoveryActions=" + mRecoveryActions
+                + " avgStallMs=" + (mEventCount == 0 ? 0 : mTotalStallMs / mEventCount)
+                + " lastDelayMs=" + mLastDelayMs + "}";
+    }
+}
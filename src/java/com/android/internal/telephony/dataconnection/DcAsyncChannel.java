@@ -373,9 +373,10 @@ public class DcAsyncChannel extends AsyncChannel {
             log("bringUp: apnContext=" + apnContext + " initialMaxRetry=" + initialMaxRetry
                 + " onCompletedMsg=" + onCompletedMsg);
         }
-        sendMessage(DataConnection.EVENT_CONNECT,
-                    new ConnectionParams(apnContext, initialMaxRetry, profileId,
-                            rilRadioTechnology, retryWhenSSChange, onCompletedMsg));
+        ConnectionParams cp = new ConnectionParams(apnContext, initialMaxRetry, profileId,
+                rilRadioTechnology, retryWhenSSChange, onCompletedMsg);
+        cp.mTraceSpan = apnContext.getTraceSpan();
+        sendMessage(DataConnection.EVENT_CONNECT, cp);
     }
 
     /**
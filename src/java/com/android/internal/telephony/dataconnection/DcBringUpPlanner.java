@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Orders the data setups DcTracker starts for its connectable APN contexts, by APN type.
+ *
+ * A context either needs a data connection of its own, or can share the connection of an
+ * earlier context (its anchor) whose APN also handles its type. Setups needing their own
+ * connection are started together, as many at once as the modem has PDNs for; the rest
+ * wait for one of them to complete. A sharing context waits until its anchor's setup has
+ * been started, so it joins that connection instead of bringing up another one.
+ *
+ * Also times each burst of setups from planning until every planned setup has completed,
+ * for dumpsys. Not thread safe; used from DcTracker's handler thread.
+ */
+public final class DcBringUpPlanner {
+
+    /** A planned setup, and the type whose connection it shares if any. */
+    private static final class Setup {
+        final String mType;
+        final boolean mShares;
+        final String mAnchor;
+        boolean mDeferred;
+
+        Setup(String type, boolean shares, String anchor) {
+            mType = type;
+            mShares = shares;
+            mAnchor = anchor;
+        }
+    }
+
+    private int mMaxConcurrentSetups;
+
+    private final ArrayList<Setup> mQueued = new ArrayList<Setup>();
+    private final HashSet<String> mInFlight = new HashSet<String>();
+    private final HashSet<String> mPending = new HashSet<String>();
+
+    private long mBurstStart = -1;
+    private int mBurstSize;
+    private int mBurstConnected;
+
+    private int mBursts;
+    private int mDeferred;
+    private long mTotalBurstMs;
+    private long mMaxBurstMs;
+    private long mLastBurstMs;
+    private int mLastBurstSize;
+    private int mLastBurstConnected;
+
+    public DcBringUpPlanner(int maxConcurrentSetups) {
+        setMaxConcurrentSetups(maxConcurrentSetups);
+    }
+
+    /**
+     * Sets how many setups needing a connection of their own may be in progress at once.
+     */
+    public void setMaxConcurrentSetups(int maxConcurrentSetups) {
+        mMaxConcurrentSetups = Math.max(1, maxConcurrentSetups);
+    }
+
+    public int getMaxConcurrentSetups() {
+        return mMaxConcurrentSetups;
+    }
+
+    /**
+     * Plans a setup for apnType, to share the connection of anchorType, or of an existing
+     * connection when anchorType is apnType itself; anchorType is null if the setup needs
+     * a connection of its own. Types already planned are ignored.
+     *
+     * @return true if the setup was planned
+     */
+    public boolean add(String apnType, String anchorType, long now) {
+        if (mPending.contains(apnType)) {
+            return false;
+        }
+        if (mPending.isEmpty()) {
+            mBurstStart = now;
+            mBurstSize = 0;
+            mBurstConnected = 0;
+        }
+        mPending.add(apnType);
+        mBurstSize++;
+        mQueued.add(new Setup(apnType, anchorType != null,
+                apnType.equals(anchorType) ? null : anchorType));
+        return true;
+    }
+
+    /**
+     * Returns, in planning order, the types whose setups can be started now, and counts the
+     * ones needing their own connection as in progress.
+     */
+    public ArrayList<String> next() {
+        ArrayList<String> ready = new ArrayList<String>();
+        for (int i = 0; i < mQueued.size(); ) {
+            Setup setup = mQueued.get(i);
+            boolean start;
+            if (!setup.mShares) {
+                start = mInFlight.size() < mMaxConcurrentSetups;
+                if (start) {
+                    mInFlight.add(setup.mType);
+                }
+            } else {
+                start = setup.mAnchor == null || !isQueued(setup.mAnchor);
+            }
+            if (start) {
+                mQueued.remove(i);
+                ready.add(setup.mType);
+            } else {
+                if (!setup.mDeferred) {
+                    setup.mDeferred = true;
+                    mDeferred++;
+                }
+                i++;
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * Notes that the setup for apnType completed, or will not be made. Frees its place among
+     * the setups in progress and ends the burst once every planned setup has completed.
+     * Types that were not planned are ignored.
+     */
+    public void onSetupDone(String apnType, boolean connected, long now) {
+        mInFlight.remove(apnType);
+        if (!mPending.remove(apnType)) {
+            return;
+        }
+        removeQueued(apnType);
+        if (connected) {
+            mBurstConnected++;
+        }
+        if (mPending.isEmpty()) {
+            long ms = now - mBurstStart;
+            mBursts++;
+            mTotalBurstMs += ms;
+            mLastBurstMs = ms;
+            mMaxBurstMs = Math.max(mMaxBurstMs, ms);
+            mLastBurstSize = mBurstSize;
+            mLastBurstConnected = mBurstConnected;
+            mBurstStart = -1;
+        }
+    }
+
+    /**
+     * Returns whether apnType has a setup planned that has not completed.
+     */
+    public boolean isPending(String apnType) {
+        return mPending.contains(apnType);
+    }
+
+    /**
+     * Drops all planned setups and abandons the current burst, for when connections are
+     * torn down.
+     */
+    public void clear() {
+        mQueued.clear();
+        mInFlight.clear();
+        mPending.clear();
+        mBurstStart = -1;
+    }
+
+    private boolean isQueued(String apnType) {
+        for (int i = 0; i < mQueued.size(); i++) {
+            if (mQueued.get(i).mType.equals(apnType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void removeQueued(String apnType) {
+        for (int i = 0; i < mQueued.size(); i++) {
+            if (mQueued.get(i).mType.equals(apnType)) {
+                mQueued.remove(i);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DcBringUpPlanner{maxConcurrentSetups=" + mMaxConcurrentSetups
+                + " queued=" + mQueued.size() + " inFlight=" + mInFlight
+                + " pending=" + mPending + " bursts=" + mBursts + " deferred=" + mDeferred
+                + " lastBurst=" + mLastBurstConnected + "/" + mLastBurstSize
+                + " connected in " + mLastBurstMs + "ms"
+                + " avgBurstMs=" + (mBursts == 0 ? 0 : mTotalBurstMs / mBursts)
+                + " maxBurstMs=" + mMaxBurstMs + "}";
+    }
+}
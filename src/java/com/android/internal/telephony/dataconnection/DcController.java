@@ -16,6 +16,12 @@
 
 package com.android.internal.telephony.dataconnection;
 
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.net.LinkAddress;
 import android.net.NetworkUtils;
 import android.net.LinkProperties.CompareResult;
@@ -30,6 +36,7 @@ import android.telephony.Rlog;
 import com.android.internal.telephony.DctConstants;
 import com.android.internal.telephony.PhoneBase;
 import com.android.internal.telephony.PhoneConstants;
+import com.android.internal.telephony.RetryManager;
 import com.android.internal.telephony.dataconnection.DataConnection.UpdateLinkPropertyResult;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
@@ -57,6 +64,13 @@ class DcController extends StateMachine {
     private HashMap<Integer, DataConnection> mDcListActiveByCid =
             new HashMap<Integer, DataConnection>();
 
+    // Which cids of the data call list changed since the previous one
+    private final DataCallReconciler mReconciler = new DataCallReconciler();
+
+    // Used by onDataStateChanged and cleared after each list
+    private final ArrayList<DataConnection> mDcsToRetry = new ArrayList<DataConnection>();
+    private final ArrayList<ApnContext> mApnsToCleanup = new ArrayList<ApnContext>();
+
     /**
      * Constants for the data connection activity:
      * physical link down/up
@@ -73,6 +87,23 @@ class DcController extends StateMachine {
 
     private DccDefaultState mDccDefaultState = new DccDefaultState();
 
+    // Retries of all the DataConnections, fired from one alarm
+    private final DcRetryAlarmBatcher mRetryAlarmBatcher = new DcRetryAlarmBatcher();
+    private AlarmManager mAlarmManager;
+    private String mActionRetry;
+    private PendingIntent mRetryIntent;
+    private long mRetryAlarmTime = -1;
+
+    private BroadcastReceiver mRetryAlarmReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (DBG) log("onReceive: action=" + intent.getAction());
+            mRetryAlarmTime = -1;
+            mRetryAlarmBatcher.fire(SystemClock.elapsedRealtime());
+            updateRetryAlarm();
+        }
+    };
+
     /**
      * Constructor.
      *
@@ -88,6 +119,15 @@ class DcController extends StateMachine {
         log("E ctor");
         mPhone = phone;
         mDct = dct;
+
+        mAlarmManager = (AlarmManager) phone.getContext().getSystemService(Context.ALARM_SERVICE);
+        mActionRetry = getClass().getCanonicalName() + "." + name + "." + phone.getPhoneId()
+                + ".action_retry";
+        mRetryIntent = PendingIntent.getBroadcast(phone.getContext(), 0,
+                new Intent(mActionRetry), PendingIntent.FLAG_UPDATE_CURRENT);
+        phone.getContext().registerReceiver(mRetryAlarmReceiver, new IntentFilter(mActionRetry),
+                null, handler);
+
         addState(mDccDefaultState);
         setInitialState(mDccDefaultState);
         log("X ctor");
@@ -101,9 +141,40 @@ class DcController extends StateMachine {
 
     void dispose() {
         log("dispose: call quiteNow()");
+        mPhone.getContext().unregisterReceiver(mRetryAlarmReceiver);
+        mAlarmManager.cancel(mRetryIntent);
         quitNow();
     }
 
+    /**
+     * Schedules a retry for a DataConnection, replacing any it has pending. Called on the
+     * DataConnections' handler thread, which is ours.
+     */
+    void scheduleRetryAlarm(DcRetryAlarmBatcher.Listener listener, int what, int tag,
+            int delay) {
+        mRetryAlarmBatcher.schedule(listener, what, tag, SystemClock.elapsedRealtime(), delay);
+        updateRetryAlarm();
+    }
+
+    void cancelRetryAlarm(DcRetryAlarmBatcher.Listener listener) {
+        mRetryAlarmBatcher.cancel(listener);
+        updateRetryAlarm();
+    }
+
+    private void updateRetryAlarm() {
+        long time = mRetryAlarmBatcher.getAlarmTime();
+        if (time == mRetryAlarmTime) {
+            return;
+        }
+        mRetryAlarmTime = time;
+        if (time < 0) {
+            mAlarmManager.cancel(mRetryIntent);
+        } else {
+            if (VDBG) log("updateRetryAlarm: in " + (time - SystemClock.elapsedRealtime()));
+            mAlarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, time, mRetryIntent);
+        }
+    }
+
     void addDc(DataConnection dc) {
         mDcListAll.add(dc);
     }
@@ -118,6 +189,7 @@ class DcController extends StateMachine {
             log("addActiveDcByCid dc.mCid < 0 dc=" + dc);
         }
         mDcListActiveByCid.put(dc.mCid, dc);
+        mReconciler.forget(dc.mCid);
     }
 
     void removeActiveDcByCid(DataConnection dc) {
@@ -125,6 +197,7 @@ class DcController extends StateMachine {
         if (DBG && removedDc == null) {
             log("removeActiveDcByCid removedDc=null dc=" + dc);
         }
+        mReconciler.forget(dc.mCid);
     }
 
     private class DccDefaultState extends State {
@@ -194,18 +267,13 @@ class DcController extends StateMachine {
                 log("onDataStateChanged: mDcListAll=" + mDcListAll);
             }
 
-            // Create hashmap of cid to DataCallResponse
-            HashMap<Integer, DataCallResponse> dataCallResponseListByCid =
-                    new HashMap<Integer, DataCallResponse>();
-            for (DataCallResponse dcs : dcsList) {
-                dataCallResponseListByCid.put(dcs.cid, dcs);
-            }
+            final int count = dcsList.size();
 
             // Add a DC that is active but not in the
             // dcsList to the list of DC's to retry
-            ArrayList<DataConnection> dcsToRetry = new ArrayList<DataConnection>();
+            ArrayList<DataConnection> dcsToRetry = mDcsToRetry;
             for (DataConnection dc : mDcListActiveByCid.values()) {
-                if (dataCallResponseListByCid.get(dc.mCid) == null) {
+                if (!containsCid(dcsList, dc.mCid)) {
                     if (DBG) log("onDataStateChanged: add to retry dc=" + dc);
                     dcsToRetry.add(dc);
                 }
@@ -214,12 +282,15 @@ class DcController extends StateMachine {
 
             // Find which connections have changed state and send a notification or cleanup
             // and any that are in active need to be retried.
-            ArrayList<ApnContext> apnsToCleanup = new ArrayList<ApnContext>();
+            ArrayList<ApnContext> apnsToCleanup = mApnsToCleanup;
 
             boolean isAnyDataCallDormant = false;
             boolean isAnyDataCallActive = false;
 
-            for (DataCallResponse newState : dcsList) {
+            mReconciler.begin();
+            for (int i = 0; i < count; i++) {
+                DataCallResponse newState = dcsList.get(i);
+                int change = mReconciler.reconcile(newState);
 
                 DataConnection dc = mDcListActiveByCid.get(newState.cid);
                 if (dc == null) {
@@ -253,6 +324,9 @@ class DcController extends StateMachine {
                                 dcsToRetry.add(dc);
                             }
                         }
+                    } else if (change == DataCallReconciler.UNCHANGED) {
+                        // Same as in the previous list, so are its link properties
+                        if (VDBG) log("onDataStateChanged: unchanged cid=" + newState.cid);
                     } else {
                         // Its active so update the DataConnections link properties
                         UpdateLinkPropertyResult result = dc.updateLinkProperty(newState);
@@ -323,6 +397,7 @@ class DcController extends StateMachine {
                     isAnyDataCallDormant = true;
                 }
             }
+            mReconciler.end();
 
             int newOverallDataConnectionActiveState = mOverallDataConnectionActiveState;
 
@@ -389,9 +464,20 @@ class DcController extends StateMachine {
                 if (DBG) log("onDataStateChanged: send EVENT_LOST_CONNECTION dc.mTag=" + dc.mTag);
                 dc.sendMessage(DataConnection.EVENT_LOST_CONNECTION, dc.mTag);
             }
+            apnsToCleanup.clear();
+            dcsToRetry.clear();
 
-            if (DBG) log("onDataStateChanged: X");
+            if (DBG) log("onDataStateChanged: X " + mReconciler);
+        }
+    }
+
+    private static boolean containsCid(ArrayList<DataCallResponse> dcsList, int cid) {
+        for (int i = 0, count = dcsList.size(); i < count; i++) {
+            if (dcsList.get(i).cid == cid) {
+                return true;
+            }
         }
+        return false;
     }
 
     /**
@@ -436,5 +522,8 @@ class DcController extends StateMachine {
         pw.println(" mPhone=" + mPhone);
         pw.println(" mDcListAll=" + mDcListAll);
         pw.println(" mDcListActiveByCid=" + mDcListActiveByCid);
+        pw.println(" mReconciler=" + mReconciler);
+        pw.println(" mRetryAlarmBatcher=" + mRetryAlarmBatcher);
+        pw.println(" " + RetryManager.getConfigCacheStats());
     }
 }
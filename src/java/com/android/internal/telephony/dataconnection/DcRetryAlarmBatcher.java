@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import java.util.ArrayList;
+
+/**
+ * The pending data connection retries of a phone, fired from a single alarm.
+ *
+ * Each retry may be delayed by a slack of a tenth of its delay, up to
+ * {@link #MAX_SLACK_MS}, but is never made early. The alarm is set for the end of the
+ * earliest slack, and every retry that is due by then fires with it, so retries due
+ * close together wake the device once instead of once each. A DataConnection has at most
+ * one pending retry; scheduling another replaces it, as setting its alarm again did.
+ *
+ * Not thread safe; used from DcController's handler thread.
+ */
+final class DcRetryAlarmBatcher {
+    /** Most a retry is delayed to fire with others. */
+    static final long MAX_SLACK_MS = 10 * 1000;
+    /** A retry is delayed by at most its delay divided by this. */
+    static final int SLACK_DIVISOR = 10;
+
+    /** Receives the retries that are due. */
+    interface Listener {
+        void onRetryAlarm(int what, int tag);
+    }
+
+    private static final class Retry {
+        Listener mListener;
+        int mWhat;
+        int mTag;
+        long mDue;
+        long mLatest;
+    }
+
+    private final ArrayList<Retry> mRetries = new ArrayList<Retry>();
+
+    private int mScheduled;
+    private int mReplaced;
+    private int mFired;
+    private int mAlarms;
+    private int mMaxBatch;
+    private long mMaxLateMs;
+
+    /**
+     * Schedules what with tag to be passed to listener delayMs after now, replacing any
+     * retry pending for listener.
+     */
+    void schedule(Listener listener, int what, int tag, long now, long delayMs) {
+        Retry retry = find(listener);
+        if (retry == null) {
+            retry = new Retry();
+            retry.mListener = listener;
+            mRetries.add(retry);
+        } else {
+            mReplaced++;
+        }
+        retry.mWhat = what;
+        retry.mTag = tag;
+        retry.mDue = now + delayMs;
+        retry.mLatest = retry.mDue + Math.min(MAX_SLACK_MS, delayMs / SLACK_DIVISOR);
+        mScheduled++;
+    }
+
+    /**
+     * Drops the retry pending for listener, if any.
+     */
+    void cancel(Listener listener) {
+        Retry retry = find(listener);
+        if (retry != null) {
+            mRetries.remove(retry);
+        }
+    }
+
+    /**
+     * Returns when the alarm should go off, or -1 if no retry is pending.
+     */
+    long getAlarmTime() {
+        long time = -1;
+        for (int i = 0; i < mRetries.size(); i++) {
+            long latest = mRetries.get(i).mLatest;
+            if (time < 0 || latest < time) {
+                time = latest;
+            }
+        }
+        return time;
+    }
+
+    /**
+     * Fires the retries due by now, as for the alarm going off.
+     *
+     * @return the number of retries fired
+     */
+    int fire(long now) {
+        ArrayList<Retry> due = null;
+        for (int i = 0; i < mRetries.size(); ) {
+            Retry retry = mRetries.get(i);
+            if (retry.mDue <= now) {
+                if (due == null) {
+                    due = new ArrayList<Retry>();
+                }
+                due.add(retry);
+                mRetries.remove(i);
+                mMaxLateMs = Math.max(mMaxLateMs, now - retry.mDue);
+            } else {
+                i++;
+            }
+        }
+        if (due == null) {
+            return 0;
+        }
+        mAlarms++;
+        mFired += due.size();
+        mMaxBatch = Math.max(mMaxBatch, due.size());
+        // Listeners may schedule again, so fire once the pending list is consistent
+        for (Retry retry : due) {
+            retry.mListener.onRetryAlarm(retry.mWhat, retry.mTag);
+        }
+        return due.size();
+    }
+
+    private Retry find(Listener listener) {
+        for (int i = 0; i < mRetries.size(); i++) {
+            if (mRetries.get(i).mListener == listener) {
+                return mRetries.get(i);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "DcRetryAlarmBatcher{pending=" + mRetries.size() + " scheduled=" + mScheduled
+                + " replaced=" + mReplaced + " fired=" + mFired + " alarms=" + mAlarms
+                + " wakeupsSaved=" + (mFired - mAlarms) + " maxBatch=" + mMaxBatch
+                + " maxLateMs=" + mMaxLateMs + "}";
+    }
+}
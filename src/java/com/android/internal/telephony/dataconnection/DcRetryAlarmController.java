@@ -15,78 +15,31 @@
  */
 package com.android.internal.telephony.dataconnection;
 
-import android.app.AlarmManager;
-import android.app.PendingIntent;
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.AsyncResult;
-import android.os.SystemClock;
 import android.telephony.Rlog;
-import android.text.TextUtils;
 
 import com.android.internal.telephony.PhoneBase;
 import com.android.internal.telephony.RILConstants;
 
 /**
  * The Data Connection Retry Alarm Controller.
+ *
+ * Retry alarms are batched with those of the phone's other DataConnections by
+ * {@link DcController}, which passes the retries back here when they are due.
  */
-public class DcRetryAlarmController {
+public class DcRetryAlarmController implements DcRetryAlarmBatcher.Listener {
     private String mLogTag = "DcRac";
     private static final boolean DBG = true;
 
     private PhoneBase mPhone;
     private DataConnection mDc;
-    private AlarmManager mAlarmManager;
-
-    // The Intent action for retrying and its two extra's
-    private String mActionRetry;
-    private static final String INTENT_RETRY_ALARM_WHAT = "what";
-    private static final String INTENT_RETRY_ALARM_TAG = "tag";
-
-    private BroadcastReceiver mIntentReceiver = new BroadcastReceiver() {
-            @Override
-        public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
-            if (TextUtils.isEmpty(action)) {
-                // Our mActionXxxx's could be null when disposed this could match an empty action.
-                log("onReceive: ignore empty action='" + action + "'");
-                return;
-            }
-            if (TextUtils.equals(action, mActionRetry)) {
-                if (!intent.hasExtra(INTENT_RETRY_ALARM_WHAT)) {
-                    throw new RuntimeException(mActionRetry + " has no INTENT_RETRY_ALRAM_WHAT");
-                }
-                if (!intent.hasExtra(INTENT_RETRY_ALARM_TAG)) {
-                    throw new RuntimeException(mActionRetry + " has no INTENT_RETRY_ALRAM_TAG");
-                }
-                int what = intent.getIntExtra(INTENT_RETRY_ALARM_WHAT, Integer.MAX_VALUE);
-                int tag = intent.getIntExtra(INTENT_RETRY_ALARM_TAG, Integer.MAX_VALUE);
-                if (DBG) {
-                    log("onReceive: action=" + action
-                            + " sendMessage(what:" + mDc.getWhatToString(what)
-                            + ", tag:" + tag + ")");
-                }
-                mDc.sendMessage(mDc.obtainMessage(what, tag, 0));
-            } else {
-                if (DBG) log("onReceive: unknown action=" + action);
-            }
-        }
-    };
+    private DcController mDcc;
 
-    DcRetryAlarmController(PhoneBase phone, DataConnection dc) {
+    DcRetryAlarmController(PhoneBase phone, DataConnection dc, DcController dcc) {
         mLogTag = dc.getName();
         mPhone = phone;
         mDc = dc;
-        mAlarmManager = (AlarmManager) mPhone.getContext().getSystemService(Context.ALARM_SERVICE);
-        mActionRetry = mDc.getClass().getCanonicalName() + "." + mDc.getName() + ".action_retry";
-
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(mActionRetry);
-        log("DcRetryAlarmController: register for intent action=" + mActionRetry);
-
-        mPhone.getContext().registerReceiver(mIntentReceiver, filter, null, mDc.getHandler());
+        mDcc = dcc;
     }
 
     /**
@@ -94,11 +47,23 @@ public class DcRetryAlarmController {
      */
     void dispose() {
         if (DBG) log("dispose");
-        mPhone.getContext().unregisterReceiver(mIntentReceiver);
+        mDcc.cancelRetryAlarm(this);
         mPhone = null;
         mDc = null;
-        mAlarmManager = null;
-        mActionRetry = null;
+        mDcc = null;
+    }
+
+    @Override
+    public void onRetryAlarm(int what, int tag) {
+        if (mDc == null) {
+            log("onRetryAlarm: ignore, disposed what=" + what + " tag=" + tag);
+            return;
+        }
+        if (DBG) {
+            log("onRetryAlarm: sendMessage(what:" + mDc.getWhatToString(what)
+                    + ", tag:" + tag + ")");
+        }
+        mDc.sendMessage(mDc.obtainMessage(what, tag, 0));
     }
 
     /**
@@ -137,19 +102,11 @@ public class DcRetryAlarmController {
     }
 
     public void startRetryAlarm(int what, int tag, int delay) {
-        Intent intent = new Intent(mActionRetry);
-        intent.putExtra(INTENT_RETRY_ALARM_WHAT, what);
-        intent.putExtra(INTENT_RETRY_ALARM_TAG, tag);
-
         if (DBG) {
             log("startRetryAlarm: next attempt in " + (delay / 1000) + "s" +
                     " what=" + what + " tag=" + tag);
         }
-
-        PendingIntent retryIntent = PendingIntent.getBroadcast (mPhone.getContext(), 0,
-                                        intent, PendingIntent.FLAG_UPDATE_CURRENT);
-        mAlarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP,
-                SystemClock.elapsedRealtime() + delay, retryIntent);
+        mDcc.scheduleRetryAlarm(this, what, tag, delay);
     }
 
     @Override
@@ -158,8 +115,6 @@ public class DcRetryAlarmController {
         sb.append(mLogTag).append(" [dcRac] ");
         sb.append(" mPhone=").append(mPhone);
         sb.append(" mDc=").append(mDc);
-        sb.append(" mAlaramManager=").append(mAlarmManager);
-        sb.append(" mActionRetry=").append(mActionRetry);
         return sb.toString();
     }
 
@@ -74,6 +74,7 @@ import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneBase;
 import com.android.internal.telephony.DctConstants;
 import com.android.internal.telephony.EventLogTags;
+import com.android.internal.telephony.HardwareConfig;
 import com.android.internal.telephony.ITelephony;
 import com.android.internal.telephony.TelephonyIntents;
 import com.android.internal.telephony.gsm.GSMPhone;
@@ -82,6 +83,7 @@ import com.android.internal.telephony.cdma.CdmaSubscriptionSourceManager;
 import com.android.internal.telephony.PhoneConstants;
 import com.android.internal.telephony.RILConstants;
 import com.android.internal.telephony.SubscriptionController;
+import com.android.internal.telephony.TelephonyDevController;
 import com.android.internal.telephony.uicc.IccRecords;
 import com.android.internal.telephony.uicc.RuimRecords;
 import com.android.internal.telephony.uicc.UiccController;
@@ -97,6 +99,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Objects;
 import java.lang.StringBuilder;
 
@@ -176,6 +179,19 @@ public final class DcTracker extends DcTrackerBase {
     /** Watches for changes to the APN db. */
     private ApnChangeObserver mApnObserver;
 
+    /** Candidate APNs per type and bearer, built from mAllApnSettings. */
+    private ApnTypeIndex mApnTypeIndex;
+
+    /** Parsed rows of the APN db, so that changes only re-parse the rows they touch. */
+    private final ApnRepository mApnRepository = new ApnRepository();
+
+    /** Setups started together by setupDataOnConnectableApns, up to the modem's PDN limit. */
+    private final DcBringUpPlanner mBringUpPlanner =
+            new DcBringUpPlanner(DEFAULT_MAX_CONCURRENT_SETUPS);
+
+    /** Concurrent data setups when neither the modem nor persist.radio.max_pdn say. */
+    private static final int DEFAULT_MAX_CONCURRENT_SETUPS = 4;
+
     private final String mProvisionActionName;
     private BroadcastReceiver mProvisionBroadcastReceiver;
     private ProgressDialog mProvisioningSpinner;
@@ -1205,17 +1221,100 @@ public final class DcTracker extends DcTrackerBase {
     private void setupDataOnConnectableApns(String reason) {
         if (DBG) log("setupDataOnConnectableApns: " + reason);
 
+        int radioTech = mPhone.getServiceState().getRilDataRadioTechnology();
+        mBringUpPlanner.setMaxConcurrentSetups(getMaxConcurrentSetups(radioTech));
+        long now = SystemClock.elapsedRealtime();
+
+        // The APN each context planned here should come up on, so later contexts of a type
+        // it also handles share its connection rather than bring up their own.
+        ArrayList<ApnSetting> plannedApns = new ArrayList<ApnSetting>();
+        ArrayList<String> plannedTypes = new ArrayList<String>();
         for (ApnContext apnContext : mPrioritySortedApnContexts) {
             if (DBG) log("setupDataOnConnectableApns: apnContext " + apnContext);
             if (apnContext.getState() == DctConstants.State.FAILED) {
                 apnContext.setState(DctConstants.State.IDLE);
             }
             if (apnContext.isConnectable()) {
-                log("setupDataOnConnectableApns: isConnectable() call trySetupData");
+                log("setupDataOnConnectableApns: isConnectable() plan setup");
                 apnContext.setReason(reason);
-                trySetupData(apnContext);
+                String apnType = apnContext.getApnType();
+                String anchor = null;
+                ApnSetting apn = null;
+                if (!PhoneConstants.APN_TYPE_DUN.equals(apnType) || !teardownForDun()) {
+                    if (checkForCompatibleConnectedApnContext(apnContext) != null) {
+                        anchor = apnType;
+                    } else {
+                        apn = getFirstWaitingApn(apnContext, radioTech);
+                        for (int i = 0; apn != null && i < plannedApns.size(); i++) {
+                            if (plannedApns.get(i).canHandleType(apnType)) {
+                                anchor = plannedTypes.get(i);
+                                break;
+                            }
+                        }
+                    }
+                }
+                if (mBringUpPlanner.add(apnType, anchor, now) && anchor == null && apn != null) {
+                    plannedApns.add(apn);
+                    plannedTypes.add(apnType);
+                }
+            }
+        }
+        startPlannedSetups();
+    }
+
+    /**
+     * Starts the planned setups that can run now. A setup that is not started, or that
+     * finishes at once, frees its place for the next one.
+     */
+    private void startPlannedSetups() {
+        ArrayList<String> ready;
+        while (!(ready = mBringUpPlanner.next()).isEmpty()) {
+            for (String apnType : ready) {
+                ApnContext apnContext = mApnContexts.get(apnType);
+                if (apnContext != null && apnContext.isConnectable()) {
+                    if (DBG) log("startPlannedSetups: call trySetupData for " + apnType);
+                    trySetupData(apnContext);
+                }
+                if (apnContext == null
+                        || apnContext.getState() != DctConstants.State.CONNECTING) {
+                    mBringUpPlanner.onSetupDone(apnType, apnContext != null
+                            && apnContext.getState() == DctConstants.State.CONNECTED,
+                            SystemClock.elapsedRealtime());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the APN apnContext's next setup would try first, or null if there is none.
+     */
+    private ApnSetting getFirstWaitingApn(ApnContext apnContext, int radioTech) {
+        ArrayList<ApnSetting> waitingApns = null;
+        if (apnContext.getState() != DctConstants.State.IDLE) {
+            waitingApns = apnContext.getWaitingApns();
+        }
+        if (waitingApns == null || waitingApns.isEmpty()) {
+            waitingApns = buildWaitingApns(apnContext.getApnType(), radioTech);
+        }
+        return waitingApns.isEmpty() ? null : waitingApns.get(0);
+    }
+
+    /**
+     * Returns how many data setups needing their own connection may be in progress at once:
+     * one where only a single data connection is allowed, otherwise the modem's limit on
+     * active data calls when it reports one.
+     */
+    private int getMaxConcurrentSetups(int radioTech) {
+        if (isOnlySingleDcAllowed(radioTech)) {
+            return 1;
+        }
+        if (TelephonyDevController.getModemCount() > 0) {
+            HardwareConfig modem = TelephonyDevController.getInstance().getModem(0);
+            if (modem != null && modem.maxActiveDataCall > 0) {
+                return modem.maxActiveDataCall;
             }
         }
+        return SystemProperties.getInt("persist.radio.max_pdn", DEFAULT_MAX_CONCURRENT_SETUPS);
     }
 
     private boolean trySetupData(ApnContext apnContext) {
@@ -1226,6 +1325,10 @@ public final class DcTracker extends DcTrackerBase {
             log("trySetupData with mIsPsRestricted=" + mIsPsRestricted);
         }
 
+        if (apnContext.isConnectable()) {
+            apnContext.startTraceSpan(mPhone.getPhoneId());
+        }
+
         if (mPhone.getSimulatedRadioControl() != null) {
             // Assume data is connected on the simulator
             // FIXME  this can be improved
@@ -1265,13 +1368,14 @@ public final class DcTracker extends DcTrackerBase {
                     notifyOffApnsOfAvailability(apnContext.getReason());
                     retValue = setupData(apnContext, radioTech);
                     if(!retValue) {
+                        apnContext.endTraceSpan(DataCallTracer.CANCELLED, 0);
                         notifyNoData(DcFailCause.MISSING_UNKNOWN_APN, apnContext);
                     }
                     notifyOffApnsOfAvailability(apnContext.getReason());
                     return retValue;
                 } else {
                     apnContext.setWaitingApns(waitingApns);
-                    if (DBG) {
+                    if (VDBG) {
                         log ("trySetupData: Create from mAllApnSettings : "
                                     + apnListToString(mAllApnSettings));
                     }
@@ -1284,6 +1388,9 @@ public final class DcTracker extends DcTrackerBase {
             }
 
             retValue = setupData(apnContext, radioTech);
+            if (!retValue) {
+                apnContext.endTraceSpan(DataCallTracer.CANCELLED, 0);
+            }
 
             notifyOffApnsOfAvailability(apnContext.getReason());
 
@@ -1294,6 +1401,11 @@ public final class DcTracker extends DcTrackerBase {
                     && apnContext.isConnectable()) {
                 mPhone.notifyDataConnectionFailed(apnContext.getReason(), apnContext.getApnType());
             }
+            if (apnContext.isConnectable()) {
+                // Keep the span open, the wait for data to be allowed is part of the setup
+                DataCallTracer.getInstance().record(apnContext.getTraceSpan(),
+                        DataCallTracer.GATED, 0);
+            }
             notifyOffApnsOfAvailability(apnContext.getReason());
             if (DBG) log ("trySetupData: X apnContext not 'ready' retValue=false");
             return false;
@@ -1338,6 +1450,7 @@ public final class DcTracker extends DcTrackerBase {
             specificdisable = reason.equals(Phone.REASON_DATA_SPECIFIC_DISABLED);
         }
 
+        mBringUpPlanner.clear();
         for (ApnContext apnContext : mApnContexts.values()) {
             if (apnContext.isDisconnected() == false) didDisconnect = true;
             if (specificdisable) {
@@ -1355,6 +1468,7 @@ public final class DcTracker extends DcTrackerBase {
 
         stopNetStatPoll();
         stopDataStallAlarm();
+        mDataStallDetector.reset();
 
         // TODO: Do we need mRequestedApnType?
         mRequestedApnType = PhoneConstants.APN_TYPE_DEFAULT;
@@ -1518,7 +1632,7 @@ public final class DcTracker extends DcTrackerBase {
      * @param types comma delimited list of APN types
      * @return array of APN types
      */
-    private String[] parseTypes(String types) {
+    private static String[] parseTypes(String types) {
         String[] result;
         // If unset, set to DEFAULT.
         if (types == null || types.equals("")) {
@@ -1583,7 +1697,7 @@ public final class DcTracker extends DcTrackerBase {
                 (mAttached.get() == false || dcFailCause != DcFailCause.SIGNAL_LOST));
     }
 
-    private ApnSetting makeApnSetting(Cursor cursor) {
+    static ApnSetting makeApnSetting(Cursor cursor) {
         String[] types = parseTypes(
                 cursor.getString(cursor.getColumnIndexOrThrow(Telephony.Carriers.TYPE)));
         ApnSetting apn = new ApnSetting(
@@ -1625,26 +1739,20 @@ public final class DcTracker extends DcTrackerBase {
         return apn;
     }
 
-    private ArrayList<ApnSetting> createApnList(Cursor cursor) {
+    private ArrayList<ApnSetting> createApnList(ArrayList<ApnSetting> apns) {
         ArrayList<ApnSetting> mnoApns = new ArrayList<ApnSetting>();
         ArrayList<ApnSetting> mvnoApns = new ArrayList<ApnSetting>();
         IccRecords r = mIccRecords.get();
 
-        if (cursor.moveToFirst()) {
-            do {
-                ApnSetting apn = makeApnSetting(cursor);
-                if (apn == null) {
-                    continue;
-                }
-
-                if (apn.hasMvnoParams()) {
-                    if (r != null && mvnoMatches(r, apn.mvnoType, apn.mvnoMatchData)) {
-                        mvnoApns.add(apn);
-                    }
-                } else {
-                    mnoApns.add(apn);
+        for (int i = 0, size = apns.size(); i < size; i++) {
+            ApnSetting apn = apns.get(i);
+            if (apn.hasMvnoParams()) {
+                if (r != null && mvnoMatches(r, apn.mvnoType, apn.mvnoMatchData)) {
+                    mvnoApns.add(apn);
                 }
-            } while (cursor.moveToNext());
+            } else {
+                mnoApns.add(apn);
+            }
         }
 
         ArrayList<ApnSetting> result = mvnoApns.isEmpty() ? mnoApns : mvnoApns;
@@ -1790,6 +1898,8 @@ public final class DcTracker extends DcTrackerBase {
         Message msg = obtainMessage();
         msg.what = DctConstants.EVENT_DATA_SETUP_COMPLETE;
         msg.obj = apnContext;
+        DataCallTracer.getInstance().record(apnContext.getTraceSpan(),
+                DataCallTracer.SETUP_DATA, apnSetting.id);
         dcac.bringUp(apnContext, getInitialMaxRetry(), profileId, radioTech, mAutoAttachOnCreation,
                 msg);
 
@@ -1801,8 +1911,69 @@ public final class DcTracker extends DcTrackerBase {
      * Handles changes to the APN database.
      */
     private void onApnChanged() {
-        if (DBG) log("onApnChanged: tryRestartDataConnections");
-        tryRestartDataConnections(true, Phone.REASON_APN_CHANGED);
+        DctConstants.State overallState = getOverallState();
+        if (overallState == DctConstants.State.IDLE || overallState == DctConstants.State.FAILED) {
+            if (DBG) log("onApnChanged: tryRestartDataConnections");
+            tryRestartDataConnections(true, Phone.REASON_APN_CHANGED);
+            return;
+        }
+
+        if (mPhone instanceof GSMPhone) {
+            // The "current" may no longer be valid.  MMS depends on this to send properly. TBD
+            ((GSMPhone)mPhone).updateCurrentCarrierInProvider();
+        }
+
+        ArrayList<ApnSetting> oldApns = new ArrayList<ApnSetting>(mAllApnSettings);
+        ApnSetting oldPreferredApn = mPreferredApn;
+        createAllApnList();
+        setInitialAttachApn();
+
+        // Only restart the connections whose APN would no longer be the one chosen
+        boolean unchanged = sameApns(oldApns, mAllApnSettings)
+                && sameApn(oldPreferredApn, mPreferredApn);
+        int radioTech = mPhone.getServiceState().getRilDataRadioTechnology();
+        int restarts = 0;
+        int restartsAvoided = 0;
+        for (ApnContext apnContext : mApnContexts.values()) {
+            if (apnContext.isDisconnected()) {
+                continue;
+            }
+            ApnSetting current = apnContext.getApnSetting();
+            boolean keep = unchanged;
+            if (!keep && current != null
+                    && apnContext.getState() == DctConstants.State.CONNECTED) {
+                ArrayList<ApnSetting> waitingApns = buildWaitingApns(apnContext.getApnType(),
+                        radioTech);
+                keep = !waitingApns.isEmpty() && sameApn(current, waitingApns.get(0));
+            }
+            if (keep) {
+                restartsAvoided++;
+            } else {
+                if (DBG) log("onApnChanged: restarting " + apnContext.getApnType());
+                apnContext.setReason(Phone.REASON_APN_CHANGED);
+                cleanUpConnection(true, apnContext);
+                restarts++;
+            }
+        }
+        if (DBG) {
+            log("onApnChanged: unchanged=" + unchanged + " restarts=" + restarts
+                    + " restartsAvoided=" + restartsAvoided);
+        }
+        mApnRepository.noteApnChange(restarts, restartsAvoided);
+    }
+
+    // equals() compares toString(), which leaves out the credentials
+    private static boolean sameApn(ApnSetting a, ApnSetting b) {
+        return a == b || (a != null && b != null && a.equals(b)
+                && TextUtils.equals(a.user, b.user) && TextUtils.equals(a.password, b.password));
+    }
+
+    private static boolean sameApns(ArrayList<ApnSetting> a, ArrayList<ApnSetting> b) {
+        if (a.size() != b.size()) return false;
+        for (int i = 0, size = a.size(); i < size; i++) {
+            if (!sameApn(a.get(i), b.get(i))) return false;
+        }
+        return true;
     }
 
     private void tryRestartDataConnections(boolean isCleanupNeeded, String reason) {
@@ -2504,10 +2675,24 @@ public final class DcTracker extends DcTrackerBase {
             handleError = true;
         }
 
+        if (apnContext.getState() == DctConstants.State.CONNECTED) {
+            apnContext.endTraceSpan(DataCallTracer.CONNECTED, 0);
+        } else {
+            apnContext.endTraceSpan(DataCallTracer.FAILED, cause.getErrorCode());
+        }
+
         if (handleError) {
             onDataSetupCompleteError(ar);
         }
 
+        if (mBringUpPlanner.isPending(apnContext.getApnType())) {
+            mBringUpPlanner.onSetupDone(apnContext.getApnType(),
+                    apnContext.getState() == DctConstants.State.CONNECTED,
+                    SystemClock.elapsedRealtime());
+            if (DBG) log("onDataSetupComplete: " + mBringUpPlanner);
+            startPlannedSetups();
+        }
+
         /* If flag is set to false after SETUP_DATA_CALL is invoked, we need
          * to clean data connections.
          */
@@ -2787,36 +2972,28 @@ public final class DcTracker extends DcTrackerBase {
      * Data Connections and setup the preferredApn.
      */
     private void createAllApnList() {
+        final long start = SystemClock.elapsedRealtime();
         mAllApnSettings.clear();
         String operator = getOperatorNumeric();
         int radioTech = mPhone.getServiceState().getRilDataRadioTechnology();
 
         if (mOmhApt != null && ServiceState.RIL_RADIO_TECHNOLOGY_EHRPD !=
                 radioTech && !ServiceState.isGsm(radioTech)) {
-            ArrayList<ApnSetting> mOmhApnsList = new ArrayList<ApnSetting>();
-            mOmhApnsList = mOmhApt.getOmhApnProfilesList();
-            if (!mOmhApnsList.isEmpty()) {
+            List<ApnSetting> omhApnsList = mOmhApt.getOmhApnProfilesList();
+            if (!omhApnsList.isEmpty()) {
                 if (DBG) log("createAllApnList: Copy Omh profiles");
-                mAllApnSettings.addAll(mOmhApnsList);
+                mAllApnSettings.addAll(omhApnsList);
             }
         }
 
         if (mAllApnSettings.isEmpty()) {
             if (operator != null && !operator.isEmpty()) {
-                String selection = "numeric = '" + operator + "'";
-                // query only enabled apn.
-                // carrier_enabled : 1 means enabled apn, 0 disabled apn.
-                selection += " and carrier_enabled = 1";
-                if (DBG) log("createAllApnList: selection=" + selection);
-
-                Cursor cursor = mPhone.getContext().getContentResolver().query(
-                        Telephony.Carriers.CONTENT_URI, null, selection, null, null);
-
-                if (cursor != null) {
-                    if (cursor.getCount() > 0) {
-                        mAllApnSettings = createApnList(cursor);
-                    }
-                    cursor.close();
+                // query only enabled apn; unchanged rows are not parsed again
+                if (DBG) log("createAllApnList: operator=" + operator);
+                ArrayList<ApnSetting> apns = mApnRepository.query(
+                        mPhone.getContext().getContentResolver(), operator);
+                if (!apns.isEmpty()) {
+                    mAllApnSettings = createApnList(apns);
                 }
             }
         }
@@ -2844,71 +3021,113 @@ public final class DcTracker extends DcTrackerBase {
         }
         if (DBG) log("createAllApnList: X mAllApnSettings=" + mAllApnSettings);
 
+        mApnTypeIndex = new ApnTypeIndex(mAllApnSettings);
+
         setDataProfilesAsNeeded();
+        mApnRepository.noteRebuild(start);
     }
 
     private void dedupeApnSettings() {
-        ArrayList<ApnSetting> resultApns = new ArrayList<ApnSetting>();
-
-        // coalesce APNs if they are similar enough to prevent
-        // us from bringing up two data calls with the same interface
-        int i = 0;
-        while (i < mAllApnSettings.size() - 1) {
-            ApnSetting first = mAllApnSettings.get(i);
-            ApnSetting second = null;
-            int j = i + 1;
-            while (j < mAllApnSettings.size()) {
-                second = mAllApnSettings.get(j);
-                if (apnsSimilar(first, second)) {
-                    ApnSetting newApn = mergeApns(first, second);
-                    mAllApnSettings.set(i, newApn);
-                    first = newApn;
-                    mAllApnSettings.remove(j);
-                } else {
-                    j++;
+        dedupeApnSettings(mAllApnSettings);
+    }
+
+    /**
+     * Coalesces APNs in apns that are similar enough to prevent us from bringing up two
+     * data calls with the same interface, keeping the first of each in place.
+     *
+     * Only APNs whose exactly compared fields hash alike can be similar, so APNs are
+     * grouped by that hash and only compared within their group.
+     */
+    static void dedupeApnSettings(ArrayList<ApnSetting> apns) {
+        int size = apns.size();
+        if (size < 2) return;
+
+        // (hash << 32 | index), sorted so each group is contiguous and in list order
+        long[] keys = new long[size];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            ApnSetting apn = apns.get(i);
+            if (!apn.canHandleTypeBit(ApnSetting.TYPE_BIT_DUN)) {
+                keys[count++] = ((long) similarityHash(apn) << 32) | i;
+            }
+        }
+        Arrays.sort(keys, 0, count);
+
+        boolean[] removed = null;
+        int groupStart = 0;
+        while (groupStart < count) {
+            int groupEnd = groupStart + 1;
+            while (groupEnd < count && (keys[groupEnd] >>> 32) == (keys[groupStart] >>> 32)) {
+                groupEnd++;
+            }
+            for (int a = groupStart; a < groupEnd - 1; a++) {
+                int i = (int) keys[a];
+                if (removed != null && removed[i]) continue;
+                ApnSetting first = apns.get(i);
+                for (int b = a + 1; b < groupEnd; b++) {
+                    int j = (int) keys[b];
+                    if (removed != null && removed[j]) continue;
+                    ApnSetting second = apns.get(j);
+                    if (apnsSimilar(first, second)) {
+                        first = mergeApns(first, second);
+                        apns.set(i, first);
+                        if (removed == null) removed = new boolean[size];
+                        removed[j] = true;
+                    }
                 }
             }
-            i++;
+            groupStart = groupEnd;
         }
-    }
 
-    //check whether the types of two APN same (even only one type of each APN is same)
-    private boolean apnTypeSameAny(ApnSetting first, ApnSetting second) {
-        if(VDBG) {
-            StringBuilder apnType1 = new StringBuilder(first.apn + ": ");
-            for(int index1 = 0; index1 < first.types.length; index1++) {
-                apnType1.append(first.types[index1]);
-                apnType1.append(",");
+        if (removed != null) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (!removed[i]) apns.set(kept++, apns.get(i));
             }
+            apns.subList(kept, size).clear();
+        }
+    }
 
-            StringBuilder apnType2 = new StringBuilder(second.apn + ": ");
-            for(int index1 = 0; index1 < second.types.length; index1++) {
-                apnType2.append(second.types[index1]);
-                apnType2.append(",");
-            }
-            log("APN1: is " + apnType1);
-            log("APN2: is " + apnType2);
+    /**
+     * Hashes the fields apnsSimilar() requires to be exactly equal.
+     */
+    private static int similarityHash(ApnSetting apn) {
+        int hash = Objects.hashCode(apn.apn);
+        hash = 31 * hash + (apn.carrierEnabled ? 1 : 0);
+        hash = 31 * hash + apn.bearer;
+        hash = 31 * hash + apn.profileId;
+        hash = 31 * hash + Objects.hashCode(apn.mvnoType);
+        hash = 31 * hash + Objects.hashCode(apn.mvnoMatchData);
+        return hash;
+    }
+
+    //check whether the types of two APN same (even only one type of each APN is same)
+    private static boolean apnTypeSameAny(ApnSetting first, ApnSetting second) {
+        int firstMask = first.getTypesBitmask();
+        int secondMask = second.getTypesBitmask();
+        if (((firstMask | secondMask) & ApnSetting.TYPE_BIT_ALL) != 0
+                || (firstMask & secondMask & ~ApnSetting.TYPE_BIT_OTHER) != 0) {
+            return true;
+        }
+        if ((firstMask & secondMask & ApnSetting.TYPE_BIT_OTHER) == 0) {
+            return false;
         }
 
+        // both have types without a bit; compare those by name
         for(int index1 = 0; index1 < first.types.length; index1++) {
             for(int index2 = 0; index2 < second.types.length; index2++) {
-                if(first.types[index1].equals(PhoneConstants.APN_TYPE_ALL) ||
-                        second.types[index2].equals(PhoneConstants.APN_TYPE_ALL) ||
-                        first.types[index1].equals(second.types[index2])) {
-                    if(VDBG)log("apnTypeSameAny: return true");
+                if(first.types[index1].equals(second.types[index2])) {
                     return true;
                 }
             }
         }
-
-        if(VDBG)log("apnTypeSameAny: return false");
         return false;
     }
 
     // Check if neither mention DUN and are substantially similar
-    private boolean apnsSimilar(ApnSetting first, ApnSetting second) {
-        return (first.canHandleType(PhoneConstants.APN_TYPE_DUN) == false &&
-                second.canHandleType(PhoneConstants.APN_TYPE_DUN) == false &&
+    private static boolean apnsSimilar(ApnSetting first, ApnSetting second) {
+        return (first.canHandleTypeBit(ApnSetting.TYPE_BIT_DUN) == false &&
+                second.canHandleTypeBit(ApnSetting.TYPE_BIT_DUN) == false &&
                 Objects.equals(first.apn, second.apn) &&
                 !apnTypeSameAny(first, second) &&
                 xorEquals(first.proxy, second.proxy) &&
@@ -2924,13 +3143,13 @@ public final class DcTracker extends DcTrackerBase {
     }
 
     // equal or one is not specified
-    private boolean xorEquals(String first, String second) {
+    private static boolean xorEquals(String first, String second) {
         return (Objects.equals(first, second) ||
                 TextUtils.isEmpty(first) ||
                 TextUtils.isEmpty(second));
     }
 
-    private ApnSetting mergeApns(ApnSetting dest, ApnSetting src) {
+    private static ApnSetting mergeApns(ApnSetting dest, ApnSetting src) {
         ArrayList<String> resultTypes = new ArrayList<String>();
         resultTypes.addAll(Arrays.asList(dest.types));
         for (String srcType : src.types) {
@@ -3086,26 +3305,11 @@ public final class DcTracker extends DcTrackerBase {
             }
         }
         if (mAllApnSettings != null && !mAllApnSettings.isEmpty()) {
-            if (DBG) log("buildWaitingApns: mAllApnSettings=" + mAllApnSettings);
-            for (ApnSetting apn : mAllApnSettings) {
-                if (DBG) log("buildWaitingApns: apn=" + apn);
-                if (apn.canHandleType(requestedApnType)) {
-                    if (apn.bearer == 0 || apn.bearer == radioTech) {
-                        if (DBG) log("buildWaitingApns: adding apn=" + apn.toString());
-                        apnList.add(apn);
-                    } else {
-                        if (DBG) {
-                            log("buildWaitingApns: bearer:" + apn.bearer + " != "
-                                    + "radioTech:" + radioTech);
-                        }
-                    }
-                } else {
-                    if (DBG) {
-                        log("buildWaitingApns: couldn't handle requesedApnType="
-                                + requestedApnType);
-                    }
-                }
+            if (VDBG) log("buildWaitingApns: mAllApnSettings=" + mAllApnSettings);
+            if (mApnTypeIndex == null || !mApnTypeIndex.isFor(mAllApnSettings)) {
+                mApnTypeIndex = new ApnTypeIndex(mAllApnSettings);
             }
+            apnList = mApnTypeIndex.getCandidates(requestedApnType, radioTech);
         } else {
             loge("mAllApnSettings is empty!");
         }
@@ -3556,6 +3760,10 @@ public final class DcTracker extends DcTrackerBase {
         pw.println(" mReregisterOnReconnectFailure=" + mReregisterOnReconnectFailure);
         pw.println(" canSetPreferApn=" + mCanSetPreferApn);
         pw.println(" mApnObserver=" + mApnObserver);
+        pw.println(" mApnRepository=" + mApnRepository);
+        pw.println(" mBringUpPlanner=" + mBringUpPlanner);
+        pw.println(" mOmhApt=" + mOmhApt);
+        DataCallTracer.getInstance().dump(pw);
         pw.println(" getOverallState=" + getOverallState());
         pw.println(" mDataConnectionAsyncChannels=%s\n" + mDataConnectionAcHashMap);
         pw.println(" mAttached=" + mAttached.get());
@@ -48,6 +48,7 @@ import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.EventLog;
+import android.util.Pair;
 import android.telephony.Rlog;
 import android.telephony.ServiceState;
 
@@ -66,6 +67,7 @@ import com.android.internal.util.ArrayUtils;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
@@ -213,6 +215,8 @@ public abstract class DcTrackerBase extends Handler {
     protected PendingIntent mDataStallAlarmIntent = null;
     // Number of packets sent since the last received packet
     protected long mSentSinceLastRecv;
+    // Recent data stall polls, the delay of the next one and the stalls seen
+    protected final DataStallDetector mDataStallDetector = new DataStallDetector();
     // Controls when a simple recovery attempt it to be tried
     protected int mNoRecvPollCount = 0;
     // Refrence counter for enabling fail fast
@@ -275,6 +279,9 @@ public abstract class DcTrackerBase extends Handler {
     /* Currently active APN */
     protected ApnSetting mActiveApn;
 
+    // TETHER_DUN_APN as last read, and the APNs parsed from it
+    private Pair<String, List<ApnSetting>> mDunApnCache;
+
     /** allApns holds all apns */
     protected ArrayList<ApnSetting> mAllApnSettings = new ArrayList<ApnSetting>();
 
@@ -643,7 +650,13 @@ public abstract class DcTrackerBase extends Handler {
         Context c = mPhone.getContext();
         String apnData = Settings.Global.getString(c.getContentResolver(),
                 Settings.Global.TETHER_DUN_APN);
-        List<ApnSetting> dunSettings = ApnSetting.arrayFromString(apnData);
+        Pair<String, List<ApnSetting>> dunApnCache = mDunApnCache;
+        if (dunApnCache == null || !TextUtils.equals(apnData, dunApnCache.first)) {
+            dunApnCache = new Pair<String, List<ApnSetting>>(apnData,
+                    Collections.unmodifiableList(ApnSetting.arrayFromString(apnData)));
+            mDunApnCache = dunApnCache;
+        }
+        List<ApnSetting> dunSettings = dunApnCache.second;
         for (ApnSetting dunSetting : dunSettings) {
             IccRecords r = mIccRecords.get();
             String operator = (r != null) ? r.getOperatorNumeric() : "";
@@ -1497,6 +1510,7 @@ public abstract class DcTrackerBase extends Handler {
         if (getOverallState() == DctConstants.State.CONNECTED) {
             // Go through a series of recovery steps, each action transitions to the next action
             int recoveryAction = getRecoveryAction();
+            mDataStallDetector.onRecoveryAction(SystemClock.elapsedRealtime(), recoveryAction);
             switch (recoveryAction) {
             case RecoveryAction.GET_DATA_CALL_LIST:
                 EventLog.writeEvent(EventLogTags.DATA_STALL_RECOVERY_GET_DATA_CALL_LIST,
@@ -1570,6 +1584,13 @@ public abstract class DcTrackerBase extends Handler {
                 received = 0;
             }
         }
+        DataStallDetector.StallEvent stall =
+                mDataStallDetector.onPoll(SystemClock.elapsedRealtime(), sent, received);
+        if (stall != null) {
+            if (DBG) log("updateDataStallInfo: recovered from " + stall);
+            EventLog.writeEvent(EventLogTags.DATA_STALL_RECOVERED, stall.getDurationMs(),
+                    stall.mActions, stall.mLastAction, stall.mPolls);
+        }
         if ( sent > 0 && received > 0 ) {
             if (VDBG_STALL) log("updateDataStallInfo: IN/OUT");
             mSentSinceLastRecv = 0;
@@ -1627,17 +1648,18 @@ public abstract class DcTrackerBase extends Handler {
         int delayInMs;
 
         if (mDataStallDetectionEnabled && getOverallState() == DctConstants.State.CONNECTED) {
-            // If screen is on or data stall is currently suspected, set the alarm
-            // with an aggresive timeout.
-            if (mIsScreenOn || suspectedStall || RecoveryAction.isAggressiveRecovery(nextAction)) {
-                delayInMs = Settings.Global.getInt(mResolver,
-                        Settings.Global.DATA_STALL_ALARM_AGGRESSIVE_DELAY_IN_MS,
-                        DATA_STALL_ALARM_AGGRESSIVE_DELAY_IN_MS_DEFAULT);
-            } else {
-                delayInMs = Settings.Global.getInt(mResolver,
-                        Settings.Global.DATA_STALL_ALARM_NON_AGGRESSIVE_DELAY_IN_MS,
-                        DATA_STALL_ALARM_NON_AGGRESSIVE_DELAY_IN_MS_DEFAULT);
-            }
+            // If data stall is currently suspected, set the alarm with an aggresive
+            // timeout. Otherwise the detector backs off while there is no traffic, the
+            // more so with the screen off.
+            int aggressiveDelayInMs = Settings.Global.getInt(mResolver,
+                    Settings.Global.DATA_STALL_ALARM_AGGRESSIVE_DELAY_IN_MS,
+                    DATA_STALL_ALARM_AGGRESSIVE_DELAY_IN_MS_DEFAULT);
+            int nonAggressiveDelayInMs = Settings.Global.getInt(mResolver,
+                    Settings.Global.DATA_STALL_ALARM_NON_AGGRESSIVE_DELAY_IN_MS,
+                    DATA_STALL_ALARM_NON_AGGRESSIVE_DELAY_IN_MS_DEFAULT);
+            delayInMs = (int) mDataStallDetector.getPollDelay(mIsScreenOn,
+                    suspectedStall || RecoveryAction.isAggressiveRecovery(nextAction),
+                    aggressiveDelayInMs, nonAggressiveDelayInMs);
 
             mDataStallAlarmTag += 1;
             if (VDBG_STALL) {
@@ -1858,6 +1880,7 @@ public abstract class DcTrackerBase extends Handler {
         pw.println(" mDataStallAlarmTag=" + mDataStallAlarmTag);
         pw.println(" mDataStallDetectionEanbled=" + mDataStallDetectionEnabled);
         pw.println(" mSentSinceLastRecv=" + mSentSinceLastRecv);
+        mDataStallDetector.dump(pw);
         pw.println(" mNoRecvPollCount=" + mNoRecvPollCount);
         pw.println(" mResolver=" + mResolver);
         pw.println(" mIsWifiConnected=" + mIsWifiConnected);
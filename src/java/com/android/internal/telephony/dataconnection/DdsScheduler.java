@@ -33,7 +33,9 @@ import android.os.AsyncResult;
 import android.os.Looper;
 import android.os.Message;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.os.SystemProperties;
+import android.net.NetworkCapabilities;
 import android.net.NetworkRequest;
 import android.telephony.Rlog;
 import android.telephony.SubscriptionManager;
@@ -46,6 +48,8 @@ import com.android.internal.util.Protocol;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.HashMap;
 import java.util.Collections;
 import java.util.ArrayList;
@@ -72,21 +76,92 @@ public class DdsScheduler extends StateMachine {
 
     private final String OVERRIDE_MODEM_DUAL_DATA_CAP_PROP = "persist.test.msim.config";
 
+    // How long DDS stays on an on-demand sub once its last request is gone, so a request
+    // for it arriving soon after does not switch away and back again.
+    private final String REVERT_HOLD_MS_PROP = "persist.radio.dds_revert_hold_ms";
+    private final long DEFAULT_REVERT_HOLD_MS = 5000;
+
+    // Request classes, served in this order, most urgent first
+    static final int REQUEST_CLASS_EMERGENCY = 0;
+    static final int REQUEST_CLASS_IMS = 1;
+    static final int REQUEST_CLASS_MMS = 2;
+    static final int REQUEST_CLASS_OTHER = 3;
+    static final int REQUEST_CLASS_INTERNET = 4;
+
     private class NetworkRequestInfo {
         public final NetworkRequest mRequest;
+        public final int mClass;
+        public final long mAddedTime;
         public boolean mAccepted = false;
 
         NetworkRequestInfo(NetworkRequest req) {
             mRequest = req;
+            mClass = getRequestClass(req);
+            mAddedTime = SystemClock.elapsedRealtime();
         }
 
         public String toString() {
-            return mRequest + " accepted = " + mAccepted;
+            return mRequest + " class = " + mClass + " accepted = " + mAccepted;
         }
     }
+    // Ordered by request class, then by age
     private List<NetworkRequestInfo> mInbox = Collections.synchronizedList(
             new ArrayList<NetworkRequestInfo>());
 
+    /** Count and latency of one kind of switch, from the request to the modem's answer. */
+    private static final class SwitchStats {
+        private final String mName;
+        private int mRequested;
+        private int mSucceeded;
+        private int mFailed;
+        private int mTimed;
+        private long mStartTime = -1;
+        private long mLastMs;
+        private long mTotalMs;
+        private long mMaxMs;
+
+        SwitchStats(String name) {
+            mName = name;
+        }
+
+        void onStart(long now) {
+            mRequested++;
+            mStartTime = now;
+        }
+
+        void onDone(long now, boolean success) {
+            if (success) {
+                mSucceeded++;
+            } else {
+                mFailed++;
+            }
+            if (mStartTime < 0) {
+                return;
+            }
+            mLastMs = now - mStartTime;
+            mStartTime = -1;
+            mTimed++;
+            mTotalMs += mLastMs;
+            mMaxMs = Math.max(mMaxMs, mLastMs);
+        }
+
+        @Override
+        public String toString() {
+            return mName + "{requested=" + mRequested + " succeeded=" + mSucceeded
+                    + " failed=" + mFailed + " lastMs=" + mLastMs
+                    + " avgMs=" + (mTimed == 0 ? 0 : mTotalMs / mTimed)
+                    + " maxMs=" + mMaxMs + "}";
+        }
+    }
+    private final SwitchStats mDdsSwitchStats = new SwitchStats("ddsSwitch");
+    private final SwitchStats mPsAttachStats = new SwitchStats("psAttach");
+    private final SwitchStats mRevertStats = new SwitchStats("revert");
+    private int mCoalescedRequests;
+    private int mPingPongAvoided;
+
+    private boolean mRevertHoldPending = false;
+    private int mRevertHoldToken;
+
 
     private static DdsScheduler createDdsScheduler() {
         DdsScheduler ddsScheduler = new DdsScheduler();
@@ -115,7 +190,16 @@ public class DdsScheduler extends StateMachine {
 
     private DdsScheduler() {
         super("DdsScheduler");
+        addStates();
+    }
+
+    /** For tests, which run the scheduler on their own looper. */
+    DdsScheduler(Looper looper) {
+        super("DdsScheduler", looper);
+        addStates();
+    }
 
+    private void addStates() {
         addState(mDefaultState);
             addState(mDdsIdleState, mDefaultState);
             addState(mDdsReservedState, mDefaultState);
@@ -125,15 +209,35 @@ public class DdsScheduler extends StateMachine {
         setInitialState(mDdsIdleState);
     }
 
+    static int getRequestClass(NetworkRequest req) {
+        NetworkCapabilities nc = req.networkCapabilities;
+        if (nc.hasCapability(NetworkCapabilities.NET_CAPABILITY_EIMS)) {
+            return REQUEST_CLASS_EMERGENCY;
+        } else if (nc.hasCapability(NetworkCapabilities.NET_CAPABILITY_IMS)) {
+            return REQUEST_CLASS_IMS;
+        } else if (nc.hasCapability(NetworkCapabilities.NET_CAPABILITY_MMS)) {
+            return REQUEST_CLASS_MMS;
+        } else if (nc.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)) {
+            return REQUEST_CLASS_INTERNET;
+        }
+        return REQUEST_CLASS_OTHER;
+    }
+
     void addRequest(NetworkRequest req) {
         synchronized(mInbox) {
-            mInbox.add(new NetworkRequestInfo(req));
+            NetworkRequestInfo nrInfo = new NetworkRequestInfo(req);
+            // Behind every request of the same or a more urgent class
+            int i = mInbox.size();
+            while (i > 0 && mInbox.get(i - 1).mClass > nrInfo.mClass) {
+                i--;
+            }
+            mInbox.add(i, nrInfo);
         }
     }
 
     void removeRequest(NetworkRequest req) {
         synchronized(mInbox) {
-            for(int i = 0; i < mInbox.size(); i++) {
+            for(int i = mInbox.size() - 1; i >= 0; i--) {
                 NetworkRequestInfo tempNrInfo = mInbox.get(i);
                 if(tempNrInfo.mRequest.equals(req)) {
                     mInbox.remove(i);
@@ -165,6 +269,26 @@ public class DdsScheduler extends StateMachine {
         return false;
     }
 
+    /**
+     * Returns whether an accepted request for the same sub asks for the same network as
+     * nr, so that nr can be accepted along with it.
+     */
+    boolean hasAcceptedEquivalent(NetworkRequest nr) {
+        long subId = getSubIdFromNetworkRequest(nr);
+        synchronized(mInbox) {
+            for (int i = 0; i < mInbox.size(); i++) {
+                NetworkRequestInfo tempNrInfo = mInbox.get(i);
+                if (tempNrInfo.mAccepted && !tempNrInfo.mRequest.equals(nr)
+                        && tempNrInfo.mRequest.networkCapabilities.equals(
+                                nr.networkCapabilities)
+                        && getSubIdFromNetworkRequest(tempNrInfo.mRequest) == subId) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     NetworkRequest getFirstWaitingRequest() {
         synchronized(mInbox) {
             if(mInbox.isEmpty()) {
@@ -179,9 +303,10 @@ public class DdsScheduler extends StateMachine {
         boolean anyAccepted = false;
         synchronized(mInbox) {
             if(!mInbox.isEmpty()) {
+                long currentDds = getCurrentDds();
                 for (int i =0; i < mInbox.size(); i++) {
                     NetworkRequest nr = mInbox.get(i).mRequest;
-                    if (getSubIdFromNetworkRequest(nr) == getCurrentDds()) {
+                    if (getSubIdFromNetworkRequest(nr) == currentDds) {
                         notifyRequestAccepted(nr);
                         anyAccepted = true;
                     }
@@ -284,6 +409,28 @@ public class DdsScheduler extends StateMachine {
        }
     }
 
+    long getRevertHoldMs() {
+        return SystemProperties.getLong(REVERT_HOLD_MS_PROP, DEFAULT_REVERT_HOLD_MS);
+    }
+
+    boolean isRevertHoldPending() {
+        return mRevertHoldPending;
+    }
+
+    /**
+     * Drops a pending revert hold.
+     *
+     * @return true if a hold was pending
+     */
+    private boolean cancelRevertHold() {
+        if (!mRevertHoldPending) {
+            return false;
+        }
+        mRevertHoldPending = false;
+        removeMessages(DdsSchedulerAc.EVENT_REVERT_HOLD_EXPIRED);
+        return true;
+    }
+
     void triggerSwitch(NetworkRequest n) {
         boolean multiDataSupported = false;
 
@@ -294,9 +441,12 @@ public class DdsScheduler extends StateMachine {
             Rlog.d(TAG, "Simultaneous dual-data NOT supported");
         }
 
+        long now = SystemClock.elapsedRealtime();
         if ((n != null) && multiDataSupported) {
+            mPsAttachStats.onStart(now);
             requestPsAttach(n);
         } else {
+            (n == null ? mRevertStats : mDdsSwitchStats).onStart(now);
             requestDdsSwitch(n);
         }
     }
@@ -333,7 +483,15 @@ public class DdsScheduler extends StateMachine {
                     NetworkRequest nr = (NetworkRequest)msg.obj;
                     Rlog.d(TAG, "EVENT_ADD_REQUEST = " + nr);
                     addRequest(nr);
-                    sendMessage(obtainMessage(DdsSchedulerAc.REQ_DDS_ALLOCATION, nr));
+                    if ((getCurrentState() == mDdsReservedState
+                            || getCurrentState() == mPsAttachReservedState)
+                            && hasAcceptedEquivalent(nr)) {
+                        Rlog.d(TAG, "Same as an accepted request, accepting nr = " + nr);
+                        mCoalescedRequests++;
+                        notifyRequestAccepted(nr);
+                    } else {
+                        sendMessage(obtainMessage(DdsSchedulerAc.REQ_DDS_ALLOCATION, nr));
+                    }
                     break;
                 }
 
@@ -356,6 +514,12 @@ public class DdsScheduler extends StateMachine {
                     return HANDLED;
                 }
 
+                case DdsSchedulerAc.EVENT_REVERT_HOLD_EXPIRED: {
+                    Rlog.d(TAG, "Stale EVENT_REVERT_HOLD_EXPIRED, currentState = "
+                            + getCurrentState().getName());
+                    return HANDLED;
+                }
+
                 default: {
                     Rlog.d(TAG, "unknown msg = " + msg);
                     break;
@@ -424,11 +588,22 @@ public class DdsScheduler extends StateMachine {
     private class DdsReservedState extends State {
         static final String TAG = DdsScheduler.TAG + "[DdsReservedState]";
 
-        private void handleOtherSubRequests() {
+        private void handleOtherSubRequests(boolean holdRevert) {
             NetworkRequest nr = getFirstWaitingRequest();
             if (nr == null) {
-                Rlog.d(TAG, "No more requests to accept");
-                transitionTo(mDdsAutoRevertState);
+                long holdMs = getRevertHoldMs();
+                if (mRevertHoldPending) {
+                    Rlog.d(TAG, "No more requests to accept, revert already on hold");
+                } else if (holdRevert && holdMs > 0
+                        && getCurrentDds() != getSubIdFromNetworkRequest(null)) {
+                    Rlog.d(TAG, "No more requests to accept, hold revert for " + holdMs + "ms");
+                    mRevertHoldPending = true;
+                    sendMessageDelayed(obtainMessage(DdsSchedulerAc.EVENT_REVERT_HOLD_EXPIRED,
+                            ++mRevertHoldToken, 0), holdMs);
+                } else {
+                    Rlog.d(TAG, "No more requests to accept");
+                    transitionTo(mDdsAutoRevertState);
+                }
             } else if (getSubIdFromNetworkRequest(nr) != getCurrentDds()) {
                 Rlog.d(TAG, "Switch required for " + nr);
                 transitionTo(mDdsSwitchState);
@@ -443,13 +618,14 @@ public class DdsScheduler extends StateMachine {
         public void enter() {
             Rlog.d(TAG, "Enter");
             if (!acceptWaitingRequest()) {
-                handleOtherSubRequests();
+                handleOtherSubRequests(true);
             }
         }
 
         @Override
         public void exit() {
             Rlog.d(TAG, "Exit");
+            cancelRevertHold();
         }
 
         @Override
@@ -460,10 +636,19 @@ public class DdsScheduler extends StateMachine {
                     NetworkRequest n = (NetworkRequest)msg.obj;
 
                     if (getSubIdFromNetworkRequest(n) == getCurrentDds()) {
+                        if (cancelRevertHold()) {
+                            Rlog.d(TAG, "Revert on hold, DDS kept for n = " + n);
+                            mPingPongAvoided++;
+                        }
                         Rlog.d(TAG, "Accepting simultaneous request for current sub");
                         notifyRequestAccepted(n);
+                    } else if (cancelRevertHold()) {
+                        // Nothing is left on this sub, so revert now as without the hold
+                        Rlog.d(TAG, "Revert on hold, reverting for n = " + n);
+                        transitionTo(mDdsAutoRevertState);
                     } else if (isMultiDataSupported()) {
                         Rlog.d(TAG, "Incoming request is for on-demand subscription, n = " + n);
+                        mPsAttachStats.onStart(SystemClock.elapsedRealtime());
                         requestPsAttach(n);
                     }
                     return HANDLED;
@@ -474,16 +659,28 @@ public class DdsScheduler extends StateMachine {
 
                     if(!acceptWaitingRequest()) {
                         Rlog.d(TAG, "Can't process next in this DDS");
-                        handleOtherSubRequests();
+                        handleOtherSubRequests(true);
                     } else {
                         Rlog.d(TAG, "Processing next in same DDS");
                     }
                     return HANDLED;
                 }
 
+                case DdsSchedulerAc.EVENT_REVERT_HOLD_EXPIRED: {
+                    if (mRevertHoldPending && msg.arg1 == mRevertHoldToken) {
+                        Rlog.d(TAG, "EVENT_REVERT_HOLD_EXPIRED");
+                        mRevertHoldPending = false;
+                        handleOtherSubRequests(false);
+                    } else {
+                        Rlog.d(TAG, "Stale EVENT_REVERT_HOLD_EXPIRED");
+                    }
+                    return HANDLED;
+                }
+
                 case DdsSchedulerAc.EVENT_ON_DEMAND_PS_ATTACH_DONE: {
                     AsyncResult ar = (AsyncResult) msg.obj;
                     NetworkRequest n = (NetworkRequest)ar.result;
+                    mPsAttachStats.onDone(SystemClock.elapsedRealtime(), ar.exception == null);
                     if (ar.exception == null) {
                         updateCurrentDds(n);
                         transitionTo(mPsAttachReservedState);
@@ -600,6 +797,9 @@ public class DdsScheduler extends StateMachine {
                 case DdsSchedulerAc.EVENT_ON_DEMAND_DDS_SWITCH_DONE : {
                     AsyncResult ar = (AsyncResult) msg.obj;
                     NetworkRequest n = (NetworkRequest)ar.result;
+                    (msg.what == DdsSchedulerAc.EVENT_ON_DEMAND_PS_ATTACH_DONE
+                            ? mPsAttachStats : mDdsSwitchStats).onDone(
+                                    SystemClock.elapsedRealtime(), ar.exception == null);
                     if (ar.exception == null) {
                         updateCurrentDds(n);
 
@@ -645,6 +845,8 @@ public class DdsScheduler extends StateMachine {
             switch(msg.what) {
                  case DdsSchedulerAc.EVENT_ON_DEMAND_PS_ATTACH_DONE: {
                     Rlog.d(TAG, "SET_DDS_DONE");
+                    AsyncResult ar = (AsyncResult) msg.obj;
+                    mRevertStats.onDone(SystemClock.elapsedRealtime(), ar.exception == null);
                     updateCurrentDds(null);
 
                     transitionTo(mDdsIdleState);
@@ -658,4 +860,25 @@ public class DdsScheduler extends StateMachine {
             }
         }
     }
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        super.dump(fd, pw, args);
+        pw.println(" mCurrentDds=" + mCurrentDds);
+        pw.println(" " + mDdsSwitchStats);
+        pw.println(" " + mPsAttachStats);
+        pw.println(" " + mRevertStats);
+        pw.println(" mCoalescedRequests=" + mCoalescedRequests
+                + " mPingPongAvoided=" + mPingPongAvoided
+                + " mRevertHoldPending=" + mRevertHoldPending);
+        long now = SystemClock.elapsedRealtime();
+        synchronized(mInbox) {
+            pw.println(" mInbox: size=" + mInbox.size());
+            for (int i = 0; i < mInbox.size(); i++) {
+                NetworkRequestInfo nrInfo = mInbox.get(i);
+                pw.println("  " + nrInfo + " ageMs = " + (now - nrInfo.mAddedTime));
+            }
+        }
+        pw.flush();
+    }
 }
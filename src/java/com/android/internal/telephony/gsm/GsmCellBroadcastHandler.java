@@ -19,6 +19,7 @@ package com.android.internal.telephony.gsm;
 import android.content.Context;
 import android.os.AsyncResult;
 import android.os.Message;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.telephony.CellLocation;
 import android.telephony.SmsCbLocation;
@@ -29,8 +30,10 @@ import com.android.internal.telephony.CellBroadcastHandler;
 import com.android.internal.telephony.PhoneBase;
 import com.android.internal.telephony.TelephonyProperties;
 
-import java.util.HashMap;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 
 /**
  * Handler for 3GPP format Cell Broadcasts. Parent class can also handle CDMA Cell Broadcasts.
@@ -38,9 +41,21 @@ import java.util.Iterator;
 public class GsmCellBroadcastHandler extends CellBroadcastHandler {
     private static final boolean VDBG = false;  // log CB PDU data
 
-    /** This map holds incomplete concatenated messages waiting for assembly. */
-    private final HashMap<SmsCbConcatInfo, byte[][]> mSmsCbPageMap =
-            new HashMap<SmsCbConcatInfo, byte[][]>(4);
+    /** Incomplete messages beyond this many evict the one whose first page is oldest. */
+    private static final int MAX_PENDING_MESSAGES = 8;
+
+    /** Incomplete messages are discarded once their first page is this old. */
+    private static final long PENDING_MESSAGE_TIMEOUT_MS = 5 * 60 * 1000;
+
+    /**
+     * This map holds incomplete concatenated messages waiting for assembly, in the order
+     * their first page arrived.
+     */
+    private final LinkedHashMap<SmsCbConcatInfo, PendingPages> mSmsCbPageMap =
+            new LinkedHashMap<SmsCbConcatInfo, PendingPages>(4);
+
+    private int mDuplicatePages;
+    private int mEvictedMessages;
 
     protected GsmCellBroadcastHandler(Context context, PhoneBase phone) {
         super("GsmCellBroadcastHandler", context, phone);
@@ -137,6 +152,18 @@ public class GsmCellBroadcastHandler extends CellBroadcastHandler {
                     break;
             }
 
+            // Rebroadcasts of a message already dispatched are dropped before any of their
+            // pages are kept or decoded
+            long now = SystemClock.elapsedRealtime();
+            if (mDuplicateFilter.isDuplicate(header.getSerialNumber(),
+                    header.getServiceCategory(), header.isEtwsPrimaryNotification(), location,
+                    now)) {
+                if (VDBG) log("Dropping duplicate SMS CB page: " + header);
+                return null;
+            }
+
+            expirePendingMessages(now);
+
             byte[][] pdus;
             int pageCount = header.getNumberOfPages();
             if (pageCount > 1) {
@@ -144,28 +171,35 @@ public class GsmCellBroadcastHandler extends CellBroadcastHandler {
                 SmsCbConcatInfo concatInfo = new SmsCbConcatInfo(header, location);
 
                 // Try to find other pages of the same message
-                pdus = mSmsCbPageMap.get(concatInfo);
+                PendingPages pending = mSmsCbPageMap.get(concatInfo);
 
-                if (pdus == null) {
+                if (pending == null) {
                     // This is the first page of this message, make room for all
                     // pages and keep until complete
-                    pdus = new byte[pageCount][];
+                    if (mSmsCbPageMap.size() >= MAX_PENDING_MESSAGES) {
+                        Iterator<PendingPages> eldest = mSmsCbPageMap.values().iterator();
+                        eldest.next();
+                        eldest.remove();
+                        mEvictedMessages++;
+                    }
+                    pending = new PendingPages(pageCount, now);
 
-                    mSmsCbPageMap.put(concatInfo, pdus);
+                    mSmsCbPageMap.put(concatInfo, pending);
                 }
 
                 // Page parameter is one-based
-                pdus[header.getPageIndex() - 1] = receivedPdu;
+                if (!pending.addPage(header.getPageIndex(), receivedPdu)) {
+                    mDuplicatePages++;
+                }
 
-                for (byte[] pdu : pdus) {
-                    if (pdu == null) {
-                        // Still missing pages, exit
-                        return null;
-                    }
+                if (!pending.isComplete()) {
+                    // Still missing pages, exit
+                    return null;
                 }
 
                 // Message complete, remove and dispatch
                 mSmsCbPageMap.remove(concatInfo);
+                pdus = pending.mPdus;
             } else {
                 // Single page message
                 pdus = new byte[1][];
@@ -185,6 +219,8 @@ public class GsmCellBroadcastHandler extends CellBroadcastHandler {
                 }
             }
 
+            mDuplicateFilter.add(header.getSerialNumber(), header.getServiceCategory(),
+                    header.isEtwsPrimaryNotification(), location, now);
             return GsmSmsCbMessage.createSmsCbMessage(header, location, pdus);
 
         } catch (RuntimeException e) {
@@ -193,6 +229,55 @@ public class GsmCellBroadcastHandler extends CellBroadcastHandler {
         }
     }
 
+    /**
+     * Discard incomplete messages whose remaining pages are overdue.
+     */
+    private void expirePendingMessages(long now) {
+        Iterator<PendingPages> iter = mSmsCbPageMap.values().iterator();
+        while (iter.hasNext()) {
+            if (now - iter.next().mFirstPageTime <= PENDING_MESSAGE_TIMEOUT_MS) {
+                break;
+            }
+            iter.remove();
+            mEvictedMessages++;
+        }
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        super.dump(fd, pw, args);
+        pw.println(" pending messages=" + mSmsCbPageMap.size() + " duplicate pages="
+                + mDuplicatePages + " evicted messages=" + mEvictedMessages);
+    }
+
+    /**
+     * The pages received so far of a concatenated message.
+     */
+    private static final class PendingPages {
+        final byte[][] mPdus;
+        final long mFirstPageTime;
+        private int mReceived;
+
+        PendingPages(int pageCount, long firstPageTime) {
+            mPdus = new byte[pageCount][];
+            mFirstPageTime = firstPageTime;
+        }
+
+        /**
+         * Stores a page by its one-based index; returns false if it was already received.
+         */
+        boolean addPage(int pageIndex, byte[] pdu) {
+            boolean isNew = mPdus[pageIndex - 1] == null;
+            mPdus[pageIndex - 1] = pdu;
+            if (isNew) mReceived++;
+            return isNew;
+        }
+
+        boolean isComplete() {
+            return mReceived == mPdus.length;
+        }
+    }
+
     /**
      * Holds all info about a message page needed to assemble a complete concatenated message.
      */
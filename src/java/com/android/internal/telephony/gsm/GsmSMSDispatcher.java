@@ -22,6 +22,7 @@ import android.app.PendingIntent;
 import android.app.PendingIntent.CanceledException;
 import android.content.BroadcastReceiver;
 import android.content.Intent;
+import android.content.pm.PackageInfo;
 import android.net.Uri;
 import android.os.AsyncResult;
 import android.os.Message;
@@ -37,6 +38,7 @@ import com.android.internal.telephony.PhoneBase;
 import com.android.internal.telephony.SMSDispatcher;
 import com.android.internal.telephony.SmsApplication;
 import com.android.internal.telephony.SmsConstants;
+import com.android.internal.telephony.SmsDeliveryTracker;
 import com.android.internal.telephony.SmsHeader;
 import com.android.internal.telephony.SmsUsageMonitor;
 import com.android.internal.telephony.uicc.IccConstants;
@@ -138,25 +140,23 @@ public final class GsmSMSDispatcher extends SMSDispatcher {
         if (sms != null) {
             int tpStatus = sms.getStatus();
             int messageRef = sms.mMessageRef;
-            for (int i = 0, count = deliveryPendingList.size(); i < count; i++) {
-                SmsTracker tracker = deliveryPendingList.get(i);
-                if (tracker.mMessageRef == messageRef) {
-                    // Found it.  Remove from list and broadcast.
-                    if(tpStatus >= Sms.STATUS_FAILED || tpStatus < Sms.STATUS_PENDING ) {
-                       deliveryPendingList.remove(i);
-                       // Update the message status (COMPLETE or FAILED)
-                       tracker.updateSentMessageStatus(mContext, tpStatus);
-                    }
-                    PendingIntent intent = tracker.mDeliveryIntent;
+            SmsDeliveryTracker.Entry entry = mDeliveryTracker.find(mPhone.getSubId(), messageRef);
+            if (entry != null) {
+                // Found it.  Remove from list and broadcast.
+                if(tpStatus >= Sms.STATUS_FAILED || tpStatus < Sms.STATUS_PENDING ) {
+                   mDeliveryTracker.remove(entry);
+                   // Update the message status (COMPLETE or FAILED)
+                   entry.updateSentMessageStatus(mContext, tpStatus);
+                }
+                // Entries replayed after a restart have no delivery intent to send
+                if (entry.mTracker != null) {
+                    PendingIntent intent = entry.mTracker.mDeliveryIntent;
                     Intent fillIn = new Intent();
                     fillIn.putExtra("pdu", IccUtils.hexStringToBytes(pduString));
                     fillIn.putExtra("format", getFormat());
                     try {
                         intent.send(mContext, Activity.RESULT_OK, fillIn);
                     } catch (CanceledException ex) {}
-
-                    // Only expect to see one tracker matching this messageref
-                    break;
                 }
             }
         }
@@ -200,6 +200,7 @@ public final class GsmSMSDispatcher extends SMSDispatcher {
                 moveToOutbox(getSubId(), messageUri, callingPkg);
             }
             HashMap map = getSmsTrackerMap(destAddr, scAddr, text, pdu);
+            map.put("priority", priority);
             SmsTracker tracker = getSmsTracker(map, sentIntent, deliveryIntent, getFormat(),
                     messageUri, isExpectMore, validityPeriod);
             sendRawPdu(tracker);
@@ -228,18 +229,36 @@ public final class GsmSMSDispatcher extends SMSDispatcher {
             PendingIntent sentIntent, PendingIntent deliveryIntent, boolean lastPart,
             int priority, boolean isExpectMore, int validityPeriod,
             AtomicInteger unsentPartCount, AtomicBoolean anyPartFailed, Uri messageUri) {
+        SmsTracker tracker = getNewSubmitPduTracker(destinationAddress, scAddress, message,
+                smsHeader, encoding, sentIntent, deliveryIntent, lastPart, priority,
+                isExpectMore, validityPeriod, unsentPartCount, anyPartFailed, messageUri,
+                getCallingAppInfo(), allocateMessageId());
+        if (tracker != null) {
+            sendRawPdu(tracker);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected SmsTracker getNewSubmitPduTracker(String destinationAddress, String scAddress,
+            String message, SmsHeader smsHeader, int encoding,
+            PendingIntent sentIntent, PendingIntent deliveryIntent, boolean lastPart,
+            int priority, boolean isExpectMore, int validityPeriod,
+            AtomicInteger unsentPartCount, AtomicBoolean anyPartFailed, Uri messageUri,
+            PackageInfo appInfo, int messageId) {
         SmsMessage.SubmitPdu pdu = SmsMessage.getSubmitPdu(scAddress, destinationAddress,
                 message, deliveryIntent != null, SmsHeader.toByteArray(smsHeader),
                 encoding, smsHeader.languageTable, smsHeader.languageShiftTable, validityPeriod);
         if (pdu != null) {
             HashMap map =  getSmsTrackerMap(destinationAddress, scAddress,
                     message, pdu);
-            SmsTracker tracker = getSmsTracker(map, sentIntent,
+            map.put("priority", priority);
+            return getSmsTracker(map, sentIntent,
                     deliveryIntent, getFormat(), unsentPartCount, anyPartFailed, messageUri,
-                    smsHeader, (!lastPart || isExpectMore), validityPeriod);
-            sendRawPdu(tracker);
+                    smsHeader, (!lastPart || isExpectMore), validityPeriod, appInfo);
         } else {
             Rlog.e(TAG, "GsmSMSDispatcher.sendNewSubmitPdu(): getSubmitPdu() returned null");
+            return null;
         }
     }
 
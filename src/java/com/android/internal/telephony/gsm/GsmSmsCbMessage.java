@@ -18,13 +18,10 @@ package com.android.internal.telephony.gsm;
 
 import android.telephony.SmsCbLocation;
 import android.telephony.SmsCbMessage;
-import android.util.Pair;
 
 import com.android.internal.telephony.GsmAlphabet;
 import com.android.internal.telephony.SmsConstants;
 
-import java.io.UnsupportedEncodingException;
-
 /**
  * Parses a GSM or UMTS format SMS-CB message into an {@link SmsCbMessage} object. The class is
  * public because {@link #createSmsCbMessage(SmsCbLocation, byte[][])} is used by some test cases.
@@ -68,19 +65,17 @@ public class GsmSmsCbMessage {
                     null, "ETWS", SmsCbMessage.MESSAGE_PRIORITY_EMERGENCY,
                     header.getEtwsInfo(), header.getCmasInfo());
         } else {
-            String language = null;
-            StringBuilder sb = new StringBuilder();
+            BodyDecoder body = new BodyDecoder(header.getDataCodingScheme(),
+                    header.isUmtsFormat(), pdus);
             for (byte[] pdu : pdus) {
-                Pair<String, String> p = parseBody(header, pdu);
-                language = p.first;
-                sb.append(p.second);
+                body.decodePdu(pdu);
             }
             int priority = header.isEmergencyMessage() ? SmsCbMessage.MESSAGE_PRIORITY_EMERGENCY
                     : SmsCbMessage.MESSAGE_PRIORITY_NORMAL;
 
             return new SmsCbMessage(SmsCbMessage.MESSAGE_FORMAT_3GPP,
                     header.getGeographicalScope(), header.getSerialNumber(), location,
-                    header.getServiceCategory(), language, sb.toString(), priority,
+                    header.getServiceCategory(), body.mLanguage, body.toString(), priority,
                     header.getEtwsInfo(), header.getCmasInfo());
         }
     }
@@ -99,189 +94,298 @@ public class GsmSmsCbMessage {
     }
 
     /**
-     * Parse and unpack the body text according to the encoding in the DCS.
-     * After completing successfully this method will have assigned the body
-     * text into mBody, and optionally the language code into mLanguage
-     *
-     * @param header the message header to use
-     * @param pdu the PDU to decode
-     * @return a Pair of Strings containing the language and body of the message
+     * Decodes the pages of a message into one char buffer, sized up front from the PDU
+     * lengths, so the body becomes a single String only once the message is complete. The
+     * data coding scheme is interpreted once per message rather than once per page.
      */
-    private static Pair<String, String> parseBody(SmsCbHeader header, byte[] pdu) {
-        int encoding;
-        String language = null;
-        boolean hasLanguageIndicator = false;
-        int dataCodingScheme = header.getDataCodingScheme();
-
-        // Extract encoding and language from DCS, as defined in 3gpp TS 23.038,
-        // section 5.
-        switch ((dataCodingScheme & 0xf0) >> 4) {
-            case 0x00:
-                encoding = SmsConstants.ENCODING_7BIT;
-                language = LANGUAGE_CODES_GROUP_0[dataCodingScheme & 0x0f];
-                break;
-
-            case 0x01:
-                hasLanguageIndicator = true;
-                if ((dataCodingScheme & 0x0f) == 0x01) {
-                    encoding = SmsConstants.ENCODING_16BIT;
-                } else {
-                    encoding = SmsConstants.ENCODING_7BIT;
-                }
-                break;
+    private static final class BodyDecoder {
+        /** Septets in a full page body. */
+        private static final int PAGE_SEPTETS = PDU_BODY_PAGE_LENGTH * 8 / 7;
 
-            case 0x02:
-                encoding = SmsConstants.ENCODING_7BIT;
-                language = LANGUAGE_CODES_GROUP_2[dataCodingScheme & 0x0f];
-                break;
+        private static final int GSM_EXTENDED_ESCAPE = 0x1b;
 
-            case 0x03:
-                encoding = SmsConstants.ENCODING_7BIT;
-                break;
+        /** Default alphabet and extension table, as used by GsmAlphabet with tables 0, 0. */
+        private static final char[] GSM_TO_CHAR = new char[0x80];
+        private static final char[] GSM_EXTENDED_TO_CHAR = new char[0x80];
 
-            case 0x04:
-            case 0x05:
-                switch ((dataCodingScheme & 0x0c) >> 2) {
-                    case 0x01:
-                        encoding = SmsConstants.ENCODING_8BIT;
-                        break;
+        static {
+            for (int i = 0; i < GSM_TO_CHAR.length; i++) {
+                GSM_TO_CHAR[i] = GsmAlphabet.gsmToChar(i);
+                GSM_EXTENDED_TO_CHAR[i] = GsmAlphabet.gsmExtendedToChar(i);
+            }
+        }
 
-                    case 0x02:
-                        encoding = SmsConstants.ENCODING_16BIT;
-                        break;
+        private final int mEncoding;
+        private final boolean mHasLanguageIndicator;
+        private final String mDcsLanguage;
+        private final boolean mUmtsFormat;
+        private final char[] mBuffer;
+        private int mLength;
 
-                    case 0x00:
-                    default:
+        /** The language of the message; that of the last page, as before. */
+        String mLanguage;
+
+        /** The last language read from a language indicator. */
+        private String mIndicatedLanguage;
+
+        BodyDecoder(int dataCodingScheme, boolean umtsFormat, byte[][] pdus) {
+            int encoding;
+            String language = null;
+            boolean hasLanguageIndicator = false;
+
+            // Extract encoding and language from DCS, as defined in 3gpp TS 23.038,
+            // section 5.
+            switch ((dataCodingScheme & 0xf0) >> 4) {
+                case 0x00:
+                    encoding = SmsConstants.ENCODING_7BIT;
+                    language = LANGUAGE_CODES_GROUP_0[dataCodingScheme & 0x0f];
+                    break;
+
+                case 0x01:
+                    hasLanguageIndicator = true;
+                    if ((dataCodingScheme & 0x0f) == 0x01) {
+                        encoding = SmsConstants.ENCODING_16BIT;
+                    } else {
                         encoding = SmsConstants.ENCODING_7BIT;
-                        break;
-                }
-                break;
-
-            case 0x06:
-            case 0x07:
-                // Compression not supported
-            case 0x09:
-                // UDH structure not supported
-            case 0x0e:
-                // Defined by the WAP forum not supported
-                throw new IllegalArgumentException("Unsupported GSM dataCodingScheme "
-                        + dataCodingScheme);
-
-            case 0x0f:
-                if (((dataCodingScheme & 0x04) >> 2) == 0x01) {
-                    encoding = SmsConstants.ENCODING_8BIT;
-                } else {
+                    }
+                    break;
+
+                case 0x02:
                     encoding = SmsConstants.ENCODING_7BIT;
-                }
-                break;
+                    language = LANGUAGE_CODES_GROUP_2[dataCodingScheme & 0x0f];
+                    break;
 
-            default:
-                // Reserved values are to be treated as 7-bit
-                encoding = SmsConstants.ENCODING_7BIT;
-                break;
-        }
+                case 0x03:
+                    encoding = SmsConstants.ENCODING_7BIT;
+                    break;
 
-        if (header.isUmtsFormat()) {
-            // Payload may contain multiple pages
-            int nrPages = pdu[SmsCbHeader.PDU_HEADER_LENGTH];
+                case 0x04:
+                case 0x05:
+                    switch ((dataCodingScheme & 0x0c) >> 2) {
+                        case 0x01:
+                            encoding = SmsConstants.ENCODING_8BIT;
+                            break;
+
+                        case 0x02:
+                            encoding = SmsConstants.ENCODING_16BIT;
+                            break;
+
+                        case 0x00:
+                        default:
+                            encoding = SmsConstants.ENCODING_7BIT;
+                            break;
+                    }
+                    break;
 
-            if (pdu.length < SmsCbHeader.PDU_HEADER_LENGTH + 1 + (PDU_BODY_PAGE_LENGTH + 1)
-                    * nrPages) {
-                throw new IllegalArgumentException("Pdu length " + pdu.length + " does not match "
-                        + nrPages + " pages");
+                case 0x06:
+                case 0x07:
+                    // Compression not supported
+                case 0x09:
+                    // UDH structure not supported
+                case 0x0e:
+                    // Defined by the WAP forum not supported
+                    throw new IllegalArgumentException("Unsupported GSM dataCodingScheme "
+                            + dataCodingScheme);
+
+                case 0x0f:
+                    if (((dataCodingScheme & 0x04) >> 2) == 0x01) {
+                        encoding = SmsConstants.ENCODING_8BIT;
+                    } else {
+                        encoding = SmsConstants.ENCODING_7BIT;
+                    }
+                    break;
+
+                default:
+                    // Reserved values are to be treated as 7-bit
+                    encoding = SmsConstants.ENCODING_7BIT;
+                    break;
             }
 
-            StringBuilder sb = new StringBuilder();
+            mEncoding = encoding;
+            mHasLanguageIndicator = hasLanguageIndicator;
+            mDcsLanguage = language;
+            mUmtsFormat = umtsFormat;
 
-            for (int i = 0; i < nrPages; i++) {
-                // Each page is 82 bytes followed by a length octet indicating
-                // the number of useful octets within those 82
-                int offset = SmsCbHeader.PDU_HEADER_LENGTH + 1 + (PDU_BODY_PAGE_LENGTH + 1) * i;
-                int length = pdu[offset + PDU_BODY_PAGE_LENGTH];
+            // 7-bit text is the longest decoding of any page
+            int capacity = 0;
+            for (byte[] pdu : pdus) {
+                if (umtsFormat) {
+                    int pages = (pdu.length - SmsCbHeader.PDU_HEADER_LENGTH - 1)
+                            / (PDU_BODY_PAGE_LENGTH + 1);
+                    capacity += Math.max(0, pages) * PAGE_SEPTETS;
+                } else {
+                    capacity += (pdu.length - SmsCbHeader.PDU_HEADER_LENGTH) * 8 / 7;
+                }
+            }
+            mBuffer = new char[capacity];
+        }
 
-                if (length > PDU_BODY_PAGE_LENGTH) {
-                    throw new IllegalArgumentException("Page length " + length
-                            + " exceeds maximum value " + PDU_BODY_PAGE_LENGTH);
+        /**
+         * Appends the body text of one received PDU.
+         */
+        void decodePdu(byte[] pdu) {
+            mLanguage = mDcsLanguage;
+            if (mUmtsFormat) {
+                // Payload may contain multiple pages
+                int nrPages = pdu[SmsCbHeader.PDU_HEADER_LENGTH];
+
+                if (pdu.length < SmsCbHeader.PDU_HEADER_LENGTH + 1 + (PDU_BODY_PAGE_LENGTH + 1)
+                        * nrPages) {
+                    throw new IllegalArgumentException("Pdu length " + pdu.length
+                            + " does not match " + nrPages + " pages");
                 }
 
-                Pair<String, String> p = unpackBody(pdu, encoding, offset, length,
-                        hasLanguageIndicator, language);
-                language = p.first;
-                sb.append(p.second);
+                for (int i = 0; i < nrPages; i++) {
+                    // Each page is 82 bytes followed by a length octet indicating
+                    // the number of useful octets within those 82
+                    int offset = SmsCbHeader.PDU_HEADER_LENGTH + 1
+                            + (PDU_BODY_PAGE_LENGTH + 1) * i;
+                    int length = pdu[offset + PDU_BODY_PAGE_LENGTH];
+
+                    if (length > PDU_BODY_PAGE_LENGTH) {
+                        throw new IllegalArgumentException("Page length " + length
+                                + " exceeds maximum value " + PDU_BODY_PAGE_LENGTH);
+                    }
+
+                    decodePage(pdu, offset, length);
+                }
+            } else {
+                // Payload is one single page
+                int offset = SmsCbHeader.PDU_HEADER_LENGTH;
+                decodePage(pdu, offset, pdu.length - offset);
             }
-            return new Pair<String, String>(language, sb.toString());
-        } else {
-            // Payload is one single page
-            int offset = SmsCbHeader.PDU_HEADER_LENGTH;
-            int length = pdu.length - offset;
+        }
+
+        /**
+         * Appends the body text of one page at the given position and length within the
+         * pdu, taking the language from its language indicator if the DCS says it has one.
+         */
+        private void decodePage(byte[] pdu, int offset, int length) {
+            int start = mLength;
+
+            switch (mEncoding) {
+                case SmsConstants.ENCODING_7BIT:
+                    unpackSeptets(pdu, offset, length * 8 / 7);
+
+                    if (mHasLanguageIndicator && mLength - start > 2) {
+                        // Language is two GSM characters followed by a CR.
+                        // The actual body text is offset by 3 characters.
+                        setLanguage(start, 2);
+                        System.arraycopy(mBuffer, start + 3, mBuffer, start,
+                                mLength - start - 3);
+                        mLength -= 3;
+                    }
+                    break;
+
+                case SmsConstants.ENCODING_16BIT:
+                    if (mHasLanguageIndicator && pdu.length >= offset + 2) {
+                        // Language is two GSM characters.
+                        // The actual body text is offset by 2 bytes.
+                        unpackSeptets(pdu, offset, 2);
+                        setLanguage(start, mLength - start);
+                        mLength = start;
+                        offset += 2;
+                        length -= 2;
+                    }
+                    decodeUtf16(pdu, offset, length & 0xfffe);
+                    break;
 
-            return unpackBody(pdu, encoding, offset, length, hasLanguageIndicator, language);
+                default:
+                    break;
+            }
+
+            // Remove trailing carriage return
+            for (int i = mLength - 1; i >= start; i--) {
+                if (mBuffer[i] != CARRIAGE_RETURN) {
+                    mLength = i + 1;
+                    break;
+                }
+            }
         }
-    }
 
-    /**
-     * Unpack body text from the pdu using the given encoding, position and
-     * length within the pdu
-     *
-     * @param pdu The pdu
-     * @param encoding The encoding, as derived from the DCS
-     * @param offset Position of the first byte to unpack
-     * @param length Number of bytes to unpack
-     * @param hasLanguageIndicator true if the body text is preceded by a
-     *            language indicator. If so, this method will as a side-effect
-     *            assign the extracted language code into mLanguage
-     * @param language the language to return if hasLanguageIndicator is false
-     * @return a Pair of Strings containing the language and body of the message
-     */
-    private static Pair<String, String> unpackBody(byte[] pdu, int encoding, int offset, int length,
-            boolean hasLanguageIndicator, String language) {
-        String body = null;
-
-        switch (encoding) {
-            case SmsConstants.ENCODING_7BIT:
-                body = GsmAlphabet.gsm7BitPackedToString(pdu, offset, length * 8 / 7);
-
-                if (hasLanguageIndicator && body != null && body.length() > 2) {
-                    // Language is two GSM characters followed by a CR.
-                    // The actual body text is offset by 3 characters.
-                    language = body.substring(0, 2);
-                    body = body.substring(3);
+        /**
+         * Appends count septets of GSM default alphabet text packed from pdu[offset].
+         */
+        private void unpackSeptets(byte[] pdu, int offset, int count) {
+            int acc = 0;
+            int bits = 0;
+            boolean prevCharWasEscape = false;
+            for (int i = 0; i < count; i++) {
+                if (bits < 7) {
+                    acc |= (pdu[offset++] & 0xff) << bits;
+                    bits += 8;
                 }
-                break;
+                int gsmVal = acc & 0x7f;
+                acc >>>= 7;
+                bits -= 7;
+
+                if (prevCharWasEscape) {
+                    // display ' ' for reserved double escape sequence
+                    mBuffer[mLength++] = gsmVal == GSM_EXTENDED_ESCAPE ? ' '
+                            : GSM_EXTENDED_TO_CHAR[gsmVal];
+                    prevCharWasEscape = false;
+                } else if (gsmVal == GSM_EXTENDED_ESCAPE) {
+                    prevCharWasEscape = true;
+                } else {
+                    mBuffer[mLength++] = GSM_TO_CHAR[gsmVal];
+                }
+            }
+        }
 
-            case SmsConstants.ENCODING_16BIT:
-                if (hasLanguageIndicator && pdu.length >= offset + 2) {
-                    // Language is two GSM characters.
-                    // The actual body text is offset by 2 bytes.
-                    language = GsmAlphabet.gsm7BitPackedToString(pdu, offset, 2);
+        /**
+         * Appends byteCount bytes of UTF-16 text, big endian unless preceded by a little
+         * endian byte order mark. Unpaired surrogates decode as U+FFFD.
+         */
+        private void decodeUtf16(byte[] pdu, int offset, int byteCount) {
+            if (byteCount < 0 || offset + byteCount > pdu.length) {
+                throw new IllegalArgumentException("Error decoding UTF-16 message");
+            }
+            int end = offset + byteCount;
+            boolean littleEndian = false;
+            if (byteCount >= 2) {
+                int bom = ((pdu[offset] & 0xff) << 8) | (pdu[offset + 1] & 0xff);
+                if (bom == 0xfeff || bom == 0xfffe) {
+                    littleEndian = bom == 0xfffe;
                     offset += 2;
-                    length -= 2;
                 }
-
-                try {
-                    body = new String(pdu, offset, (length & 0xfffe), "utf-16");
-                } catch (UnsupportedEncodingException e) {
-                    // Apparently it wasn't valid UTF-16.
-                    throw new IllegalArgumentException("Error decoding UTF-16 message", e);
+            }
+            int start = mLength;
+            for (; offset < end; offset += 2) {
+                int hi = pdu[offset] & 0xff;
+                int lo = pdu[offset + 1] & 0xff;
+                mBuffer[mLength++] = littleEndian ? (char) ((lo << 8) | hi)
+                        : (char) ((hi << 8) | lo);
+            }
+            for (int i = start; i < mLength; i++) {
+                char c = mBuffer[i];
+                if (Character.isHighSurrogate(c) && i + 1 < mLength
+                        && Character.isLowSurrogate(mBuffer[i + 1])) {
+                    i++;
+                } else if (Character.isSurrogate(c)) {
+                    mBuffer[i] = '\uFFFD';
                 }
-                break;
-
-            default:
-                break;
+            }
         }
 
-        if (body != null) {
-            // Remove trailing carriage return
-            for (int i = body.length() - 1; i >= 0; i--) {
-                if (body.charAt(i) != CARRIAGE_RETURN) {
-                    body = body.substring(0, i + 1);
-                    break;
-                }
+        /**
+         * Sets the language to the count chars at mBuffer[start], reusing the String of the
+         * previous page when it is the same, as it is for every page of a message.
+         */
+        private void setLanguage(int start, int count) {
+            String language = mIndicatedLanguage;
+            boolean same = language != null && language.length() == count;
+            for (int i = 0; i < count && same; i++) {
+                same = language.charAt(i) == mBuffer[start + i];
             }
-        } else {
-            body = "";
+            if (!same) {
+                mIndicatedLanguage = new String(mBuffer, start, count);
+            }
+            mLanguage = mIndicatedLanguage;
         }
 
-        return new Pair<String, String>(language, body);
+        @Override
+        public String toString() {
+            return new String(mBuffer, 0, mLength);
+        }
     }
 }
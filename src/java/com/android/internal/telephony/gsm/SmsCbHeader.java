@@ -84,11 +84,17 @@ class SmsCbHeader {
 
     private final int mFormat;
 
-    /** ETWS warning notification info. */
-    private final SmsCbEtwsInfo mEtwsInfo;
+    /** The PDU of an ETWS primary notification, for its warning info. */
+    private final byte[] mEtwsPrimaryPdu;
 
-    /** CMAS warning notification info. */
-    private final SmsCbCmasInfo mCmasInfo;
+    /**
+     * ETWS warning notification info. Created on first use, since the header of every
+     * page is parsed but only that of a complete, new message is delivered.
+     */
+    private SmsCbEtwsInfo mEtwsInfo;
+
+    /** CMAS warning notification info, created on first use. */
+    private SmsCbCmasInfo mCmasInfo;
 
     public SmsCbHeader(byte[] pdu) throws IllegalArgumentException {
         if (pdu == null || pdu.length < PDU_HEADER_LENGTH) {
@@ -108,20 +114,8 @@ class SmsCbHeader {
                 mDataCodingScheme = -1;
                 mPageIndex = -1;
                 mNrOfPages = -1;
-                boolean emergencyUserAlert = (pdu[4] & 0x1) != 0;
-                boolean activatePopup = (pdu[5] & 0x80) != 0;
-                int warningType = (pdu[4] & 0xfe) >>> 1;
-                byte[] warningSecurityInfo;
-                // copy the Warning-Security-Information, if present
-                if (pdu.length > PDU_HEADER_LENGTH) {
-                    warningSecurityInfo = Arrays.copyOfRange(pdu, 6, pdu.length);
-                } else {
-                    warningSecurityInfo = null;
-                }
-                mEtwsInfo = new SmsCbEtwsInfo(warningType, emergencyUserAlert, activatePopup,
-                        warningSecurityInfo);
-                mCmasInfo = null;
-                return;     // skip the ETWS/CMAS initialization code for regular notifications
+                mEtwsPrimaryPdu = pdu;
+                return;
             } else {
                 // GSM pdus are no more than 88 bytes
                 mFormat = FORMAT_GSM;
@@ -161,25 +155,7 @@ class SmsCbHeader {
             mPageIndex = 1;
             mNrOfPages = 1;
         }
-
-        if (isEtwsMessage()) {
-            boolean emergencyUserAlert = isEtwsEmergencyUserAlert();
-            boolean activatePopup = isEtwsPopupAlert();
-            int warningType = getEtwsWarningType();
-            mEtwsInfo = new SmsCbEtwsInfo(warningType, emergencyUserAlert, activatePopup, null);
-            mCmasInfo = null;
-        } else if (isCmasMessage()) {
-            int messageClass = getCmasMessageClass();
-            int severity = getCmasSeverity();
-            int urgency = getCmasUrgency();
-            int certainty = getCmasCertainty();
-            mEtwsInfo = null;
-            mCmasInfo = new SmsCbCmasInfo(messageClass, SmsCbCmasInfo.CMAS_CATEGORY_UNKNOWN,
-                    SmsCbCmasInfo.CMAS_RESPONSE_TYPE_UNKNOWN, severity, urgency, certainty);
-        } else {
-            mEtwsInfo = null;
-            mCmasInfo = null;
-        }
+        mEtwsPrimaryPdu = null;
     }
 
     int getGeographicalScope() {
@@ -207,10 +183,42 @@ class SmsCbHeader {
     }
 
     SmsCbEtwsInfo getEtwsInfo() {
+        if (mEtwsInfo == null) {
+            if (mEtwsPrimaryPdu != null) {
+                byte[] pdu = mEtwsPrimaryPdu;
+                boolean emergencyUserAlert = (pdu[4] & 0x1) != 0;
+                boolean activatePopup = (pdu[5] & 0x80) != 0;
+                int warningType = (pdu[4] & 0xfe) >>> 1;
+                byte[] warningSecurityInfo;
+                // copy the Warning-Security-Information, if present
+                if (pdu.length > PDU_HEADER_LENGTH) {
+                    warningSecurityInfo = Arrays.copyOfRange(pdu, 6, pdu.length);
+                } else {
+                    warningSecurityInfo = null;
+                }
+                mEtwsInfo = new SmsCbEtwsInfo(warningType, emergencyUserAlert, activatePopup,
+                        warningSecurityInfo);
+            } else if (isEtwsMessage()) {
+                boolean emergencyUserAlert = isEtwsEmergencyUserAlert();
+                boolean activatePopup = isEtwsPopupAlert();
+                int warningType = getEtwsWarningType();
+                mEtwsInfo = new SmsCbEtwsInfo(warningType, emergencyUserAlert, activatePopup,
+                        null);
+            }
+        }
         return mEtwsInfo;
     }
 
     SmsCbCmasInfo getCmasInfo() {
+        if (mCmasInfo == null && mEtwsPrimaryPdu == null && !isEtwsMessage()
+                && isCmasMessage()) {
+            int messageClass = getCmasMessageClass();
+            int severity = getCmasSeverity();
+            int urgency = getCmasUrgency();
+            int certainty = getCmasCertainty();
+            mCmasInfo = new SmsCbCmasInfo(messageClass, SmsCbCmasInfo.CMAS_CATEGORY_UNKNOWN,
+                    SmsCbCmasInfo.CMAS_RESPONSE_TYPE_UNKNOWN, severity, urgency, certainty);
+        }
         return mCmasInfo;
     }
 
@@ -20,7 +20,6 @@ import android.telephony.PhoneNumberUtils;
 import android.text.format.Time;
 import android.telephony.Rlog;
 import android.content.res.Resources;
-import android.text.TextUtils;
 
 import com.android.internal.telephony.EncodeException;
 import com.android.internal.telephony.GsmAlphabet;
@@ -28,7 +27,7 @@ import com.android.internal.telephony.GsmAlphabet.TextEncodingDetails;
 import com.android.internal.telephony.uicc.IccUtils;
 import com.android.internal.telephony.SmsHeader;
 import com.android.internal.telephony.SmsMessageBase;
-import com.android.internal.telephony.Sms7BitEncodingTranslator;
+import com.android.internal.telephony.SmsLengthCalculator;
 
 import java.io.ByteArrayOutputStream;
 import java.io.UnsupportedEncodingException;
@@ -42,7 +41,6 @@ import static com.android.internal.telephony.SmsConstants.ENCODING_16BIT;
 import static com.android.internal.telephony.SmsConstants.ENCODING_KSC5601;
 import static com.android.internal.telephony.SmsConstants.MAX_USER_DATA_SEPTETS;
 import static com.android.internal.telephony.SmsConstants.MAX_USER_DATA_BYTES;
-import static com.android.internal.telephony.SmsConstants.MAX_USER_DATA_BYTES_WITH_HEADER;
 
 /**
  * A Short Message Service message.
@@ -86,6 +84,23 @@ public class SmsMessage extends SmsMessageBase {
 
     private int mVoiceMailCount = 0;
 
+    /** Encoding of the user data payload, derived from the TP-DCS. */
+    private int mEncodingType = ENCODING_UNKNOWN;
+
+    /** True if the TP-UDHI bit says the user data starts with a header. */
+    private boolean mHasUserDataHeader;
+
+    /** Number of septets or octets in the user data payload, once the header is decoded. */
+    private int mUserDataCount;
+
+    /**
+     * Parser cued at the TP-User-Data-Length while decoding of the user data header or
+     * message body is still deferred; see {@link #createFromPdu(byte[], boolean)}.
+     */
+    private PduParser mDeferredParser;
+    private boolean mUserDataHeaderDeferred;
+    private boolean mMessageBodyDeferred;
+
     private static final int VALIDITY_PERIOD_FORMAT_NONE = 0x00;
     private static final int VALIDITY_PERIOD_FORMAT_ENHANCED = 0x01;
     private static final int VALIDITY_PERIOD_FORMAT_RELATIVE = 0x02;
@@ -105,9 +120,26 @@ public class SmsMessage extends SmsMessageBase {
      * Create an SmsMessage from a raw PDU.
      */
     public static SmsMessage createFromPdu(byte[] pdu) {
+        return createFromPdu(pdu, false);
+    }
+
+    /**
+     * Create an SmsMessage from a raw PDU.
+     *
+     * With decodeLazily set, only the fixed position fields are parsed up front; the user
+     * data header and the message body are decoded on first access. Callers that only look
+     * at the header, message class or ports then never pay for decoding the text. Errors
+     * found in the user data at that point are logged and leave the header or body null,
+     * rather than failing the whole message.
+     *
+     * @param pdu the raw PDU
+     * @param decodeLazily true to defer decoding of the user data until it is accessed
+     * @return the message, or null if the fixed position fields could not be parsed
+     */
+    public static SmsMessage createFromPdu(byte[] pdu, boolean decodeLazily) {
         try {
             SmsMessage msg = new SmsMessage();
-            msg.parsePdu(pdu);
+            msg.parsePdu(pdu, decodeLazily);
             return msg;
         } catch (RuntimeException ex) {
             Rlog.e(LOG_TAG, "SMS PDU parsing failed: ", ex);
@@ -138,7 +170,8 @@ public class SmsMessage extends SmsMessageBase {
     public static SmsMessage newFromCMT(String[] lines) {
         try {
             SmsMessage msg = new SmsMessage();
-            msg.parsePdu(IccUtils.hexStringToBytes(lines[1]));
+            // Inbound messages are mostly handed on as PDUs, so decode the text on demand
+            msg.parsePdu(IccUtils.hexStringToBytes(lines[1]), true);
             return msg;
         } catch (RuntimeException ex) {
             Rlog.e(LOG_TAG, "SMS PDU parsing failed: ", ex);
@@ -622,6 +655,7 @@ public class SmsMessage extends SmsMessageBase {
     private static class PduParser {
         byte mPdu[];
         int mCur;
+        boolean mDecodeLazily;
         SmsHeader mUserDataHeader;
         byte[] mUserData;
         int mUserDataSeptetPadding;
@@ -754,9 +788,11 @@ public class SmsMessage extends SmsMessageBase {
             if (hasUserDataHeader) {
                 userDataHeaderLength = mPdu[offset++] & 0xff;
 
-                byte[] udh = new byte[userDataHeaderLength];
-                System.arraycopy(mPdu, offset, udh, 0, userDataHeaderLength);
-                mUserDataHeader = SmsHeader.fromByteArray(udh);
+                if (offset + userDataHeaderLength > mPdu.length) {
+                    throw new ArrayIndexOutOfBoundsException("user data header length "
+                            + userDataHeaderLength + " exceeds PDU");
+                }
+                mUserDataHeader = SmsHeader.fromByteArray(mPdu, offset, userDataHeaderLength);
                 offset += userDataHeaderLength;
 
                 int headerBits = (userDataHeaderLength + 1) * 8;
@@ -909,43 +945,7 @@ public class SmsMessage extends SmsMessageBase {
      */
     public static TextEncodingDetails calculateLength(CharSequence msgBody,
             boolean use7bitOnly) {
-        CharSequence newMsgBody = null;
-        Resources r = Resources.getSystem();
-        if (r.getBoolean(com.android.internal.R.bool.config_sms_force_7bit_encoding)) {
-            newMsgBody  = Sms7BitEncodingTranslator.translate(msgBody);
-        }
-        if (TextUtils.isEmpty(newMsgBody)) {
-            newMsgBody = msgBody;
-        }
-        TextEncodingDetails ted = GsmAlphabet.countGsmSeptets(newMsgBody, use7bitOnly);
-        if (ted == null) {
-            ted = new TextEncodingDetails();
-            int octets = newMsgBody.length() * 2;
-            ted.codeUnitCount = newMsgBody.length();
-            if (octets > MAX_USER_DATA_BYTES) {
-                // If EMS is not supported, break down EMS into single segment SMS
-                // and add page info " x/y".
-                // In the case of UCS2 encoding type, we need 8 bytes for this
-                // but we only have 6 bytes from UDH, so truncate the limit for
-                // each segment by 2 bytes (1 char).
-                int max_user_data_bytes_with_header = MAX_USER_DATA_BYTES_WITH_HEADER;
-                if (!android.telephony.SmsMessage.hasEmsSupport()) {
-                    // make sure total number of segments is less than 10
-                    if (octets <= 9 * (max_user_data_bytes_with_header - 2))
-                        max_user_data_bytes_with_header -= 2;
-                }
-
-                ted.msgCount = (octets + (max_user_data_bytes_with_header - 1)) /
-                        max_user_data_bytes_with_header;
-                ted.codeUnitsRemaining = ((ted.msgCount *
-                        max_user_data_bytes_with_header) - octets) / 2;
-            } else {
-                ted.msgCount = 1;
-                ted.codeUnitsRemaining = (MAX_USER_DATA_BYTES - octets)/2;
-            }
-            ted.codeUnitSize = ENCODING_16BIT;
-        }
-        return ted;
+        return SmsLengthCalculator.calculateLength(msgBody, use7bitOnly, false);
     }
 
     /** {@inheritDoc} */
@@ -980,6 +980,7 @@ public class SmsMessage extends SmsMessageBase {
     /** {@inheritDoc} */
     @Override
     public boolean isMWIClearMessage() {
+        ensureUserDataHeader();
         if (mIsMwi && !mMwiSense) {
             return true;
         }
@@ -991,6 +992,7 @@ public class SmsMessage extends SmsMessageBase {
     /** {@inheritDoc} */
     @Override
     public boolean isMWISetMessage() {
+        ensureUserDataHeader();
         if (mIsMwi && mMwiSense) {
             return true;
         }
@@ -1002,6 +1004,7 @@ public class SmsMessage extends SmsMessageBase {
     /** {@inheritDoc} */
     @Override
     public boolean isMwiDontStore() {
+        ensureUserDataHeader();
         if (mIsMwi && mMwiDontStore) {
             return true;
         }
@@ -1045,11 +1048,16 @@ public class SmsMessage extends SmsMessageBase {
      * something else...
      */
     private void parsePdu(byte[] pdu) {
+        parsePdu(pdu, false);
+    }
+
+    private void parsePdu(byte[] pdu, boolean decodeLazily) {
         mPdu = pdu;
         // Rlog.d(LOG_TAG, "raw sms message:");
         // Rlog.d(LOG_TAG, s);
 
         PduParser p = new PduParser(pdu);
+        p.mDecodeLazily = decodeLazily;
 
         mScAddress = p.getSCAddress();
 
@@ -1339,9 +1347,50 @@ public class SmsMessage extends SmsMessageBase {
                     + (mDataCodingScheme & 0xff));
         }
 
+        if (!hasMessageClass) {
+            messageClass = MessageClass.UNKNOWN;
+        } else {
+            switch (mDataCodingScheme & 0x3) {
+            case 0:
+                messageClass = MessageClass.CLASS_0;
+                break;
+            case 1:
+                messageClass = MessageClass.CLASS_1;
+                break;
+            case 2:
+                messageClass = MessageClass.CLASS_2;
+                break;
+            case 3:
+                messageClass = MessageClass.CLASS_3;
+                break;
+            }
+        }
+
+        mEncodingType = encodingType;
+        mHasUserDataHeader = hasUserDataHeader;
+
+        if (p.mDecodeLazily) {
+            mDeferredParser = p;
+            mUserDataHeaderDeferred = true;
+            mMessageBodyDeferred = true;
+        } else {
+            parseUserDataHeader(p);
+            parseUserDataBody(p);
+        }
+    }
+
+    /**
+     * Separates the user data header from the payload and applies any message waiting
+     * indication found in the header.
+     *
+     * @param p The current PduParser, cued at the TP-User-Data-Length.
+     */
+    private void parseUserDataHeader(PduParser p) {
+        boolean hasUserDataHeader = mHasUserDataHeader;
+
         // set both the user data and the user data header.
-        int count = p.constructUserData(hasUserDataHeader,
-                encodingType == ENCODING_7BIT);
+        mUserDataCount = p.constructUserData(hasUserDataHeader,
+                mEncodingType == ENCODING_7BIT);
         this.mUserData = p.getUserData();
         this.mUserDataHeader = p.getUserDataHeader();
 
@@ -1413,8 +1462,18 @@ public class SmsMessage extends SmsMessageBase {
                 }
             } // end of for
         } // end of if UDH
+    }
 
-        switch (encodingType) {
+    /**
+     * Decodes the user data payload into the message body.
+     *
+     * @param p The current PduParser, cued past the user data header.
+     */
+    private void parseUserDataBody(PduParser p) {
+        boolean hasUserDataHeader = mHasUserDataHeader;
+        int count = mUserDataCount;
+
+        switch (mEncodingType) {
         case ENCODING_UNKNOWN:
             mMessageBody = null;
             break;
@@ -1451,25 +1510,103 @@ public class SmsMessage extends SmsMessageBase {
         if (mMessageBody != null) {
             parseMessageBody();
         }
+    }
 
-        if (!hasMessageClass) {
-            messageClass = MessageClass.UNKNOWN;
-        } else {
-            switch (mDataCodingScheme & 0x3) {
-            case 0:
-                messageClass = MessageClass.CLASS_0;
-                break;
-            case 1:
-                messageClass = MessageClass.CLASS_1;
-                break;
-            case 2:
-                messageClass = MessageClass.CLASS_2;
-                break;
-            case 3:
-                messageClass = MessageClass.CLASS_3;
-                break;
-            }
+    /**
+     * Decodes the user data header if that was deferred.
+     */
+    private synchronized void ensureUserDataHeader() {
+        if (!mUserDataHeaderDeferred) {
+            return;
         }
+        mUserDataHeaderDeferred = false;
+        try {
+            parseUserDataHeader(mDeferredParser);
+        } catch (RuntimeException ex) {
+            Rlog.e(LOG_TAG, "SMS user data header parsing failed: ", ex);
+            mMessageBodyDeferred = false;
+            mDeferredParser = null;
+        }
+    }
+
+    /**
+     * Decodes the message body, and the user data header before it, if that was deferred.
+     */
+    private synchronized void ensureMessageBody() {
+        ensureUserDataHeader();
+        if (!mMessageBodyDeferred) {
+            return;
+        }
+        mMessageBodyDeferred = false;
+        try {
+            parseUserDataBody(mDeferredParser);
+        } catch (RuntimeException ex) {
+            Rlog.e(LOG_TAG, "SMS message body parsing failed: ", ex);
+        }
+        mDeferredParser = null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getMessageBody() {
+        ensureMessageBody();
+        return super.getMessageBody();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getDisplayMessageBody() {
+        ensureMessageBody();
+        return super.getDisplayMessageBody();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getDisplayOriginatingAddress() {
+        ensureMessageBody();
+        return super.getDisplayOriginatingAddress();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getPseudoSubject() {
+        ensureMessageBody();
+        return super.getPseudoSubject();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isEmail() {
+        ensureMessageBody();
+        return super.isEmail();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getEmailBody() {
+        ensureMessageBody();
+        return super.getEmailBody();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getEmailFrom() {
+        ensureMessageBody();
+        return super.getEmailFrom();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public byte[] getUserData() {
+        ensureUserDataHeader();
+        return super.getUserData();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public SmsHeader getUserDataHeader() {
+        ensureUserDataHeader();
+        return super.getUserDataHeader();
     }
 
     /**
@@ -1492,6 +1629,7 @@ public class SmsMessage extends SmsMessageBase {
     }
 
     public int getNumOfVoicemails() {
+        ensureUserDataHeader();
         /*
          * Order of priority if multiple indications are present is 1.UDH,
          *      2.DCS, 3.CPHS.
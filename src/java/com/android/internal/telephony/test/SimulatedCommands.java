@@ -23,11 +23,16 @@ import android.os.AsyncResult;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.telephony.PhoneNumberUtils;
 import android.telephony.Rlog;
+import android.telephony.SmsMessage;
 
 import com.android.internal.telephony.BaseCommands;
 import com.android.internal.telephony.CommandException;
 import com.android.internal.telephony.CommandsInterface;
+import com.android.internal.telephony.EncodeException;
+import com.android.internal.telephony.GsmAlphabet;
+import com.android.internal.telephony.SmsHeader;
 import com.android.internal.telephony.cdma.CdmaSmsBroadcastConfigInfo;
 import com.android.internal.telephony.dataconnection.DataCallResponse;
 import com.android.internal.telephony.dataconnection.DataProfile;
@@ -36,8 +41,11 @@ import com.android.internal.telephony.UUSInfo;
 import com.android.internal.telephony.gsm.CallFailCause;
 import com.android.internal.telephony.gsm.SmsBroadcastConfigInfo;
 import com.android.internal.telephony.gsm.SuppServiceNotification;
+import com.android.internal.telephony.uicc.IccUtils;
 
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class SimulatedCommands extends BaseCommands
         implements CommandsInterface, SimulatedRadioControl {
@@ -86,6 +94,8 @@ public final class SimulatedCommands extends BaseCommands
 
     int mNextCallFailCause = CallFailCause.NORMAL_CLEARING;
 
+    private final AtomicInteger mGsmSmsAckCount = new AtomicInteger();
+
     //***** Constructor
 
     public
@@ -1118,7 +1128,8 @@ public final class SimulatedCommands extends BaseCommands
 
     @Override
     public void acknowledgeLastIncomingGsmSms(boolean success, int cause, Message result) {
-        unimplemented(result);
+        mGsmSmsAckCount.incrementAndGet();
+        resultSuccess(result, null);
     }
 
     @Override
@@ -1437,7 +1448,56 @@ public final class SimulatedCommands extends BaseCommands
     @Override
     public void
     triggerIncomingSMS(String message) {
-        //TODO
+        try {
+            triggerIncomingGsmSms(makeGsmDeliverPdu("+15555551234", message, null));
+        } catch (EncodeException e) {
+            Rlog.e(LOG_TAG, "triggerIncomingSMS: can't encode message", e);
+        }
+    }
+
+    /**
+     * Delivers a GSM SMS PDU as RIL_UNSOL_RESPONSE_NEW_SMS would.
+     *
+     * @param pdu SMS-DELIVER PDU as a hex string, starting with the SMSC address
+     */
+    public void triggerIncomingGsmSms(String pdu) {
+        String[] lines = new String[2];
+        lines[1] = pdu;
+        SmsMessage sms = SmsMessage.newFromCMT(lines);
+        if (mGsmSmsRegistrant != null) {
+            mGsmSmsRegistrant.notifyRegistrant(new AsyncResult(null, sms, null));
+        }
+    }
+
+    /**
+     * Returns the number of incoming GSM SMS acknowledged so far.
+     */
+    public int getGsmSmsAckCount() {
+        return mGsmSmsAckCount.get();
+    }
+
+    /**
+     * Builds a 7-bit SMS-DELIVER PDU without SMSC address, for {@link #triggerIncomingGsmSms}.
+     *
+     * @param header user data header, e.g. to concatenate parts, or null
+     */
+    public static String makeGsmDeliverPdu(String originatingAddress, String body,
+            SmsHeader header) throws EncodeException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(180);
+        out.write(0x00);                            // no SMSC address
+        out.write(header != null ? 0x44 : 0x04);    // SMS-DELIVER, no more messages, UDHI
+        byte[] address = PhoneNumberUtils.numberToCalledPartyBCD(originatingAddress);
+        String digits = PhoneNumberUtils.stripSeparators(originatingAddress);
+        out.write(digits.startsWith("+") ? digits.length() - 1 : digits.length());
+        out.write(address, 0, address.length);      // type of address, then BCD digits
+        out.write(0x00);                            // protocol identifier
+        out.write(0x00);                            // GSM 7-bit default alphabet
+        byte[] timestamp = IccUtils.hexStringToBytes("41101000000000");
+        out.write(timestamp, 0, timestamp.length);
+        byte[] userData = GsmAlphabet.stringToGsm7BitPackedWithHeader(body,
+                header != null ? SmsHeader.toByteArray(header) : null);
+        out.write(userData, 0, userData.length);    // septet count, then packed septets
+        return IccUtils.bytesToHexString(out.toByteArray());
     }
 
     @Override
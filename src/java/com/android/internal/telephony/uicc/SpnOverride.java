@@ -16,80 +16,26 @@
 
 package com.android.internal.telephony.uicc;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
-import java.util.HashMap;
-
-import org.xmlpull.v1.XmlPullParser;
-import org.xmlpull.v1.XmlPullParserException;
-
-import android.os.Environment;
-import android.telephony.Rlog;
-import android.util.Xml;
-
-import com.android.internal.util.XmlUtils;
+import com.android.internal.telephony.OperatorDatabase;
 
+/**
+ * Partner SPN overrides from etc/spn-conf.xml, served from the shared
+ * {@link OperatorDatabase} so the XML is not re-parsed per phone.
+ */
 public class SpnOverride {
-    private HashMap<String, String> mCarrierSpnMap;
-
+    private final OperatorDatabase mOperatorDatabase;
 
     static final String LOG_TAG = "SpnOverride";
-    static final String PARTNER_SPN_OVERRIDE_PATH ="etc/spn-conf.xml";
 
     public SpnOverride () {
-        mCarrierSpnMap = new HashMap<String, String>();
-        loadSpnOverrides();
+        mOperatorDatabase = OperatorDatabase.getInstance();
     }
 
     public boolean containsCarrier(String carrier) {
-        return mCarrierSpnMap.containsKey(carrier);
+        return mOperatorDatabase.contains(OperatorDatabase.TABLE_SPN_OVERRIDE, carrier);
     }
 
     public String getSpn(String carrier) {
-        return mCarrierSpnMap.get(carrier);
-    }
-
-    private void loadSpnOverrides() {
-        FileReader spnReader;
-
-        final File spnFile = new File(Environment.getRootDirectory(),
-                PARTNER_SPN_OVERRIDE_PATH);
-
-        try {
-            spnReader = new FileReader(spnFile);
-        } catch (FileNotFoundException e) {
-            Rlog.w(LOG_TAG, "Can not open " +
-                    Environment.getRootDirectory() + "/" + PARTNER_SPN_OVERRIDE_PATH);
-            return;
-        }
-
-        try {
-            XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(spnReader);
-
-            XmlUtils.beginDocument(parser, "spnOverrides");
-
-            while (true) {
-                XmlUtils.nextElement(parser);
-
-                String name = parser.getName();
-                if (!"spnOverride".equals(name)) {
-                    break;
-                }
-
-                String numeric = parser.getAttributeValue(null, "numeric");
-                String data    = parser.getAttributeValue(null, "spn");
-
-                mCarrierSpnMap.put(numeric, data);
-            }
-            spnReader.close();
-        } catch (XmlPullParserException e) {
-            Rlog.w(LOG_TAG, "Exception in spn-conf parser " + e);
-        } catch (IOException e) {
-            Rlog.w(LOG_TAG, "Exception in spn-conf parser " + e);
-        }
+        return mOperatorDatabase.lookup(OperatorDatabase.TABLE_SPN_OVERRIDE, carrier);
     }
-
 }
@@ -16,17 +16,22 @@
 
 package com.android.internal.telephony;
 
+import android.os.SystemClock;
+import android.telephony.Rlog;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.SmallTest;
 import android.test.MoreAsserts;
 
 import com.android.internal.telephony.dataconnection.ApnSetting;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import junit.framework.TestCase;
 
 public class ApnSettingTest extends TestCase {
+    private static final String TAG = "ApnSettingTest";
 
     public static final String[] TYPES = {"default", "*"};
 
@@ -147,4 +152,141 @@ public class ApnSettingTest extends TestCase {
                 "IPV4V6, IP, true, 14, 0, false, 0, 0, 0, 0, , ";
         assertEquals(expected, apn.toString());
     }
+
+    private static ApnSetting makeApn(int id, String[] types) {
+        return new ApnSetting(
+                id, "310260", "Carrier " + id, "apn" + id, "10.0.0." + id, "8080",
+                "http://mmsc" + id, null, "", "user", "pass\u00e9", 3,
+                types, "IPV4V6", "IP", id % 2 == 0, 14, id, true, 20, 5, 300, 1400,
+                "spn", "Operator " + id);
+    }
+
+    @SmallTest
+    public void testByteArrayRoundTrip() throws Exception {
+        String[] types = {"default", "supl", "*", "custom", "MMS"};
+        ApnSetting apn = makeApn(7, types);
+        ApnSetting copy = ApnSetting.fromByteArray(apn.toByteArray());
+        assertApnSettingEqual(apn, copy);
+        assertEquals(apn, copy);
+        assertEquals(apn.hashCode(), copy.hashCode());
+        assertEquals("mms", copy.types[4]);
+        // Unlike toString, the user and password are kept
+        assertEquals("pass\u00e9", copy.password);
+
+        List<ApnSetting> apns = new ArrayList<ApnSetting>();
+        for (int i = 0; i < 5; i++) {
+            apns.add(makeApn(i, i % 2 == 0 ? TYPES : types));
+        }
+        assertApnSettingsEqual(apns,
+                ApnSetting.arrayFromByteArray(ApnSetting.arrayToByteArray(apns)));
+        assertEquals(0, ApnSetting.arrayFromByteArray(
+                ApnSetting.arrayToByteArray(new ArrayList<ApnSetting>())).size());
+    }
+
+    @SmallTest
+    public void testByteArrayMalformed() throws Exception {
+        byte[] bytes = makeApn(1, TYPES).toByteArray();
+        assertNull(ApnSetting.fromByteArray(null));
+        assertNull(ApnSetting.fromByteArray(new byte[0]));
+        assertNull(ApnSetting.fromByteArray(Arrays.copyOf(bytes, bytes.length - 1)));
+        assertNull(ApnSetting.fromByteArray(Arrays.copyOf(bytes, bytes.length + 1)));
+        bytes[0]++;
+        assertNull(ApnSetting.fromByteArray(bytes));
+
+        List<ApnSetting> apns = new ArrayList<ApnSetting>();
+        apns.add(makeApn(1, TYPES));
+        apns.add(makeApn(2, TYPES));
+        bytes = ApnSetting.arrayToByteArray(apns);
+        assertEquals(0, ApnSetting.arrayFromByteArray(
+                Arrays.copyOf(bytes, bytes.length - 3)).size());
+    }
+
+    @SmallTest
+    public void testCachedString() throws Exception {
+        String[] types = {"default", "*"};
+        ApnSetting apn = makeApn(3, types);
+        String s = apn.toString();
+        assertSame(s, apn.toString());
+        assertEquals(s.hashCode(), apn.hashCode());
+
+        // types and profileId are not final; a change builds the string again
+        apn.profileId = 9;
+        assertTrue(apn.toString().contains(", 9, true, 20, "));
+        apn.types = new String[] {"mms"};
+        assertTrue(apn.toString().contains(", mms, "));
+        assertFalse(apn.equals(makeApn(3, types)));
+    }
+
+    @SmallTest
+    public void testArrayFromStringSeparators() throws Exception {
+        String v2 = "[ApnSettingV2]\tName , apn ,,,,,,,,,123 ,45,, mms | supl|* ,IP, IP,true,14";
+        List<ApnSetting> apns = ApnSetting.arrayFromString(" ; " + v2 + " ;; " + v2 + "; ;");
+        assertEquals(2, apns.size());
+        ApnSetting apn = apns.get(1);
+        assertEquals("Name", apn.carrier);
+        assertEquals("apn", apn.apn);
+        assertEquals("12345", apn.numeric);
+        assertEquals(3, apn.types.length);
+        assertEquals("supl", apn.types[1]);
+        assertEquals("*", apn.types[2]);
+        assertEquals(14, apn.bearer);
+        assertEquals(0, ApnSetting.arrayFromString(" ; ;").size());
+    }
+
+    @LargeTest
+    public void testBenchmark() throws Exception {
+        final int rounds = 500;
+        String[] types = {"default", "mms", "supl", "hipri"};
+        List<ApnSetting> apns = new ArrayList<ApnSetting>();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            apns.add(makeApn(i, types));
+            if (i > 0) sb.append(';');
+            sb.append("[ApnSettingV3] Carrier ").append(i).append(", apn").append(i)
+                    .append(", 10.0.0.").append(i)
+                    .append(", 8080, user, pass, , http://mmsc, , , 310, 260, 3, ")
+                    .append("default | mms | supl | hipri, IPV4V6, IP, true, 14, ").append(i)
+                    .append(", true, 20, 5, 300, 1400, spn, Operator ").append(i);
+        }
+        String string = sb.toString();
+        byte[] bytes = ApnSetting.arrayToByteArray(apns);
+
+        int parsed = 0;
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int r = 0; r < rounds; r++) {
+            parsed += ApnSetting.arrayFromString(string).size();
+        }
+        long stringParseNs = SystemClock.elapsedRealtimeNanos() - start;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int r = 0; r < rounds; r++) {
+            parsed -= ApnSetting.arrayFromByteArray(bytes).size();
+        }
+        long binaryParseNs = SystemClock.elapsedRealtimeNanos() - start;
+        assertEquals(0, parsed);
+
+        int length = 0;
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int r = 0; r < rounds; r++) {
+            for (ApnSetting apn : apns) {
+                // Built from scratch on each call before toString was cached
+                length += makeApn(apn.id, types).toString().length();
+            }
+        }
+        long stringWriteNs = SystemClock.elapsedRealtimeNanos() - start;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int r = 0; r < rounds; r++) {
+            length += ApnSetting.arrayToByteArray(apns).length;
+        }
+        long binaryWriteNs = SystemClock.elapsedRealtimeNanos() - start;
+        assertTrue(length > 0);
+
+        int count = rounds * apns.size();
+        Rlog.d(TAG, apns.size() + " APNs, " + string.length() + " chars as strings, "
+                + bytes.length + " bytes as binary; per APN parse "
+                + (stringParseNs / count) + " ns from string, " + (binaryParseNs / count)
+                + " ns from binary; write " + (stringWriteNs / count) + " ns to string, "
+                + (binaryWriteNs / count) + " ns to binary");
+    }
 }
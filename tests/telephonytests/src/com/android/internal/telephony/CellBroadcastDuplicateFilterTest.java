@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.telephony.SmsCbLocation;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Test cases for the CellBroadcastDuplicateFilter class.
+ */
+public class CellBroadcastDuplicateFilterTest extends AndroidTestCase {
+
+    private static final int SERIAL = 0x3012;
+    private static final int MESSAGE_ID = 0x1112;   // CMAS presidential alert
+
+    private static final SmsCbLocation PLMN = new SmsCbLocation("310260");
+    private static final SmsCbLocation CELL = new SmsCbLocation("310260", 0x1234, 0x5678);
+
+    @SmallTest
+    public void testRepeatIsDuplicate() {
+        CellBroadcastDuplicateFilter filter = new CellBroadcastDuplicateFilter();
+        assertFalse(filter.isDuplicate(SERIAL, MESSAGE_ID, false, PLMN, 1000));
+        filter.add(SERIAL, MESSAGE_ID, false, PLMN, 1000);
+        assertTrue(filter.isDuplicate(SERIAL, MESSAGE_ID, false, PLMN, 5000));
+        assertEquals(1, filter.getDuplicateCount());
+    }
+
+    @SmallTest
+    public void testDifferentKeysAreNotDuplicates() {
+        CellBroadcastDuplicateFilter filter = new CellBroadcastDuplicateFilter();
+        filter.add(SERIAL, MESSAGE_ID, false, PLMN, 1000);
+        // new update number
+        assertFalse(filter.isDuplicate(SERIAL + 1, MESSAGE_ID, false, PLMN, 2000));
+        assertFalse(filter.isDuplicate(SERIAL, MESSAGE_ID + 1, false, PLMN, 2000));
+        assertFalse(filter.isDuplicate(SERIAL, MESSAGE_ID, false, new SmsCbLocation("31026"),
+                2000));
+        assertFalse(filter.isDuplicate(SERIAL, MESSAGE_ID, false, new SmsCbLocation("3102600"),
+                2000));
+        assertFalse(filter.isDuplicate(SERIAL, MESSAGE_ID, false, CELL, 2000));
+        filter.add(SERIAL, MESSAGE_ID, false, CELL, 2000);
+        assertFalse(filter.isDuplicate(SERIAL, MESSAGE_ID, false,
+                new SmsCbLocation("310260", 0x1234, 0x5679), 3000));
+        assertTrue(filter.isDuplicate(SERIAL, MESSAGE_ID, false, CELL, 3000));
+    }
+
+    @SmallTest
+    public void testExpiry() {
+        CellBroadcastDuplicateFilter filter = new CellBroadcastDuplicateFilter();
+        long now = 1000;
+        filter.add(SERIAL, MESSAGE_ID, false, PLMN, now);
+        // each repeat extends the expiry
+        for (int i = 0; i < 4; i++) {
+            now += CellBroadcastDuplicateFilter.EXPIRY_MS / 2;
+            assertTrue(filter.isDuplicate(SERIAL, MESSAGE_ID, false, PLMN, now));
+        }
+        now += CellBroadcastDuplicateFilter.EXPIRY_MS + 1;
+        assertFalse(filter.isDuplicate(SERIAL, MESSAGE_ID, false, PLMN, now));
+    }
+
+    @SmallTest
+    public void testEvictsLeastRecentlySeen() {
+        CellBroadcastDuplicateFilter filter = new CellBroadcastDuplicateFilter();
+        for (int i = 0; i < CellBroadcastDuplicateFilter.CAPACITY; i++) {
+            filter.add(i, MESSAGE_ID, false, PLMN, 1000 + i);
+        }
+        // refresh the first message, so the second is the least recently seen
+        assertTrue(filter.isDuplicate(0, MESSAGE_ID, false, PLMN, 2000));
+        filter.add(CellBroadcastDuplicateFilter.CAPACITY, MESSAGE_ID, false, PLMN, 2001);
+
+        assertTrue(filter.isDuplicate(0, MESSAGE_ID, false, PLMN, 2002));
+        assertFalse(filter.isDuplicate(1, MESSAGE_ID, false, PLMN, 2002));
+        for (int i = 2; i <= CellBroadcastDuplicateFilter.CAPACITY; i++) {
+            assertTrue(filter.isDuplicate(i, MESSAGE_ID, false, PLMN, 2002));
+        }
+    }
+
+    @SmallTest
+    public void testEtwsPrimaryAndSecondaryAreNotDuplicates() {
+        CellBroadcastDuplicateFilter filter = new CellBroadcastDuplicateFilter();
+        filter.add(SERIAL, MESSAGE_ID, true, PLMN, 1000);
+        // the secondary notification carries the warning text and must still be dispatched
+        assertFalse(filter.isDuplicate(SERIAL, MESSAGE_ID, false, PLMN, 2000));
+        filter.add(SERIAL, MESSAGE_ID, false, PLMN, 2000);
+        assertTrue(filter.isDuplicate(SERIAL, MESSAGE_ID, true, PLMN, 3000));
+        assertTrue(filter.isDuplicate(SERIAL, MESSAGE_ID, false, PLMN, 3000));
+    }
+}
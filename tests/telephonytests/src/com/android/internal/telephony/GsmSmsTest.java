@@ -16,16 +16,45 @@
 
 package com.android.internal.telephony;
 
+import android.os.Debug;
+import android.telephony.Rlog;
 import android.telephony.TelephonyManager;
 import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import com.android.internal.telephony.gsm.SmsMessage;
+import com.android.internal.telephony.test.SimulatedCommands;
 import com.android.internal.util.HexDump;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class GsmSmsTest extends AndroidTestCase {
+    private static final String TAG = "GsmSmsTest";
+
+    // Deliver PDUs used by the tests below: plain, UDH with ports, UCS-2, multipart,
+    // email gateway and CPHS voice mail
+    private static final String[] sDeliverPdus = {
+        "07914151551512f2040B916105551511f100006060605130308A04D4F29C0E",
+        "07914140279510F6440A8111110301003BF56080207130238A3B0B05040B8423F"
+                + "000032A0202362E3130322E3137312E3135302F524E453955304A6D7135514141"
+                + "42666C414141414D774141423651414141414100",
+        "07912160130300F4040B914151245584F600087010807121352B1021220"
+                + "0A900AE00680065006C006C006F",
+        "07916163838408F6440B816105224431F700007060217185000A23050003"
+                + "00020262B1582C168BC96432994C2693C96432994C2693C96432990C",
+        "07914151551512f204038105f300007011103164638a28e6f71b50c687db"
+                + "7076d9357eb7412f7a794e07cdeb6275794c07bde8e5391d247e93f3",
+        "07912160130310F20404D0110041006060627171118A0120",
+    };
+
+    // Message bodies in the style of SmsMessageBodyTest: ASCII, GSM extension table, UCS-2
+    private static final String[] sBodies = {
+        "Test message for the lazy decoder",
+        "Test extended character table .,-!?@~_\\/&\"';^|:()<{}>[]=%*+#",
+        "\u2122\u00a9\u00aehello \u00e9\u00e8 \u0416\u0436",
+    };
 
     @SmallTest
     public void testAddressing() throws Exception {
@@ -535,4 +564,80 @@ public class GsmSmsTest extends AndroidTestCase {
             assertEquals(portugueseTable.toString(), decoded);
         }
     }
+
+    @SmallTest
+    public void testLazyDecoding() throws Exception {
+        for (String pdu : sDeliverPdus) {
+            byte[] bytes = HexDump.hexStringToByteArray(pdu);
+            SmsMessage eager = SmsMessage.createFromPdu(bytes);
+            SmsMessage lazy = SmsMessage.createFromPdu(bytes, true);
+
+            assertEquals(eager.getOriginatingAddress(), lazy.getOriginatingAddress());
+            assertEquals(eager.getMessageClass(), lazy.getMessageClass());
+            assertEquals(eager.isMWISetMessage(), lazy.isMWISetMessage());
+            assertEquals(eager.isMWIClearMessage(), lazy.isMWIClearMessage());
+            SmsHeader eagerHeader = eager.getUserDataHeader();
+            SmsHeader lazyHeader = lazy.getUserDataHeader();
+            assertEquals(eagerHeader == null, lazyHeader == null);
+            if (eagerHeader != null) {
+                assertTrue(Arrays.equals(SmsHeader.toByteArray(eagerHeader),
+                        SmsHeader.toByteArray(lazyHeader)));
+            }
+            assertEquals(eager.getMessageBody(), lazy.getMessageBody());
+            assertEquals(eager.getDisplayMessageBody(), lazy.getDisplayMessageBody());
+            assertEquals(eager.getDisplayOriginatingAddress(),
+                    lazy.getDisplayOriginatingAddress());
+            assertEquals(eager.isEmail(), lazy.isEmail());
+        }
+    }
+
+    /**
+     * Measures allocations per decoded message, eager versus lazy with only the header and
+     * message class looked at, as done for port addressed and class 0 messages.
+     */
+    @LargeTest
+    public void testDecodeAllocations() throws Exception {
+        ArrayList<byte[]> corpus = new ArrayList<byte[]>();
+        for (String pdu : sDeliverPdus) {
+            corpus.add(HexDump.hexStringToByteArray(pdu));
+        }
+        for (String body : sBodies) {
+            try {
+                corpus.add(HexDump.hexStringToByteArray(
+                        SimulatedCommands.makeGsmDeliverPdu("+16505551111", body, null)));
+            } catch (EncodeException e) {
+                // Not 7-bit; use the UCS-2 submit PDU, behind an empty SMSC address
+                byte[] submit = SmsMessage.getSubmitPdu(null, "+16505551111", body, false)
+                        .encodedMessage;
+                byte[] pdu = new byte[submit.length + 1];
+                System.arraycopy(submit, 0, pdu, 1, submit.length);
+                corpus.add(pdu);
+            }
+        }
+        final int iterations = 500;
+        final int messages = iterations * corpus.size();
+
+        int eagerAllocs = countAllocations(corpus, iterations, false);
+        int lazyAllocs = countAllocations(corpus, iterations, true);
+
+        Rlog.d(TAG, "testDecodeAllocations: eager " + (eagerAllocs / messages)
+                + " allocations/message, lazy header only " + (lazyAllocs / messages));
+        assertTrue(lazyAllocs <= eagerAllocs);
+    }
+
+    private static int countAllocations(ArrayList<byte[]> corpus, int iterations,
+            boolean lazy) {
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int i = 0; i < iterations; i++) {
+            for (int j = 0, count = corpus.size(); j < count; j++) {
+                SmsMessage sms = SmsMessage.createFromPdu(corpus.get(j), lazy);
+                assertNotNull(sms);
+                sms.getUserDataHeader();
+                sms.getMessageClass();
+            }
+        }
+        Debug.stopAllocCounting();
+        return Debug.getThreadAllocCount();
+    }
 }
@@ -19,6 +19,7 @@ package com.android.internal.telephony;
 import com.android.internal.telephony.MccTable;
 
 import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import android.telephony.Rlog;
@@ -72,4 +73,37 @@ public class MccTableTest extends AndroidTestCase {
         assertEquals(MccTable.smallestDigitsMccForMnc(0), 2);    // mcc not defined, hence default
         assertEquals(MccTable.smallestDigitsMccForMnc(2000), 2); // mcc not defined, hence default
     }
+
+    /**
+     * Simulates registration churn: every network or NITZ change looks up the
+     * time zone, language, country and MNC length for the serving MCC.
+     */
+    @LargeTest
+    public void testRegistrationChurnPerformance() throws Exception {
+        final int[] mccs = { 310, 311, 234, 262, 208, 440, 460, 404, 505, 722, 0, 2000 };
+        final int iterations = 100000;
+
+        // warm up the lazily resolved time zones
+        for (int mcc : mccs) {
+            MccTable.defaultTimeZoneForMcc(mcc);
+        }
+
+        int sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            int mcc = mccs[i % mccs.length];
+            String tz = MccTable.defaultTimeZoneForMcc(mcc);
+            String lang = MccTable.defaultLanguageForMcc(mcc);
+            String iso = MccTable.countryCodeForMcc(mcc);
+            sink += MccTable.smallestDigitsMccForMnc(mcc) + iso.length();
+            if (tz != null) sink++;
+            if (lang != null) sink++;
+        }
+        long elapsedNs = System.nanoTime() - start;
+
+        Rlog.d(LOG_TAG, "testRegistrationChurnPerformance: " + iterations + " iterations in "
+                + (elapsedNs / 1000000) + " ms, " + (elapsedNs / iterations) + " ns/lookup set"
+                + " (sink=" + sink + ")");
+        assertTrue(sink > 0);
+    }
 }
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Xml;
+
+import com.android.internal.util.XmlUtils;
+
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+
+/**
+ * Test cases for the OperatorDatabase class.
+ */
+public class OperatorDatabaseTest extends AndroidTestCase {
+    // "Aa" and "BB" have the same String hash code
+    private static final String SPN_CONF =
+            "<spnOverrides>"
+            + "<spnOverride numeric=\"310260\" spn=\"T-Mobile\"/>"
+            + "<spnOverride numeric=\"310410\" spn=\"AT&amp;T\"/>"
+            + "<spnOverride numeric=\"310410\" spn=\"AT&amp;T Mobility\"/>"
+            + "<spnOverride numeric=\"311480\"/>"
+            + "<spnOverride numeric=\"312530\" spn=\"\"/>"
+            + "<spnOverride spn=\"No numeric\"/>"
+            + "<spnOverride numeric=\"Aa\" spn=\"first\"/>"
+            + "<spnOverride numeric=\"BB\" spn=\"second\"/>"
+            + "</spnOverrides>";
+    private static final String SELECTIVE_SPN_CONF =
+            "<spnOverrides>"
+            + "<spnOverride numeric=\"310260\" spn=\"TMO\"/>"
+            + "</spnOverrides>";
+    private static final String[] PROBES = {
+        "310260", "310410", "311480", "312530", "Aa", "BB", "Ab", "", "00101",
+    };
+
+    private File mDbFile;
+    private File[] mSources;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        File dir = getContext().getCacheDir();
+        mDbFile = new File(dir, "operators_test.db");
+        mSources = new File[] {
+            new File(dir, "spn-conf-test.xml"),
+            new File(dir, "selective-spn-conf-test.xml"),
+        };
+        mDbFile.delete();
+        write(mSources[OperatorDatabase.TABLE_SPN_OVERRIDE], SPN_CONF);
+        write(mSources[OperatorDatabase.TABLE_SELECTIVE_SPN], SELECTIVE_SPN_CONF);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDbFile.delete();
+        for (File f : mSources) {
+            f.delete();
+        }
+        super.tearDown();
+    }
+
+    private static void write(File f, String text) throws IOException {
+        FileWriter writer = new FileWriter(f);
+        try {
+            writer.write(text);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Loads a table the way SpnOverride did before OperatorDatabase existed.
+     */
+    private static HashMap<String, String> loadWithXmlPath(File spnFile) throws Exception {
+        HashMap<String, String> map = new HashMap<String, String>();
+        FileReader spnReader = new FileReader(spnFile);
+        try {
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(spnReader);
+            XmlUtils.beginDocument(parser, "spnOverrides");
+            while (true) {
+                XmlUtils.nextElement(parser);
+                if (!"spnOverride".equals(parser.getName())) {
+                    break;
+                }
+                map.put(parser.getAttributeValue(null, "numeric"),
+                        parser.getAttributeValue(null, "spn"));
+            }
+        } finally {
+            spnReader.close();
+        }
+        return map;
+    }
+
+    @SmallTest
+    public void testCompileAndLookup() {
+        OperatorDatabase db = OperatorDatabase.open(mDbFile, mSources);
+        assertTrue(mDbFile.length() > 0);
+
+        assertEquals("T-Mobile", db.lookup(OperatorDatabase.TABLE_SPN_OVERRIDE, "310260"));
+        assertEquals("TMO", db.lookup(OperatorDatabase.TABLE_SELECTIVE_SPN, "310260"));
+        // Later entries win
+        assertEquals("AT&T Mobility", db.lookup(OperatorDatabase.TABLE_SPN_OVERRIDE, "310410"));
+        assertNull(db.lookup(OperatorDatabase.TABLE_SELECTIVE_SPN, "310410"));
+        // Same hash, different keys
+        assertEquals("first", db.lookup(OperatorDatabase.TABLE_SPN_OVERRIDE, "Aa"));
+        assertEquals("second", db.lookup(OperatorDatabase.TABLE_SPN_OVERRIDE, "BB"));
+        assertFalse(db.contains(OperatorDatabase.TABLE_SPN_OVERRIDE, "Ab"));
+        assertNull(db.lookup(OperatorDatabase.TABLE_SPN_OVERRIDE, null));
+        assertFalse(db.contains(OperatorDatabase.TABLE_SPN_OVERRIDE, null));
+
+        // Reopening uses the compiled image
+        long compiled = mDbFile.lastModified();
+        db = OperatorDatabase.open(mDbFile, mSources);
+        assertEquals(compiled, mDbFile.lastModified());
+        assertEquals("second", db.lookup(OperatorDatabase.TABLE_SPN_OVERRIDE, "BB"));
+    }
+
+    @SmallTest
+    public void testEntriesWithoutSpnAreKept() {
+        OperatorDatabase db = OperatorDatabase.open(mDbFile, mSources);
+        assertTrue(db.contains(OperatorDatabase.TABLE_SPN_OVERRIDE, "311480"));
+        assertNull(db.lookup(OperatorDatabase.TABLE_SPN_OVERRIDE, "311480"));
+        assertTrue(db.contains(OperatorDatabase.TABLE_SPN_OVERRIDE, "312530"));
+        assertEquals("", db.lookup(OperatorDatabase.TABLE_SPN_OVERRIDE, "312530"));
+    }
+
+    @SmallTest
+    public void testParityWithXmlPath() throws Exception {
+        OperatorDatabase db = OperatorDatabase.open(mDbFile, mSources);
+        for (int table = 0; table < mSources.length; table++) {
+            HashMap<String, String> expected = loadWithXmlPath(mSources[table]);
+            for (String key : PROBES) {
+                assertEquals(table + "/" + key, expected.containsKey(key),
+                        db.contains(table, key));
+                assertEquals(table + "/" + key, expected.get(key), db.lookup(table, key));
+            }
+        }
+    }
+
+    @SmallTest
+    public void testStaleImageIsRecompiled() throws Exception {
+        OperatorDatabase db = OperatorDatabase.open(mDbFile, mSources);
+        assertEquals("TMO", db.lookup(OperatorDatabase.TABLE_SELECTIVE_SPN, "310260"));
+
+        // An OTA updates the partner file
+        write(mSources[OperatorDatabase.TABLE_SELECTIVE_SPN], "<spnOverrides>"
+                + "<spnOverride numeric=\"310260\" spn=\"T-Mobile US\"/>"
+                + "</spnOverrides>");
+        db = OperatorDatabase.open(mDbFile, mSources);
+        assertEquals("T-Mobile US", db.lookup(OperatorDatabase.TABLE_SELECTIVE_SPN, "310260"));
+        assertEquals("T-Mobile", db.lookup(OperatorDatabase.TABLE_SPN_OVERRIDE, "310260"));
+    }
+
+    @SmallTest
+    public void testCorruptImageIsRecompiled() throws Exception {
+        FileOutputStream out = new FileOutputStream(mDbFile);
+        try {
+            out.write("not an operator database".getBytes());
+        } finally {
+            out.close();
+        }
+        OperatorDatabase db = OperatorDatabase.open(mDbFile, mSources);
+        assertEquals("T-Mobile", db.lookup(OperatorDatabase.TABLE_SPN_OVERRIDE, "310260"));
+
+        // A truncated image with a valid header is rejected too
+        long length = mDbFile.length();
+        RandomAccessFile file = new RandomAccessFile(mDbFile, "rw");
+        try {
+            file.setLength(length - 8);
+        } finally {
+            file.close();
+        }
+        db = OperatorDatabase.open(mDbFile, mSources);
+        assertEquals(length, mDbFile.length());
+        assertEquals("second", db.lookup(OperatorDatabase.TABLE_SPN_OVERRIDE, "BB"));
+    }
+}
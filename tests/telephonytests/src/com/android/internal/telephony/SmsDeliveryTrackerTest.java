@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.telephony.SmsMessage;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.SMSDispatcher.SmsTracker;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test cases for the SmsDeliveryTracker class.
+ */
+public class SmsDeliveryTrackerTest extends AndroidTestCase {
+    private static final long SUB = 1;
+    private static final long NOW = 1400000000000L;
+
+    private HandlerThread mJournalThread;
+    private File mJournalFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mJournalThread = new HandlerThread("SmsDeliveryTrackerTest");
+        mJournalThread.start();
+        mJournalFile = new File(getContext().getCacheDir(), "delivery_pending_test.journal");
+        mJournalFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mJournalThread.quit();
+        mJournalFile.delete();
+        super.tearDown();
+    }
+
+    /** A tracker writing its journal with no batching delay, as after a process start. */
+    private SmsDeliveryTracker newTracker() {
+        return new SmsDeliveryTracker(getContext(), mJournalFile, mJournalThread.getLooper(),
+                0);
+    }
+
+    private static SmsTracker sent(int messageRef) {
+        SmsTracker tracker = new SmsTracker(new HashMap<String, Object>(), null, null, null,
+                "5551234", SmsMessage.FORMAT_3GPP, null, null,
+                Uri.parse("content://sms/" + messageRef), null, false, -1);
+        tracker.mMessageRef = messageRef;
+        return tracker;
+    }
+
+    /** Waits until the journal thread has written everything queued so far. */
+    private void waitForJournal() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        new Handler(mJournalThread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    @SmallTest
+    public void testAddIsJournaled() throws Exception {
+        SmsDeliveryTracker tracker = newTracker();
+        tracker.add(SUB, sent(1), NOW);
+        tracker.add(SUB, sent(2), NOW);
+        assertEquals(2, tracker.size());
+
+        waitForJournal();
+        assertTrue(mJournalFile.length() > 0);
+        long length = mJournalFile.length();
+
+        // Appended to, not rewritten
+        tracker.add(SUB, sent(3), NOW);
+        waitForJournal();
+        assertTrue(mJournalFile.length() > length);
+    }
+
+    @SmallTest
+    public void testReplayAfterRestart() throws Exception {
+        SmsDeliveryTracker tracker = newTracker();
+        // Replay checks the age of entries against the clock
+        final long now = System.currentTimeMillis();
+        tracker.add(SUB, sent(1), now);
+        tracker.add(SUB, sent(2), now);
+        tracker.add(SUB + 1, sent(1), now);
+        SmsDeliveryTracker.Entry entry = tracker.find(SUB, 2, now);
+        assertNotNull(entry);
+        assertNotNull(entry.mTracker);
+        tracker.remove(entry);
+        waitForJournal();
+
+        // A new process sees the entries still pending, without their trackers
+        SmsDeliveryTracker restarted = newTracker();
+        assertEquals(2, restarted.size());
+        assertTrue(restarted.toString(), restarted.toString().contains("replayed=2"));
+        assertNull(restarted.find(SUB, 2, now));
+        entry = restarted.find(SUB, 1, now);
+        assertNotNull(entry);
+        assertNull(entry.mTracker);
+        assertEquals(Uri.parse("content://sms/1"), entry.mMessageUri);
+        assertNotNull(restarted.find(SUB + 1, 1, now));
+    }
+
+    @SmallTest
+    public void testStaleEntriesExpire() throws Exception {
+        final long ttl = SmsDeliveryTracker.PENDING_TTL_MS;
+        SmsDeliveryTracker tracker = newTracker();
+        tracker.add(SUB, sent(1), NOW);
+        tracker.add(SUB, sent(2), NOW + ttl);
+
+        // Too late for the first message, in time for the second
+        assertNull(tracker.find(SUB, 1, NOW + ttl + 1));
+        assertNotNull(tracker.find(SUB, 2, NOW + ttl + 1));
+        assertEquals(1, tracker.size());
+
+        // Adding drops every expired entry
+        tracker.add(SUB, sent(3), NOW + 3 * ttl);
+        assertEquals(1, tracker.size());
+        assertNotNull(tracker.find(SUB, 3, NOW + 3 * ttl));
+        assertTrue(tracker.toString(), tracker.toString().contains("expired=2"));
+    }
+
+    @SmallTest
+    public void testExpiredEntriesAreNotReplayed() throws Exception {
+        SmsDeliveryTracker tracker = newTracker();
+        long now = System.currentTimeMillis();
+        tracker.add(SUB, sent(2), now);
+        // Recorded after a newer entry, so adding it does not expire it
+        tracker.add(SUB, sent(1), now - SmsDeliveryTracker.PENDING_TTL_MS - 1);
+        assertEquals(2, tracker.size());
+        waitForJournal();
+
+        SmsDeliveryTracker restarted = newTracker();
+        assertEquals(1, restarted.size());
+        assertNotNull(restarted.find(SUB, 2));
+    }
+}
@@ -548,6 +548,63 @@ public class SmsMessageBodyTest extends AndroidTestCase {
         GsmAlphabet.setEnabledSingleShiftTables(origSingleShiftTables);
     }
 
+    /**
+     * Types and deletes random text through SmsLengthCalculator, checking every step against
+     * a full recount by GsmAlphabet.countGsmSeptets() for each set of enabled tables.
+     */
+    @LargeTest
+    public void testIncrementalCalculator() throws Exception {
+        if (getContext().getResources().getBoolean(
+                com.android.internal.R.bool.config_sms_force_7bit_encoding)) {
+            return;     // lengths are calculated on the translated text
+        }
+        StringBuilder sb = new StringBuilder(320);
+        SmsLengthCalculator calculator = new SmsLengthCalculator(false);
+        Random r = new Random(0x1234);
+        int[] origLockingShiftTables = GsmAlphabet.getEnabledLockingShiftTables();
+        int[] origSingleShiftTables = GsmAlphabet.getEnabledSingleShiftTables();
+
+        for (int j = 0; j < sEnabledSingleShiftTables.length; j++) {
+            GsmAlphabet.setEnabledSingleShiftTables(sEnabledSingleShiftTables[j]);
+            GsmAlphabet.setEnabledLockingShiftTables(sEnabledLockingShiftTables[j]);
+            for (int step = 0; step < 500; step++) {
+                if (sb.length() > 0 && r.nextInt(4) == 0) {
+                    // delete up to 3 chars from the end
+                    sb.setLength(Math.max(0, sb.length() - 1 - r.nextInt(3)));
+                    calculator.truncate(sb.length());
+                } else {
+                    int charClass = Math.min(r.nextInt(100), sNumCharacterClasses - 1);
+                    String chars = sCharacterClasses[charClass];
+                    char c = chars.charAt(r.nextInt(chars.length()));
+                    sb.append(c);
+                    calculator.append(c);
+                }
+                for (int mode = 0; mode < 2; mode++) {
+                    boolean use7bitOnly = mode == 1;
+                    GsmAlphabet.TextEncodingDetails expected =
+                            GsmAlphabet.countGsmSeptets(sb, use7bitOnly);
+                    GsmAlphabet.TextEncodingDetails ted =
+                            calculator.getTextEncodingDetails(use7bitOnly);
+                    if (expected == null) {
+                        assertEquals("codeUnitSize", SmsConstants.ENCODING_16BIT,
+                                ted.codeUnitSize);
+                        assertEquals("codeUnitCount", sb.length(), ted.codeUnitCount);
+                        continue;
+                    }
+                    assertEquals("msgCount", expected.msgCount, ted.msgCount);
+                    assertEquals("codeUnitCount", expected.codeUnitCount, ted.codeUnitCount);
+                    assertEquals("codeUnitsRemaining", expected.codeUnitsRemaining,
+                            ted.codeUnitsRemaining);
+                    assertEquals("languageTable", expected.languageTable, ted.languageTable);
+                    assertEquals("languageShiftTable", expected.languageShiftTable,
+                            ted.languageShiftTable);
+                }
+            }
+        }
+        GsmAlphabet.setEnabledLockingShiftTables(origLockingShiftTables);
+        GsmAlphabet.setEnabledSingleShiftTables(origSingleShiftTables);
+    }
+
     private void callGsmLengthMethods(CharSequence msgBody, boolean use7bitOnly,
             int[] expectedValues)
     {
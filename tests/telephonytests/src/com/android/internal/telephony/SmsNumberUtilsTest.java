@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.telephony.Rlog;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Random;
+
+public class SmsNumberUtilsTest extends AndroidTestCase {
+    private static final String TAG = "SmsNumberUtilsTest";
+
+    private static final int GSM_UMTS_NETWORK = 0;
+    private static final int CDMA_HOME_NETWORK = 1;
+
+    @SmallTest
+    public void testFormatCacheHit() throws Exception {
+        String first = SmsNumberUtils.formatNumberCached(getContext(), "+12065551234", "310",
+                CDMA_HOME_NETWORK, null);
+        int[] before = SmsNumberUtils.getFormatCacheStats();
+        String second = SmsNumberUtils.formatNumberCached(getContext(), "+12065551234", "310",
+                CDMA_HOME_NETWORK, null);
+        int[] after = SmsNumberUtils.getFormatCacheStats();
+
+        assertEquals(first, second);
+        assertEquals("12065551234", second);
+        assertEquals(before[0] + 1, after[0]);
+        assertEquals(before[1], after[1]);
+    }
+
+    @SmallTest
+    public void testFormatCacheInvalidatedOnNetworkChange() throws Exception {
+        SmsNumberUtils.formatNumberCached(getContext(), "+12065551234", "310",
+                CDMA_HOME_NETWORK, null);
+        int[] before = SmsNumberUtils.getFormatCacheStats();
+        String gsm = SmsNumberUtils.formatNumberCached(getContext(), "+12065551234", "310",
+                GSM_UMTS_NETWORK, null);
+        int[] after = SmsNumberUtils.getFormatCacheStats();
+
+        assertEquals("+12065551234", gsm);
+        assertEquals(before[1] + 1, after[1]);
+        assertEquals(before[2] + 1, after[2]);
+    }
+
+    /**
+     * Bulk sending to a skewed recipient list: a few numbers receive most messages.
+     */
+    @LargeTest
+    public void testFormatThroughput() throws Exception {
+        final int recipients = 200;
+        final int messages = 20000;
+        String[] numbers = new String[recipients];
+        for (int i = 0; i < recipients; i++) {
+            numbers[i] = (i % 3 == 0) ? "+8613" + (100000000 + i) : "206555" + (1000 + i);
+        }
+
+        Random random = new Random(42);
+        int[] before = SmsNumberUtils.getFormatCacheStats();
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            // Zipf-like: squaring a uniform value favors the low indices
+            double u = random.nextDouble();
+            String number = numbers[(int) (u * u * recipients)];
+            assertNotNull(SmsNumberUtils.formatNumberCached(getContext(), number, "310",
+                    CDMA_HOME_NETWORK, null));
+        }
+        long elapsedNs = System.nanoTime() - start;
+        int[] after = SmsNumberUtils.getFormatCacheStats();
+
+        Rlog.d(TAG, "testFormatThroughput: " + messages + " messages in "
+                + (elapsedNs / 1000000) + " ms, hits=" + (after[0] - before[0])
+                + " misses=" + (after[1] - before[1]));
+        assertTrue(after[0] - before[0] > after[1] - before[1]);
+    }
+}
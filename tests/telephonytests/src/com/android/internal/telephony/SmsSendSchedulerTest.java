@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.telephony.SmsMessage;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.SMSDispatcher.SmsTracker;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test cases for the SmsSendScheduler class.
+ */
+public class SmsSendSchedulerTest extends TestCase {
+    private static final long SUB = 1;
+
+    /**
+     * A scheduler that records the trackers it hands out instead of sending them.
+     */
+    private static class TestSmsSendScheduler extends SmsSendScheduler {
+        final List<SmsTracker> mSent = Collections.synchronizedList(new ArrayList<SmsTracker>());
+        volatile long mTimeoutMs = IN_FLIGHT_TIMEOUT_MS;
+        volatile CountDownLatch mSentLatch;
+
+        TestSmsSendScheduler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        long getInFlightTimeoutMs() {
+            return mTimeoutMs;
+        }
+
+        @Override
+        void sendScheduledSms(SMSDispatcher dispatcher, SmsTracker tracker) {
+            mSent.add(tracker);
+            CountDownLatch latch = mSentLatch;
+            if (latch != null) {
+                latch.countDown();
+            }
+        }
+    }
+
+    private HandlerThread mThread;
+    private TestSmsSendScheduler mScheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread("SmsSendSchedulerTest");
+        mThread.start();
+        mScheduler = new TestSmsSendScheduler(mThread.getLooper());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mThread.quit();
+        super.tearDown();
+    }
+
+    private static SmsTracker tracker(String text) {
+        HashMap<String, Object> data = new HashMap<String, Object>();
+        data.put("text", text);
+        return new SmsTracker(data, null, null, null, "5551234", SmsMessage.FORMAT_3GPP,
+                null, null, null, null, false, -1);
+    }
+
+    private SmsTracker enqueue(int cls, String pkg, String text) {
+        SmsTracker tracker = tracker(text);
+        mScheduler.enqueue(null, SUB, cls, pkg, 1, tracker);
+        return tracker;
+    }
+
+    private String sentOrder() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (mScheduler.mSent) {
+            for (SmsTracker tracker : mScheduler.mSent) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(tracker.mData.get("text"));
+            }
+        }
+        return sb.toString();
+    }
+
+    @SmallTest
+    public void testInFlightLimit() {
+        SmsTracker first = enqueue(SmsSendScheduler.CLASS_NORMAL, "app", "m1");
+        SmsTracker second = enqueue(SmsSendScheduler.CLASS_NORMAL, "app", "m2");
+        enqueue(SmsSendScheduler.CLASS_NORMAL, "app", "m3");
+        assertEquals(SmsSendScheduler.MAX_IN_FLIGHT, mScheduler.mSent.size());
+        assertEquals("m1,m2", sentOrder());
+
+        // A retry keeps the slot; the final result releases it
+        mScheduler.onSendFinished(second);
+        assertEquals("m1,m2,m3", sentOrder());
+        mScheduler.onSendFinished(second);
+        mScheduler.onSendFinished(first);
+        assertTrue(mScheduler.getStats(SUB), mScheduler.getStats(SUB).contains("inFlight=1 "));
+
+        // Other subscriptions have their own slots
+        mScheduler.enqueue(null, SUB + 1, SmsSendScheduler.CLASS_NORMAL, "app", 1,
+                tracker("other"));
+        assertEquals("m1,m2,m3,other", sentOrder());
+    }
+
+    @SmallTest
+    public void testClassThenFairOrder() {
+        SmsTracker b1 = enqueue(SmsSendScheduler.CLASS_NORMAL, "bulk", "b1");
+        SmsTracker b2 = enqueue(SmsSendScheduler.CLASS_NORMAL, "bulk", "b2");
+        enqueue(SmsSendScheduler.CLASS_NORMAL, "bulk", "b3");
+        enqueue(SmsSendScheduler.CLASS_NORMAL, "bulk", "b4");
+        enqueue(SmsSendScheduler.CLASS_NORMAL, "bulk", "b5");
+        enqueue(SmsSendScheduler.CLASS_NORMAL, "other", "o1");
+        enqueue(SmsSendScheduler.CLASS_INTERACTIVE, "bulk", "i1");
+        enqueue(SmsSendScheduler.CLASS_EMERGENCY, "bulk", "e1");
+        assertEquals("b1,b2", sentOrder());
+
+        // Completing one message at a time sends the emergency and interactive classes
+        // first, then lets the other app in ahead of the rest of the bulk burst
+        mScheduler.onSendFinished(b1);
+        mScheduler.onSendFinished(b2);
+        for (int i = 2; i < 8; i++) {
+            mScheduler.onSendFinished(mScheduler.mSent.get(i));
+        }
+        assertEquals("b1,b2,e1,i1,b3,o1,b4,b5", sentOrder());
+        assertTrue(mScheduler.getStats(SUB), mScheduler.getStats(SUB).contains("inFlight=0 "));
+    }
+
+    @SmallTest
+    public void testStaleSlotIsReclaimedByTimer() throws Exception {
+        mScheduler.mTimeoutMs = 200;
+        SmsTracker first = enqueue(SmsSendScheduler.CLASS_NORMAL, "app", "m1");
+        enqueue(SmsSendScheduler.CLASS_NORMAL, "app", "m2");
+        mScheduler.mSentLatch = new CountDownLatch(1);
+        enqueue(SmsSendScheduler.CLASS_NORMAL, "app", "m3");
+        assertEquals("m1,m2", sentOrder());
+
+        // No result ever comes back and nothing else is sent; the timer frees the slots
+        assertTrue(mScheduler.mSentLatch.await(5, TimeUnit.SECONDS));
+        assertEquals("m1,m2,m3", sentOrder());
+        assertFalse(mScheduler.getStats(SUB), mScheduler.getStats(SUB).contains("reclaimed=0 "));
+
+        // A late result for a reclaimed slot does not release another message's slot
+        mScheduler.mTimeoutMs = SmsSendScheduler.IN_FLIGHT_TIMEOUT_MS;
+        mScheduler.onSendFinished(first);
+        enqueue(SmsSendScheduler.CLASS_NORMAL, "app", "m4");
+        assertFalse(mScheduler.getStats(SUB), mScheduler.getStats(SUB).contains("inFlight=-"));
+    }
+}
@@ -216,4 +216,35 @@ public class TelephonyUtilsTest extends TestCase {
         assertEquals(0, rm.getRetryCount());
         assertEquals(1000, rm.getRetryTimer());
     }
+
+    /**
+     * Test RetryManagers configured with the same string share the parsed configuration
+     * but keep their own counts.
+     */
+    @SmallTest
+    public void testRetryManagerSharedConfig() throws Exception {
+        String config = "max_retries=4, 1000, 2000:0, 3000";
+        RetryManager rm1 = new RetryManager();
+        RetryManager rm2 = new RetryManager();
+        assertTrue(rm1.configure(config));
+        assertTrue(rm2.configure("\"" + config + "\""));
+
+        rm1.increaseRetryCount();
+        rm1.increaseRetryCount();
+        assertEquals(3000, rm1.getRetryTimer());
+        assertEquals(1000, rm2.getRetryTimer());
+        rm2.increaseRetryCount();
+        assertEquals(2000, rm2.getRetryTimer());
+        assertEquals(2, rm1.getRetryCount());
+
+        rm1.increaseRetryCount();
+        rm1.increaseRetryCount();
+        assertFalse(rm1.isRetryNeeded());
+        assertTrue(rm2.isRetryNeeded());
+
+        // a bad string fails every time, not only the first
+        assertFalse(rm1.configure("1000, x"));
+        assertFalse(rm2.configure("1000, x"));
+        assertEquals(0, rm2.getRetryTimer());
+    }
 }
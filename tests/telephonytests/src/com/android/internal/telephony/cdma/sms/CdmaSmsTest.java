@@ -16,8 +16,10 @@
 
 package com.android.internal.telephony.cdma.sms;
 
+import android.telephony.Rlog;
 import android.telephony.TelephonyManager;
 import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import com.android.internal.telephony.GsmAlphabet.TextEncodingDetails;
@@ -29,6 +31,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 
 public class CdmaSmsTest extends AndroidTestCase {
+    private static final String TAG = "CdmaSmsTest";
 
     // CJK ideographs, Hiragana, Katakana, full width letters, Cyrillic, etc.
     private static final String sUnicodeChars = "\u4e00\u4e01\u4e02\u4e03" +
@@ -987,4 +990,79 @@ public class CdmaSmsTest extends AndroidTestCase {
             }
         }
     }
+
+    @SmallTest
+    public void testSeptetCodecRoundTrip() throws Exception {
+        String msg = "Test \n standard \r SMS ~{}|";
+        for (int paddingBits = 0; paddingBits < 8; paddingBits++) {
+            byte[] packed = new byte[1 + SeptetCodec.packedLength(paddingBits, msg.length())];
+            int end = SeptetCodec.pack(msg, paddingBits, packed, 1);
+            assertEquals(packed.length, end);
+            assertEquals(msg, SeptetCodec.unpack(packed, 8 + paddingBits, msg.length()));
+        }
+        // Unencodable chars go out as SPACE
+        byte[] packed = new byte[SeptetCodec.packedLength(0, 3)];
+        SeptetCodec.pack("a\u00e9b", 0, packed, 0);
+        assertEquals("a b", SeptetCodec.unpack(packed, 0, 3));
+        assertEquals(1, SeptetCodec.findUnencodable("a\u00e9b"));
+        assertEquals(-1, SeptetCodec.findUnencodable("ab"));
+    }
+
+    /**
+     * Times BearerData encode and decode of 7-bit ASCII user data, with and without a
+     * user data header.
+     */
+    @LargeTest
+    public void testUserData7bitAsciiBenchmark() throws Exception {
+        final int iterations = 20000;
+        SmsHeader smsHeader = getConcatUserDataHeader(1, 2);
+        BearerData bearerData = new BearerData();
+        bearerData.messageType = BearerData.MESSAGE_TYPE_DELIVER;
+        bearerData.messageId = 55;
+        UserData userData = new UserData();
+        userData.msgEncoding = UserData.ENCODING_7BIT_ASCII;
+        userData.msgEncodingSet = true;
+        bearerData.userData = userData;
+        String text = "The quick brown fox jumps over the lazy dog, 0123456789 times. "
+                + "The quick brown fox jumps over the lazy dog, 0123456789 times.";
+
+        for (SmsHeader header : new SmsHeader[] { null, smsHeader }) {
+            userData.userDataHeader = header;
+            long encodeNs = 0;
+            long decodeNs = 0;
+            byte[] encoded = null;
+            for (int i = 0; i < iterations; i++) {
+                userData.payloadStr = text;
+                long start = System.nanoTime();
+                encoded = BearerData.encode(bearerData);
+                long mid = System.nanoTime();
+                BearerData decoded = BearerData.decode(encoded);
+                decodeNs += System.nanoTime() - mid;
+                encodeNs += mid - start;
+                assertEquals(text, decoded.userData.payloadStr);
+            }
+            Rlog.d(TAG, "testUserData7bitAsciiBenchmark: udh=" + (header != null)
+                    + " encode " + (encodeNs / iterations) + " ns, decode "
+                    + (decodeNs / iterations) + " ns, " + encoded.length + " bytes");
+        }
+    }
+
+    @LargeTest
+    public void testCalcTextEncodingDetailsBenchmark() throws Exception {
+        final int iterations = 20000;
+        String ascii = "The quick brown fox jumps over the lazy dog, 0123456789 times.";
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            TextEncodingDetails ted = BearerData.calcTextEncodingDetails(ascii, false);
+            assertEquals(ascii.length(), ted.codeUnitCount);
+        }
+        long asciiNs = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            BearerData.calcTextEncodingDetails(sUnicodeChars, false);
+        }
+        long unicodeNs = System.nanoTime() - start;
+        Rlog.d(TAG, "testCalcTextEncodingDetailsBenchmark: ascii " + (asciiNs / iterations)
+                + " ns, unicode " + (unicodeNs / iterations) + " ns");
+    }
 }
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.PhoneConstants;
+import com.android.internal.telephony.dataconnection.ApnProfileOmh.ApnProfileTypeModem;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the ApnProfileOmh class.
+ */
+public class ApnProfileOmhTest extends TestCase {
+
+    @SmallTest
+    public void testCacheStringRoundTrip() {
+        ApnProfileOmh apn = new ApnProfileOmh(201, 3);
+        apn.setApnProfileTypeModem(ApnProfileTypeModem.PROFILE_TYPE_LBS);
+        apn.addServiceType(ApnProfileTypeModem.PROFILE_TYPE_LBS);
+        apn.addServiceType(ApnProfileTypeModem.PROFILE_TYPE_TETHERED);
+        assertEquals("201:3:96:32", apn.toCacheString());
+
+        ApnProfileOmh restored = ApnProfileOmh.fromCacheString(apn.toCacheString());
+        assertNotNull(restored);
+        assertEquals(201, restored.getProfileId());
+        assertEquals(3, restored.getPriority());
+        assertEquals(ApnProfileTypeModem.PROFILE_TYPE_LBS, restored.getApnProfileTypeModem());
+        assertTrue(restored.canHandleType(PhoneConstants.APN_TYPE_SUPL));
+        assertTrue(restored.canHandleType(PhoneConstants.APN_TYPE_DUN));
+        assertFalse(restored.canHandleType(PhoneConstants.APN_TYPE_MMS));
+        assertEquals(apn.toString(), restored.toString());
+    }
+
+    @SmallTest
+    public void testMalformedCacheString() {
+        assertNull(ApnProfileOmh.fromCacheString(""));
+        assertNull(ApnProfileOmh.fromCacheString("1:2:3"));
+        assertNull(ApnProfileOmh.fromCacheString("1:x:3:1"));
+
+        ApnProfileOmh apn = ApnProfileOmh.fromCacheString("7:0:0:0");
+        assertNotNull(apn);
+        assertNull(apn.getApnProfileTypeModem());
+    }
+}
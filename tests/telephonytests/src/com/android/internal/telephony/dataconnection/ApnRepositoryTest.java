@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.Telephony;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+
+/**
+ * Test cases for the ApnRepository class.
+ */
+public class ApnRepositoryTest extends AndroidTestCase {
+
+    private static final String[] COLUMNS = {
+            Telephony.Carriers._ID, Telephony.Carriers.NUMERIC, Telephony.Carriers.NAME,
+            Telephony.Carriers.APN, Telephony.Carriers.PROXY, Telephony.Carriers.PORT,
+            Telephony.Carriers.MMSC, Telephony.Carriers.MMSPROXY, Telephony.Carriers.MMSPORT,
+            Telephony.Carriers.USER, Telephony.Carriers.PASSWORD, Telephony.Carriers.AUTH_TYPE,
+            Telephony.Carriers.TYPE, Telephony.Carriers.PROTOCOL,
+            Telephony.Carriers.ROAMING_PROTOCOL, Telephony.Carriers.CARRIER_ENABLED,
+            Telephony.Carriers.BEARER, Telephony.Carriers.PROFILE_ID,
+            Telephony.Carriers.MODEM_COGNITIVE, Telephony.Carriers.MAX_CONNS,
+            Telephony.Carriers.WAIT_TIME, Telephony.Carriers.MAX_CONNS_TIME,
+            Telephony.Carriers.MTU, Telephony.Carriers.MVNO_TYPE,
+            Telephony.Carriers.MVNO_MATCH_DATA
+    };
+
+    /** Carriers provider serving the rows in mRows, whatever the selection. */
+    private static class CarriersProvider extends MockContentProvider {
+        final ArrayList<Object[]> mRows = new ArrayList<Object[]>();
+        String[] mLastSelectionArgs;
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            mLastSelectionArgs = selectionArgs;
+            MatrixCursor cursor = new MatrixCursor(COLUMNS);
+            for (Object[] row : mRows) {
+                cursor.addRow(row);
+            }
+            return cursor;
+        }
+    }
+
+    private static Object[] row(int id, String apn, String types, String password) {
+        return new Object[] { id, "310260", "Carrier", apn, "", "", "", "", "", "user",
+                password, 0, types, "IP", "IP", 1, 0, 0, 0, 0, 0, 0, 0, "", "" };
+    }
+
+    private CarriersProvider mProvider;
+    private MockContentResolver mResolver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new CarriersProvider();
+        mResolver = new MockContentResolver();
+        mResolver.addProvider("telephony", mProvider);
+    }
+
+    @SmallTest
+    public void testUnchangedRowsAreReused() {
+        ApnRepository repository = new ApnRepository();
+        mProvider.mRows.add(row(1, "internet", "default,supl", "secret"));
+        mProvider.mRows.add(row(2, "mms", "mms", "secret"));
+        mProvider.mRows.add(row(3, "tether", "dun", "secret"));
+
+        ArrayList<ApnSetting> first = repository.query(mResolver, "310260");
+        assertEquals(3, first.size());
+        assertEquals("310260", mProvider.mLastSelectionArgs[0]);
+        assertEquals("internet", first.get(0).apn);
+        assertTrue(first.get(0).canHandleType("supl"));
+
+        // edit one row, remove one and add one
+        mProvider.mRows.set(1, row(2, "mms", "mms", "changed"));
+        mProvider.mRows.remove(2);
+        mProvider.mRows.add(row(4, "ims", "ims", "secret"));
+        ArrayList<ApnSetting> second = repository.query(mResolver, "310260");
+        assertEquals(3, second.size());
+        assertSame(first.get(0), second.get(0));
+        assertNotSame(first.get(1), second.get(1));
+        assertEquals("changed", second.get(1).password);
+        assertEquals("ims", second.get(2).apn);
+
+        // a row that comes back after being removed is parsed again
+        mProvider.mRows.add(row(3, "tether", "dun", "secret"));
+        ArrayList<ApnSetting> third = repository.query(mResolver, "310260");
+        assertNotSame(first.get(2), third.get(3));
+        assertSame(second.get(1), third.get(1));
+    }
+
+    @SmallTest
+    public void testOperatorChangeClearsCache() {
+        ApnRepository repository = new ApnRepository();
+        mProvider.mRows.add(row(1, "internet", "default", "secret"));
+        ArrayList<ApnSetting> first = repository.query(mResolver, "310260");
+        ArrayList<ApnSetting> second = repository.query(mResolver, "310410");
+        assertEquals("310410", mProvider.mLastSelectionArgs[0]);
+        assertNotSame(first.get(0), second.get(0));
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import android.os.SystemClock;
+import android.telephony.Rlog;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.PhoneConstants;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases and a benchmark for ApnTypeIndex and DcTracker's APN deduplication.
+ */
+public class ApnTypeIndexTest extends TestCase {
+    private static final String TAG = "ApnTypeIndexTest";
+
+    private static final String[] REQUEST_TYPES = {
+            PhoneConstants.APN_TYPE_DEFAULT, PhoneConstants.APN_TYPE_MMS,
+            PhoneConstants.APN_TYPE_SUPL, PhoneConstants.APN_TYPE_DUN,
+            PhoneConstants.APN_TYPE_HIPRI, PhoneConstants.APN_TYPE_FOTA,
+            PhoneConstants.APN_TYPE_IMS, PhoneConstants.APN_TYPE_CBS,
+            PhoneConstants.APN_TYPE_IA, PhoneConstants.APN_TYPE_EMERGENCY,
+            PhoneConstants.APN_TYPE_ALL, "xcap", "MMS"
+    };
+
+    private static final String[][] APN_TYPES = {
+            {"default", "supl"}, {"mms"}, {"default", "mms", "supl", "hipri"}, {"dun"},
+            {"*"}, {"ims"}, {"fota", "cbs"}, {"ia"}, {"emergency"}, {"xcap"}, {"Default"},
+            {"mms", "xcap"}
+    };
+
+    private static final int[] BEARERS = { 0, 0, 0, 13, 14, 14 };
+
+    private static ApnSetting makeApn(int id, String apn, String[] types, boolean enabled,
+            int bearer, String mmsc, String proxy) {
+        return new ApnSetting(id, "310260", "Carrier " + id, apn, proxy, null, mmsc, null, null,
+                "", "", 0, types, "IP", "IP", enabled, bearer, 0, false, 0, 0, 0, 0, "", "");
+    }
+
+    /**
+     * Builds a table like that of a carrier with many MVNO rows: groups of rows sharing an
+     * APN name with different types, some of which are similar enough to be merged.
+     */
+    private static ArrayList<ApnSetting> makeApnTable(int size, long seed) {
+        Random random = new Random(seed);
+        ArrayList<ApnSetting> apns = new ArrayList<ApnSetting>(size);
+        for (int i = 0; i < size; i++) {
+            String name = "apn" + random.nextInt(size / 4 + 1) + ".example.com";
+            String[] types = APN_TYPES[random.nextInt(APN_TYPES.length)];
+            String mmsc = random.nextInt(3) == 0 ? "http://mms" + random.nextInt(3) : null;
+            String proxy = random.nextInt(4) == 0 ? "10.0.0." + random.nextInt(2) : "";
+            apns.add(makeApn(i, name, types, random.nextInt(10) != 0,
+                    BEARERS[random.nextInt(BEARERS.length)], mmsc, proxy));
+        }
+        return apns;
+    }
+
+    /** buildWaitingApns' scan before the index. */
+    private static ArrayList<ApnSetting> scan(ArrayList<ApnSetting> apns, String type,
+            int radioTech) {
+        ArrayList<ApnSetting> result = new ArrayList<ApnSetting>();
+        for (ApnSetting apn : apns) {
+            if (canHandleTypeByName(apn, type) && (apn.bearer == 0 || apn.bearer == radioTech)) {
+                result.add(apn);
+            }
+        }
+        return result;
+    }
+
+    /** ApnSetting.canHandleType before the bitmask. */
+    private static boolean canHandleTypeByName(ApnSetting apn, String type) {
+        if (!apn.carrierEnabled) return false;
+        for (String t : apn.types) {
+            if (t.equalsIgnoreCase(type) ||
+                    t.equalsIgnoreCase(PhoneConstants.APN_TYPE_ALL) ||
+                    (t.equalsIgnoreCase(PhoneConstants.APN_TYPE_DEFAULT) &&
+                    type.equalsIgnoreCase(PhoneConstants.APN_TYPE_HIPRI))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @SmallTest
+    public void testCanHandleType() {
+        for (String[] types : APN_TYPES) {
+            for (boolean enabled : new boolean[] { true, false }) {
+                ApnSetting apn = makeApn(1, "apn", types, enabled, 0, null, null);
+                for (String type : REQUEST_TYPES) {
+                    assertEquals(type + " by " + apn, canHandleTypeByName(apn, type),
+                            apn.canHandleType(type));
+                }
+            }
+        }
+    }
+
+    @SmallTest
+    public void testCandidatesMatchScan() {
+        ArrayList<ApnSetting> apns = makeApnTable(200, 1);
+        ApnTypeIndex index = new ApnTypeIndex(apns);
+        assertTrue(index.isFor(apns));
+        for (int radioTech : new int[] { 0, 3, 13, 14 }) {
+            for (String type : REQUEST_TYPES) {
+                // twice, the second time from the memoized candidates
+                for (int i = 0; i < 2; i++) {
+                    ArrayList<ApnSetting> candidates = index.getCandidates(type, radioTech);
+                    assertEquals(type + " on " + radioTech, scan(apns, type, radioTech),
+                            candidates);
+                    // callers consume the list
+                    candidates.clear();
+                }
+            }
+        }
+        apns.add(makeApn(1000, "apn", APN_TYPES[0], true, 0, null, null));
+        assertFalse(index.isFor(apns));
+    }
+
+    @SmallTest
+    public void testDedupe() {
+        ArrayList<ApnSetting> apns = new ArrayList<ApnSetting>();
+        apns.add(makeApn(1, "internet", new String[] {"default"}, true, 0, null, ""));
+        apns.add(makeApn(2, "wap", new String[] {"mms"}, true, 0, "http://mms", ""));
+        apns.add(makeApn(3, "internet", new String[] {"mms"}, true, 0, "http://mms", ""));
+        apns.add(makeApn(4, "internet", new String[] {"supl"}, true, 14, null, ""));
+        apns.add(makeApn(5, "internet", new String[] {"dun"}, true, 0, null, ""));
+        apns.add(makeApn(6, "internet", new String[] {"default"}, true, 0, null, ""));
+        apns.add(makeApn(7, "internet", new String[] {"supl"}, true, 0, null, "10.0.0.1"));
+
+        DcTracker.dedupeApnSettings(apns);
+
+        assertEquals(5, apns.size());
+        ApnSetting merged = apns.get(0);
+        assertEquals(1, merged.id);
+        assertEquals("http://mms", merged.mmsc);
+        assertEquals("10.0.0.1", merged.proxy);
+        assertTrue(merged.canHandleType(PhoneConstants.APN_TYPE_MMS));
+        assertTrue(merged.canHandleType(PhoneConstants.APN_TYPE_SUPL));
+        assertEquals(2, apns.get(1).id);
+        assertEquals(4, apns.get(2).id);
+        assertEquals(5, apns.get(3).id);
+        assertEquals(6, apns.get(4).id);
+    }
+
+    @LargeTest
+    public void testBenchmark() {
+        final int size = 600;
+        final int rounds = 200;
+        ArrayList<ApnSetting> table = makeApnTable(size, 42);
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int r = 0; r < 10; r++) {
+            DcTracker.dedupeApnSettings(new ArrayList<ApnSetting>(table));
+        }
+        long dedupeNs = (SystemClock.elapsedRealtimeNanos() - start) / 10;
+
+        ArrayList<ApnSetting> apns = new ArrayList<ApnSetting>(table);
+        DcTracker.dedupeApnSettings(apns);
+
+        start = SystemClock.elapsedRealtimeNanos();
+        int scanned = 0;
+        for (int r = 0; r < rounds; r++) {
+            for (String type : REQUEST_TYPES) {
+                scanned += scan(apns, type, 14).size();
+            }
+        }
+        long scanNs = SystemClock.elapsedRealtimeNanos() - start;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        ApnTypeIndex index = new ApnTypeIndex(apns);
+        long buildNs = SystemClock.elapsedRealtimeNanos() - start;
+        int indexed = 0;
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int r = 0; r < rounds; r++) {
+            for (String type : REQUEST_TYPES) {
+                indexed += index.getCandidates(type, 14).size();
+            }
+        }
+        long indexNs = SystemClock.elapsedRealtimeNanos() - start;
+        assertEquals(scanned, indexed);
+
+        int lookups = rounds * REQUEST_TYPES.length;
+        Rlog.d(TAG, size + " APN rows, " + apns.size() + " after dedupe in "
+                + (dedupeNs / 1000) + " us; waiting APNs by scan " + (scanNs / lookups)
+                + " ns, by index " + (indexNs / lookups) + " ns per lookup (index built in "
+                + (buildNs / 1000) + " us)");
+    }
+}
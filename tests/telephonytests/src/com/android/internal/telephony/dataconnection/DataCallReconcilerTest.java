@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the DataCallReconciler class.
+ */
+public class DataCallReconcilerTest extends TestCase {
+
+    private static DataCallResponse response(int cid, String address) {
+        DataCallResponse response = new DataCallResponse();
+        response.version = 10;
+        response.cid = cid;
+        response.active = DcController.DATA_CONNECTION_ACTIVE_PH_LINK_UP;
+        response.type = "IP";
+        response.ifname = "rmnet" + cid;
+        response.addresses = new String[] { address };
+        response.dnses = new String[] { "8.8.8.8", "8.8.4.4" };
+        response.gateways = new String[] { "10.0.0.1" };
+        response.mtu = 1400;
+        return response;
+    }
+
+    @SmallTest
+    public void testFingerprint() {
+        long fingerprint = DataCallReconciler.fingerprint(response(1, "10.0.0.2"));
+        assertEquals(fingerprint, DataCallReconciler.fingerprint(response(1, "10.0.0.2")));
+        assertFalse(fingerprint == DataCallReconciler.fingerprint(response(2, "10.0.0.2")));
+        assertFalse(fingerprint == DataCallReconciler.fingerprint(response(1, "10.0.0.3")));
+
+        DataCallResponse dormant = response(1, "10.0.0.2");
+        dormant.active = DcController.DATA_CONNECTION_ACTIVE_PH_LINK_DORMANT;
+        assertFalse(fingerprint == DataCallReconciler.fingerprint(dormant));
+
+        // moving a value between fields changes the fingerprint
+        DataCallResponse a = response(1, "10.0.0.2");
+        a.dnses = new String[] { "8.8.8.8" };
+        a.gateways = new String[] { "8.8.4.4", "10.0.0.1" };
+        assertFalse(fingerprint == DataCallReconciler.fingerprint(a));
+    }
+
+    @SmallTest
+    public void testReconcile() {
+        DataCallReconciler reconciler = new DataCallReconciler();
+        reconciler.begin();
+        assertEquals(DataCallReconciler.ADDED, reconciler.reconcile(response(1, "10.0.0.2")));
+        assertEquals(DataCallReconciler.ADDED, reconciler.reconcile(response(2, "10.0.1.2")));
+        assertEquals(0, reconciler.end());
+
+        reconciler.begin();
+        assertEquals(DataCallReconciler.UNCHANGED, reconciler.reconcile(response(1, "10.0.0.2")));
+        assertEquals(DataCallReconciler.CHANGED, reconciler.reconcile(response(2, "10.0.1.3")));
+        assertEquals(0, reconciler.end());
+
+        // cid 1 dropped from the list
+        reconciler.begin();
+        assertEquals(DataCallReconciler.UNCHANGED, reconciler.reconcile(response(2, "10.0.1.3")));
+        assertEquals(1, reconciler.end());
+
+        reconciler.begin();
+        assertEquals(DataCallReconciler.ADDED, reconciler.reconcile(response(1, "10.0.0.2")));
+        assertEquals(DataCallReconciler.UNCHANGED, reconciler.reconcile(response(2, "10.0.1.3")));
+        reconciler.end();
+
+        // a forgotten cid is processed in full again
+        reconciler.forget(2);
+        reconciler.begin();
+        assertEquals(DataCallReconciler.UNCHANGED, reconciler.reconcile(response(1, "10.0.0.2")));
+        assertEquals(DataCallReconciler.ADDED, reconciler.reconcile(response(2, "10.0.1.3")));
+        reconciler.end();
+
+        reconciler.begin();
+        reconciler.reconcile(response(1, "10.0.0.2"));
+        reconciler.reconcile(response(2, "10.0.1.3"));
+        reconciler.end();
+        assertTrue(reconciler.toString(), reconciler.toString().contains("noOpEvents=1 "));
+    }
+
+    @SmallTest
+    public void testManyCids() {
+        DataCallReconciler reconciler = new DataCallReconciler();
+        for (int round = 0; round < 2; round++) {
+            reconciler.begin();
+            for (int cid = 0; cid < 20; cid++) {
+                assertEquals(round == 0 ? DataCallReconciler.ADDED : DataCallReconciler.UNCHANGED,
+                        reconciler.reconcile(response(cid, "10.0.0." + cid)));
+            }
+            assertEquals(0, reconciler.end());
+        }
+        reconciler.begin();
+        for (int cid = 0; cid < 20; cid += 2) {
+            reconciler.reconcile(response(cid, "10.0.0." + cid));
+        }
+        assertEquals(10, reconciler.end());
+    }
+}
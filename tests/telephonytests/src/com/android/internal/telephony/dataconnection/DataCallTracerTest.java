@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+
+/**
+ * Test cases for the DataCallTracer class.
+ */
+public class DataCallTracerTest extends TestCase {
+
+    private static int traceSetup(DataCallTracer tracer, long start, long modemMs) {
+        int span = tracer.startSpan(start, 0, "default");
+        tracer.record(start + 100, span, DataCallTracer.SETUP_DATA, 1);
+        tracer.record(start + 110, span, DataCallTracer.DC_CONNECT, 0);
+        tracer.record(start + 120, span, DataCallTracer.RIL_SENT, 42);
+        tracer.record(start + 120 + modemMs, span, DataCallTracer.RIL_RESPONSE, 0);
+        tracer.record(start + 130 + modemMs, span, DataCallTracer.DC_SETUP_DONE, 0);
+        tracer.record(start + 135 + modemMs, span, DataCallTracer.LINK_PROPERTIES, 0);
+        tracer.record(start + 150 + modemMs, span, DataCallTracer.DC_ACTIVE, 0);
+        tracer.record(start + 160 + modemMs, span, DataCallTracer.CONNECTED, 0);
+        return span;
+    }
+
+    @SmallTest
+    public void testTimeline() {
+        DataCallTracer tracer = new DataCallTracer();
+        int span = tracer.startSpan(1000, 1, "mms");
+        assertTrue(span != 0);
+        tracer.record(1500, span, DataCallTracer.GATED, 0);
+        tracer.record(2000, span, DataCallTracer.GATED, 0);
+        int other = traceSetup(tracer, 2500, 1000);
+        tracer.record(3000, span, DataCallTracer.SETUP_DATA, 7);
+        tracer.record(3100, span, DataCallTracer.DC_CONNECT, 0);
+        tracer.record(3200, span, DataCallTracer.RIL_SENT, 43);
+        tracer.record(9000, span, DataCallTracer.RIL_RESPONSE, 0);
+        tracer.record(9010, span, DataCallTracer.DC_SETUP_DONE, 0);
+        tracer.record(9500, span, DataCallTracer.FAILED, 33);
+
+        ArrayList<DataCallTracer.Timeline> timelines = tracer.getTimelines();
+        assertEquals(2, timelines.size());
+        DataCallTracer.Timeline timeline = timelines.get(0);
+        assertEquals(span, timeline.mSpan);
+        assertEquals("mms", timeline.mApnType);
+        assertEquals(1, timeline.mPhoneId);
+        assertEquals(2, timeline.mGated);
+        assertTrue(timeline.isComplete());
+        assertEquals(2000, timeline.getDuration(DataCallTracer.START, DataCallTracer.SETUP_DATA));
+        assertEquals(5800,
+                timeline.getDuration(DataCallTracer.RIL_SENT, DataCallTracer.RIL_RESPONSE));
+        assertEquals(-1, timeline.getDuration(DataCallTracer.START, DataCallTracer.CONNECTED));
+        assertEquals(33, timeline.mArgs[DataCallTracer.FAILED]);
+        assertEquals(other, timelines.get(1).mSpan);
+
+        // span 0 is not traced
+        tracer.record(0, DataCallTracer.DC_CONNECT, 0);
+        assertEquals(2, tracer.getTimelines().size());
+    }
+
+    @SmallTest
+    public void testOverwrittenSpansAreDropped() {
+        DataCallTracer tracer = new DataCallTracer();
+        int open = tracer.startSpan(0, 0, "ims");
+        for (int i = 0; i < DataCallTracer.CAPACITY; i++) {
+            traceSetup(tracer, 1000 * i, 10);
+        }
+        tracer.record(1, open, DataCallTracer.SETUP_DATA, 0);
+
+        ArrayList<DataCallTracer.Timeline> timelines = tracer.getTimelines();
+        for (DataCallTracer.Timeline timeline : timelines) {
+            assertTrue(timeline.mSpan != open);
+            assertTrue(timeline.mTimes[DataCallTracer.START] >= 0);
+        }
+        assertEquals(DataCallTracer.CAPACITY / 9, timelines.size());
+    }
+
+    @SmallTest
+    public void testPercentiles() {
+        long[] sorted = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 };
+        assertEquals(-1, DataCallTracer.percentile(sorted, 0, 50));
+        assertEquals(5, DataCallTracer.percentile(sorted, 10, 50));
+        assertEquals(9, DataCallTracer.percentile(sorted, 10, 90));
+        assertEquals(10, DataCallTracer.percentile(sorted, 10, 99));
+        assertEquals(1, DataCallTracer.percentile(sorted, 1, 99));
+
+        DataCallTracer tracer = new DataCallTracer();
+        for (int i = 1; i <= 10; i++) {
+            traceSetup(tracer, 10000 * i, 100 * i);
+        }
+        StringWriter sw = new StringWriter();
+        tracer.dump(new PrintWriter(sw, true));
+        String dump = sw.toString();
+        assertTrue(dump, dump.contains("modem: n=10 p50=500 p90=900 p99=1000 max=1000"));
+        assertTrue(dump, dump.contains("gating: n=10 p50=100 "));
+    }
+}
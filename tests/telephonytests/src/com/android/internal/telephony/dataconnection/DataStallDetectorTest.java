@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the DataStallDetector class.
+ */
+public class DataStallDetectorTest extends TestCase {
+    private static final long AGGRESSIVE = 60 * 1000;
+    private static final long NON_AGGRESSIVE = 6 * 60 * 1000;
+
+    @SmallTest
+    public void testScreenOnBacksOffWhileIdle() {
+        DataStallDetector detector = new DataStallDetector();
+        assertEquals(AGGRESSIVE, detector.getPollDelay(true, false, AGGRESSIVE, NON_AGGRESSIVE));
+        detector.onPoll(0, 10, 10);
+        assertEquals(AGGRESSIVE, detector.getPollDelay(true, false, AGGRESSIVE, NON_AGGRESSIVE));
+        detector.onPoll(1, 0, 0);
+        assertEquals(2 * AGGRESSIVE,
+                detector.getPollDelay(true, false, AGGRESSIVE, NON_AGGRESSIVE));
+        detector.onPoll(2, 0, 0);
+        assertEquals(DataStallDetector.SCREEN_ON_BACKOFF_LIMIT * AGGRESSIVE,
+                detector.getPollDelay(true, false, AGGRESSIVE, NON_AGGRESSIVE));
+        // a suspected stall is polled soon whatever the history
+        assertEquals(AGGRESSIVE, detector.getPollDelay(true, true, AGGRESSIVE, NON_AGGRESSIVE));
+        // traffic resets the back off
+        detector.onPoll(4, 3, 5);
+        assertEquals(AGGRESSIVE, detector.getPollDelay(true, false, AGGRESSIVE, NON_AGGRESSIVE));
+    }
+
+    @SmallTest
+    public void testScreenOnDelayIsCapped() {
+        DataStallDetector detector = new DataStallDetector();
+        for (int i = 0; i < 2 * DataStallDetector.WINDOW; i++) {
+            detector.onPoll(i, 0, 0);
+            long delay = detector.getPollDelay(true, false, AGGRESSIVE, NON_AGGRESSIVE);
+            assertTrue("delay " + delay,
+                    delay <= DataStallDetector.SCREEN_ON_BACKOFF_LIMIT * AGGRESSIVE);
+        }
+        // never beyond the screen off delay either
+        assertEquals(AGGRESSIVE + 1, detector.getPollDelay(true, false, AGGRESSIVE,
+                AGGRESSIVE + 1));
+    }
+
+    @SmallTest
+    public void testScreenOff() {
+        DataStallDetector detector = new DataStallDetector();
+        detector.onPoll(0, 10, 10);
+        assertEquals(NON_AGGRESSIVE,
+                detector.getPollDelay(false, false, AGGRESSIVE, NON_AGGRESSIVE));
+        for (int i = 1; i <= DataStallDetector.WINDOW; i++) {
+            detector.onPoll(i, 0, 0);
+        }
+        assertEquals(NON_AGGRESSIVE * DataStallDetector.IDLE_BACKOFF_LIMIT,
+                detector.getPollDelay(false, false, AGGRESSIVE, NON_AGGRESSIVE));
+
+        // sending without receiving is left to the caller to call urgent
+        detector.onPoll(100, 4, 0);
+        assertNotNull(detector.getCurrentStall());
+        assertEquals(NON_AGGRESSIVE,
+                detector.getPollDelay(false, false, AGGRESSIVE, NON_AGGRESSIVE));
+        assertEquals(AGGRESSIVE, detector.getPollDelay(false, true, AGGRESSIVE, NON_AGGRESSIVE));
+        // once recovering, polls are soon
+        detector.onRecoveryAction(100, DcTrackerBase.RecoveryAction.GET_DATA_CALL_LIST);
+        assertEquals(AGGRESSIVE, detector.getPollDelay(false, false, AGGRESSIVE, NON_AGGRESSIVE));
+    }
+
+    @SmallTest
+    public void testOneSentPacketThenIdleScreenOff() {
+        DataStallDetector detector = new DataStallDetector();
+        detector.onPoll(0, 10, 10);
+        // e.g. an unanswered keepalive
+        detector.onPoll(1, 1, 0);
+        assertEquals(NON_AGGRESSIVE,
+                detector.getPollDelay(false, false, AGGRESSIVE, NON_AGGRESSIVE));
+        for (int i = 0; i < DataStallDetector.SUSPECT_IDLE_POLLS; i++) {
+            detector.onPoll(2 + i, 0, 0);
+            assertTrue(detector.getPollDelay(false, false, AGGRESSIVE, NON_AGGRESSIVE)
+                    >= NON_AGGRESSIVE);
+        }
+        assertNull(detector.getCurrentStall());
+        for (int i = 0; i < DataStallDetector.WINDOW; i++) {
+            detector.onPoll(10 + i, 0, 0);
+        }
+        assertEquals(NON_AGGRESSIVE * DataStallDetector.IDLE_BACKOFF_LIMIT,
+                detector.getPollDelay(false, false, AGGRESSIVE, NON_AGGRESSIVE));
+    }
+
+    @SmallTest
+    public void testStallEvent() {
+        DataStallDetector detector = new DataStallDetector();
+        detector.onPoll(1000, 5, 5);
+        assertNull(detector.onPoll(2000, 4, 0));
+        assertNull(detector.onPoll(3000, 8, 0));
+        detector.onRecoveryAction(3000, DcTrackerBase.RecoveryAction.GET_DATA_CALL_LIST);
+        assertNull(detector.onPoll(4000, 3, 0));
+        detector.onRecoveryAction(4000, DcTrackerBase.RecoveryAction.CLEANUP);
+        // disconnecting for recovery keeps the stall
+        detector.reset();
+        DataStallDetector.StallEvent stall = detector.onPoll(5000, 2, 7);
+
+        assertNotNull(stall);
+        assertNull(detector.getCurrentStall());
+        assertEquals(2000, stall.mStart);
+        assertEquals(3000, stall.mDetected);
+        assertEquals(3000, stall.getDurationMs());
+        assertEquals(2, stall.mActions);
+        assertEquals(DcTrackerBase.RecoveryAction.CLEANUP, stall.mLastAction);
+        assertEquals(4, stall.mPolls);
+        assertEquals(15, stall.mSentPackets);
+    }
+
+    @SmallTest
+    public void testShortStallIsNotAnEvent() {
+        DataStallDetector detector = new DataStallDetector();
+        assertNull(detector.onPoll(1000, 4, 0));
+        assertNull(detector.onPoll(2000, 4, 4));
+        assertNull(detector.getCurrentStall());
+
+        assertNull(detector.onPoll(3000, 4, 0));
+        detector.reset();
+        assertNull(detector.getCurrentStall());
+    }
+}
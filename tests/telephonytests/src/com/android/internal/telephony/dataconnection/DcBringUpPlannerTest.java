@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the DcBringUpPlanner class.
+ */
+public class DcBringUpPlannerTest extends TestCase {
+
+    private static ArrayList<String> list(String... types) {
+        return new ArrayList<String>(Arrays.asList(types));
+    }
+
+    @SmallTest
+    public void testIndependentSetupsStartTogether() {
+        DcBringUpPlanner planner = new DcBringUpPlanner(4);
+        planner.add("default", null, 0);
+        planner.add("ims", null, 0);
+        planner.add("mms", null, 0);
+        assertEquals(list("default", "ims", "mms"), planner.next());
+        assertTrue(planner.next().isEmpty());
+    }
+
+    @SmallTest
+    public void testLimitDefersSetups() {
+        DcBringUpPlanner planner = new DcBringUpPlanner(2);
+        planner.add("default", null, 0);
+        planner.add("ims", null, 0);
+        planner.add("mms", null, 0);
+        planner.add("fota", null, 0);
+        assertEquals(list("default", "ims"), planner.next());
+
+        planner.onSetupDone("ims", true, 100);
+        assertEquals(list("mms"), planner.next());
+        // completions of setups that were not planned change nothing
+        planner.onSetupDone("cbs", true, 100);
+        assertTrue(planner.next().isEmpty());
+        planner.onSetupDone("default", false, 200);
+        assertEquals(list("fota"), planner.next());
+    }
+
+    @SmallTest
+    public void testSharingSetupsWaitForAnchor() {
+        DcBringUpPlanner planner = new DcBringUpPlanner(1);
+        planner.add("ims", null, 0);
+        planner.add("default", null, 0);
+        planner.add("supl", "default", 0);
+        // shares a connection that is already up
+        planner.add("hipri", "hipri", 0);
+        assertEquals(list("ims", "hipri"), planner.next());
+
+        planner.onSetupDone("ims", true, 50);
+        assertEquals(list("default", "supl"), planner.next());
+    }
+
+    @SmallTest
+    public void testBurstEndsWhenAllSetupsComplete() {
+        DcBringUpPlanner planner = new DcBringUpPlanner(4);
+        assertTrue(planner.add("default", null, 1000));
+        assertTrue(planner.add("supl", "default", 1000));
+        assertFalse(planner.add("default", null, 1100));
+        planner.next();
+
+        planner.onSetupDone("default", true, 1200);
+        assertTrue(planner.isPending("supl"));
+        planner.onSetupDone("supl", true, 1300);
+        assertFalse(planner.isPending("supl"));
+        assertTrue(planner.toString(), planner.toString().contains("lastBurst=2/2"));
+        assertTrue(planner.toString(), planner.toString().contains("connected in 300ms"));
+
+        // the next plan starts a new burst
+        planner.add("mms", null, 5000);
+        planner.next();
+        planner.onSetupDone("mms", false, 5050);
+        assertTrue(planner.toString(), planner.toString().contains("lastBurst=0/1"));
+        assertTrue(planner.toString(), planner.toString().contains("maxBurstMs=300"));
+    }
+}
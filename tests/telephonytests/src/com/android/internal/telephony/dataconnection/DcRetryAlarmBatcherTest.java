@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the DcRetryAlarmBatcher class.
+ */
+public class DcRetryAlarmBatcherTest extends TestCase {
+
+    private static class Listener implements DcRetryAlarmBatcher.Listener {
+        int mFired;
+        int mTag = -1;
+
+        @Override
+        public void onRetryAlarm(int what, int tag) {
+            mFired++;
+            mTag = tag;
+        }
+    }
+
+    @SmallTest
+    public void testCloseRetriesShareAlarm() {
+        DcRetryAlarmBatcher batcher = new DcRetryAlarmBatcher();
+        Listener a = new Listener();
+        Listener b = new Listener();
+        Listener c = new Listener();
+        assertEquals(-1, batcher.getAlarmTime());
+
+        batcher.schedule(a, 1, 1, 0, 20000);
+        batcher.schedule(b, 1, 1, 0, 21000);
+        batcher.schedule(c, 1, 1, 0, 60000);
+        // a may wait 2s for b, c is too far
+        assertEquals(22000, batcher.getAlarmTime());
+
+        assertEquals(2, batcher.fire(22000));
+        assertEquals(1, a.mFired);
+        assertEquals(1, b.mFired);
+        assertEquals(0, c.mFired);
+        assertEquals(60000 + DcRetryAlarmBatcher.MAX_SLACK_MS, batcher.getAlarmTime());
+
+        assertEquals(1, batcher.fire(60000 + DcRetryAlarmBatcher.MAX_SLACK_MS));
+        assertEquals(-1, batcher.getAlarmTime());
+        assertTrue(batcher.toString(), batcher.toString().contains("wakeupsSaved=1 "));
+    }
+
+    @SmallTest
+    public void testNeverEarly() {
+        DcRetryAlarmBatcher batcher = new DcRetryAlarmBatcher();
+        Listener a = new Listener();
+        batcher.schedule(a, 1, 1, 1000, 5000);
+        assertEquals(0, batcher.fire(5999));
+        assertEquals(0, a.mFired);
+        assertEquals(1, batcher.fire(6000));
+        assertEquals(1, a.mFired);
+    }
+
+    @SmallTest
+    public void testScheduleReplacesAndCancel() {
+        DcRetryAlarmBatcher batcher = new DcRetryAlarmBatcher();
+        Listener a = new Listener();
+        Listener b = new Listener();
+        batcher.schedule(a, 1, 7, 0, 10000);
+        batcher.schedule(a, 1, 8, 0, 30000);
+        batcher.schedule(b, 1, 1, 0, 10000);
+        batcher.cancel(b);
+        assertEquals(33000, batcher.getAlarmTime());
+        assertEquals(1, batcher.fire(33000));
+        assertEquals(1, a.mFired);
+        assertEquals(8, a.mTag);
+        assertEquals(0, b.mFired);
+    }
+}
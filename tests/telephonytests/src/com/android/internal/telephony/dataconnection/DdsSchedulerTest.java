@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import android.net.ConnectivityManager;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.os.AsyncResult;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test cases for the DdsScheduler class.
+ */
+public class DdsSchedulerTest extends TestCase {
+    private static final long DEFAULT_SUB = 1;
+    private static final long OTHER_SUB = 2;
+    // Long enough that the hold only ends when a test says so
+    private static final long HOLD_MS = 60 * 60 * 1000;
+
+    private static final int EIMS = NetworkCapabilities.NET_CAPABILITY_EIMS;
+    private static final int IMS = NetworkCapabilities.NET_CAPABILITY_IMS;
+    private static final int MMS = NetworkCapabilities.NET_CAPABILITY_MMS;
+    private static final int SUPL = NetworkCapabilities.NET_CAPABILITY_SUPL;
+    private static final int INTERNET = NetworkCapabilities.NET_CAPABILITY_INTERNET;
+
+    private static int sRequestId = 1;
+
+    /**
+     * A scheduler that takes the sub of a request from its network specifier and records
+     * the requests it accepts and the switches it triggers instead of calling into the
+     * subscription and data controllers.
+     */
+    private static class TestDdsScheduler extends DdsScheduler {
+        final List<NetworkRequest> mAccepted =
+                Collections.synchronizedList(new ArrayList<NetworkRequest>());
+        // null for a revert to the default data sub
+        final List<NetworkRequest> mSwitches =
+                Collections.synchronizedList(new ArrayList<NetworkRequest>());
+        volatile long mDds = DEFAULT_SUB;
+
+        TestDdsScheduler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        long getSubIdFromNetworkRequest(NetworkRequest n) {
+            if (n == null) {
+                return DEFAULT_SUB;
+            }
+            return Long.parseLong(n.networkCapabilities.getNetworkSpecifier());
+        }
+
+        @Override
+        public long getCurrentDds() {
+            return mDds;
+        }
+
+        @Override
+        public void updateCurrentDds(NetworkRequest n) {
+            mDds = getSubIdFromNetworkRequest(n);
+        }
+
+        @Override
+        void notifyRequestAccepted(NetworkRequest nr) {
+            if (!isAlreadyAccepted(nr)) {
+                markAccepted(nr);
+                mAccepted.add(nr);
+            }
+        }
+
+        @Override
+        void triggerSwitch(NetworkRequest n) {
+            mSwitches.add(n);
+        }
+
+        @Override
+        boolean isMultiDataSupported() {
+            return false;
+        }
+
+        @Override
+        long getRevertHoldMs() {
+            return HOLD_MS;
+        }
+    }
+
+    private HandlerThread mThread;
+    private TestDdsScheduler mScheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread("DdsSchedulerTest");
+        mThread.start();
+        mScheduler = new TestDdsScheduler(mThread.getLooper());
+        mScheduler.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mScheduler.quitNow();
+        mThread.quit();
+        super.tearDown();
+    }
+
+    private static NetworkRequest request(long subId, int capability) {
+        NetworkCapabilities nc = new NetworkCapabilities();
+        nc.addTransportType(NetworkCapabilities.TRANSPORT_CELLULAR);
+        nc.addCapability(capability);
+        nc.setNetworkSpecifier(Long.toString(subId));
+        return new NetworkRequest(nc, ConnectivityManager.TYPE_NONE, sRequestId++);
+    }
+
+    /**
+     * Waits until the scheduler has handled everything sent to it, including the messages
+     * it sends itself while handling them.
+     */
+    private void waitForIdle() throws InterruptedException {
+        for (int i = 0; i < 4; i++) {
+            final CountDownLatch latch = new CountDownLatch(1);
+            mScheduler.getHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    latch.countDown();
+                }
+            });
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    private void add(NetworkRequest nr) throws InterruptedException {
+        mScheduler.sendMessage(mScheduler.obtainMessage(DdsSchedulerAc.EVENT_ADD_REQUEST, nr));
+        waitForIdle();
+    }
+
+    private void remove(NetworkRequest nr) throws InterruptedException {
+        mScheduler.sendMessage(mScheduler.obtainMessage(DdsSchedulerAc.EVENT_REMOVE_REQUEST,
+                nr));
+        waitForIdle();
+    }
+
+    private void expireHold(int token) throws InterruptedException {
+        mScheduler.sendMessage(mScheduler.obtainMessage(
+                DdsSchedulerAc.EVENT_REVERT_HOLD_EXPIRED, token, 0));
+        waitForIdle();
+    }
+
+    private String dump() {
+        StringWriter sw = new StringWriter();
+        mScheduler.dump(null, new PrintWriter(sw), null);
+        return sw.toString();
+    }
+
+    /**
+     * Switches DDS to OTHER_SUB for nr, as the modem would, and leaves nothing requested
+     * on it, so the revert to DEFAULT_SUB is held.
+     */
+    private void switchAndRelease(NetworkRequest nr) throws InterruptedException {
+        add(nr);
+        assertEquals(nr, mScheduler.mSwitches.get(mScheduler.mSwitches.size() - 1));
+        mScheduler.sendMessage(mScheduler.obtainMessage(
+                DdsSchedulerAc.EVENT_ON_DEMAND_DDS_SWITCH_DONE, new AsyncResult(null, nr, null)));
+        waitForIdle();
+        assertEquals(OTHER_SUB, mScheduler.getCurrentDds());
+        assertTrue(mScheduler.mAccepted.contains(nr));
+
+        remove(nr);
+        assertTrue(mScheduler.isRevertHoldPending());
+    }
+
+    @SmallTest
+    public void testRequestsOrderedByClassThenAge() {
+        NetworkRequest internet1 = request(DEFAULT_SUB, INTERNET);
+        NetworkRequest mms = request(DEFAULT_SUB, MMS);
+        NetworkRequest internet2 = request(OTHER_SUB, INTERNET);
+        NetworkRequest eims = request(OTHER_SUB, EIMS);
+        NetworkRequest supl = request(DEFAULT_SUB, SUPL);
+        NetworkRequest ims = request(DEFAULT_SUB, IMS);
+        NetworkRequest mms2 = request(OTHER_SUB, MMS);
+        NetworkRequest[] added = { internet1, mms, internet2, eims, supl, ims, mms2 };
+        NetworkRequest[] expected = { eims, ims, mms, mms2, supl, internet1, internet2 };
+
+        // Not started, so the requests stay in the inbox
+        DdsScheduler scheduler = new TestDdsScheduler(mThread.getLooper());
+        for (NetworkRequest nr : added) {
+            scheduler.addRequest(nr);
+        }
+        for (NetworkRequest nr : expected) {
+            assertEquals(nr, scheduler.getFirstWaitingRequest());
+            scheduler.removeRequest(nr);
+        }
+        assertNull(scheduler.getFirstWaitingRequest());
+    }
+
+    @SmallTest
+    public void testEquivalentRequestIsCoalesced() throws Exception {
+        NetworkRequest first = request(DEFAULT_SUB, INTERNET);
+        add(first);
+        assertEquals(1, mScheduler.mAccepted.size());
+        assertTrue(mScheduler.isAlreadyAccepted(first));
+
+        // Same network as the accepted request, accepted along with it
+        NetworkRequest same = request(DEFAULT_SUB, INTERNET);
+        add(same);
+        assertTrue(mScheduler.isAlreadyAccepted(same));
+        assertTrue(dump(), dump().contains("mCoalescedRequests=1 "));
+
+        // A different network goes through allocation
+        NetworkRequest mms = request(DEFAULT_SUB, MMS);
+        add(mms);
+        assertTrue(mScheduler.isAlreadyAccepted(mms));
+        assertTrue(dump(), dump().contains("mCoalescedRequests=1 "));
+        assertEquals(3, mScheduler.mAccepted.size());
+        assertTrue(mScheduler.mSwitches.isEmpty());
+    }
+
+    @SmallTest
+    public void testRevertIsHeldThenAppliedOnExpiry() throws Exception {
+        NetworkRequest mms = request(OTHER_SUB, MMS);
+        switchAndRelease(mms);
+        // Held, no revert yet
+        assertEquals(1, mScheduler.mSwitches.size());
+
+        // A request for the sub within the hold keeps DDS where it is
+        NetworkRequest again = request(OTHER_SUB, MMS);
+        add(again);
+        assertFalse(mScheduler.isRevertHoldPending());
+        assertTrue(mScheduler.isAlreadyAccepted(again));
+        assertEquals(1, mScheduler.mSwitches.size());
+        assertTrue(dump(), dump().contains("mPingPongAvoided=1 "));
+
+        remove(again);
+        assertTrue(mScheduler.isRevertHoldPending());
+        // The first hold was token 1
+        expireHold(2);
+        assertFalse(mScheduler.isRevertHoldPending());
+        assertEquals(2, mScheduler.mSwitches.size());
+        assertNull(mScheduler.mSwitches.get(1));
+    }
+
+    @SmallTest
+    public void testStaleHoldTokenIsIgnored() throws Exception {
+        NetworkRequest mms = request(OTHER_SUB, MMS);
+        switchAndRelease(mms);
+
+        expireHold(0);
+        assertTrue(mScheduler.isRevertHoldPending());
+        assertEquals(1, mScheduler.mSwitches.size());
+
+        // Cancel the hold with a new request and hold again; the first token is stale
+        NetworkRequest again = request(OTHER_SUB, MMS);
+        add(again);
+        remove(again);
+        assertTrue(mScheduler.isRevertHoldPending());
+        expireHold(1);
+        assertTrue(mScheduler.isRevertHoldPending());
+        assertEquals(1, mScheduler.mSwitches.size());
+
+        expireHold(2);
+        assertFalse(mScheduler.isRevertHoldPending());
+        assertEquals(2, mScheduler.mSwitches.size());
+        assertNull(mScheduler.mSwitches.get(1));
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.gsm;
+
+import android.content.BroadcastReceiver;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.IContentProvider;
+import android.content.Intent;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.provider.Telephony.Sms.Intents;
+import android.telephony.Rlog;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.internal.telephony.SmsBroadcastUndelivered;
+import com.android.internal.telephony.SmsHeader;
+import com.android.internal.telephony.TestPhoneNotifier;
+import com.android.internal.telephony.test.SimulatedCommands;
+import com.android.internal.telephony.uicc.UiccController;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Benchmarks the inbound SMS path from RIL_UNSOL_RESPONSE_NEW_SMS through
+ * GsmInboundSmsHandler, the raw table and the ordered broadcasts, driven by
+ * SimulatedCommands. The raw table is an in-memory stand-in for SmsProvider, and the
+ * ordered broadcasts complete immediately as if the default SMS app had handled them, so
+ * the numbers measure the handler's state machine rather than the rest of the system.
+ *
+ * Reports throughput, end-to-end latency percentiles and allocation rate per run.
+ */
+public class GsmInboundSmsBenchmarkTest extends AndroidTestCase {
+    private static final String TAG = "GsmInboundSmsBenchmarkTest";
+
+    private static final String SENDER = "+16505551212";
+    private static final String BODY = "The quick brown fox jumps over the lazy dog 0123456789";
+
+    private static final long COMPLETION_TIMEOUT_MS = 60 * 1000;
+
+    private HandlerThread mPhoneThread;
+    private SimulatedCommands mCommands;
+    private GSMPhone mPhone;
+    private BenchmarkContext mBenchmarkContext;
+    private GsmInboundSmsHandler mHandler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCommands = new SimulatedCommands();
+        mPhoneThread = new HandlerThread(TAG);
+        mPhoneThread.start();
+        final CountDownLatch created = new CountDownLatch(1);
+        new Handler(mPhoneThread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    UiccController.getInstance();
+                } catch (RuntimeException e) {
+                    UiccController.make(getContext(), mCommands);
+                }
+                mPhone = new GSMPhone(getContext(), mCommands, new TestPhoneNotifier(), true);
+                created.countDown();
+            }
+        });
+        assertTrue(created.await(10, TimeUnit.SECONDS));
+
+        mBenchmarkContext = new BenchmarkContext(getContext());
+        // registers with mCommands for new SMS in place of the phone's own handler
+        mHandler = GsmInboundSmsHandler.makeInboundSmsHandler(mBenchmarkContext,
+                mPhone.mSmsStorageMonitor, mPhone);
+        new SmsBroadcastUndelivered(mBenchmarkContext, mHandler, null).run();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHandler.dispose();
+        mPhone.dispose();
+        mPhoneThread.quit();
+        super.tearDown();
+    }
+
+    @LargeTest
+    public void testSinglePartThroughput() throws Exception {
+        runBenchmark("single-part, unpaced", 1, 1000, 0);
+    }
+
+    @LargeTest
+    public void testSinglePartPaced() throws Exception {
+        runBenchmark("single-part, 100/s", 1, 500, 100);
+    }
+
+    @LargeTest
+    public void testMultipartThroughput() throws Exception {
+        runBenchmark("3 parts, unpaced", 3, 300, 0);
+    }
+
+    @LargeTest
+    public void testMultipartPaced() throws Exception {
+        runBenchmark("3 parts, 50/s", 3, 200, 50);
+    }
+
+    /**
+     * Injects messageCount messages of partCount parts each, at messagesPerSecond (0 for as
+     * fast as possible), and waits for all of them to be broadcast.
+     */
+    private void runBenchmark(String name, int partCount, int messageCount,
+            int messagesPerSecond) throws Exception {
+        String[][] pdus = new String[messageCount][];
+        for (int i = 0; i < messageCount; i++) {
+            pdus[i] = makeMessagePdus(i, partCount);
+        }
+        int acksBefore = mCommands.getGsmSmsAckCount();
+        mBenchmarkContext.reset(messageCount);
+
+        long intervalNs = messagesPerSecond > 0 ? 1000000000L / messagesPerSecond : 0;
+        Debug.resetGlobalAllocSize();
+        Debug.startAllocCounting();
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < messageCount; i++) {
+            if (intervalNs > 0) {
+                long wait = start + i * intervalNs - SystemClock.elapsedRealtimeNanos();
+                if (wait > 0) LockSupport.parkNanos(wait);
+            }
+            mBenchmarkContext.mInjectTimesNs[i] = SystemClock.elapsedRealtimeNanos();
+            for (String pdu : pdus[i]) {
+                mCommands.triggerIncomingGsmSms(pdu);
+            }
+        }
+        boolean completed = mBenchmarkContext.mCompleted.await(COMPLETION_TIMEOUT_MS,
+                TimeUnit.MILLISECONDS);
+        long elapsedNs = SystemClock.elapsedRealtimeNanos() - start;
+        Debug.stopAllocCounting();
+        long allocBytes = Debug.getGlobalAllocSize();
+
+        assertTrue(name + ": " + mBenchmarkContext.mCompleted.getCount() + " of "
+                + messageCount + " messages not broadcast", completed);
+        assertEquals("acks", messageCount * partCount,
+                mCommands.getGsmSmsAckCount() - acksBefore);
+        assertEquals("raw table rows left", 0, mBenchmarkContext.mRawTable.size());
+        assertEquals("rejected", 0, mBenchmarkContext.mRejected);
+
+        long[] latencies = Arrays.copyOf(mBenchmarkContext.mLatenciesNs, messageCount);
+        Arrays.sort(latencies);
+        double seconds = elapsedNs / 1e9;
+        Rlog.d(TAG, name + ": " + messageCount + " messages (" + messageCount * partCount
+                + " PDUs) in " + (elapsedNs / 1000000) + " ms, "
+                + String.format("%.1f", messageCount / seconds) + " messages/s, latency p50 "
+                + percentileMs(latencies, 50) + " ms p99 " + percentileMs(latencies, 99)
+                + " ms max " + percentileMs(latencies, 100) + " ms, allocated "
+                + (long) (allocBytes / seconds / 1024) + " KB/s, "
+                + (allocBytes / messageCount) + " bytes/message");
+    }
+
+    private static String percentileMs(long[] sorted, int percentile) {
+        int index = Math.min(sorted.length - 1, (sorted.length * percentile + 99) / 100 - 1);
+        return String.format("%.2f", sorted[Math.max(0, index)] / 1e6);
+    }
+
+    private static String[] makeMessagePdus(int messageIndex, int partCount)
+            throws Exception {
+        String[] pdus = new String[partCount];
+        for (int part = 0; part < partCount; part++) {
+            SmsHeader header = null;
+            if (partCount > 1) {
+                SmsHeader.ConcatRef concatRef = new SmsHeader.ConcatRef();
+                concatRef.refNumber = messageIndex & 0xff;
+                concatRef.seqNumber = part + 1;
+                concatRef.msgCount = partCount;
+                concatRef.isEightBits = true;
+                header = new SmsHeader();
+                header.concatRef = concatRef;
+            }
+            // a sender per reference number, so references never repeat for one sender
+            String sender = SENDER + (messageIndex >> 8);
+            pdus[part] = SimulatedCommands.makeGsmDeliverPdu(sender,
+                    BODY + " " + messageIndex + "/" + (part + 1), header);
+        }
+        return pdus;
+    }
+
+    /**
+     * Context given to the handler: serves the raw table from memory and completes the
+     * handler's ordered broadcasts itself.
+     */
+    private static class BenchmarkContext extends ContextWrapper {
+        final RawTableProvider mRawTable = new RawTableProvider();
+        private final RawTableResolver mResolver;
+
+        long[] mInjectTimesNs;
+        long[] mLatenciesNs;
+        CountDownLatch mCompleted;
+        int mCompletedCount;
+        volatile int mRejected;
+
+        BenchmarkContext(Context base) {
+            super(base);
+            mResolver = new RawTableResolver(base.getContentResolver(), mRawTable);
+        }
+
+        void reset(int messageCount) {
+            mInjectTimesNs = new long[messageCount];
+            mLatenciesNs = new long[messageCount];
+            mCompletedCount = 0;
+            mRejected = 0;
+            mCompleted = new CountDownLatch(messageCount);
+        }
+
+        @Override
+        public ContentResolver getContentResolver() {
+            return mResolver;
+        }
+
+        @Override
+        public void sendBroadcast(Intent intent, String receiverPermission) {
+            if (Intents.SMS_REJECTED_ACTION.equals(intent.getAction())) {
+                mRejected++;
+            }
+        }
+
+        /**
+         * Stands in for the SMS filter and the default SMS app. The delivery and the
+         * notification-only broadcast to all users are completed together, since the
+         * latter needs cross-user permissions this test doesn't hold.
+         */
+        @Override
+        public void sendOrderedBroadcastAsUser(final Intent intent, UserHandle user,
+                String receiverPermission, int appOp, final BroadcastReceiver resultReceiver,
+                Handler scheduler, final int initialCode, String initialData,
+                Bundle initialExtras) {
+            if (resultReceiver == null) {
+                return;
+            }
+            scheduler.post(new Runnable() {
+                @Override
+                public void run() {
+                    String action = intent.getAction();
+                    boolean last = !Intents.SMS_FILTER_ACTION.equals(action);
+                    if (Intents.SMS_DELIVER_ACTION.equals(action)) {
+                        intent.setAction(Intents.SMS_RECEIVED_ACTION);
+                    } else if (Intents.WAP_PUSH_DELIVER_ACTION.equals(action)) {
+                        intent.setAction(Intents.WAP_PUSH_RECEIVED_ACTION);
+                    }
+                    resultReceiver.setPendingResult(new BroadcastReceiver.PendingResult(
+                            initialCode, null, null, 0, true, false, null,
+                            UserHandle.USER_OWNER));
+                    resultReceiver.onReceive(BenchmarkContext.this, intent);
+                    if (last) {
+                        // messages complete in order, since each is broadcast in turn
+                        int index = mCompletedCount++;
+                        mLatenciesNs[index] = SystemClock.elapsedRealtimeNanos()
+                                - mInjectTimesNs[index];
+                        mCompleted.countDown();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Resolver serving the "sms" authority from a {@link RawTableProvider} and every other
+     * authority, e.g. settings, from the real resolver.
+     */
+    private static class RawTableResolver extends MockContentResolver {
+        private final ContentResolver mDelegate;
+        private final IContentProvider mRawTableProvider;
+
+        RawTableResolver(ContentResolver delegate, RawTableProvider rawTable) {
+            mDelegate = delegate;
+            mRawTableProvider = rawTable.getIContentProvider();
+            addProvider("sms", rawTable);
+        }
+
+        @Override
+        protected IContentProvider acquireProvider(Context context, String name) {
+            IContentProvider provider = super.acquireProvider(context, name);
+            return provider != null ? provider : mDelegate.acquireProvider(name);
+        }
+
+        @Override
+        protected IContentProvider acquireUnstableProvider(Context context, String name) {
+            IContentProvider provider = super.acquireUnstableProvider(context, name);
+            return provider != null ? provider : mDelegate.acquireUnstableProvider(name);
+        }
+
+        @Override
+        public boolean releaseProvider(IContentProvider provider) {
+            return provider == mRawTableProvider || mDelegate.releaseProvider(provider);
+        }
+
+        @Override
+        public boolean releaseUnstableProvider(IContentProvider provider) {
+            return provider == mRawTableProvider
+                    || mDelegate.releaseUnstableProvider(provider);
+        }
+    }
+
+    /**
+     * In-memory SmsProvider raw table, supporting the "column=?" conjunctions that
+     * InboundSmsHandler and SmsBroadcastUndelivered select by.
+     */
+    private static class RawTableProvider extends MockContentProvider {
+        private final ArrayList<ContentValues> mRows = new ArrayList<ContentValues>();
+        private long mNextId = 1;
+
+        synchronized int size() {
+            return mRows.size();
+        }
+
+        @Override
+        public synchronized Uri insert(Uri uri, ContentValues values) {
+            ContentValues row = new ContentValues(values);
+            long id = mNextId++;
+            row.put("_id", id);
+            mRows.add(row);
+            return ContentUris.withAppendedId(uri, id);
+        }
+
+        @Override
+        public synchronized Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            MatrixCursor cursor = new MatrixCursor(projection);
+            String[] columns = selectedColumns(selection);
+            for (int i = 0, count = mRows.size(); i < count; i++) {
+                ContentValues row = mRows.get(i);
+                if (matches(row, columns, selectionArgs)) {
+                    Object[] values = new Object[projection.length];
+                    for (int j = 0; j < projection.length; j++) {
+                        values[j] = row.get(projection[j]);
+                    }
+                    cursor.addRow(values);
+                }
+            }
+            return cursor;
+        }
+
+        @Override
+        public synchronized int delete(Uri uri, String selection, String[] selectionArgs) {
+            String[] columns = selectedColumns(selection);
+            int deleted = 0;
+            for (int i = mRows.size() - 1; i >= 0; i--) {
+                if (matches(mRows.get(i), columns, selectionArgs)) {
+                    mRows.remove(i);
+                    deleted++;
+                }
+            }
+            return deleted;
+        }
+
+        private static String[] selectedColumns(String selection) {
+            if (selection == null) {
+                return new String[0];
+            }
+            String[] columns = selection.split(" AND ");
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = columns[i].substring(0, columns[i].indexOf("=?")).trim();
+            }
+            return columns;
+        }
+
+        private static boolean matches(ContentValues row, String[] columns, String[] args) {
+            for (int i = 0; i < columns.length; i++) {
+                Object value = row.get(columns[i]);
+                if (value == null || !value.toString().equals(args[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -22,6 +22,7 @@ import android.telephony.SmsCbLocation;
 import android.telephony.SmsCbMessage;
 import android.test.AndroidTestCase;
 
+import com.android.internal.telephony.CellBroadcastDuplicateFilter;
 import com.android.internal.telephony.uicc.IccUtils;
 
 import java.util.Random;
@@ -705,7 +706,36 @@ public class GsmSmsCbTest extends AndroidTestCase {
             "573065B9306757309707300263FA308C306B5099304830664E0B30553044FF086C178C615E81FF09" +
             "00000000000000000000000000000000000000000000");
 
-    // FIXME: add example of ETWS primary notification PDU
+    // ETWS primary notification with the serial number and message ID of etwsMessageNormal:
+    // earthquake, emergency user alert and popup, no security information
+    private static final byte[] etwsPrimaryNormal = IccUtils.hexStringToBytes("000011000580" +
+            "0000000000000000000000000000000000000000000000000000000000000000000000000000" +
+            "000000000000000000000000");
+
+    public void testEtwsPrimaryThenSecondaryAreBothDispatched() {
+        SmsCbHeader primary = new SmsCbHeader(etwsPrimaryNormal);
+        SmsCbHeader secondary = new SmsCbHeader(etwsMessageNormal);
+        assertTrue(primary.isEtwsPrimaryNotification());
+        assertFalse(secondary.isEtwsPrimaryNotification());
+        assertEquals(primary.getSerialNumber(), secondary.getSerialNumber());
+        assertEquals(primary.getServiceCategory(), secondary.getServiceCategory());
+
+        // as GsmCellBroadcastHandler filters and records each message it dispatches
+        CellBroadcastDuplicateFilter filter = new CellBroadcastDuplicateFilter();
+        int dispatched = 0;
+        SmsCbHeader[] received = { primary, secondary, primary, secondary };
+        for (int i = 0; i < received.length; i++) {
+            SmsCbHeader header = received[i];
+            if (!filter.isDuplicate(header.getSerialNumber(), header.getServiceCategory(),
+                    header.isEtwsPrimaryNotification(), sTestLocation, 1000 * i)) {
+                filter.add(header.getSerialNumber(), header.getServiceCategory(),
+                        header.isEtwsPrimaryNotification(), sTestLocation, 1000 * i);
+                dispatched++;
+            }
+        }
+        assertEquals(2, dispatched);
+        assertEquals(2, filter.getDuplicateCount());
+    }
 
     public void testEtwsMessageNormal() {
         SmsCbMessage msg = createFromPdu(etwsMessageNormal);